@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+
+import com.example.android.amplacenta.engine.AudioSink;
+
+/**
+ * {@link AudioSink} that renders to a streaming {@link AudioTrack}, from a thread at
+ * urgent audio priority.
+ */
+class AudioTrackSink implements AudioSink {
+
+    private AudioTrack mTrack;
+
+    @Override
+    public void open(int sampleRate) {
+        close();
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        int bufferSize = AudioTrack.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                bufferSize, AudioTrack.MODE_STREAM);
+        mTrack.play();
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int count) {
+        if (mTrack != null) {
+            mTrack.write(samples, offset, count);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mTrack != null) {
+            mTrack.stop();
+            mTrack.release();
+            mTrack = null;
+        }
+    }
+}
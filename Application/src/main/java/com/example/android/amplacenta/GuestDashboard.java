@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.example.android.amplacenta.engine.GuestStats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Table of per-guest stats shown by the {@link HostFragment}, one row per guest.
+ * <p>
+ * Every call to {@link #render(List, int)} is diffed against what is already on screen and
+ * only the cells whose value changed are re-formatted, so redrawing a dozen guests several
+ * times a second costs next to nothing on the UI thread.
+ */
+public class GuestDashboard {
+
+    // Shown for values that have not been measured or reported yet
+    private static final String NO_VALUE = "-";
+
+    private final LayoutInflater mInflater;
+    private final ViewGroup mContainer;
+    private final List<Row> mRows = new ArrayList<>();
+
+    /**
+     * @param inflater  Inflater used to create the rows
+     * @param container The view the header and guest rows are added to
+     */
+    public GuestDashboard(LayoutInflater inflater, ViewGroup container) {
+        mInflater = inflater;
+        mContainer = container;
+
+        View header = inflater.inflate(R.layout.guest_row, container, false);
+        setHeader(header, R.id.guest_name, R.string.dashboard_guest);
+        setHeader(header, R.id.guest_role, R.string.dashboard_role);
+        setHeader(header, R.id.guest_link, R.string.dashboard_link);
+        setHeader(header, R.id.guest_buffer, R.string.dashboard_buffer);
+        setHeader(header, R.id.guest_offset, R.string.dashboard_offset);
+        setHeader(header, R.id.guest_drift, R.string.dashboard_drift);
+        setHeader(header, R.id.guest_dropped, R.string.dashboard_dropped);
+        setHeader(header, R.id.guest_concealed, R.string.dashboard_concealed);
+        container.addView(header);
+    }
+
+    private static void setHeader(View header, int id, int resId) {
+        ((TextView) header.findViewById(id)).setText(resId);
+    }
+
+    /**
+     * Bring the table up to date with a stats snapshot. Must be called on the UI thread.
+     *
+     * @param stats A snapshot as filled by {@link HostService#snapshotGuestStats(List)}
+     * @param count The number of valid entries at the head of {@code stats}
+     */
+    public void render(List<GuestStats> stats, int count) {
+        for (int i = 0; i < count; i++) {
+            Row row;
+            if (i < mRows.size()) {
+                row = mRows.get(i);
+            } else {
+                row = new Row(mInflater.inflate(R.layout.guest_row, mContainer, false));
+                mContainer.addView(row.view);
+                mRows.add(row);
+            }
+            row.bind(stats.get(i));
+        }
+
+        // Hide the rows of guests that have left rather than tearing the views down
+        for (int i = count; i < mRows.size(); i++) {
+            mRows.get(i).hide();
+        }
+    }
+
+    private static String format(int value, String unit) {
+        return value == GuestStats.UNKNOWN ? NO_VALUE : value + unit;
+    }
+
+    /**
+     * The views of one guest along with the values they are currently showing.
+     */
+    private static class Row {
+        final View view;
+        final TextView name;
+        final TextView role;
+        final TextView link;
+        final TextView buffer;
+        final TextView offset;
+        final TextView drift;
+        final TextView dropped;
+        final TextView concealed;
+
+        // What is on screen right now, only meaningful while the row is visible
+        private final GuestStats mShown = new GuestStats();
+        private boolean mVisible;
+
+        Row(View view) {
+            this.view = view;
+            name = (TextView) view.findViewById(R.id.guest_name);
+            role = (TextView) view.findViewById(R.id.guest_role);
+            link = (TextView) view.findViewById(R.id.guest_link);
+            buffer = (TextView) view.findViewById(R.id.guest_buffer);
+            offset = (TextView) view.findViewById(R.id.guest_offset);
+            drift = (TextView) view.findViewById(R.id.guest_drift);
+            dropped = (TextView) view.findViewById(R.id.guest_dropped);
+            concealed = (TextView) view.findViewById(R.id.guest_concealed);
+        }
+
+        void bind(GuestStats s) {
+            boolean all = !mVisible;
+            if (all) {
+                view.setVisibility(View.VISIBLE);
+                mVisible = true;
+            }
+            GuestStats old = mShown;
+
+            // The address stands in for a missing name, so a change of either can show
+            if (all || !equal(old.name, s.name) || !equal(old.address, s.address)) {
+                name.setText(s.name != null ? s.name : s.address);
+            }
+            if (all || old.role != s.role) {
+                role.setText(s.role == GuestStats.UNKNOWN ? NO_VALUE : "#" + (s.role + 1));
+            }
+            if (all || old.rssi != s.rssi || old.throughput != s.throughput) {
+                String kbps = s.throughput == GuestStats.UNKNOWN
+                        ? NO_VALUE : (s.throughput * 8 / 1000) + "k";
+                link.setText(s.rssi == GuestStats.UNKNOWN ? kbps : s.rssi + "dBm " + kbps);
+            }
+            if (all || old.bufferDepthMs != s.bufferDepthMs) {
+                buffer.setText(format(s.bufferDepthMs, "ms"));
+            }
+            if (all || old.clockOffsetUs != s.clockOffsetUs) {
+                offset.setText(format(s.clockOffsetUs, "us"));
+            }
+            if (all || old.driftPpm != s.driftPpm) {
+                drift.setText(format(s.driftPpm, "ppm"));
+            }
+            if (all || old.droppedFrames != s.droppedFrames) {
+                dropped.setText(format(s.droppedFrames, ""));
+            }
+            if (all || old.concealedFrames != s.concealedFrames) {
+                concealed.setText(format(s.concealedFrames, ""));
+            }
+            old.set(s);
+        }
+
+        void hide() {
+            if (mVisible) {
+                view.setVisibility(View.GONE);
+                mVisible = false;
+            }
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -18,51 +18,53 @@ package com.example.android.amplacenta;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Bundle;
+import android.net.wifi.WifiManager;
 import android.os.Handler;
-import android.os.Message;
 
-import com.example.android.common.logger.Log;
+import com.example.android.amplacenta.engine.CaptureWriter;
+import com.example.android.amplacenta.engine.Clock;
+import com.example.android.amplacenta.engine.GuestSession;
+import com.example.android.amplacenta.engine.PcmCodec;
+import com.example.android.amplacenta.engine.transport.Transport;
+import com.example.android.common.logger.Trace;
+import com.example.android.common.metrics.MetricsRegistry;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
 
 /**
- * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * Joins a party over Bluetooth. The connection, the clock sync and the playout all live
+ * in the engine's {@link GuestSession}; this class binds it to a transport, RFCOMM unless
+ * another one is given, and to an AudioTrack, and relays its callbacks to the UI Activity
+ * as Handler messages.
  */
 public class GuestService {
-    // Debugging
-    private static final String TAG = "GuestService";
 
-    // Name for the SDP record when creating server socket
-    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+    // Names of the metrics kept in getMetrics(). Per-connection metrics are keyed by device address.
+    public static final String METRIC_CONNECT_US = GuestSession.METRIC_CONNECT_US;
+    public static final String METRIC_CONNECT_FAILURES = GuestSession.METRIC_CONNECT_FAILURES;
+    public static final String METRIC_CONNECTIONS = GuestSession.METRIC_CONNECTIONS;
+    public static final String METRIC_SEND_US = GuestSession.METRIC_SEND_US;
+    public static final String METRIC_SENT_BYTES = GuestSession.METRIC_SENT_BYTES;
+    public static final String METRIC_SENT_FRAMES = GuestSession.METRIC_SENT_FRAMES;
+    public static final String METRIC_RECEIVED_BYTES = GuestSession.METRIC_RECEIVED_BYTES;
+    public static final String METRIC_RECEIVED_FRAMES = GuestSession.METRIC_RECEIVED_FRAMES;
+    public static final String METRIC_RECEIVE_GAP_US = GuestSession.METRIC_RECEIVE_GAP_US;
 
-    // Unique UUID for this application
-    private static final UUID MY_UUID_INSECURE =
-            UUID.fromString("3E8FF50E-5A6E-4F11-86D6-BBB94301BC70");
+    // Debugging
+    private static final String TAG = "GuestService";
 
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
-    private AcceptThread mAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
-    private boolean master;
+    private final Context mContext;
+    private final GuestSession mSession;
+    private WifiManager.MulticastLock mMulticastLock;
 
     // Constants that indicate the current connection state
-    public static final int STATE_NONE = 0;       // we're doing nothing
-    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
-    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_NONE = GuestSession.STATE_NONE;             // we're doing nothing
+    public static final int STATE_LISTEN = GuestSession.STATE_LISTEN;         // now listening for incoming connections
+    public static final int STATE_CONNECTING = GuestSession.STATE_CONNECTING; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = GuestSession.STATE_CONNECTED;   // now connected to a remote device
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
@@ -71,413 +73,122 @@ public class GuestService {
      * @param handler A Handler to send messages back to the UI Activity
      */
     public GuestService(Context context, Handler handler) {
-        this.mAdapter = BluetoothAdapter.getDefaultAdapter();
-        this.mState = STATE_NONE;
-        this.mHandler = handler;
+        this(context, handler, new RfcommTransport(BluetoothAdapter.getDefaultAdapter()));
     }
 
     /**
-     * Set the current state of the chat connection
+     * Constructor. Prepares a new BluetoothChat session over the given transport.
      *
-     * @param state An integer defining the current connection state
+     * @param context   The UI Activity Context
+     * @param handler   A Handler to send messages back to the UI Activity
+     * @param transport How to reach the host
      */
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
-
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    public GuestService(Context context, Handler handler, Transport transport) {
+        mContext = context.getApplicationContext();
+        mSession = new GuestSession(transport, Clock.SYSTEM, new PcmCodec(), new AudioTrackSink(),
+                new HandlerSessionListener(handler));
     }
 
     /**
      * Return the current connection state.
      */
-    public synchronized int getState() {
-        return mState;
+    public int getState() {
+        return mSession.getState();
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
-     * session in listening (server) mode. Called by the Activity onResume()
+     * Return the latency and throughput metrics of this session. Use
+     * {@link MetricsRegistry#snapshot()} to read them.
      */
-    public synchronized void start() {
-        Log.d(TAG, "start");
-
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        setState(STATE_LISTEN);
-
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mAcceptThread == null) {
-            mAcceptThread = new AcceptThread();
-            mAcceptThread.start();
-        }
+    public MetricsRegistry getMetrics() {
+        return mSession.getMetrics();
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Record the session's traffic to a capture file, or stop recording with null. Off by
+     * default.
      *
-     * @param device The BluetoothDevice to connect
+     * @see GuestSession#setCapture(CaptureWriter)
      */
-    public synchronized void connect(BluetoothDevice device) {
-        Log.d(TAG, "connect to: " + device);
-
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        setState(STATE_CONNECTING);
-        mConnectThread.start();
+    public void setCapture(CaptureWriter capture) {
+        mSession.setCapture(capture);
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Record per-frame trace events to a file, to be read with TraceDecoder, or stop
+     * recording with null. Off by default. Tracing is per process, so a host and a guest
+     * in one app share the file.
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @see Trace#start(File, int)
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        Log.d(TAG, "connected");
-
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    public void setTraceFile(File file) throws IOException {
+        if (file != null) {
+            Trace.start(file, Trace.DEFAULT_CAPACITY);
+        } else {
+            Trace.stop();
         }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        // Cancel the accept thread because we only want to connect to one device
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
-            mAcceptThread = null;
-        }
-
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
-
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        setState(STATE_CONNECTED);
     }
 
     /**
-     * Stop all threads
+     * Offer to pass the stream on over Bluetooth to up to {@code maxGuests} guests the
+     * host has no room for. Must be called before connecting.
+     *
+     * @see GuestSession#enableRelay(Transport, String, int)
      */
-    public synchronized void stop() {
-        Log.d(TAG, "stop");
-
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
-
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
-            mAcceptThread = null;
-        }
-
-        setState(STATE_NONE);
+    public void enableRelay(int maxGuests) {
+        mSession.enableRelay(new RfcommTransport(BluetoothAdapter.getDefaultAdapter()), null,
+                maxGuests);
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Take the audio from the host's multicast group on the Wi-Fi network, if it has one.
+     * Holds a multicast lock until {@link #stop()}, since Wi-Fi drops multicast otherwise.
+     * Must be called before connecting.
      *
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @see GuestSession#enableMulticast(java.net.NetworkInterface)
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        // Perform the write unsynchronized
-        r.write(out);
+    public void enableMulticast() {
+        if (mMulticastLock == null) {
+            WifiManager wifi = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+            mMulticastLock = wifi.createMulticastLock(TAG);
+            mMulticastLock.setReferenceCounted(false);
+        }
+        mMulticastLock.acquire();
+        mSession.enableMulticast(null);
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Start the session in listening (server) mode. Called by the Activity onResume()
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        // Start the service over to restart listening mode
-        GuestService.this.start();
+    public void start() {
+        mSession.start();
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
-     */
-    private void connectionLost() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        // Start the service over to restart listening mode
-        GuestService.this.start();
-    }
-
-    /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * Initiate a connection to a remote device.
+     *
+     * @param device The BluetoothDevice to connect
      */
-    private class AcceptThread extends Thread {
-        // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
-
-        public AcceptThread() {
-            BluetoothServerSocket tmp = null;
-
-            // Create a new listening server socket
-            try {
-                tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, MY_UUID_INSECURE);
-            } catch (IOException e) {
-                Log.e(TAG, "listen() failed", e);
-            }
-            mmServerSocket = tmp;
-        }
-
-        public void run() {
-            Log.d(TAG, "BEGIN mAcceptThread" + this);
-            setName("AcceptThread");
-
-            BluetoothSocket socket = null;
-
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
-                try {
-                    // This is a blocking call and will only return on a
-                    // successful connection or an exception
-                    socket = mmServerSocket.accept();
-                } catch (IOException e) {
-                    Log.e(TAG, "accept() failed", e);
-                    break;
-                }
-
-                // If a connection was accepted
-                if (socket != null) {
-                    synchronized (GuestService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice());
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
-                        }
-                    }
-                }
-            }
-            Log.i(TAG, "END mAcceptThread");
-
-        }
-
-        public void cancel() {
-            Log.d(TAG, "cancel " + this);
-            try {
-                mmServerSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of server failed", e);
-            }
-        }
+    public void connect(BluetoothDevice device) {
+        mSession.connect(device.getAddress());
     }
 
-
     /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * Stop all threads
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                tmp = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
-            } catch (IOException e) {
-                Log.e(TAG, "Socket create() failed", e);
-            }
-            mmSocket = tmp;
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread");
-            setName("ConnectThread");
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
-                }
-                connectionFailed();
-                return;
-            }
-
-            // Reset the ConnectThread because we're done
-            synchronized (GuestService.this) {
-                mConnectThread = null;
-            }
-
-            // Start the connected thread
-            connected(mmSocket, mmDevice);
-        }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+    public void stop() {
+        mSession.stop();
+        if (mMulticastLock != null) {
+            mMulticastLock.release();
         }
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * Send a chat message to the host.
+     *
+     * @param out The bytes to write
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "create ConnectedThread");
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-            }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
-
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    GuestService.this.start();
-                    break;
-                }
-            }
-        }
-
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
-        }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
-        }
+    public void write(byte[] out) {
+        mSession.writeText(out);
     }
 }
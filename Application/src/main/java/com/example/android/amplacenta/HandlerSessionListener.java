@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+import com.example.android.amplacenta.engine.SessionListener;
+
+/**
+ * Turns the callbacks of a host or guest session into the Handler messages the UI
+ * Activity expects, see {@link Constants}.
+ */
+class HandlerSessionListener implements SessionListener {
+    private final Handler mHandler;
+
+    HandlerSessionListener(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void onStateChanged(int state) {
+        // Give the new state to the Handler so the UI Activity can update
+        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    }
+
+    @Override
+    public void onConnected(String name) {
+        // Send the name of the connected device back to the UI Activity
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.DEVICE_NAME, name);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
+    @Override
+    public void onConnectionFailed() {
+        toast("Unable to connect device");
+    }
+
+    @Override
+    public void onConnectionLost(String name) {
+        toast("Device connection was lost");
+    }
+
+    @Override
+    public void onTextReceived(byte[] buffer, int length) {
+        // The session reuses its buffer, so hand the UI Activity a copy
+        byte[] copy = new byte[length];
+        System.arraycopy(buffer, 0, copy, 0, length);
+        mHandler.obtainMessage(Constants.MESSAGE_READ, length, -1, copy).sendToTarget();
+    }
+
+    @Override
+    public void onTextSent(byte[] buffer) {
+        // Share the sent message back to the UI Activity
+        mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
+    }
+
+    private void toast(String text) {
+        // Send a failure message back to the Activity
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.TOAST, text);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+}
@@ -29,6 +29,7 @@ import android.widget.Toast;
 import java.util.List;
 import java.util.ArrayList;
 
+import com.example.android.amplacenta.engine.GuestStats;
 import com.example.android.common.logger.Log;
 
 public class HostFragment extends Fragment {
@@ -38,11 +39,22 @@ public class HostFragment extends Fragment {
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 1;
     private static final int REQUEST_ENABLE_BT = 2;
 
+    // Upper bound on how often the guest dashboard is redrawn
+    private static final int DASHBOARD_FPS = 4;
+
     // Layout Views
     private ListView mConversationView;
     private EditText mOutEditText;
     private Button mSendButton;
     private EditText mPartyStatus;
+    private ViewGroup mDashboardView;
+
+    /**
+     * Per-guest stats table and the snapshot it is rendered from
+     */
+    private GuestDashboard mDashboard;
+    private final List<GuestStats> mGuestStats = new ArrayList<GuestStats>();
+
     /**
      * Name of the connected devices
      */
@@ -120,6 +132,13 @@ public class HostFragment extends Fragment {
                 hostService.start();
             }
         }
+        mHandler.post(mDashboardRefresh);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mDashboardRefresh);
     }
 
     @Override
@@ -134,6 +153,7 @@ public class HostFragment extends Fragment {
         mOutEditText = (EditText) view.findViewById(R.id.edit_text_out);
         mSendButton = (Button) view.findViewById(R.id.button_send);
         mPartyStatus = (EditText) view.findViewById(R.id.party_status);
+        mDashboardView = (ViewGroup) view.findViewById(R.id.guest_dashboard);
     }
 
     /**
@@ -166,6 +186,10 @@ public class HostFragment extends Fragment {
         // Initialize the GuestService to perform bluetooth connections
         hostService = new HostService(getActivity(), mHandler);
 
+        // Initialize the guest dashboard
+        mDashboard = new GuestDashboard(getActivity().getLayoutInflater(), mDashboardView);
+        mDashboardView.setVisibility(View.VISIBLE);
+
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
     }
@@ -256,6 +280,21 @@ public class HostFragment extends Fragment {
         actionBar.setSubtitle(subTitle);
     }
 
+    /**
+     * Periodically snapshots the guest stats and redraws the dashboard, at most
+     * {@link #DASHBOARD_FPS} times a second. Runs on the UI thread while resumed.
+     */
+    private final Runnable mDashboardRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (hostService != null && mDashboard != null) {
+                int count = hostService.snapshotGuestStats(mGuestStats);
+                mDashboard.render(mGuestStats, count);
+            }
+            mHandler.postDelayed(this, 1000 / DASHBOARD_FPS);
+        }
+    };
+
     /**
      * The Handler that gets information back from the HostService
      */
@@ -291,10 +330,11 @@ public class HostFragment extends Fragment {
                     break;
                 case Constants.MESSAGE_DEVICE_NAME:
                     // save the connected device's name
-                    mConnectedDeviceNames.add(msg.getData().getString(Constants.DEVICE_NAME));
+                    String deviceName = msg.getData().getString(Constants.DEVICE_NAME);
+                    mConnectedDeviceNames.add(deviceName);
                     if (activity != null) {
                         Toast.makeText(activity, "Connected to "
-                                + mConnectedDeviceNames, Toast.LENGTH_SHORT).show();
+                                + deviceName, Toast.LENGTH_SHORT).show();
                     }
                     break;
                 case Constants.MESSAGE_TOAST:
@@ -18,52 +18,68 @@ package com.example.android.amplacenta;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
-
-import com.example.android.common.logger.Log;
 
+import com.example.android.amplacenta.engine.AudioStreamer;
+import com.example.android.amplacenta.engine.CaptureWriter;
+import com.example.android.amplacenta.engine.Clock;
+import com.example.android.amplacenta.engine.GuestStats;
+import com.example.android.amplacenta.engine.HostSession;
+import com.example.android.amplacenta.engine.Mixer;
+import com.example.android.amplacenta.engine.PcmCodec;
+import com.example.android.amplacenta.engine.PcmSource;
+import com.example.android.amplacenta.engine.PlaybackQueue;
+import com.example.android.amplacenta.engine.SeekablePcmSource;
+import com.example.android.amplacenta.engine.transport.MulticastGroup;
+import com.example.android.amplacenta.engine.transport.Transport;
+import com.example.android.common.logger.Trace;
+import com.example.android.common.metrics.MetricsRegistry;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
 
 /**
- * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * Hosts a party over Bluetooth. The connections, the protocol and the streaming all live
+ * in the engine's {@link HostSession}; this class binds it to a transport, RFCOMM unless
+ * another one is given, and relays its callbacks to the UI Activity as Handler messages.
  */
 public class HostService {
-    // Debugging
-    private static final String TAG = "HostService";
-
-    // Name for the SDP record when creating server socket
-    private static final String NAME_INSECURE = "BluetoothChatInsecure";
 
-    // Unique UUID for this application
-    private static final UUID MY_UUID_INSECURE =
-            UUID.fromString("3E8FF50E-5A6E-4F11-86D6-BBB94301BC70");
+    // Names of the metrics kept in getMetrics(). Per-guest metrics are keyed by device address.
+    public static final String METRIC_CONNECT_US = HostSession.METRIC_CONNECT_US;
+    public static final String METRIC_CONNECT_FAILURES = HostSession.METRIC_CONNECT_FAILURES;
+    public static final String METRIC_CONNECTIONS = HostSession.METRIC_CONNECTIONS;
+    public static final String METRIC_SEND_US = HostSession.METRIC_SEND_US;
+    public static final String METRIC_SENT_BYTES = HostSession.METRIC_SENT_BYTES;
+    public static final String METRIC_SENT_FRAMES = HostSession.METRIC_SENT_FRAMES;
+    public static final String METRIC_RECEIVED_BYTES = HostSession.METRIC_RECEIVED_BYTES;
+    public static final String METRIC_RECEIVED_FRAMES = HostSession.METRIC_RECEIVED_FRAMES;
+    public static final String METRIC_RECEIVE_GAP_US = HostSession.METRIC_RECEIVE_GAP_US;
+    public static final String METRIC_QUEUE_DROPPED = HostSession.METRIC_QUEUE_DROPPED;
+    public static final String METRIC_RETRANSMIT_REQUESTED = HostSession.METRIC_RETRANSMIT_REQUESTED;
+    public static final String METRIC_RETRANSMITTED = HostSession.METRIC_RETRANSMITTED;
+    public static final String METRIC_RETRANSMIT_MISSED = HostSession.METRIC_RETRANSMIT_MISSED;
+    public static final String METRIC_REDIRECTS = HostSession.METRIC_REDIRECTS;
+
+    // Guests one Bluetooth adapter serves well; any more are redirected to relaying guests
+    private static final int MAX_RFCOMM_GUESTS = 7;
 
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
-    private AcceptThread mAcceptThread;
-    private ConnectThread mConnectThread;
-    private List<ConnectedThread> mConnectedThreads;
-    private int mState;
+    private final HostSession mSession;
+    private final AudioStreamer mStreamer;
+    private final PlaybackQueue.Opener mOpener;
+
+    // What is streamed, and the source playing in it that queueing and seeking act on
+    private Mixer mMixer;
+    private Mixer.Input mMain;
+    private PcmSource mSource;
 
     // Constants that indicate the current connection state
-    public static final int STATE_NONE = 0;       // we're doing nothing
-    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
-    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-//    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_NONE = HostSession.STATE_NONE;             // we're doing nothing
+    public static final int STATE_LISTEN = HostSession.STATE_LISTEN;         // now listening for incoming connections
+    public static final int STATE_CONNECTING = HostSession.STATE_CONNECTING; // now initiating an outgoing connection
 
     /**
      * Constructor. Prepares a new Party session.
@@ -72,396 +88,217 @@ public class HostService {
      * @param handler A Handler to send messages back to the UI Activity
      */
     public HostService(Context context, Handler handler) {
-        this.mAdapter = BluetoothAdapter.getDefaultAdapter();
-        this.mState = STATE_NONE;
-        this.mHandler = handler;
-        this.mConnectedThreads =  new ArrayList<>();
+        this(context, handler, new RfcommTransport(BluetoothAdapter.getDefaultAdapter()));
+        mSession.setMaxDirectGuests(MAX_RFCOMM_GUESTS);
     }
 
     /**
-     * Set the current state of the chat connection
+     * Constructor. Prepares a new Party session over the given transport.
      *
-     * @param state An integer defining the current connection state
+     * @param context   The UI Activity Context
+     * @param handler   A Handler to send messages back to the UI Activity
+     * @param transport How to reach the guests
      */
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
-
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    public HostService(Context context, Handler handler, Transport transport) {
+        mSession = new HostSession(transport, Clock.SYSTEM, new HandlerSessionListener(handler));
+        mStreamer = new AudioStreamer(mSession, new PcmCodec());
+        mOpener = new PlaybackQueue.FileOpener(new File(context.getCacheDir(), "seek"));
     }
 
     /**
      * Return the current connection state.
      */
-    public synchronized int getState() {
-        return mState;
+    public int getState() {
+        return mSession.getState();
     }
 
     /**
-     * Start hosting the party. Specifically start AcceptThread to begin a
-     * session in listening (server) mode. Called by the Activity onResume()
+     * Return the latency and throughput metrics of this session. Use
+     * {@link MetricsRegistry#snapshot()} to read them.
      */
-    public synchronized void start() {
-        Log.d(TAG, "start");
-
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        for (ConnectedThread cThread : mConnectedThreads) {
-            cThread.cancel();
-        }
-        mConnectedThreads = new ArrayList<>();
-
-        setState(STATE_LISTEN);
-
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mAcceptThread == null) {
-            mAcceptThread = new AcceptThread();
-            mAcceptThread.start();
-        }
+    public MetricsRegistry getMetrics() {
+        return mSession.getMetrics();
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Record the session's traffic to a capture file, or stop recording with null. Off by
+     * default.
      *
-     * @param device The BluetoothDevice to connect
+     * @see HostSession#setCapture(CaptureWriter)
      */
-    public synchronized boolean connect(BluetoothDevice device) {
-        Log.d(TAG, "connect to: " + device);
-
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            return false;
-        }
-
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        setState(STATE_CONNECTING);
-        mConnectThread.start();
-        return true;
+    public void setCapture(CaptureWriter capture) {
+        mSession.setCapture(capture);
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Record per-frame trace events to a file, to be read with TraceDecoder, or stop
+     * recording with null. Off by default. Tracing is per process, so a host and a guest
+     * in one app share the file.
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @see Trace#start(File, int)
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        Log.d(TAG, "connected");
-
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    public void setTraceFile(File file) throws IOException {
+        if (file != null) {
+            Trace.start(file, Trace.DEFAULT_CAPACITY);
+        } else {
+            Trace.stop();
         }
-
-        // Start the thread to manage the connection and perform transmissions
-        ConnectedThread connectedThread = new ConnectedThread(socket, device);
-        mConnectedThreads.add(connectedThread);
-        connectedThread.start();
-
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        setState(STATE_LISTEN);
     }
 
     /**
-     * Stop all threads
+     * Send the audio once to a multicast group on the Wi-Fi network rather than to each
+     * guest, for guests that joined it. Must be called before {@link #start()}.
+     *
+     * @see HostSession#setMulticast(MulticastGroup)
      */
-    public synchronized void stop() {
-        Log.d(TAG, "stop");
-
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    public void setMulticast(MulticastGroup group) {
+        mSession.setMulticast(group);
+    }
 
-        for (ConnectedThread connectedThread : mConnectedThreads) {
-            connectedThread.cancel();
-        }
-        mConnectedThreads = new ArrayList<>();
+    /**
+     * Start hosting the party, in listening (server) mode. Called by the Activity onResume()
+     */
+    public void start() {
+        mSession.start();
+    }
 
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
-            mAcceptThread = null;
-        }
+    /**
+     * Initiate a connection to a remote device.
+     *
+     * @param device The BluetoothDevice to connect
+     * @return false if another connection attempt is still in progress
+     */
+    public boolean connect(BluetoothDevice device) {
+        return mSession.connect(device.getAddress());
+    }
 
-        setState(STATE_NONE);
+    /**
+     * Stop streaming and all threads
+     */
+    public void stop() {
+        mStreamer.stop();
+        mSession.stop();
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Send a chat message to every guest.
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
      */
     public void write(byte[] out) {
-        for (ConnectedThread connectedThread : mConnectedThreads) {
-            connectedThread.write(out);
-        }
+        mSession.writeText(out);
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Start streaming a source to the guests, replacing whatever was playing. It plays
+     * through a {@link Mixer}, so that the next one can be crossfaded into it and
+     * announcements mixed over it.
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        setState(STATE_LISTEN);
+    public synchronized void play(PcmSource source) {
+        mMixer = new Mixer(source.getFormat());
+        mMain = mMixer.add(source, 1);
+        mSource = source;
+        mStreamer.play(mMixer);
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Start streaming a file to the guests, replacing whatever was playing: FLAC, decoded
+     * as it streams, or a 16-bit WAV file, memory-mapped so that other I/O on the device
+     * does not make it stutter. The seek index of a FLAC file without a seek table of its
+     * own is kept in the cache. Files queued with {@link #enqueueFile(File)} follow it
+     * without a gap.
+     *
+     * @see PlaybackQueue
      */
-    private void connectionLost() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        setState(STATE_LISTEN);
+    public synchronized void playFile(File file) throws IOException {
+        play(new PlaybackQueue(file, mOpener));
     }
 
     /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * Fade what is playing out over {@code millis} while a file fades in, or start playing
+     * the file if nothing is. Files queued after the old one are dropped; files queued
+     * from now on follow the new one.
      */
-    private class AcceptThread extends Thread {
-        // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
-
-        public AcceptThread() {
-            BluetoothServerSocket tmp = null;
-
-            // Create a new listening server socket
-            try {
-                tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, MY_UUID_INSECURE);
-            } catch (IOException e) {
-                Log.e(TAG, "listen() failed", e);
-            }
-            mmServerSocket = tmp;
-        }
-
-        public void run() {
-            Log.d(TAG, "BEGIN mAcceptThread" + this);
-            setName("AcceptThread");
-
-            // Listen to the server socket if we're not connected
-            while (true) {
-                boolean quit = false;
-                BluetoothSocket socket;
-                try {
-                    // This is a blocking call and will only return on a
-                    // successful connection or an exception
-                    socket = mmServerSocket.accept();
-                } catch (IOException e) {
-                    Log.e(TAG, "accept() failed", e);
-                    break;
-                }
-
-                // If a connection was accepted
-                if (socket != null) {
-                    synchronized (HostService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice());
-                                break;
-                            case STATE_NONE:
-                                try {
-                                    quit = true;
-                                    socket.close();
-                                    mmServerSocket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
-                        }
-                    }
-                }
-                if (quit) {
-                    break;
-                }
-            }
-            Log.i(TAG, "END mAcceptThread");
-
-        }
-
-        public void cancel() {
-            Log.d(TAG, "cancel " + this);
-            try {
-                mmServerSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of server failed", e);
-            }
+    public synchronized void crossfadeTo(File file, int millis) throws IOException {
+        if (mMixer == null || !mStreamer.isPlaying()) {
+            playFile(file);
+            return;
         }
+        PlaybackQueue queue = new PlaybackQueue(file, mOpener);
+        mMain.fadeOut(millis);
+        mMain = mMixer.add(queue, 0);
+        mMain.setGain(1, millis);
+        mSource = queue;
     }
 
-
     /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * Play a file over what is playing, which ducks to {@code duckGain} until it is over.
+     *
+     * @return false if nothing is playing
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                tmp = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
-            } catch (IOException e) {
-                Log.e(TAG, "Socket create() failed", e);
-            }
-            mmSocket = tmp;
+    public synchronized boolean announce(File file, float duckGain) throws IOException {
+        if (mMixer == null || !mStreamer.isPlaying()) {
+            return false;
         }
+        mMixer.addDucking(mOpener.open(file), 1, duckGain);
+        return true;
+    }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread");
-            setName("ConnectThread");
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
-                }
-                connectionFailed();
-                return;
-            }
-
-            // Reset the ConnectThread because we're done
-            synchronized (HostService.this) {
-                mConnectThread = null;
-            }
-
-            // Start the connected thread
-            connected(mmSocket, mmDevice);
+    /**
+     * Queue a file to play once the files before it have, with no gap between them, or
+     * start playing it if nothing is.
+     */
+    public synchronized void enqueueFile(File file) throws IOException {
+        if (mSource instanceof PlaybackQueue && mStreamer.isPlaying()) {
+            ((PlaybackQueue) mSource).add(file);
+        } else {
+            playFile(file);
         }
+    }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+    /**
+     * Go on to the next file queued, or stop if there is none.
+     */
+    public synchronized void skipTrack() {
+        if (mSource instanceof PlaybackQueue) {
+            ((PlaybackQueue) mSource).skip();
+        } else {
+            mStreamer.stop();
         }
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * Move playback of the file playing to a point in it. The guests hear the new point
+     * once what they have buffered has played out.
+     *
+     * @return false if nothing that can seek is playing
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, BluetoothDevice device) {
-            Log.d(TAG, "create ConnectedThread");
-            mmSocket = socket;
-            mmDevice = device;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-            }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+    public synchronized boolean seekTo(long millis) throws IOException {
+        if (mSource == null || !mStreamer.isPlaying()) {
+            return false;
         }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThreads");
-            byte[] buffer = new byte[1024];
-            int bytes;
-
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_LISTEN) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    HostService.this.start();
-                    break;
-                }
-            }
+        if (mSource instanceof PlaybackQueue) {
+            return ((PlaybackQueue) mSource).seekCurrentTrack(millis);
         }
-
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
+        if (mSource instanceof SeekablePcmSource) {
+            ((SeekablePcmSource) mSource).seek(millis * mSource.getFormat().sampleRate / 1000);
+            return true;
         }
+        return false;
+    }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
-        }
+    public void stopPlayback() {
+        mStreamer.stop();
+    }
+
+    /**
+     * @see HostSession#snapshotGuestStats(List)
+     */
+    public int snapshotGuestStats(List<GuestStats> out) {
+        return mSession.snapshotGuestStats(out);
     }
 
     public int numConnections() {
-        return mConnectedThreads.size();
+        return mSession.numConnections();
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import com.example.android.amplacenta.engine.transport.Acceptor;
+import com.example.android.amplacenta.engine.transport.Connection;
+import com.example.android.amplacenta.engine.transport.Transport;
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over insecure Bluetooth RFCOMM sockets. Addresses are Bluetooth MAC
+ * addresses.
+ */
+public class RfcommTransport implements Transport {
+    // Debugging
+    private static final String TAG = "RfcommTransport";
+
+    // Name for the SDP record when creating server socket
+    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+
+    // Unique UUID for this application
+    private static final UUID MY_UUID_INSECURE =
+            UUID.fromString("3E8FF50E-5A6E-4F11-86D6-BBB94301BC70");
+
+    private final BluetoothAdapter mAdapter;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        final BluetoothServerSocket serverSocket =
+                mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, MY_UUID_INSECURE);
+        return new Acceptor() {
+            @Override
+            public Connection accept() throws IOException {
+                return new RfcommConnection(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    /**
+     * Return null: a device is dialled at its adapter's address, which its peers already
+     * see it connect from, and apps cannot read their own.
+     */
+    @Override
+    public String getListenAddress() {
+        return null;
+    }
+
+    @Override
+    public Connection connect(String address) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        BluetoothSocket socket = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+
+        // Always cancel discovery because it will slow down a connection
+        mAdapter.cancelDiscovery();
+
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            // Close the socket
+            try {
+                socket.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "unable to close() socket during connection failure", e2);
+            }
+            throw e;
+        }
+        return new RfcommConnection(socket);
+    }
+
+    /**
+     * A connected RFCOMM socket.
+     */
+    private static class RfcommConnection implements Connection {
+        private final BluetoothSocket mSocket;
+
+        RfcommConnection(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mSocket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
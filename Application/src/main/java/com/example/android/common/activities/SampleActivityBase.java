@@ -19,6 +19,7 @@ package com.example.android.common.activities;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 
+import com.example.android.common.logger.AsyncLogNode;
 import com.example.android.common.logger.Log;
 import com.example.android.common.logger.LogWrapper;
 
@@ -29,6 +30,9 @@ public class SampleActivityBase extends FragmentActivity {
 
     public static final String TAG = "SampleActivityBase";
 
+    // Shared by every activity so that only one drainer thread is ever started
+    private static AsyncLogNode sAsyncLogNode;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -45,7 +49,14 @@ public class SampleActivityBase extends FragmentActivity {
         // Using Log, front-end to the logging chain, emulates android.util.log method signatures.
         // Wraps Android's native log framework
         LogWrapper logWrapper = new LogWrapper();
-        Log.setLogNode(logWrapper);
+
+        // Hands log data to a background thread, so callers never wait on the chain
+        if (sAsyncLogNode == null) {
+            sAsyncLogNode = new AsyncLogNode(logWrapper);
+        } else {
+            sAsyncLogNode.setNext(logWrapper);
+        }
+        Log.setLogNode(sAsyncLogNode);
 
         Log.i(TAG, "Ready");
     }
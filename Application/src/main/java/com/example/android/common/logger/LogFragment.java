@@ -97,12 +97,21 @@ public class LogFragment extends Fragment {
 
             @Override
             public void afterTextChanged(Editable s) {
-                mScrollView.fullScroll(ScrollView.FOCUS_DOWN);
+                // LogView batches its updates, so this runs at most once per frame. Scroll
+                // once the new text has been laid out.
+                mScrollView.post(mScrollToBottom);
             }
         });
         return result;
     }
 
+    private final Runnable mScrollToBottom = new Runnable() {
+        @Override
+        public void run() {
+            mScrollView.fullScroll(ScrollView.FOCUS_DOWN);
+        }
+    };
+
     public LogView getLogView() {
         return mLogView;
     }
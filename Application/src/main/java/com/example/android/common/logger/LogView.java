@@ -15,15 +15,38 @@
  */
 package com.example.android.common.logger;
 
-import android.app.Activity;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.*;
 import android.widget.TextView;
 
 /** Simple TextView which is used to output log data received through the LogNode interface.
+ * Only the most recent lines are kept, in a fixed-size ring, and lines arriving in quick
+ * succession are batched into a single update of the view.
 */
 public class LogView extends TextView implements LogNode {
 
+    // Number of lines kept by default.
+    public static final int DEFAULT_HISTORY_SIZE = 500;
+
+    // Minimum time between two updates of the view, roughly one frame.
+    private static final long FLUSH_INTERVAL_MS = 16;
+
+    // Ring of the most recent lines, guarded by mLock.
+    private final Object mLock = new Object();
+    private String[] mLines = new String[DEFAULT_HISTORY_SIZE];
+    private int mFirstLine;
+    private int mLineCount;
+    private boolean mFlushPending;
+
+    // Reused to join the lines on every flush, only touched on the UI thread.
+    private final StringBuilder mText = new StringBuilder();
+
+    // Flushes go through the main looper rather than View.postDelayed, which before API 24
+    // drops a post made from another thread while the view is detached.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
     public LogView(Context context) {
         super(context);
     }
@@ -90,15 +113,8 @@ public class LogView extends TextView implements LogNode {
         appendIfNotNull(outputBuilder, msg, delimiter);
         appendIfNotNull(outputBuilder, exceptionStr, delimiter);
 
-        // In case this was originally called from an AsyncTask or some other off-UI thread,
-        // make sure the update occurs within the UI thread.
-        ((Activity) getContext()).runOnUiThread( (new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // Display the text we just generated within the LogView.
-                appendToLog(outputBuilder.toString());
-            }
-        })));
+        // Display the text we just generated within the LogView.
+        appendToLog(outputBuilder.toString());
 
         if (mNext != null) {
             mNext.println(priority, tag, msg, tr);
@@ -136,10 +152,73 @@ public class LogView extends TextView implements LogNode {
     // The next LogNode in the chain.
     LogNode mNext;
 
-    /** Outputs the string as a new line of log data in the LogView. */
+    /**
+     * Returns the number of lines the LogView keeps.
+     */
+    public int getHistorySize() {
+        synchronized (mLock) {
+            return mLines.length;
+        }
+    }
+
+    /**
+     * Sets the number of lines the LogView keeps. Older lines are discarded.
+     */
+    public void setHistorySize(int size) {
+        synchronized (mLock) {
+            String[] lines = new String[Math.max(size, 1)];
+            int keep = Math.min(mLineCount, lines.length);
+            for (int i = 0; i < keep; i++) {
+                lines[i] = mLines[(mFirstLine + mLineCount - keep + i) % mLines.length];
+            }
+            mLines = lines;
+            mFirstLine = 0;
+            mLineCount = keep;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Outputs the string as a new line of log data in the LogView. Safe to call from any
+     * thread; the view itself is updated on the UI thread, at most once per frame.
+     */
     public void appendToLog(String s) {
-        append("\n" + s);
+        synchronized (mLock) {
+            if (mLineCount < mLines.length) {
+                mLines[(mFirstLine + mLineCount) % mLines.length] = s;
+                mLineCount++;
+            } else {
+                // Full: overwrite the oldest line.
+                mLines[mFirstLine] = s;
+                mFirstLine = (mFirstLine + 1) % mLines.length;
+            }
+        }
+        scheduleFlush();
     }
 
+    private void scheduleFlush() {
+        synchronized (mLock) {
+            if (mFlushPending) {
+                return;
+            }
+            mFlushPending = true;
+        }
+        mHandler.postDelayed(mFlush, FLUSH_INTERVAL_MS);
+    }
+
+    /** Replaces the contents of the view with the lines currently held in the ring. */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mFlushPending = false;
+                mText.setLength(0);
+                for (int i = 0; i < mLineCount; i++) {
+                    mText.append('\n').append(mLines[(mFirstLine + i) % mLines.length]);
+                }
+            }
+            setText(mText);
+        }
+    };
 
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.AudioCodec;
+import com.example.android.amplacenta.engine.PcmCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of encoding and decoding one block of one channel.
+ */
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    // Samples in a 10 ms block at 8, 44.1 and 48 kHz
+    @Param({"80", "441", "480"})
+    public int samples;
+
+    private final AudioCodec mCodec = new PcmCodec();
+    private short[] mPcm;
+    private byte[] mEncoded;
+    private int mEncodedLength;
+
+    @Setup
+    public void setup() {
+        mPcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            mPcm[i] = (short) (Math.sin(i * 2 * Math.PI * 440 / 48000) * Short.MAX_VALUE);
+        }
+        mEncoded = new byte[mCodec.maxEncodedSize(samples)];
+        mEncodedLength = mCodec.encode(mPcm, 0, samples, mEncoded, 0);
+    }
+
+    @Benchmark
+    public int encode() {
+        return mCodec.encode(mPcm, 0, samples, mEncoded, 0);
+    }
+
+    @Benchmark
+    public int decode() {
+        return mCodec.decode(mEncoded, 0, mEncodedLength, mPcm, 0);
+    }
+}
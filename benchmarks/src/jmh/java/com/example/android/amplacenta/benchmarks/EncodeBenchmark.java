@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.AudioCodec;
+import com.example.android.amplacenta.engine.AudioStreamer;
+import com.example.android.amplacenta.engine.Frame;
+import com.example.android.amplacenta.engine.ParallelEncoder;
+import com.example.android.amplacenta.engine.PcmCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+/**
+ * Wall time of encoding one 10 ms block of 8 channels on a {@link ParallelEncoder} of 1
+ * to 8 threads. {@link PcmCodec} costs next to nothing, so with {@code work} above 0 the
+ * channels go through a codec that first does the analysis of a linear-prediction
+ * encoder, an autocorrelation of that many lags over the block, to cost what a
+ * compressing codec would. Setup fails unless the frames are byte for byte those of one
+ * thread.
+ */
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 8;
+    private static final int BLOCK_FRAMES = SAMPLE_RATE * AudioStreamer.BLOCK_MILLIS / 1000;
+
+    // Blocks of noise encoded in turn
+    private static final int BLOCKS = 100;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"0", "32"})
+    public int work;
+
+    private short[][][] mBlocks;
+    private Frame[] mFrames;
+    private ParallelEncoder mEncoder;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        AudioCodec codec = work > 0 ? new AnalysingCodec(work) : new PcmCodec();
+        mBlocks = new short[BLOCKS][CHANNELS][BLOCK_FRAMES];
+        Random random = new Random(0);
+        for (short[][] block : mBlocks) {
+            for (short[] channel : block) {
+                for (int i = 0; i < channel.length; i++) {
+                    channel[i] = (short) (random.nextGaussian() * 4000);
+                }
+            }
+        }
+        mFrames = new Frame[CHANNELS];
+        Frame expected = new Frame(codec.maxEncodedSize(BLOCK_FRAMES));
+        for (int c = 0; c < CHANNELS; c++) {
+            mFrames[c] = new Frame(codec.maxEncodedSize(BLOCK_FRAMES));
+        }
+        mEncoder = new ParallelEncoder(codec, CHANNELS, threads,
+                Executors.defaultThreadFactory());
+
+        for (int b = 0; b < BLOCKS; b++) {
+            mEncoder.encode(mBlocks[b], BLOCK_FRAMES, mFrames);
+            for (int c = 0; c < CHANNELS; c++) {
+                expected.length = codec.encode(mBlocks[b][c], 0, BLOCK_FRAMES, expected.data,
+                        0);
+                if (mFrames[c].length != expected.length
+                        || !Arrays.equals(mFrames[c].data, expected.data)) {
+                    throw new IllegalStateException(threads + " threads: block " + b
+                            + " of channel " + c + " differs from one thread's");
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mEncoder.close();
+    }
+
+    @Benchmark
+    public int encode() {
+        mEncoder.encode(mBlocks[mNext], BLOCK_FRAMES, mFrames);
+        mNext = (mNext + 1) % BLOCKS;
+        return mFrames[0].length;
+    }
+
+    /**
+     * PCM, after the autocorrelation a linear-prediction encoder starts a block with, so
+     * that a channel costs about what a compressing codec would spend on it.
+     */
+    private static class AnalysingCodec implements AudioCodec {
+        private final PcmCodec mPcm = new PcmCodec();
+        private final int mLags;
+
+        AnalysingCodec(int lags) {
+            mLags = lags;
+        }
+
+        @Override
+        public int maxEncodedSize(int samples) {
+            return mPcm.maxEncodedSize(samples);
+        }
+
+        @Override
+        public int encode(short[] in, int offset, int count, byte[] out, int outOffset) {
+            long check = 0;
+            for (int lag = 0; lag <= mLags; lag++) {
+                long sum = 0;
+                for (int i = offset + lag; i < offset + count; i++) {
+                    sum += in[i] * in[i - lag];
+                }
+                check ^= sum;
+            }
+            int length = mPcm.encode(in, offset, count, out, outOffset);
+            // Never true, but keeps the analysis from being optimised away
+            if (check == Long.MIN_VALUE) {
+                out[outOffset] ^= 1;
+            }
+            return length;
+        }
+
+        @Override
+        public int decode(byte[] in, int offset, int length, short[] out, int outOffset) {
+            return mPcm.decode(in, offset, length, out, outOffset);
+        }
+    }
+}
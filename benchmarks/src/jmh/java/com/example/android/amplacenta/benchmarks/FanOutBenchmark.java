@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.Clock;
+import com.example.android.amplacenta.engine.Frame;
+import com.example.android.amplacenta.engine.HostSession;
+import com.example.android.amplacenta.engine.PcmCodec;
+import com.example.android.amplacenta.engine.SessionListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of fanning one block of every channel out to N guests, the way the host's
+ * streaming thread does, over connections that discard what they are sent.
+ */
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK_FRAMES = SAMPLE_RATE / 100;
+
+    @Param({"1", "8", "64"})
+    public int guests;
+
+    private HostSession mSession;
+    private Frame[] mFrames;
+    private int mSeq;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        mSession = new HostSession(new Streams.NullTransport(guests), Clock.SYSTEM,
+                new NullListener());
+        mSession.start();
+        while (mSession.numConnections() < guests) {
+            Thread.sleep(10);
+        }
+        mSession.setFormat(SAMPLE_RATE, CHANNELS, BLOCK_FRAMES);
+
+        PcmCodec codec = new PcmCodec();
+        short[] pcm = new short[BLOCK_FRAMES];
+        mFrames = new Frame[CHANNELS];
+        for (int c = 0; c < CHANNELS; c++) {
+            mFrames[c] = new Frame(codec.maxEncodedSize(BLOCK_FRAMES));
+            mFrames[c].length = codec.encode(pcm, 0, BLOCK_FRAMES, mFrames[c].data, 0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSession.stop();
+    }
+
+    @Benchmark
+    public int fanOut() {
+        int sent = 0;
+        long playTime = System.nanoTime();
+        for (int c = 0; c < CHANNELS; c++) {
+            Frame frame = mFrames[c];
+            int length = frame.length;
+            frame.reset(Frame.TYPE_AUDIO, c, mSeq, playTime);
+            frame.length = length;
+            sent += mSession.sendAudio(frame);
+        }
+        mSeq++;
+        return sent;
+    }
+
+    private static class NullListener implements SessionListener {
+        @Override
+        public void onStateChanged(int state) {
+        }
+
+        @Override
+        public void onConnected(String name) {
+        }
+
+        @Override
+        public void onConnectionFailed() {
+        }
+
+        @Override
+        public void onConnectionLost(String name) {
+        }
+
+        @Override
+        public void onTextReceived(byte[] buffer, int length) {
+        }
+
+        @Override
+        public void onTextSent(byte[] buffer) {
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.AudioBlock;
+import com.example.android.amplacenta.engine.FlacDecoder;
+import com.example.android.amplacenta.engine.FlacSource;
+import com.example.android.amplacenta.engine.SeekIndex;
+import com.example.android.amplacenta.tools.FlacWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Cost of decoding FLAC, and of seeking in it. Setup encodes a few seconds of tones with
+ * noise on top, correlated between channels the way music is, with {@link FlacWriter},
+ * and fails unless they decode back bit for bit, both as the decoder's ints and as
+ * {@link FlacSource}'s 16-bit blocks. {@code decodeFile} decodes all {@value #SECONDS}
+ * seconds, so a tenth of its time is the cost of a second of audio.
+ * <p>
+ * The seeks go to random samples from no seek points, from the file's seek table and
+ * from a {@link SeekIndex} like the one {@link FlacSource} builds, and decode the frame
+ * landed on; setup also fails if any of them lands on the wrong frame.
+ */
+@State(Scope.Thread)
+public class FlacBenchmark {
+
+    private static final int SECONDS = 10;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK_FRAMES = 1024;
+    private static final int TARGETS = 256;
+
+    @Param({"16", "24"})
+    public int bits;
+
+    private File mFile;
+    private RandomAccessFile mRaf;
+    private FlacDecoder mDecoder;
+    private int[][] mOut;
+    private SeekIndex mNoPoints;
+    private SeekIndex mTable;
+    private SeekIndex mIndex;
+    private FlacSource mSource;
+    private AudioBlock mBlock;
+    private long[] mTargets;
+    private int mNext;
+
+    @Setup
+    public void setup() throws IOException {
+        int[][] original = synthesize();
+        mFile = File.createTempFile("flacbench", ".flac");
+        mFile.deleteOnExit();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(mFile));
+        try {
+            new FlacWriter(SAMPLE_RATE, CHANNELS, bits).write(original, original[0].length, out);
+        } finally {
+            out.close();
+        }
+
+        mRaf = new RandomAccessFile(mFile, "r");
+        mDecoder = new FlacDecoder(mRaf.getChannel());
+        mOut = new int[CHANNELS][mDecoder.getMaxBlockSize()];
+        verify(original);
+        mNoPoints = new SeekIndex(new long[0], new long[0], 0);
+        mTable = mDecoder.getIndex();
+        mIndex = mDecoder.buildIndex(SAMPLE_RATE * (long) FlacSource.INDEX_INTERVAL_MILLIS
+                / 1000);
+        mSource = new FlacSource(mFile);
+        mBlock = new AudioBlock(CHANNELS, BLOCK_FRAMES);
+
+        Random random = new Random(11);
+        mTargets = new long[TARGETS];
+        for (int i = 0; i < TARGETS; i++) {
+            mTargets[i] = (long) (random.nextDouble() * mDecoder.getTotalSamples());
+        }
+        for (long target : mTargets) {
+            for (SeekIndex index : new SeekIndex[] {mNoPoints, mTable, mIndex}) {
+                mDecoder.setIndex(index);
+                mDecoder.seek(target);
+                int n = mDecoder.decodeFrame(mOut);
+                long first = mDecoder.getFrameSample();
+                if (n < 0 || target < first || target >= first + n) {
+                    throw new IllegalStateException("seek to " + target + " from "
+                            + index.size() + " points landed on frame at " + first);
+                }
+            }
+            mSource.seek(target);
+            mSource.read(mBlock);
+            if (mBlock.position != target || !matches(mBlock, original, target)) {
+                throw new IllegalStateException("FlacSource seek to " + target
+                        + " landed at " + mBlock.position);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mSource.close();
+        mRaf.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long decodeFile() throws IOException {
+        mDecoder.setIndex(mTable);
+        mDecoder.seek(0);
+        long frames = 0;
+        while (mDecoder.decodeFrame(mOut) >= 0) {
+            frames++;
+        }
+        return frames;
+    }
+
+    @Benchmark
+    public int seekWithoutPoints() throws IOException {
+        return seek(mNoPoints);
+    }
+
+    @Benchmark
+    public int seekFromTable() throws IOException {
+        return seek(mTable);
+    }
+
+    @Benchmark
+    public int seekFromIndex() throws IOException {
+        return seek(mIndex);
+    }
+
+    @Benchmark
+    public int seekSource() throws IOException {
+        mSource.seek(nextTarget());
+        return mSource.read(mBlock);
+    }
+
+    private int seek(SeekIndex index) throws IOException {
+        mDecoder.setIndex(index);
+        mDecoder.seek(nextTarget());
+        return mDecoder.decodeFrame(mOut);
+    }
+
+    private long nextTarget() {
+        long target = mTargets[mNext];
+        mNext = (mNext + 1) % TARGETS;
+        return target;
+    }
+
+    /**
+     * A few slowly detuning tones shared between the channels, each channel weighting
+     * them differently, plus a little noise of its own; roughly as compressible as music.
+     */
+    private int[][] synthesize() {
+        int length = SECONDS * SAMPLE_RATE;
+        int[][] samples = new int[CHANNELS][length];
+        double[] freqs = {110, 220 * 1.0012, 330.5, 587.3, 1244.5, 2637};
+        double peak = (1 << (bits - 1)) - 1;
+        Random random = new Random(42);
+        double[] weights = new double[CHANNELS * freqs.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = 0.3 + 0.7 * random.nextDouble();
+        }
+        double noise = peak / 2000;
+        for (int i = 0; i < length; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double envelope = 0.5 + 0.4 * Math.sin(2 * Math.PI * 0.25 * t);
+            for (int c = 0; c < CHANNELS; c++) {
+                double v = 0;
+                for (int k = 0; k < freqs.length; k++) {
+                    v += weights[c * freqs.length + k] / (k + 1)
+                            * Math.sin(2 * Math.PI * freqs[k] * t * (1 + 0.0005 * c));
+                }
+                v = v * envelope * peak / 2.5 + random.nextGaussian() * noise;
+                samples[c][i] = (int) Math.max(-peak - 1, Math.min(peak, Math.round(v)));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Decode the file through the decoder and through {@link FlacSource}, and fail unless
+     * every sample is the original's.
+     */
+    private void verify(int[][] original) throws IOException {
+        int length = original[0].length;
+        long position = 0;
+        int n;
+        while ((n = mDecoder.decodeFrame(mOut)) >= 0) {
+            if (mDecoder.getFrameSample() != position || position + n > length) {
+                throw new IllegalStateException("frame at " + mDecoder.getFrameSample()
+                        + ", expected " + position);
+            }
+            for (int c = 0; c < CHANNELS; c++) {
+                for (int i = 0; i < n; i++) {
+                    if (mOut[c][i] != original[c][(int) position + i]) {
+                        throw new IllegalStateException("sample " + (position + i)
+                                + " of channel " + c + " is " + mOut[c][i] + ", expected "
+                                + original[c][(int) position + i]);
+                    }
+                }
+            }
+            position += n;
+        }
+        if (position != length) {
+            throw new IllegalStateException("decoded " + position + " samples, expected "
+                    + length);
+        }
+
+        FlacSource source = new FlacSource(mFile);
+        try {
+            AudioBlock block = new AudioBlock(CHANNELS, BLOCK_FRAMES);
+            position = 0;
+            while (source.read(block) >= 0) {
+                if (!matches(block, original, position)) {
+                    throw new IllegalStateException("FlacSource block at " + position
+                            + " differs");
+                }
+                position += block.frames;
+            }
+            if (position != length) {
+                throw new IllegalStateException("read " + position + " frames, expected "
+                        + length);
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    private boolean matches(AudioBlock block, int[][] original, long position) {
+        int shift = bits - 16;
+        for (int c = 0; c < CHANNELS; c++) {
+            for (int i = 0; i < block.frames; i++) {
+                int sample = original[c][(int) position + i];
+                if (block.samples[c][i] != (short) (sample >> shift)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
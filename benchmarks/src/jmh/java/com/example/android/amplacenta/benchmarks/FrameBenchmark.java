@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.Frame;
+import com.example.android.amplacenta.engine.FrameReader;
+import com.example.android.amplacenta.engine.FrameWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * Cost of putting one frame on the wire and taking it off again, without the transport.
+ */
+@State(Scope.Thread)
+public class FrameBenchmark {
+
+    // Payload of one 10 ms PCM block at 8, 44.1 and 48 kHz
+    @Param({"160", "882", "960"})
+    public int payload;
+
+    private FrameWriter mWriter;
+    private FrameReader mReader;
+    private Frame mOut;
+    private Frame mIn;
+
+    @Setup
+    public void setup() throws IOException {
+        mOut = new Frame(payload);
+        mOut.reset(Frame.TYPE_AUDIO, 1, 0, 123456789L);
+        mOut.length = payload;
+        mIn = new Frame(payload);
+
+        mWriter = new FrameWriter(new Streams.NullOutputStream());
+        Streams.CaptureOutputStream capture = new Streams.CaptureOutputStream();
+        new FrameWriter(capture).write(mOut);
+        mReader = new FrameReader(new Streams.LoopingInputStream(capture.toByteArray()));
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        mOut.seq++;
+        return mWriter.write(mOut);
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        return mReader.read(mIn);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.Frame;
+import com.example.android.amplacenta.engine.FramePool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Cost of taking a frame from the pool and giving it back, alone and contended.
+ */
+@State(Scope.Benchmark)
+public class FramePoolBenchmark {
+
+    private final FramePool mPool = new FramePool(16, 1024);
+
+    @Benchmark
+    public int acquireRelease() {
+        Frame frame = mPool.acquire();
+        int capacity = frame.data.length;
+        mPool.release(frame);
+        return capacity;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int acquireReleaseContended() {
+        return acquireRelease();
+    }
+}
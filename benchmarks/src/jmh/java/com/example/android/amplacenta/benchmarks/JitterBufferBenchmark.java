@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.JitterBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of one block going through the jitter buffer: claimed and filled by the reader
+ * thread, then polled by the playout thread. The buffer is kept at a steady depth so
+ * that every poll finds a block ready, as on a healthy link.
+ */
+@State(Scope.Thread)
+public class JitterBufferBenchmark {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_FRAMES = SAMPLE_RATE / 100;
+    private static final long BLOCK_NANOS = 10000000L;
+
+    // Blocks in flight, i.e. the latency lead in 10 ms steps
+    @Param({"4", "16"})
+    public int depth;
+
+    private JitterBuffer mBuffer;
+    private short[] mOut;
+    private int mSeq;
+
+    @Setup
+    public void setup() {
+        mBuffer = new JitterBuffer(64);
+        mBuffer.configure(SAMPLE_RATE, BLOCK_FRAMES);
+        mOut = new short[BLOCK_FRAMES];
+        for (mSeq = 0; mSeq < depth; mSeq++) {
+            insert(mSeq);
+        }
+    }
+
+    private void insert(int seq) {
+        short[] block = mBuffer.claim(seq, seq * BLOCK_NANOS);
+        if (block != null) {
+            block[0] = (short) seq;
+            mBuffer.commit(seq, BLOCK_FRAMES);
+        }
+    }
+
+    @Benchmark
+    public int insertAndPoll() {
+        insert(mSeq);
+        int n = mBuffer.poll((mSeq - depth) * BLOCK_NANOS, mOut);
+        mSeq++;
+        return n;
+    }
+}
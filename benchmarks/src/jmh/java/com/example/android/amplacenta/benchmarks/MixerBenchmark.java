@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.AudioBlock;
+import com.example.android.amplacenta.engine.AudioStreamer;
+import com.example.android.amplacenta.engine.Mixer;
+import com.example.android.amplacenta.engine.PcmFormat;
+import com.example.android.amplacenta.engine.PcmSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Cost of mixing one {@link AudioStreamer}-sized block of N sources, each at a constant
+ * gain or with every gain ramping all the time. The sources are noise held in memory, so
+ * that what is timed is the mixer: converting each source's blocks, summing and clipping.
+ * <p>
+ * Setup first fails unless one source at unity gain comes out sample for sample, and a
+ * ducking source brings another down to its duck gain and back.
+ */
+@State(Scope.Thread)
+public class MixerBenchmark {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_FRAMES = SAMPLE_RATE * AudioStreamer.BLOCK_MILLIS / 1000;
+
+    // How long the gains take to ramp between their two levels when ramping
+    private static final int RAMP_MILLIS = 50;
+    private static final int RAMP_BLOCKS = RAMP_MILLIS / AudioStreamer.BLOCK_MILLIS;
+
+    @Param({"1", "2", "4", "8"})
+    public int sources;
+
+    @Param({"1", "2", "6"})
+    public int channels;
+
+    @Param({"false", "true"})
+    public boolean ramping;
+
+    private Mixer mMixer;
+    private Mixer.Input[] mInputs;
+    private AudioBlock mBlock;
+    private int mBlocks;
+
+    @Setup
+    public void setup() throws IOException {
+        checkUnity();
+        checkDucking();
+
+        PcmFormat format = new PcmFormat(SAMPLE_RATE, channels);
+        mMixer = new Mixer(format);
+        mInputs = new Mixer.Input[sources];
+        for (int k = 0; k < sources; k++) {
+            mInputs[k] = mMixer.add(new NoiseSource(format, k), 1f / sources);
+        }
+        mBlock = new AudioBlock(channels, BLOCK_FRAMES);
+        // The mixer allocates its buffers on the first block
+        mMixer.read(mBlock);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mMixer.close();
+    }
+
+    @Benchmark
+    public int mix() throws IOException {
+        if (ramping && mBlocks % RAMP_BLOCKS == 0) {
+            // Back and forth between two levels, never resting at either
+            float gain = (mBlocks / RAMP_BLOCKS) % 2 == 0 ? 0.2f : 1f;
+            for (Mixer.Input input : mInputs) {
+                input.setGain(gain / sources, RAMP_MILLIS);
+            }
+        }
+        mBlocks++;
+        return mMixer.read(mBlock);
+    }
+
+    /**
+     * One source at unity gain must come out as it went in.
+     */
+    private static void checkUnity() throws IOException {
+        PcmFormat format = new PcmFormat(SAMPLE_RATE, 2);
+        Mixer mixer = new Mixer(format);
+        mixer.add(new NoiseSource(format, 0), 1);
+        NoiseSource reference = new NoiseSource(format, 0);
+        AudioBlock mixed = new AudioBlock(2, BLOCK_FRAMES);
+        AudioBlock expected = new AudioBlock(2, BLOCK_FRAMES);
+        for (int b = 0; b < 100; b++) {
+            mixer.read(mixed);
+            reference.read(expected);
+            for (int c = 0; c < 2; c++) {
+                for (int i = 0; i < mixed.frames; i++) {
+                    if (mixed.samples[c][i] != expected.samples[c][i]) {
+                        throw new IllegalStateException("unity mix: sample "
+                                + (mixed.position + i) + " of channel " + c + " is "
+                                + mixed.samples[c][i] + ", expected " + expected.samples[c][i]);
+                    }
+                }
+            }
+        }
+        mixer.close();
+    }
+
+    /**
+     * A constant source under a second of silence that ducks it to a quarter: the mix
+     * must settle at a quarter of the source once the ramp is done, and come back to it
+     * whole after the ducking source ends.
+     */
+    private static void checkDucking() throws IOException {
+        PcmFormat format = new PcmFormat(SAMPLE_RATE, 1);
+        Mixer mixer = new Mixer(format);
+        mixer.add(new ConstantSource(format, 8000, -1), 1);
+        mixer.addDucking(new ConstantSource(format, 0, SAMPLE_RATE), 1, 0.25f);
+        AudioBlock block = new AudioBlock(1, BLOCK_FRAMES);
+        int rampBlocks = Mixer.DUCK_RAMP_MILLIS / AudioStreamer.BLOCK_MILLIS + 1;
+        for (int b = 0; b < 200; b++) {
+            int expected = b >= rampBlocks && b < 100 ? 2000
+                    : b >= 100 + rampBlocks ? 8000 : -1;
+            mixer.read(block);
+            if (expected >= 0 && Math.abs(block.samples[0][0] - expected) > 1) {
+                throw new IllegalStateException("ducking: block " + b + " is at "
+                        + block.samples[0][0] + ", expected " + expected);
+            }
+        }
+        mixer.close();
+    }
+
+    /**
+     * Noise, a second of it held in memory and played over and over.
+     */
+    private static class NoiseSource implements PcmSource {
+        private final PcmFormat mFormat;
+        private final short[][] mNoise;
+        private int mIndex;
+        private long mPosition;
+
+        NoiseSource(PcmFormat format, int seed) {
+            mFormat = format;
+            mNoise = new short[format.channels][format.sampleRate];
+            Random random = new Random(seed);
+            for (short[] channel : mNoise) {
+                for (int i = 0; i < channel.length; i++) {
+                    channel[i] = (short) (random.nextGaussian() * 4000);
+                }
+            }
+        }
+
+        @Override
+        public PcmFormat getFormat() {
+            return mFormat;
+        }
+
+        @Override
+        public int read(AudioBlock block) {
+            int frames = Math.min(block.capacity(), mNoise[0].length - mIndex);
+            for (int c = 0; c < block.channels(); c++) {
+                System.arraycopy(mNoise[c], mIndex, block.samples[c], 0, frames);
+            }
+            mIndex = (mIndex + frames) % mNoise[0].length;
+            block.frames = frames;
+            block.position = mPosition;
+            mPosition += frames;
+            return frames;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The same value in every sample, for a length or endlessly.
+     */
+    private static class ConstantSource implements PcmSource {
+        private final PcmFormat mFormat;
+        private final short mValue;
+        private final long mLength;
+        private long mPosition;
+
+        ConstantSource(PcmFormat format, int value, long length) {
+            mFormat = format;
+            mValue = (short) value;
+            mLength = length;
+        }
+
+        @Override
+        public PcmFormat getFormat() {
+            return mFormat;
+        }
+
+        @Override
+        public int read(AudioBlock block) {
+            int frames = block.capacity();
+            if (mLength >= 0) {
+                if (mPosition >= mLength) {
+                    return -1;
+                }
+                frames = (int) Math.min(frames, mLength - mPosition);
+            }
+            for (int c = 0; c < block.channels(); c++) {
+                for (int i = 0; i < frames; i++) {
+                    block.samples[c][i] = mValue;
+                }
+            }
+            block.frames = frames;
+            block.position = mPosition;
+            mPosition += frames;
+            return frames;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.Resampler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput of resampling 10 ms blocks of one channel between the common rates.
+ */
+@State(Scope.Thread)
+public class ResamplerBenchmark {
+
+    @Param({"44100:48000", "48000:44100", "48000:16000"})
+    public String rates;
+
+    private Resampler mResampler;
+    private short[] mIn;
+    private short[] mOut;
+
+    @Setup
+    public void setup() {
+        String[] parts = rates.split(":");
+        int inRate = Integer.parseInt(parts[0]);
+        int outRate = Integer.parseInt(parts[1]);
+        mResampler = new Resampler(inRate, outRate);
+        mIn = new short[inRate / 100];
+        for (int i = 0; i < mIn.length; i++) {
+            mIn[i] = (short) (Math.sin(i * 2 * Math.PI * 440 / inRate) * Short.MAX_VALUE);
+        }
+        mOut = new short[mResampler.maxOutput(mIn.length)];
+    }
+
+    @Benchmark
+    public int process() {
+        return mResampler.process(mIn, 0, mIn.length, mOut, 0);
+    }
+}
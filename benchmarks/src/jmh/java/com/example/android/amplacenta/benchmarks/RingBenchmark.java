@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.FloatRing;
+import com.example.android.amplacenta.engine.RefRing;
+import com.example.android.amplacenta.engine.ShortRing;
+import com.example.android.amplacenta.engine.SpscRing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hand-offs between a writer and a reader thread through the {@link SpscRing}s and
+ * through an {@link ArrayBlockingQueue}: references one at a time and in batches, and
+ * samples in batches of a 10 ms block, the queue carrying the samples as arrays that go
+ * back to the writer on a second queue the way the blocks of {@code AudioStreamer} do.
+ * <p>
+ * Each call tries once, yielding if the other side is behind, so the rate to compare is
+ * the {@code items} counter, the references or samples the reader got. The reader checks
+ * that they arrive whole and in order, and fails the run if not. The latency of one item
+ * is in {@link RingLatencyBenchmark}.
+ */
+@State(Scope.Group)
+public class RingBenchmark {
+
+    private static final int CAPACITY = 1024;
+    private static final int BATCH = 64;
+    private static final int BLOCK_SAMPLES = 480;
+
+    // The same boxed numbers over and over, which the reader checks by identity
+    private static final Integer[] VALUES = new Integer[CAPACITY * 2];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = Integer.valueOf(i);
+        }
+    }
+
+    private final BlockingQueue<Integer> mRefQueue = new ArrayBlockingQueue<>(CAPACITY);
+    private final RefRing<Integer> mRefRing = new RefRing<Integer>(CAPACITY);
+    private final BlockingQueue<short[]> mFullBlocks = new ArrayBlockingQueue<>(CAPACITY);
+    private final BlockingQueue<short[]> mFreeBlocks = new ArrayBlockingQueue<>(CAPACITY);
+    private final ShortRing mShortRing = new ShortRing(CAPACITY * 4);
+    private final FloatRing mFloatRing = new FloatRing(CAPACITY * 4);
+
+    // Where each side is in the run of items, and its scratch; each touched by its own
+    // thread only
+    private int mWritten;
+    private int mRead;
+    private final Integer[] mWriteRefs = new Integer[BATCH];
+    private final Integer[] mReadRefs = new Integer[BATCH];
+    private final short[] mWriteShorts = new short[BLOCK_SAMPLES];
+    private final short[] mReadShorts = new short[BLOCK_SAMPLES];
+    private final float[] mWriteFloats = new float[BLOCK_SAMPLES];
+    private final float[] mReadFloats = new float[BLOCK_SAMPLES];
+
+    /**
+     * What the reader of a group got.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Items {
+        public long items;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            items = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < CAPACITY / BLOCK_SAMPLES * 4 + 2; i++) {
+            mFreeBlocks.add(new short[BLOCK_SAMPLES]);
+        }
+    }
+
+    @Benchmark
+    @Group("queueRefs")
+    @GroupThreads(1)
+    public void queueRefsWrite() {
+        if (mRefQueue.offer(VALUES[mWritten])) {
+            mWritten = (mWritten + 1) % VALUES.length;
+        } else {
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @Group("queueRefs")
+    @GroupThreads(1)
+    public void queueRefsRead(Items items) {
+        Integer value = mRefQueue.poll();
+        if (value == null) {
+            Thread.yield();
+            return;
+        }
+        check(value == VALUES[mRead]);
+        mRead = (mRead + 1) % VALUES.length;
+        items.items++;
+    }
+
+    @Benchmark
+    @Group("ringRefs")
+    @GroupThreads(1)
+    public void ringRefsWrite() {
+        if (mRefRing.offer(VALUES[mWritten])) {
+            mWritten = (mWritten + 1) % VALUES.length;
+        } else {
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @Group("ringRefs")
+    @GroupThreads(1)
+    public void ringRefsRead(Items items) {
+        Integer value = mRefRing.poll();
+        if (value == null) {
+            Thread.yield();
+            return;
+        }
+        check(value == VALUES[mRead]);
+        mRead = (mRead + 1) % VALUES.length;
+        items.items++;
+    }
+
+    @Benchmark
+    @Group("ringRefBatches")
+    @GroupThreads(1)
+    public void ringRefBatchesWrite() {
+        for (int k = 0; k < BATCH; k++) {
+            mWriteRefs[k] = VALUES[(mWritten + k) % VALUES.length];
+        }
+        int n = mRefRing.offer(mWriteRefs, 0, BATCH);
+        if (n == 0) {
+            Thread.yield();
+        }
+        mWritten = (mWritten + n) % VALUES.length;
+    }
+
+    @Benchmark
+    @Group("ringRefBatches")
+    @GroupThreads(1)
+    public void ringRefBatchesRead(Items items) {
+        int n = mRefRing.drain(mReadRefs, 0, BATCH);
+        if (n == 0) {
+            Thread.yield();
+        }
+        for (int k = 0; k < n; k++) {
+            check(mReadRefs[k] == VALUES[(mRead + k) % VALUES.length]);
+        }
+        mRead = (mRead + n) % VALUES.length;
+        items.items += n;
+    }
+
+    @Benchmark
+    @Group("queueSamples")
+    @GroupThreads(1)
+    public void queueSamplesWrite() {
+        short[] block = mFreeBlocks.poll();
+        if (block == null) {
+            Thread.yield();
+            return;
+        }
+        for (int k = 0; k < BLOCK_SAMPLES; k++) {
+            block[k] = (short) (mWritten + k);
+        }
+        mWritten += BLOCK_SAMPLES;
+        mFullBlocks.offer(block);
+    }
+
+    @Benchmark
+    @Group("queueSamples")
+    @GroupThreads(1)
+    public void queueSamplesRead(Items items) {
+        short[] block = mFullBlocks.poll();
+        if (block == null) {
+            Thread.yield();
+            return;
+        }
+        check(block[0] == (short) mRead
+                && block[BLOCK_SAMPLES - 1] == (short) (mRead + BLOCK_SAMPLES - 1));
+        mRead += BLOCK_SAMPLES;
+        items.items += BLOCK_SAMPLES;
+        mFreeBlocks.offer(block);
+    }
+
+    @Benchmark
+    @Group("shortRing")
+    @GroupThreads(1)
+    public void shortRingWrite() {
+        for (int k = 0; k < BLOCK_SAMPLES; k++) {
+            mWriteShorts[k] = (short) (mWritten + k);
+        }
+        int n = mShortRing.write(mWriteShorts, 0, BLOCK_SAMPLES);
+        if (n == 0) {
+            Thread.yield();
+        }
+        mWritten += n;
+    }
+
+    @Benchmark
+    @Group("shortRing")
+    @GroupThreads(1)
+    public void shortRingRead(Items items) {
+        int n = mShortRing.read(mReadShorts, 0, BLOCK_SAMPLES);
+        if (n == 0) {
+            Thread.yield();
+        }
+        for (int k = 0; k < n; k++) {
+            check(mReadShorts[k] == (short) (mRead + k));
+        }
+        mRead += n;
+        items.items += n;
+    }
+
+    @Benchmark
+    @Group("floatRing")
+    @GroupThreads(1)
+    public void floatRingWrite() {
+        for (int k = 0; k < BLOCK_SAMPLES; k++) {
+            mWriteFloats[k] = (short) (mWritten + k);
+        }
+        int n = mFloatRing.write(mWriteFloats, 0, BLOCK_SAMPLES);
+        if (n == 0) {
+            Thread.yield();
+        }
+        mWritten += n;
+    }
+
+    @Benchmark
+    @Group("floatRing")
+    @GroupThreads(1)
+    public void floatRingRead(Items items) {
+        int n = mFloatRing.read(mReadFloats, 0, BLOCK_SAMPLES);
+        if (n == 0) {
+            Thread.yield();
+        }
+        for (int k = 0; k < n; k++) {
+            check(mReadFloats[k] == (short) (mRead + k));
+        }
+        mRead += n;
+        items.items += n;
+    }
+
+    private static void check(boolean inOrder) {
+        if (!inOrder) {
+            throw new IllegalStateException("items arrived out of order");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.RefRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a one-item hand-off, the other side of {@link RingBenchmark}: the time for
+ * an item to go to an echo thread and come back, sampled per round trip. {@code ring}
+ * passes it through two {@link RefRing}s, both sides polling; {@code queuePoll} through
+ * two {@link ArrayBlockingQueue}s, polled the same way; {@code queueTake} through the
+ * queues with both sides blocked in {@link BlockingQueue#take()}, which has to wake
+ * them. The pollers yield while they wait, so that the two threads can share a core.
+ * Each round trip checks that the item that came back is the one sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RingLatencyBenchmark {
+
+    private static final int CAPACITY = 1024;
+
+    @Param({"ring", "queuePoll", "queueTake"})
+    public String handoff;
+
+    private final RefRing<long[]> mRingThere = new RefRing<long[]>(CAPACITY);
+    private final RefRing<long[]> mRingBack = new RefRing<long[]>(CAPACITY);
+    private final BlockingQueue<long[]> mQueueThere = new ArrayBlockingQueue<>(CAPACITY);
+    private final BlockingQueue<long[]> mQueueBack = new ArrayBlockingQueue<>(CAPACITY);
+    private final long[] mItem = new long[1];
+    private Thread mEcho;
+    private volatile boolean mStopped;
+
+    @Setup
+    public void setup() {
+        mEcho = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    echo();
+                } catch (InterruptedException e) {
+                    // Torn down
+                }
+            }
+        }, "RingEcho");
+        mEcho.setDaemon(true);
+        mEcho.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mStopped = true;
+        mEcho.interrupt();
+        mEcho.join();
+    }
+
+    @Benchmark
+    public long roundTrip() throws InterruptedException {
+        long sent = ++mItem[0];
+        long[] item;
+        if (handoff.equals("ring")) {
+            mRingThere.offer(mItem);
+            while ((item = mRingBack.poll()) == null) {
+                Thread.yield();
+            }
+        } else if (handoff.equals("queuePoll")) {
+            mQueueThere.offer(mItem);
+            while ((item = mQueueBack.poll()) == null) {
+                Thread.yield();
+            }
+        } else {
+            mQueueThere.put(mItem);
+            item = mQueueBack.take();
+        }
+        if (item != mItem || item[0] != sent) {
+            throw new IllegalStateException("item " + sent + " came back as " + item[0]);
+        }
+        return sent;
+    }
+
+    /**
+     * On the echo thread, send back every item that comes, until torn down.
+     */
+    private void echo() throws InterruptedException {
+        boolean ring = handoff.equals("ring");
+        boolean take = handoff.equals("queueTake");
+        while (!mStopped) {
+            if (take) {
+                mQueueBack.put(mQueueThere.take());
+                continue;
+            }
+            long[] item = ring ? mRingThere.poll() : mQueueThere.poll();
+            if (item == null) {
+                Thread.yield();
+            } else if (ring) {
+                mRingBack.offer(item);
+            } else {
+                mQueueBack.offer(item);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.benchmarks;
+
+import com.example.android.amplacenta.engine.transport.Acceptor;
+import com.example.android.amplacenta.engine.transport.Connection;
+import com.example.android.amplacenta.engine.transport.Transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams and a transport that cost next to nothing, so that a benchmark measures the
+ * engine rather than the I/O underneath it.
+ */
+final class Streams {
+
+    private Streams() {
+    }
+
+    /**
+     * Discards everything written to it.
+     */
+    static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * Keeps what is written to it, to be replayed by a {@link LoopingInputStream}.
+     */
+    static class CaptureOutputStream extends ByteArrayOutputStream {
+    }
+
+    /**
+     * Reads the same bytes over and over.
+     */
+    static class LoopingInputStream extends InputStream {
+        private final byte[] mData;
+        private int mPosition;
+
+        LoopingInputStream(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public int read() {
+            int b = mData[mPosition] & 0xff;
+            mPosition = (mPosition + 1) % mData.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, mData.length - mPosition);
+            System.arraycopy(mData, mPosition, b, off, n);
+            mPosition = (mPosition + n) % mData.length;
+            return n;
+        }
+    }
+
+    /**
+     * A transport whose acceptor hands out {@code count} connections, then blocks. The
+     * connections discard what is sent and never receive anything until closed.
+     */
+    static class NullTransport implements Transport {
+        private final int mCount;
+
+        NullTransport(int count) {
+            mCount = count;
+        }
+
+        @Override
+        public Acceptor listen() {
+            return new Acceptor() {
+                private int mAccepted;
+                private boolean mClosed;
+
+                @Override
+                public synchronized Connection accept() throws IOException {
+                    while (mAccepted == mCount && !mClosed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            throw new IOException("interrupted");
+                        }
+                    }
+                    if (mClosed) {
+                        throw new IOException("closed");
+                    }
+                    return new NullConnection("guest-" + mAccepted++);
+                }
+
+                @Override
+                public synchronized void close() {
+                    mClosed = true;
+                    notifyAll();
+                }
+            };
+        }
+
+        @Override
+        public Connection connect(String address) throws IOException {
+            throw new IOException("connect() is not supported");
+        }
+
+        @Override
+        public String getListenAddress() {
+            return null;
+        }
+    }
+
+    private static class NullConnection implements Connection {
+        private final String mAddress;
+        private final InputStream mIn = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                synchronized (NullConnection.this) {
+                    while (!mClosed) {
+                        try {
+                            NullConnection.this.wait();
+                        } catch (InterruptedException e) {
+                            throw new IOException("interrupted");
+                        }
+                    }
+                }
+                return -1;
+            }
+        };
+        private final OutputStream mOut = new NullOutputStream();
+        private boolean mClosed;
+
+        NullConnection(String address) {
+            mAddress = address;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mIn;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mAddress;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.amplacenta.engine;
+
+/**
+ * Keeps track of which audio blocks of a stream have arrived, so that a guest can ask the
+ * host to send the missing ones again while there is still time to play them.
+ * <p>
+ * Blocks are followed by sequence number over a window of {@code capacity} blocks starting
+ * at the cumulative ack, the first block not received yet. A gap in the sequence numbers
+ * marks blocks missing; {@link #collect(long, long, int[])} turns them into ranges to
+ * request, at most {@link #MAX_REQUESTS} times each, and {@link #expire(int)} gives up on
+ * those that are no longer worth having. Nothing is allocated after construction.
+ * <p>
+ * Sequence numbers are compared by difference, so they may wrap.
+ */
+public class AckTracker {
+
+    // Times a missing block is asked for before giving up on it
+    public static final int MAX_REQUESTS = 3;
+
+    private final int mCapacity;
+    private final int mMask;
+
+    // Per slot, valid for the seqs between mCumulative and mHighest
+    private final int[] mSeqs;
+    private final boolean[] mMissing;
+    private final int[] mRequests;
+    private final long[] mRequestedAt;
+
+    private boolean mStarted;
+    private int mCumulative;
+    private int mHighest;
+
+    private int mRequested;
+
+    /**
+     * @param capacity The most blocks followed at once, rounded up to a power of two
+     */
+    public AckTracker(int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mCapacity = n;
+        mMask = n - 1;
+        mSeqs = new int[n];
+        mMissing = new boolean[n];
+        mRequests = new int[n];
+        mRequestedAt = new long[n];
+    }
+
+    /**
+     * Forget everything. The next block received starts the window over.
+     */
+    public synchronized void clear() {
+        mStarted = false;
+    }
+
+    /**
+     * Note that a block has arrived.
+     *
+     * @param seq Sequence number of the block
+     * @return true if the block had been missing, that is it filled a gap
+     */
+    public synchronized boolean onReceived(int seq) {
+        if (!mStarted || seq - mCumulative >= mCapacity) {
+            // First block, or so far ahead that the whole window is lost; start over
+            mStarted = true;
+            mCumulative = seq + 1;
+            mHighest = seq;
+            return false;
+        }
+        if (seq - mCumulative < 0) {
+            // A duplicate, or given up on already
+            return false;
+        }
+
+        int i = seq & mMask;
+        if (seq - mHighest > 0) {
+            for (int s = mHighest + 1; s != seq; s++) {
+                int j = s & mMask;
+                mSeqs[j] = s;
+                mMissing[j] = true;
+                mRequests[j] = 0;
+            }
+            mHighest = seq;
+            mSeqs[i] = seq;
+            mMissing[i] = false;
+            advance();
+            return false;
+        }
+
+        boolean filled = mMissing[i] && mSeqs[i] == seq;
+        mMissing[i] = false;
+        advance();
+        return filled;
+    }
+
+    /**
+     * Give up on every block before {@code seq}, for instance because its turn to play
+     * has passed.
+     */
+    public synchronized void expire(int seq) {
+        if (!mStarted || seq - mCumulative <= 0) {
+            return;
+        }
+        if (seq - mHighest > 0) {
+            mHighest = seq - 1;
+        }
+        mCumulative = seq;
+        advance();
+    }
+
+    private void advance() {
+        while (mCumulative - mHighest <= 0 && !mMissing[mCumulative & mMask]) {
+            mCumulative++;
+        }
+    }
+
+    /**
+     * Return the sequence number of the first block not received yet. Only meaningful
+     * once a block has been received.
+     */
+    public synchronized int getCumulative() {
+        return mCumulative;
+    }
+
+    /**
+     * Return whether any block is missing.
+     */
+    public synchronized boolean hasMissing() {
+        return mStarted && mCumulative - mHighest <= 0;
+    }
+
+    /**
+     * Gather the missing blocks due to be asked for: those never asked for, and those last
+     * asked for at least {@code retryNanos} ago, up to {@link #MAX_REQUESTS} times. They
+     * are counted as asked for at {@code now}.
+     *
+     * @param now        The current time, on any clock as long as it is always the same
+     * @param retryNanos How long to wait for an answer before asking again
+     * @param ranges     Receives pairs of first sequence number and count; as many ranges
+     *                   as fit are gathered, the rest wait for the next call
+     * @return The number of ranges written to {@code ranges}
+     */
+    public synchronized int collect(long now, long retryNanos, int[] ranges) {
+        if (!hasMissing()) {
+            return 0;
+        }
+        int count = 0;
+        boolean open = false;
+        for (int s = mCumulative; s - mHighest <= 0; s++) {
+            int i = s & mMask;
+            boolean due = mMissing[i] && mRequests[i] < MAX_REQUESTS
+                    && (mRequests[i] == 0 || now - mRequestedAt[i] >= retryNanos);
+            if (!due) {
+                open = false;
+                continue;
+            }
+            if (!open) {
+                if (2 * count + 1 >= ranges.length) {
+                    break;
+                }
+                ranges[2 * count] = s;
+                ranges[2 * count + 1] = 0;
+                count++;
+                open = true;
+            }
+            ranges[2 * count - 1]++;
+            mRequests[i]++;
+            mRequestedAt[i] = now;
+            mRequested++;
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of times any block was asked for, counting each retry.
+     */
+    public synchronized int getRequested() {
+        return mRequested;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * A block of planar 16-bit audio: one primitive array per channel, so each channel can be
+ * encoded and sent on its own. Blocks are allocated once and refilled.
+ */
+public class AudioBlock {
+
+    public final short[][] samples;
+
+    // Number of valid sample frames in each channel
+    public int frames;
+
+    // Index of the first sample frame within the stream
+    public long position;
+
+    public AudioBlock(int channels, int capacity) {
+        samples = new short[channels][capacity];
+    }
+
+    public int channels() {
+        return samples.length;
+    }
+
+    public int capacity() {
+        return samples[0].length;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * Turns one block of one channel into bytes and back. Implementations must not allocate
+ * and must be safe to call from several threads.
+ */
+public interface AudioCodec {
+
+    /**
+     * Return the largest number of bytes {@link #encode} can produce for a block.
+     */
+    public int maxEncodedSize(int samples);
+
+    /**
+     * Encode {@code count} samples.
+     *
+     * @return The number of bytes written to {@code out}
+     */
+    public int encode(short[] in, int offset, int count, byte[] out, int outOffset);
+
+    /**
+     * Decode {@code length} bytes produced by {@link #encode}.
+     *
+     * @return The number of samples written to {@code out}
+     */
+    public int decode(byte[] in, int offset, int length, short[] out, int outOffset);
+}
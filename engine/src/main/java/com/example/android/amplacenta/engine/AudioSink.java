@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * Where a guest renders the channel it was assigned, such as an Android AudioTrack.
+ */
+public interface AudioSink {
+
+    /**
+     * Prepare to render mono 16-bit audio at the given rate. May be called again when the
+     * host changes format. Called on the thread that renders, which can be given the
+     * platform's audio priority here.
+     */
+    public void open(int sampleRate);
+
+    /**
+     * Render {@code count} samples. May block while the device buffer is full.
+     */
+    public void write(short[] samples, int offset, int count);
+
+    public void close();
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.Trace;
+import com.example.android.common.metrics.Histogram;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams a {@link PcmSource} to the guests of a {@link HostSession}. The source is cut
+ * into short blocks; every channel of a block is encoded into its own frame, stamped with
+ * the time the block must be played on the host's clock, and sent to the guests playing
+ * that channel. Blocks are sent no earlier than the playout latency ahead of their play
+ * time, so guests only ever need to buffer about that much.
+ */
+public class AudioStreamer {
+    // Debugging
+    private static final String TAG = "AudioStreamer";
+
+    // Length of one block
+    public static final int BLOCK_MILLIS = 10;
+
+    // How far ahead of its play time a block is sent unless set otherwise
+    public static final long DEFAULT_LATENCY_NANOS = 150000000L;
+
+    // Blocks read from the source ahead of the one being sent
+    public static final int READ_AHEAD_BLOCKS = 8;
+
+    // How long the stream waits for the source when it has fallen behind
+    private static final long WAIT_NANOS = 500000L;
+
+    public static final String METRIC_ENCODE_US = "host.encode_us";
+
+    private final HostSession mSession;
+    private final AudioCodec mCodec;
+    private volatile long mLatencyNanos = DEFAULT_LATENCY_NANOS;
+    private volatile int mSampleRate;
+    private volatile int mEncodeThreads = 1;
+    private volatile ThreadFactory mThreadFactory = Executors.defaultThreadFactory();
+    private StreamThread mStreamThread;
+
+    public AudioStreamer(HostSession session, AudioCodec codec) {
+        mSession = session;
+        mCodec = codec;
+    }
+
+    /**
+     * Set how far ahead of its play time each block is sent, which is also how much the
+     * guests buffer. Takes effect with the next {@link #play(PcmSource)}.
+     */
+    public void setLatencyNanos(long latencyNanos) {
+        mLatencyNanos = latencyNanos;
+    }
+
+    public long getLatencyNanos() {
+        return mLatencyNanos;
+    }
+
+    /**
+     * Set the sample rate guests receive, whatever the rate of the source, so that they
+     * keep one format from track to track. 0, the default, sends each source at its own
+     * rate. Takes effect with the next {@link #play(PcmSource)}.
+     */
+    public void setSampleRate(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Set how many threads encode the channels of each block, the stream's own included,
+     * or 0 for one per core; never more than one per channel. The default, 1, encodes on
+     * the stream's thread alone. More only pay off for a codec that costs more per block
+     * than waking a thread does, which {@link PcmCodec} does not. Takes effect with the
+     * next {@link #play(PcmSource)}.
+     *
+     * @see ParallelEncoder
+     */
+    public void setEncodeThreads(int threads) {
+        mEncodeThreads = threads;
+    }
+
+    /**
+     * Set where the streamer's threads come from, for instance to run them as virtual
+     * threads. Must be called before {@link #play(PcmSource)}.
+     */
+    public void setThreadFactory(ThreadFactory factory) {
+        mThreadFactory = factory;
+    }
+
+    private void startThread(Runnable runnable) {
+        mThreadFactory.newThread(runnable).start();
+    }
+
+    /**
+     * Start streaming a source, replacing whatever was playing. The source is closed when
+     * it ends or playback is stopped.
+     */
+    public synchronized void play(PcmSource source) {
+        stop();
+        mStreamThread = new StreamThread(source);
+        startThread(mStreamThread);
+    }
+
+    /**
+     * Stop streaming. Guests play out what they have already received.
+     */
+    public synchronized void stop() {
+        if (mStreamThread != null) {
+            mStreamThread.cancel();
+            mStreamThread = null;
+        }
+    }
+
+    public synchronized boolean isPlaying() {
+        return mStreamThread != null && mStreamThread.mmRunning;
+    }
+
+    /**
+     * This thread encodes and sends one block after another, pacing itself against the
+     * session's clock. A {@link SourceThread} reads the blocks ahead and hands them over
+     * through a {@link RefRing}, so that a slow read, of a file being seeked or a track
+     * being opened, does not hold up a send. The channels of a block are encoded together
+     * on a {@link ParallelEncoder}, so that many channels do not all wait on one core.
+     */
+    private class StreamThread implements Runnable {
+        private final PcmSource mmSource;
+        private volatile boolean mmCancelled;
+        private volatile boolean mmRunning = true;
+
+        StreamThread(PcmSource source) {
+            mmSource = source;
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mStreamThread");
+            Thread.currentThread().setName("StreamThread");
+            Clock clock = mSession.getClock();
+            Histogram encodeUs = mSession.getMetrics().histogram(METRIC_ENCODE_US);
+
+            PcmFormat source = mmSource.getFormat();
+            int channels = source.channels;
+            int readFrames = source.sampleRate * BLOCK_MILLIS / 1000;
+
+            // Resample on the way out if the guests expect another rate
+            PcmFormat format = source;
+            Resampler[] resamplers = null;
+            int blockFrames = readFrames;
+            int sampleRate = mSampleRate;
+            if (sampleRate != 0 && sampleRate != source.sampleRate) {
+                format = new PcmFormat(sampleRate, channels);
+                resamplers = new Resampler[channels];
+                for (int c = 0; c < channels; c++) {
+                    resamplers[c] = new Resampler(source.sampleRate, sampleRate);
+                }
+                blockFrames = resamplers[0].maxOutput(readFrames);
+            }
+            mSession.setFormat(format.sampleRate, channels, blockFrames);
+
+            SourceThread reader = new SourceThread(this, readFrames, resamplers, blockFrames);
+            startThread(reader);
+
+            Frame[] frames = new Frame[channels];
+            for (int c = 0; c < channels; c++) {
+                frames[c] = new Frame(mCodec.maxEncodedSize(blockFrames));
+            }
+            int threads = mEncodeThreads;
+            if (threads <= 0) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+            ParallelEncoder encoder = new ParallelEncoder(mCodec, channels, threads,
+                    mThreadFactory);
+            if (Log.isLoggable(Log.DEBUG)) {
+                Log.d(TAG, "encoding {} channels on {} threads", channels, encoder.getThreads());
+            }
+
+            long latency = mLatencyNanos;
+            long startTime = clock.nanoTime() + latency;
+            long position = 0;
+            int seq = 0;
+
+            try {
+                while (!mmCancelled) {
+                    AudioBlock out = reader.mmFull.poll();
+                    if (out == null) {
+                        if (reader.mmDone && reader.mmFull.isEmpty()) {
+                            break;
+                        }
+                        // The source is behind; it has the rest of the latency to catch up
+                        LockSupport.parkNanos(WAIT_NANOS);
+                        continue;
+                    }
+                    int count = out.frames;
+
+                    long playTime = startTime + format.framesToNanos(position);
+                    long wait = playTime - latency - clock.nanoTime();
+                    clock.sleep(wait);
+
+                    long start = System.nanoTime();
+                    for (int c = 0; c < channels; c++) {
+                        frames[c].reset(Frame.TYPE_AUDIO, c, seq, playTime);
+                    }
+                    // All channels encoded before any is sent, so they go out in order
+                    encoder.encode(out.samples, count, frames);
+                    for (int c = 0; c < channels; c++) {
+                        mSession.sendAudio(frames[c]);
+                    }
+                    encodeUs.record((System.nanoTime() - start) / 1000);
+                    Trace.record(Trace.SCHEDULE, 0, seq, playTime, count);
+                    reader.mmFree.offer(out);
+
+                    seq++;
+                    position += count;
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "streaming interrupted");
+            } catch (RuntimeException e) {
+                // Thrown by the codec, on this thread or an encoder's
+                Log.e(TAG, "encoding failed, stopping the stream", e);
+            } finally {
+                // The reader closes the source once it sees this
+                mmCancelled = true;
+                encoder.close();
+                mmRunning = false;
+            }
+            if (Log.isLoggable(Log.INFO)) {
+                Log.i(TAG, "END mStreamThread, {} frames", position);
+            }
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+        }
+    }
+
+    /**
+     * This thread reads the source, resampled if need be, up to {@link #READ_AHEAD_BLOCKS}
+     * ahead of the block being sent, into blocks that go round between it and the
+     * {@link StreamThread} on two rings: filled on one, empty on the other. Closes the
+     * source when it ends or the stream stops.
+     */
+    private class SourceThread implements Runnable {
+        private final StreamThread mmStream;
+        private final AudioBlock mmRead;
+        private final Resampler[] mmResamplers;
+        final RefRing<AudioBlock> mmFull = new RefRing<AudioBlock>(READ_AHEAD_BLOCKS);
+        final RefRing<AudioBlock> mmFree = new RefRing<AudioBlock>(READ_AHEAD_BLOCKS);
+        volatile boolean mmDone;
+
+        SourceThread(StreamThread stream, int readFrames, Resampler[] resamplers,
+                     int blockFrames) {
+            mmStream = stream;
+            mmResamplers = resamplers;
+            int channels = stream.mmSource.getFormat().channels;
+            mmRead = resamplers != null ? new AudioBlock(channels, readFrames) : null;
+            for (int i = 0; i < READ_AHEAD_BLOCKS; i++) {
+                mmFree.offer(new AudioBlock(channels, blockFrames));
+            }
+        }
+
+        public void run() {
+            Thread.currentThread().setName("SourceThread");
+            PcmSource source = mmStream.mmSource;
+            try {
+                while (!mmStream.mmCancelled) {
+                    AudioBlock block = mmFree.poll();
+                    if (block == null) {
+                        // A full read-ahead; a block is sent every BLOCK_MILLIS
+                        LockSupport.parkNanos(BLOCK_MILLIS * 1000000L / 2);
+                        continue;
+                    }
+                    int count;
+                    if (mmResamplers == null) {
+                        count = source.read(block);
+                        if (count < 0) {
+                            break;
+                        }
+                    } else {
+                        count = source.read(mmRead);
+                        if (count < 0) {
+                            break;
+                        }
+                        int n = 0;
+                        for (int c = 0; c < mmResamplers.length; c++) {
+                            n = mmResamplers[c].process(mmRead.samples[c], 0, count,
+                                    block.samples[c], 0);
+                        }
+                        block.frames = n;
+                    }
+                    if (block.frames == 0) {
+                        mmFree.offer(block);
+                        if (count == 0) {
+                            // The source has nothing yet; try again in a block's time
+                            // rather than spin
+                            LockSupport.parkNanos(BLOCK_MILLIS * 1000000L);
+                        }
+                        continue;
+                    }
+                    mmFull.offer(block);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "read() failed", e);
+            } finally {
+                mmDone = true;
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of source failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads back a capture made by a {@link CaptureWriter}, one record at a time.
+ */
+public class CaptureReader implements Closeable {
+
+    private final DataInputStream mIn;
+    private int mDirection;
+    private int mStream;
+    private long mTime;
+
+    /**
+     * @throws IOException If the stream does not start like a capture
+     */
+    public CaptureReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        if (mIn.readInt() != CaptureWriter.MAGIC) {
+            throw new IOException("Not a capture");
+        }
+    }
+
+    /**
+     * Read the next record into {@code frame}, growing its payload if needed.
+     *
+     * @return false at the end of the capture
+     */
+    public boolean next(Frame frame) throws IOException {
+        int direction = mIn.read();
+        if (direction < 0) {
+            return false;
+        }
+        try {
+            mDirection = direction;
+            mStream = (int) readVarint();
+            long zigzag = readVarint();
+            mTime += (zigzag >>> 1) ^ -(zigzag & 1);
+            frame.type = mIn.readUnsignedByte();
+            frame.flags = mIn.readUnsignedByte();
+            frame.channel = (int) readVarint();
+            frame.seq = mIn.readInt();
+            frame.timestamp = mIn.readLong();
+            int length = (int) readVarint();
+            if (length < 0 || length > Frame.MAX_LENGTH) {
+                throw new IOException("Bad frame length " + length);
+            }
+            frame.ensureCapacity(length);
+            mIn.readFully(frame.data, 0, length);
+            frame.length = length;
+            return true;
+        } catch (EOFException e) {
+            // The capture was cut short, most likely by a crash; keep what is complete
+            return false;
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mIn.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+
+    /**
+     * Return the direction of the last record read, {@link CaptureWriter#INBOUND} or
+     * {@link CaptureWriter#OUTBOUND}.
+     */
+    public int getDirection() {
+        return mDirection;
+    }
+
+    /**
+     * Return the stream of the last record read.
+     */
+    public int getStream() {
+        return mStream;
+    }
+
+    /**
+     * Return the time of the last record read, on the recording session's clock.
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import com.example.android.common.logger.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Records the frames a session sends and receives, with the time of each, so that a
+ * session can be replayed later, for instance with the tools' CaptureReplay. Sessions
+ * record into it when given one with {@code setCapture()}.
+ * <p>
+ * Recording only copies the frame into memory; a background thread writes to the stream,
+ * so a slow file never holds up the audio. If the stream cannot keep up, records are
+ * dropped and counted rather than buffered without bound.
+ * <p>
+ * The format, all big-endian: the int {@link #MAGIC}, then one record per frame:
+ * <pre>
+ * byte    direction, {@link #INBOUND} or {@link #OUTBOUND}
+ * varint  stream, 0 on a guest and the guest's role on the host, or
+ *         {@link #STREAM_MULTICAST} for audio over the multicast group
+ * varint  time since the previous record in nanoseconds, zigzag signed, on the
+ *         session's clock; the first record's is the time itself
+ * byte    frame type
+ * byte    frame flags
+ * varint  frame channel
+ * int     frame sequence number
+ * long    frame timestamp
+ * varint  payload length, followed by the payload
+ * </pre>
+ */
+public class CaptureWriter implements Closeable {
+    // Debugging
+    private static final String TAG = "CaptureWriter";
+
+    // "APC1"
+    public static final int MAGIC = 0x41504331;
+
+    public static final int INBOUND = 0;
+    public static final int OUTBOUND = 1;
+
+    // Stream of the frames sent to or received from a multicast group
+    public static final int STREAM_MULTICAST = 0xffff;
+
+    // Longest record without its payload
+    static final int MAX_RECORD_HEADER = 1 + 5 + 10 + 1 + 1 + 5 + 4 + 8 + 5;
+
+    // Written out whenever this much is pending, or at least this often
+    private static final int FLUSH_BYTES = 64 * 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 250;
+
+    // Records beyond this much unwritten data are dropped
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private final OutputStream mOut;
+    private final Thread mWriterThread;
+
+    // Filled by record(), swapped with mSpare and written out by the writer thread
+    private byte[] mPending = new byte[2 * FLUSH_BYTES];
+    private byte[] mSpare = new byte[2 * FLUSH_BYTES];
+    private int mLength;
+    private long mLastTime;
+    private int mDropped;
+    private boolean mClosed;
+    private IOException mError;
+
+    /**
+     * Start a capture. The stream is closed along with the capture.
+     */
+    public CaptureWriter(OutputStream out) {
+        mOut = out;
+        putInt(MAGIC);
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "CaptureWriter");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Record one frame. Never blocks on I/O.
+     *
+     * @param direction {@link #INBOUND} or {@link #OUTBOUND}
+     * @param stream    Which connection of the session the frame went over
+     * @param time      When, on the session's clock
+     */
+    public synchronized void record(int direction, int stream, long time, Frame frame) {
+        if (mClosed || mError != null) {
+            return;
+        }
+        int size = MAX_RECORD_HEADER + frame.length;
+        if (mLength + size > mPending.length) {
+            if (mLength + size > MAX_PENDING_BYTES) {
+                mDropped++;
+                return;
+            }
+            mPending = Arrays.copyOf(mPending, Math.max(2 * mPending.length, mLength + size));
+        }
+
+        mPending[mLength++] = (byte) direction;
+        putVarint(stream);
+        long delta = time - mLastTime;
+        putVarint((delta << 1) ^ (delta >> 63));
+        mLastTime = time;
+        mPending[mLength++] = (byte) frame.type;
+        mPending[mLength++] = (byte) frame.flags;
+        putVarint(frame.channel);
+        putInt(frame.seq);
+        Frame.putLong(mPending, mLength, frame.timestamp);
+        mLength += 8;
+        putVarint(frame.length);
+        System.arraycopy(frame.data, 0, mPending, mLength, frame.length);
+        mLength += frame.length;
+
+        if (mLength >= FLUSH_BYTES) {
+            notifyAll();
+        }
+    }
+
+    private void putInt(int value) {
+        Frame.putInt(mPending, mLength, value);
+        mLength += 4;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mPending[mLength++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        mPending[mLength++] = (byte) value;
+    }
+
+    /**
+     * Return the number of records dropped because the stream could not keep up.
+     */
+    public synchronized int getDropped() {
+        return mDropped;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                byte[] buffer;
+                int length;
+                boolean closed;
+                synchronized (this) {
+                    if (!mClosed && mLength < FLUSH_BYTES) {
+                        wait(FLUSH_INTERVAL_MILLIS);
+                    }
+                    buffer = mPending;
+                    length = mLength;
+                    closed = mClosed;
+                    mPending = mSpare;
+                    mSpare = buffer;
+                    mLength = 0;
+                }
+                if (length > 0) {
+                    mOut.write(buffer, 0, length);
+                }
+                if (closed) {
+                    break;
+                }
+            }
+            mOut.close();
+        } catch (IOException e) {
+            Log.e(TAG, "write failed, capture stopped", e);
+            synchronized (this) {
+                mError = e;
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "capture interrupted");
+        }
+    }
+
+    /**
+     * Write out what is left and close the stream.
+     *
+     * @throws IOException If anything could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while closing the capture");
+        }
+        synchronized (this) {
+            if (mError != null) {
+                throw mError;
+            }
+        }
+    }
+}
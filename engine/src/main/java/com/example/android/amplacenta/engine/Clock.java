@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * Source of monotonic time for the engine. Everything that schedules or timestamps
+ * audio goes through a clock, waiting included, so that it can be replaced when running
+ * off-device or replaying a capture faster than real time.
+ */
+public interface Clock {
+
+    /**
+     * The system's monotonic clock.
+     */
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            if (nanos > 0) {
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            }
+        }
+    };
+
+    /**
+     * Return the current time in nanoseconds. Only differences between two values are
+     * meaningful.
+     */
+    public long nanoTime();
+
+    /**
+     * Wait until this clock has advanced by about {@code nanos}.
+     */
+    public void sleep(long nanos) throws InterruptedException;
+}
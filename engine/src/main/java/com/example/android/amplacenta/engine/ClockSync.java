@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * Estimates the offset between a guest's clock and its host's, from PING/PONG round
+ * trips on the control lane (see {@link Control}). Of the last few round trips the one
+ * with the shortest RTT wins, since it was least delayed by the link.
+ */
+public class ClockSync {
+
+    // Number of recent round trips considered
+    private static final int WINDOW = 8;
+
+    // Drift is only estimated once samples span at least this long
+    private static final long MIN_DRIFT_SPAN_NANOS = 5000000000L;
+
+    private final long[] mRtts = new long[WINDOW];
+    private final long[] mOffsets = new long[WINDOW];
+    private int mCount;
+
+    private volatile long mOffset;
+    private volatile long mRtt;
+    private volatile boolean mSynced;
+    private volatile int mDriftPpm;
+
+    private long mFirstOffset;
+    private long mFirstTime;
+
+    /**
+     * Account for one round trip.
+     *
+     * @param t0 The guest's clock when the PING was sent
+     * @param t1 The host's clock when it answered
+     * @param t2 The guest's clock when the PONG arrived
+     */
+    public synchronized void onPong(long t0, long t1, long t2) {
+        int slot = mCount++ % WINDOW;
+        mRtts[slot] = t2 - t0;
+        mOffsets[slot] = t1 - (t0 + t2) / 2;
+
+        int best = 0;
+        for (int i = 1, n = Math.min(mCount, WINDOW); i < n; i++) {
+            if (mRtts[i] < mRtts[best]) {
+                best = i;
+            }
+        }
+        mRtt = mRtts[best];
+        mOffset = mOffsets[best];
+
+        if (!mSynced) {
+            mFirstOffset = mOffset;
+            mFirstTime = t2;
+            mSynced = true;
+        } else if (t2 - mFirstTime >= MIN_DRIFT_SPAN_NANOS) {
+            mDriftPpm = (int) ((mOffset - mFirstOffset) * 1000000L / (t2 - mFirstTime));
+        }
+    }
+
+    /**
+     * Forget every round trip, for instance after reconnecting.
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mSynced = false;
+        mOffset = 0;
+        mRtt = 0;
+        mDriftPpm = 0;
+    }
+
+    public boolean isSynced() {
+        return mSynced;
+    }
+
+    /**
+     * Return the host's clock minus the guest's, in nanoseconds.
+     */
+    public long getOffsetNanos() {
+        return mOffset;
+    }
+
+    public long getRttNanos() {
+        return mRtt;
+    }
+
+    /**
+     * Return how fast the offset is changing, in parts per million.
+     */
+    public int getDriftPpm() {
+        return mDriftPpm;
+    }
+
+    public long toHost(long localNanos) {
+        return localNanos + mOffset;
+    }
+
+    public long toLocal(long hostNanos) {
+        return hostNanos - mOffset;
+    }
+}
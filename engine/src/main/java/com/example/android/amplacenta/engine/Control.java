@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.nio.charset.Charset;
+
+/**
+ * Encodes and decodes the payload of {@link Frame#TYPE_CONTROL} frames, the control lane
+ * between a host and its guests. The first byte is the message type; the fields that
+ * follow are either all longs or all ints, big-endian, read back by index with
+ * {@link #longAt(Frame, int)} and {@link #intAt(Frame, int)}. Messages that name another
+ * device end with its address in UTF-8, read back with {@link #addressOf(Frame)}.
+ */
+public class Control {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // guest -> host: t0, the guest's clock when sent
+    public static final int PING = 1;
+    // host -> guest: t0 echoed, t1 the host's clock when answered
+    public static final int PONG = 2;
+    // guest -> host: buffer ms, clock offset us, drift ppm, dropped, concealed, recovered
+    public static final int REPORT = 3;
+    // host -> guest: sample rate, frames per block, channels, the guest's channel, its tier
+    public static final int FORMAT = 4;
+    // guest -> host: last audio seq it has room for, free blocks, buffer ms, idle
+    public static final int CREDIT = 5;
+    // guest -> host: first audio seq not received yet, number of ranges, then first seq
+    // and count of each range of missing blocks to send again
+    public static final int ACK = 6;
+    // guest -> host: free relay slots, guests relayed, mask of their channels, address
+    public static final int RELAY = 7;
+    // host -> guest: address of the relay to connect to instead
+    public static final int REDIRECT = 8;
+    // host -> guest: address of the multicast group the audio is sent to;
+    // guest -> host: the same address once joined, to stop sending audio over the link,
+    // or an empty one once left
+    public static final int MULTICAST = 9;
+
+    // Field indexes of a REPORT
+    public static final int REPORT_BUFFER_MS = 0;
+    public static final int REPORT_OFFSET_US = 1;
+    public static final int REPORT_DRIFT_PPM = 2;
+    public static final int REPORT_DROPPED = 3;
+    public static final int REPORT_CONCEALED = 4;
+    public static final int REPORT_RECOVERED = 5;
+    private static final int REPORT_FIELDS = 6;
+
+    // Field indexes of a FORMAT
+    public static final int FORMAT_SAMPLE_RATE = 0;
+    public static final int FORMAT_BLOCK_FRAMES = 1;
+    public static final int FORMAT_CHANNELS = 2;
+    public static final int FORMAT_CHANNEL = 3;
+    public static final int FORMAT_TIER = 4;
+    private static final int FORMAT_FIELDS = 5;
+
+    // Field indexes of a CREDIT. An idle guest, one that is not playing, takes any block
+    // and its limit is meaningless.
+    public static final int CREDIT_LIMIT_SEQ = 0;
+    public static final int CREDIT_FREE_BLOCKS = 1;
+    public static final int CREDIT_BUFFER_MS = 2;
+    public static final int CREDIT_IDLE = 3;
+    private static final int CREDIT_FIELDS = 4;
+
+    // Field indexes of an ACK; the ranges follow
+    public static final int ACK_CUMULATIVE = 0;
+    public static final int ACK_RANGES = 1;
+    private static final int ACK_FIELDS = 2;
+
+    // Field indexes of a RELAY; the address follows
+    public static final int RELAY_FREE_SLOTS = 0;
+    public static final int RELAY_GUESTS = 1;
+    public static final int RELAY_CHANNELS = 2;
+    private static final int RELAY_FIELDS = 3;
+
+    /**
+     * Return the message type of a control frame, or 0 if it is empty.
+     */
+    public static int typeOf(Frame frame) {
+        return frame.length > 0 ? frame.data[0] & 0xff : 0;
+    }
+
+    public static long longAt(Frame frame, int index) {
+        return Frame.getLong(frame.data, 1 + 8 * index);
+    }
+
+    public static int intAt(Frame frame, int index) {
+        return Frame.getInt(frame.data, 1 + 4 * index);
+    }
+
+    /**
+     * Return an int field, or {@code missing} if the frame is too short to hold it, as
+     * when it comes from a peer that does not know the field yet.
+     */
+    public static int intAt(Frame frame, int index, int missing) {
+        return frame.length >= 1 + 4 * (index + 1) ? intAt(frame, index) : missing;
+    }
+
+    /**
+     * Return the address at the end of a {@link #RELAY}, {@link #REDIRECT} or
+     * {@link #MULTICAST}.
+     */
+    public static String addressOf(Frame frame) {
+        int offset = 1 + (typeOf(frame) == RELAY ? 4 * RELAY_FIELDS : 0);
+        return new String(frame.data, offset, Math.max(0, frame.length - offset), UTF_8);
+    }
+
+    public static Frame ping(Frame frame, long t0) {
+        start(frame, PING, 8);
+        Frame.putLong(frame.data, 1, t0);
+        return frame;
+    }
+
+    public static Frame pong(Frame frame, long t0, long t1) {
+        start(frame, PONG, 16);
+        Frame.putLong(frame.data, 1, t0);
+        Frame.putLong(frame.data, 9, t1);
+        return frame;
+    }
+
+    public static Frame format(Frame frame, int sampleRate, int blockFrames, int channels,
+                               int channel, int tier) {
+        start(frame, FORMAT, 4 * FORMAT_FIELDS);
+        Frame.putInt(frame.data, 1 + 4 * FORMAT_SAMPLE_RATE, sampleRate);
+        Frame.putInt(frame.data, 1 + 4 * FORMAT_BLOCK_FRAMES, blockFrames);
+        Frame.putInt(frame.data, 1 + 4 * FORMAT_CHANNELS, channels);
+        Frame.putInt(frame.data, 1 + 4 * FORMAT_CHANNEL, channel);
+        Frame.putInt(frame.data, 1 + 4 * FORMAT_TIER, tier);
+        return frame;
+    }
+
+    public static Frame report(Frame frame, int bufferMs, int offsetUs, int driftPpm,
+                               int dropped, int concealed, int recovered) {
+        start(frame, REPORT, 4 * REPORT_FIELDS);
+        Frame.putInt(frame.data, 1 + 4 * REPORT_BUFFER_MS, bufferMs);
+        Frame.putInt(frame.data, 1 + 4 * REPORT_OFFSET_US, offsetUs);
+        Frame.putInt(frame.data, 1 + 4 * REPORT_DRIFT_PPM, driftPpm);
+        Frame.putInt(frame.data, 1 + 4 * REPORT_DROPPED, dropped);
+        Frame.putInt(frame.data, 1 + 4 * REPORT_CONCEALED, concealed);
+        Frame.putInt(frame.data, 1 + 4 * REPORT_RECOVERED, recovered);
+        return frame;
+    }
+
+    public static Frame credit(Frame frame, int limitSeq, int freeBlocks, int bufferMs,
+                               boolean idle) {
+        start(frame, CREDIT, 4 * CREDIT_FIELDS);
+        Frame.putInt(frame.data, 1 + 4 * CREDIT_LIMIT_SEQ, limitSeq);
+        Frame.putInt(frame.data, 1 + 4 * CREDIT_FREE_BLOCKS, freeBlocks);
+        Frame.putInt(frame.data, 1 + 4 * CREDIT_BUFFER_MS, bufferMs);
+        Frame.putInt(frame.data, 1 + 4 * CREDIT_IDLE, idle ? 1 : 0);
+        return frame;
+    }
+
+    /**
+     * @param ranges     Pairs of first sequence number and count of missing blocks
+     * @param rangeCount The number of pairs to take from {@code ranges}
+     */
+    public static Frame ack(Frame frame, int cumulative, int[] ranges, int rangeCount) {
+        start(frame, ACK, 4 * (ACK_FIELDS + 2 * rangeCount));
+        Frame.putInt(frame.data, 1 + 4 * ACK_CUMULATIVE, cumulative);
+        Frame.putInt(frame.data, 1 + 4 * ACK_RANGES, rangeCount);
+        for (int i = 0; i < 2 * rangeCount; i++) {
+            Frame.putInt(frame.data, 1 + 4 * (ACK_FIELDS + i), ranges[i]);
+        }
+        return frame;
+    }
+
+    /**
+     * Return the number of ranges in an ACK, no more than the frame actually holds.
+     */
+    public static int ackRangeCount(Frame frame) {
+        int held = (frame.length - 1 - 4 * ACK_FIELDS) / 8;
+        return Math.max(0, Math.min(intAt(frame, ACK_RANGES), held));
+    }
+
+    public static int ackRangeStart(Frame frame, int range) {
+        return intAt(frame, ACK_FIELDS + 2 * range);
+    }
+
+    public static int ackRangeLength(Frame frame, int range) {
+        return intAt(frame, ACK_FIELDS + 2 * range + 1);
+    }
+
+    /**
+     * @param freeSlots How many more guests the relay takes itself
+     * @param guests    How many guests it relays to, its own relays' included
+     * @param channels  Bit mask of the channels those guests play
+     * @param address   Where guests reach the relay
+     */
+    public static Frame relay(Frame frame, int freeSlots, int guests, int channels,
+                              String address) {
+        byte[] bytes = address.getBytes(UTF_8);
+        start(frame, RELAY, 4 * RELAY_FIELDS + bytes.length);
+        Frame.putInt(frame.data, 1 + 4 * RELAY_FREE_SLOTS, freeSlots);
+        Frame.putInt(frame.data, 1 + 4 * RELAY_GUESTS, guests);
+        Frame.putInt(frame.data, 1 + 4 * RELAY_CHANNELS, channels);
+        System.arraycopy(bytes, 0, frame.data, 1 + 4 * RELAY_FIELDS, bytes.length);
+        return frame;
+    }
+
+    public static Frame redirect(Frame frame, String address) {
+        byte[] bytes = address.getBytes(UTF_8);
+        start(frame, REDIRECT, bytes.length);
+        System.arraycopy(bytes, 0, frame.data, 1, bytes.length);
+        return frame;
+    }
+
+    public static Frame multicast(Frame frame, String address) {
+        byte[] bytes = address.getBytes(UTF_8);
+        start(frame, MULTICAST, bytes.length);
+        System.arraycopy(bytes, 0, frame.data, 1, bytes.length);
+        return frame;
+    }
+
+    private static void start(Frame frame, int type, int fieldBytes) {
+        frame.reset(Frame.TYPE_CONTROL, 0, 0, 0);
+        frame.ensureCapacity(1 + fieldBytes);
+        frame.data[0] = (byte) type;
+        frame.length = 1 + fieldBytes;
+    }
+}
@@ -0,0 +1,857 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Decodes a FLAC stream one frame at a time, each channel's subframe into its own int
+ * array. The metadata is read when the decoder is created: the stream info, and the
+ * seek table if there is one. Anything else, cover art included, is skipped. An ID3v2
+ * tag ahead of the stream is skipped too.
+ * <p>
+ * Bits are read through a 64-bit accumulator refilled from a buffer that is allocated
+ * once, so decoding does not allocate. Frame headers are checked against their CRC-8;
+ * the CRC-16 of whole frames is not checked, to save the time.
+ * <p>
+ * Streams of 8 to 24 bits per sample are supported, in any of the channel layouts.
+ * Seeking needs the stream to come from a {@link FileChannel}.
+ */
+public class FlacDecoder {
+
+    // "fLaC" and "ID3"
+    private static final int MARKER = 0x664c6143;
+    private static final int ID3 = 0x494433;
+
+    // Metadata block types
+    private static final int BLOCK_STREAMINFO = 0;
+    private static final int BLOCK_SEEKTABLE = 3;
+
+    // Channel assignments past the independent ones
+    private static final int LEFT_SIDE = 8;
+    private static final int RIGHT_SIDE = 9;
+    private static final int MID_SIDE = 10;
+
+    // Subframe types
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+    private static final int SUBFRAME_LPC = 32;
+
+    private static final int MAX_LPC_ORDER = 32;
+
+    // Sample sizes by their code in a frame header; 0 refers to the stream info
+    private static final int[] SAMPLE_SIZES = {0, 8, 12, 0, 16, 20, 24, 0};
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Longest frame header, and what parseHeader() puts in its fields
+    private static final int MAX_HEADER = 16;
+    private static final int FIELD_SAMPLE = 0;
+    private static final int FIELD_BLOCK_SIZE = 1;
+    private static final int FIELD_ASSIGNMENT = 2;
+
+    private static final int[] CRC8 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int b = 0; b < 8; b++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC8[i] = crc & 0xff;
+        }
+    }
+
+    private final ReadableByteChannel mChannel;
+    private final FileChannel mFile;
+
+    // Bytes read from the channel, and where in the stream the first of them is
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuffer);
+    private int mPos;
+    private int mLimit;
+    private long mBufferStart;
+    private boolean mEof;
+
+    // Bits taken out of the buffer and not consumed yet, from the top down; the bits below
+    // them are zero
+    private long mBits;
+    private int mBitCount;
+
+    // Stream info
+    private int mMinBlockSize;
+    private int mMaxBlockSize;
+    private int mSampleRate;
+    private int mChannels;
+    private int mBitsPerSample;
+    private long mTotalSamples;
+    private long mFirstFrame;
+
+    // Seek points, from the stream's seek table unless given an index; offsets are from
+    // the first frame
+    private SeekIndex mIndex;
+    private boolean mHasSeekTable;
+
+    // The frame last decoded, and where the next one starts
+    private long mFrameSample;
+    private long mFrameOffset;
+    private long mNextSample;
+
+    private final int[] mCoefs = new int[MAX_LPC_ORDER];
+    private final byte[] mHeader = new byte[MAX_HEADER];
+    private final long[] mHeaderFields = new long[3];
+    private byte[] mScanBuffer;
+
+    /**
+     * Read the metadata, leaving the channel at the first frame.
+     *
+     * @param channel The stream, read from its current position; seekable if it is a
+     *                {@link FileChannel}
+     * @throws IOException If the stream is not FLAC or is not supported
+     */
+    public FlacDecoder(ReadableByteChannel channel) throws IOException {
+        mChannel = channel;
+        mFile = channel instanceof FileChannel ? (FileChannel) channel : null;
+        if (mFile != null) {
+            mBufferStart = mFile.position();
+        }
+
+        int marker = readBits(32);
+        if (marker >>> 8 == ID3) {
+            readBits(8);
+            int flags = readBits(8);
+            int size = 0;
+            for (int i = 0; i < 4; i++) {
+                size = size << 7 | (readBits(8) & 0x7f);
+            }
+            // A footer repeats the header
+            skip(size + ((flags & 0x10) != 0 ? 10 : 0));
+            marker = readBits(32);
+        }
+        if (marker != MARKER) {
+            throw new IOException("Not a FLAC stream");
+        }
+
+        boolean last;
+        do {
+            last = readBits(1) == 1;
+            int type = readBits(7);
+            int length = readBits(24);
+            if (type == BLOCK_STREAMINFO) {
+                readStreamInfo(length);
+            } else if (type == BLOCK_SEEKTABLE) {
+                readSeekTable(length);
+            } else {
+                skip(length);
+            }
+        } while (!last);
+
+        if (mSampleRate == 0) {
+            throw new IOException("No stream info");
+        }
+        if (mBitsPerSample < 8 || mBitsPerSample > 24) {
+            throw new IOException("Unsupported sample size " + mBitsPerSample);
+        }
+        if (mIndex == null) {
+            mIndex = new SeekIndex(new long[0], new long[0], 0);
+        }
+        mFirstFrame = position();
+        mNextSample = 0;
+    }
+
+    private void readStreamInfo(int length) throws IOException {
+        if (length < 34) {
+            throw new IOException("Short stream info");
+        }
+        mMinBlockSize = readBits(16);
+        mMaxBlockSize = readBits(16);
+        readBits(24);
+        readBits(24);
+        mSampleRate = readBits(20);
+        mChannels = readBits(3) + 1;
+        mBitsPerSample = readBits(5) + 1;
+        mTotalSamples = (long) readBits(4) << 32 | (readBits(32) & 0xffffffffL);
+        // The MD5 of the audio is not checked
+        skip(16 + length - 34);
+        if (mMaxBlockSize < 16 || mSampleRate == 0) {
+            throw new IOException("Bad stream info");
+        }
+    }
+
+    private void readSeekTable(int length) throws IOException {
+        int count = length / 18;
+        long[] samples = new long[count];
+        long[] offsets = new long[count];
+        int points = 0;
+        for (int i = 0; i < count; i++) {
+            long sample = readLong();
+            long offset = readLong();
+            readBits(16);
+            // Placeholders hold all ones
+            if (sample != -1L) {
+                samples[points] = sample;
+                offsets[points] = offset;
+                points++;
+            }
+        }
+        skip(length - 18 * count);
+        mIndex = new SeekIndex(samples, offsets, points);
+        mHasSeekTable = points > 0;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getBitsPerSample() {
+        return mBitsPerSample;
+    }
+
+    /**
+     * Return the most samples per channel any frame holds, the length the arrays passed to
+     * {@link #decodeFrame(int[][])} need.
+     */
+    public int getMaxBlockSize() {
+        return mMaxBlockSize;
+    }
+
+    /**
+     * Return the number of samples per channel in the stream, or 0 if unknown.
+     */
+    public long getTotalSamples() {
+        return mTotalSamples;
+    }
+
+    /**
+     * Return true if the stream came with a seek table with at least one point in it.
+     */
+    public boolean hasSeekTable() {
+        return mHasSeekTable;
+    }
+
+    /**
+     * Return the seek points {@link #seek(long)} starts from: the stream's seek table,
+     * which may be empty, unless another index was set.
+     */
+    public SeekIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Seek from the points of an index, such as one from {@link #buildIndex(long)}, rather
+     * than the stream's seek table.
+     */
+    public void setIndex(SeekIndex index) {
+        mIndex = index;
+    }
+
+    /**
+     * Return the first sample of the frame last decoded.
+     */
+    public long getFrameSample() {
+        return mFrameSample;
+    }
+
+    /**
+     * Return where the frame last decoded starts, in bytes from the first frame.
+     */
+    public long getFrameOffset() {
+        return mFrameOffset - mFirstFrame;
+    }
+
+    /**
+     * Decode the next frame.
+     *
+     * @param out One array per channel, each at least {@link #getMaxBlockSize()} long
+     * @return The number of samples per channel decoded, or -1 at the end of the stream
+     * @throws IOException If the stream is corrupt or cannot be read
+     */
+    public int decodeFrame(int[][] out) throws IOException {
+        if (mBitCount < 16) {
+            fill();
+        }
+        if (mBitCount < 16 || mTotalSamples > 0 && mNextSample >= mTotalSamples
+                && (int) (mBits >>> 48) != 0xfff8 && (int) (mBits >>> 48) != 0xfff9) {
+            // The end, possibly with a tag or padding after the last frame
+            return -1;
+        }
+        long offset = position();
+
+        // The header is whole bytes; its length is known from the first five
+        byte[] header = mHeader;
+        for (int i = 0; i < 5; i++) {
+            header[i] = (byte) readBits(8);
+        }
+        int length = headerLength(header, 0, 5);
+        if (length < 0) {
+            throw new IOException("Lost frame sync at byte " + offset);
+        }
+        for (int i = 5; i < length; i++) {
+            header[i] = (byte) readBits(8);
+        }
+        long[] fields = mHeaderFields;
+        if (parseHeader(header, 0, length, fields) < 0) {
+            throw new IOException("Bad frame header at byte " + offset);
+        }
+        int blockSize = (int) fields[FIELD_BLOCK_SIZE];
+        int assignment = (int) fields[FIELD_ASSIGNMENT];
+        int channels = mChannels;
+        int bits = mBitsPerSample;
+        if (blockSize > out[0].length) {
+            throw new IOException("Block of " + blockSize + " too large at byte " + offset);
+        }
+
+        // Subframes; the side channel has one more bit
+        for (int c = 0; c < channels; c++) {
+            boolean side = assignment == LEFT_SIDE && c == 1 || assignment == RIGHT_SIDE && c == 0
+                    || assignment == MID_SIDE && c == 1;
+            decodeSubframe(out[c], blockSize, side ? bits + 1 : bits);
+        }
+
+        // Undo the stereo decorrelation
+        if (assignment == LEFT_SIDE) {
+            int[] left = out[0];
+            int[] right = out[1];
+            for (int i = 0; i < blockSize; i++) {
+                right[i] = left[i] - right[i];
+            }
+        } else if (assignment == RIGHT_SIDE) {
+            int[] left = out[0];
+            int[] right = out[1];
+            for (int i = 0; i < blockSize; i++) {
+                left[i] += right[i];
+            }
+        } else if (assignment == MID_SIDE) {
+            int[] left = out[0];
+            int[] right = out[1];
+            for (int i = 0; i < blockSize; i++) {
+                int side = right[i];
+                int mid = left[i] << 1 | (side & 1);
+                left[i] = (mid + side) >> 1;
+                right[i] = (mid - side) >> 1;
+            }
+        }
+
+        // Footer
+        alignToByte();
+        readBits(16);
+
+        mFrameOffset = offset;
+        mFrameSample = fields[FIELD_SAMPLE];
+        mNextSample = mFrameSample + blockSize;
+        return blockSize;
+    }
+
+    private void decodeSubframe(int[] out, int n, int bits) throws IOException {
+        if (readBits(1) != 0) {
+            throw new IOException("Bad subframe header");
+        }
+        int type = readBits(6);
+        int wasted = 0;
+        if (readBits(1) == 1) {
+            wasted = readUnary() + 1;
+            bits -= wasted;
+        }
+
+        if (type == SUBFRAME_CONSTANT) {
+            Arrays.fill(out, 0, n, readSigned(bits));
+        } else if (type == SUBFRAME_VERBATIM) {
+            for (int i = 0; i < n; i++) {
+                out[i] = readSigned(bits);
+            }
+        } else if (type >= SUBFRAME_FIXED && type <= SUBFRAME_FIXED + 4) {
+            int order = type - SUBFRAME_FIXED;
+            readWarmup(out, n, order, bits);
+            readResidual(out, n, order);
+            restoreFixed(out, n, order);
+        } else if (type >= SUBFRAME_LPC) {
+            int order = type - SUBFRAME_LPC + 1;
+            readWarmup(out, n, order, bits);
+            int precision = readBits(4) + 1;
+            int shift = readSigned(5);
+            if (precision == 16 || shift < 0) {
+                throw new IOException("Bad LPC precision or shift");
+            }
+            int[] coefs = mCoefs;
+            for (int j = 0; j < order; j++) {
+                coefs[j] = readSigned(precision);
+            }
+            readResidual(out, n, order);
+            restoreLpc(out, n, order, coefs, shift);
+        } else {
+            throw new IOException("Reserved subframe type " + type);
+        }
+
+        if (wasted > 0) {
+            for (int i = 0; i < n; i++) {
+                out[i] <<= wasted;
+            }
+        }
+    }
+
+    private void readWarmup(int[] out, int n, int order, int bits) throws IOException {
+        if (order > n) {
+            throw new IOException("Predictor order " + order + " over block of " + n);
+        }
+        for (int i = 0; i < order; i++) {
+            out[i] = readSigned(bits);
+        }
+    }
+
+    /**
+     * Read the Rice-coded residual into {@code out} after the warm-up samples.
+     */
+    private void readResidual(int[] out, int n, int order) throws IOException {
+        int method = readBits(2);
+        if (method > 1) {
+            throw new IOException("Reserved residual coding " + method);
+        }
+        int paramBits = method == 0 ? 4 : 5;
+        int escape = (1 << paramBits) - 1;
+        int partitionOrder = readBits(4);
+        int partitionSize = n >> partitionOrder;
+        if (partitionSize << partitionOrder != n || partitionSize < order) {
+            throw new IOException("Bad partition order " + partitionOrder);
+        }
+        int i = order;
+        for (int end = partitionSize; end <= n; end += partitionSize) {
+            int param = readBits(paramBits);
+            if (param == escape) {
+                int raw = readBits(5);
+                for (; i < end; i++) {
+                    out[i] = readSigned(raw);
+                }
+            } else {
+                for (; i < end; i++) {
+                    int q = readUnary();
+                    int v = param == 0 ? q : q << param | readBits(param);
+                    out[i] = (v >>> 1) ^ -(v & 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Turn the residual in {@code out} into samples, in place, with a fixed predictor.
+     */
+    private static void restoreFixed(int[] out, int n, int order) {
+        switch (order) {
+            case 1:
+                for (int i = 1; i < n; i++) {
+                    out[i] += out[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < n; i++) {
+                    out[i] += 2 * out[i - 1] - out[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < n; i++) {
+                    out[i] += 3 * (out[i - 1] - out[i - 2]) + out[i - 3];
+                }
+                break;
+            case 4:
+                for (int i = 4; i < n; i++) {
+                    out[i] += 4 * (out[i - 1] + out[i - 3]) - 6 * out[i - 2] - out[i - 4];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Turn the residual in {@code out} into samples, in place, with a linear predictor.
+     * Sums are kept in a long, as 24-bit samples times 15-bit coefficients overflow an int.
+     */
+    private static void restoreLpc(int[] out, int n, int order, int[] coefs, int shift) {
+        for (int i = order; i < n; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) coefs[j] * out[i - 1 - j];
+            }
+            out[i] += (int) (sum >> shift);
+        }
+    }
+
+    /**
+     * Move to the frame that holds a sample, so that it is the next one decoded: from the
+     * last seek point at or before the sample, reading on through frame headers alone,
+     * without decoding, to the frame.
+     *
+     * @return The first sample of the frame moved to; past the end, the total
+     * @throws IOException If the stream does not come from a {@link FileChannel}
+     */
+    public long seek(long sample) throws IOException {
+        if (mFile == null) {
+            throw new IOException("Stream not seekable");
+        }
+        if (mScanBuffer == null) {
+            mScanBuffer = new byte[BUFFER_SIZE];
+        }
+        SeekIndex index = mIndex;
+        int point = index.find(sample);
+        long[] fields = mHeaderFields;
+        long offset = scan(point < 0 ? 0 : index.getOffset(point),
+                point < 0 ? 0 : index.getSample(point), sample, 0, null, mScanBuffer, fields);
+        setPosition(mFirstFrame + offset);
+        mNextSample = fields[FIELD_SAMPLE];
+        return mNextSample;
+    }
+
+    /**
+     * Read through the whole stream for an index, of a point every so many samples. Reads
+     * frame headers alone, at about the speed of storage, and neither moves nor needs the
+     * stream's position, so it may run on another thread while this one decodes.
+     *
+     * @param interval The fewest samples between points; 0 for a point for every frame
+     * @throws IOException If the stream does not come from a {@link FileChannel}
+     */
+    public SeekIndex buildIndex(long interval) throws IOException {
+        if (mFile == null) {
+            throw new IOException("Stream not seekable");
+        }
+        Points points = new Points();
+        scan(0, 0, Long.MAX_VALUE, interval, points, new byte[BUFFER_SIZE], new long[3]);
+        return new SeekIndex(points.mmSamples, points.mmOffsets, points.mmCount);
+    }
+
+    /**
+     * Walk frame headers from a known frame to the frame holding {@code target}, looking
+     * for each header where the previous frame's says the next begins: a sync code, a
+     * valid header whose CRC matches, and the next sample number. A sync code that turns
+     * up inside a frame's audio passes none of those for long.
+     *
+     * @param offset   Offset from the first frame of a frame known to start
+     * @param sample   The first sample of that frame
+     * @param interval The fewest samples between the points added to {@code points}
+     * @param points   Receives the frames walked past, or null
+     * @param fields   Receives the header of the frame holding {@code target}
+     * @return The offset of the frame holding {@code target}, or of the end of the stream
+     */
+    private long scan(long offset, long sample, long target, long interval, Points points,
+                      byte[] buffer, long[] fields) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long base = mFirstFrame + offset;
+        int length = 0;
+        int i = 0;
+        boolean eof = false;
+        long nextPoint = sample;
+        while (true) {
+            if (length - i < MAX_HEADER && !eof) {
+                // Keep what is left of the buffer and read on after it
+                System.arraycopy(buffer, i, buffer, 0, length - i);
+                base += i;
+                length -= i;
+                i = 0;
+                byteBuffer.clear().position(length);
+                int n = mFile.read(byteBuffer, base + length);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    length += n;
+                }
+                continue;
+            }
+            if (i + 1 >= length) {
+                fields[FIELD_SAMPLE] = sample;
+                fields[FIELD_BLOCK_SIZE] = 0;
+                return base + i - mFirstFrame;
+            }
+            if (buffer[i] == (byte) 0xff && (buffer[i + 1] & 0xfe) == 0xf8) {
+                int header = parseHeader(buffer, i, length, fields);
+                if (header > 0 && fields[FIELD_SAMPLE] == sample) {
+                    if (target < sample + fields[FIELD_BLOCK_SIZE]) {
+                        return base + i - mFirstFrame;
+                    }
+                    if (points != null && sample >= nextPoint) {
+                        points.add(sample, base + i - mFirstFrame);
+                        nextPoint = sample + interval;
+                    }
+                    sample += fields[FIELD_BLOCK_SIZE];
+                    i += header;
+                    continue;
+                }
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Return the length of the frame header at {@code pos} from its first five bytes, or
+     * 0 if there are not five, or -1 if it is no frame header.
+     */
+    private static int headerLength(byte[] b, int pos, int end) {
+        if (end - pos < 5) {
+            return 0;
+        }
+        if (b[pos] != (byte) 0xff || (b[pos + 1] & 0xfe) != 0xf8) {
+            return -1;
+        }
+        int first = b[pos + 4] & 0xff;
+        int extra;
+        if (first < 0x80) {
+            extra = 0;
+        } else if (first < 0xc0 || first == 0xff) {
+            return -1;
+        } else {
+            extra = Integer.numberOfLeadingZeros(~first << 24) - 1;
+        }
+        // Sync, codes, the number, and the CRC
+        int length = 5 + extra + 1;
+        int sizeCode = (b[pos + 2] & 0xff) >>> 4;
+        int rateCode = b[pos + 2] & 0x0f;
+        length += sizeCode == 6 ? 1 : sizeCode == 7 ? 2 : 0;
+        length += rateCode == 12 ? 1 : rateCode == 13 || rateCode == 14 ? 2 : 0;
+        return length;
+    }
+
+    /**
+     * Parse the frame header at {@code pos} into {@code fields}, checking it against its
+     * CRC and the stream info.
+     *
+     * @return The length of the header, 0 if it runs past {@code end}, or -1 if it is no
+     * frame header of this stream
+     */
+    private int parseHeader(byte[] b, int pos, int end, long[] fields) {
+        int length = headerLength(b, pos, end);
+        if (length <= 0 || pos + length > end) {
+            return length;
+        }
+        int crc = 0;
+        for (int i = 0; i < length - 1; i++) {
+            crc = CRC8[crc ^ (b[pos + i] & 0xff)];
+        }
+        if (crc != (b[pos + length - 1] & 0xff)) {
+            return -1;
+        }
+
+        int b2 = b[pos + 2] & 0xff;
+        int b3 = b[pos + 3] & 0xff;
+        int assignment = b3 >>> 4;
+        int channels = assignment < LEFT_SIDE ? assignment + 1 : 2;
+        int sizeCode = (b3 >>> 1) & 7;
+        if (assignment > MID_SIDE || channels != mChannels || (b3 & 1) != 0
+                || sizeCode != 0 && SAMPLE_SIZES[sizeCode] != mBitsPerSample
+                || (b2 & 0x0f) == 15) {
+            return -1;
+        }
+
+        // The frame or sample number, coded like UTF-8
+        int i = pos + 4;
+        int first = b[i++] & 0xff;
+        int extra = first < 0x80 ? 0 : Integer.numberOfLeadingZeros(~first << 24) - 1;
+        long number = extra == 0 ? first : first & (0x3f >> extra);
+        for (int k = 0; k < extra; k++) {
+            int next = b[i++] & 0xff;
+            if ((next & 0xc0) != 0x80) {
+                return -1;
+            }
+            number = number << 6 | (next & 0x3f);
+        }
+
+        int blockSize;
+        int blockCode = b2 >>> 4;
+        if (blockCode == 1) {
+            blockSize = 192;
+        } else if (blockCode >= 2 && blockCode <= 5) {
+            blockSize = 576 << (blockCode - 2);
+        } else if (blockCode == 6) {
+            blockSize = (b[i] & 0xff) + 1;
+        } else if (blockCode == 7) {
+            blockSize = ((b[i] & 0xff) << 8 | (b[i + 1] & 0xff)) + 1;
+        } else if (blockCode >= 8) {
+            blockSize = 256 << (blockCode - 8);
+        } else {
+            return -1;
+        }
+        if (blockSize > mMaxBlockSize) {
+            return -1;
+        }
+
+        boolean variable = (b[pos + 1] & 1) != 0;
+        fields[FIELD_SAMPLE] = variable ? number : number * mMaxBlockSize;
+        fields[FIELD_BLOCK_SIZE] = blockSize;
+        fields[FIELD_ASSIGNMENT] = assignment;
+        return length;
+    }
+
+    /**
+     * Return the offset in the stream of the next byte to read. Only meaningful on a byte
+     * boundary.
+     */
+    private long position() {
+        return mBufferStart + mPos - (mBitCount >> 3);
+    }
+
+    private void setPosition(long position) throws IOException {
+        mFile.position(position);
+        mBufferStart = position;
+        mPos = 0;
+        mLimit = 0;
+        mBits = 0;
+        mBitCount = 0;
+        mEof = false;
+    }
+
+    /**
+     * Top up the accumulator to at least 57 bits, or as far as the stream goes.
+     */
+    private void fill() throws IOException {
+        while (mBitCount <= 56) {
+            if (mPos == mLimit && !readMore()) {
+                return;
+            }
+            mBits |= (mBuffer[mPos++] & 0xffL) << (56 - mBitCount);
+            mBitCount += 8;
+        }
+    }
+
+    private boolean readMore() throws IOException {
+        if (mEof) {
+            return false;
+        }
+        mByteBuffer.clear();
+        int n;
+        do {
+            n = mChannel.read(mByteBuffer);
+        } while (n == 0);
+        if (n < 0) {
+            mEof = true;
+            return false;
+        }
+        mBufferStart += mLimit;
+        mPos = 0;
+        mLimit = n;
+        return true;
+    }
+
+    /**
+     * Read an unsigned value of up to 32 bits.
+     */
+    private int readBits(int n) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        if (mBitCount < n) {
+            fill();
+            if (mBitCount < n) {
+                throw new EOFException();
+            }
+        }
+        int v = (int) (mBits >>> (64 - n));
+        mBits <<= n;
+        mBitCount -= n;
+        return v;
+    }
+
+    /**
+     * Read a two's complement value of up to 32 bits.
+     */
+    private int readSigned(int n) throws IOException {
+        return n == 0 ? 0 : readBits(n) << (32 - n) >> (32 - n);
+    }
+
+    private long readLong() throws IOException {
+        return (long) readBits(32) << 32 | (readBits(32) & 0xffffffffL);
+    }
+
+    /**
+     * Read the number of 0 bits up to the next 1 bit, and the 1 bit.
+     */
+    private int readUnary() throws IOException {
+        int q = 0;
+        while (true) {
+            if (mBitCount == 0) {
+                fill();
+                if (mBitCount == 0) {
+                    throw new EOFException();
+                }
+            }
+            int zeros = Long.numberOfLeadingZeros(mBits);
+            if (zeros < mBitCount) {
+                // Two shifts, as a shift by 64 would shift nothing
+                mBits <<= zeros;
+                mBits <<= 1;
+                mBitCount -= zeros + 1;
+                return q + zeros;
+            }
+            q += mBitCount;
+            mBits = 0;
+            mBitCount = 0;
+        }
+    }
+
+    private void alignToByte() {
+        int drop = mBitCount & 7;
+        mBits <<= drop;
+        mBitCount -= drop;
+    }
+
+    /**
+     * Skip whole bytes, from a byte boundary.
+     */
+    private void skip(long bytes) throws IOException {
+        while (bytes > 0 && mBitCount > 0) {
+            readBits(8);
+            bytes--;
+        }
+        int buffered = (int) Math.min(bytes, mLimit - mPos);
+        mPos += buffered;
+        bytes -= buffered;
+        if (bytes > 0 && mFile != null) {
+            setPosition(mBufferStart + mLimit + bytes);
+            return;
+        }
+        while (bytes > 0) {
+            if (!readMore()) {
+                throw new EOFException();
+            }
+            buffered = (int) Math.min(bytes, mLimit);
+            mPos = buffered;
+            bytes -= buffered;
+        }
+    }
+
+    /**
+     * Seek points as they are found, in arrays that grow.
+     */
+    private static class Points {
+        long[] mmSamples = new long[256];
+        long[] mmOffsets = new long[256];
+        int mmCount;
+
+        void add(long sample, long offset) {
+            if (mmCount == mmSamples.length) {
+                mmSamples = Arrays.copyOf(mmSamples, 2 * mmCount);
+                mmOffsets = Arrays.copyOf(mmOffsets, 2 * mmCount);
+            }
+            mmSamples[mmCount] = sample;
+            mmOffsets[mmCount] = offset;
+            mmCount++;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A {@link SeekablePcmSource} over a FLAC file, decoded a frame at a time as blocks are
+ * read. Samples wider than 16 bits are cut down to 16, and narrower ones widened; the
+ * stream itself stays lossless up to that point. Reads do not allocate.
+ * <p>
+ * A seek lands on the frame that holds the sample wanted, reading frame headers on from
+ * the nearest seek point before it. The points come from the file's own seek table when
+ * it has one with points every {@link #MAX_TABLE_GAP_MILLIS} or closer. Otherwise an
+ * index of a point every {@link #INDEX_INTERVAL_MILLIS} is built on a background thread
+ * when the source is opened, and saved, if given somewhere to save it, for the next time
+ * the file is opened. Seeks before the index is ready read on from the start.
+ */
+public class FlacSource implements SeekablePcmSource {
+    // Debugging
+    private static final String TAG = "FlacSource";
+
+    // The widest gap between seek points in a file's own table that makes it worth using
+    public static final int MAX_TABLE_GAP_MILLIS = 10000;
+
+    // Gap between the points of an index built for a file
+    public static final int INDEX_INTERVAL_MILLIS = 1000;
+
+    private final RandomAccessFile mFile;
+    private final FlacDecoder mDecoder;
+    private final PcmFormat mFormat;
+    private final int mShift;
+
+    // The frame last decoded, and how far into it reads have got
+    private final int[][] mFrame;
+    private int mFrameLength;
+    private int mFrameIndex;
+
+    private long mPosition;
+    private boolean mClosed;
+
+    /**
+     * Open a file, with no index saved for it.
+     *
+     * @throws IOException If the file cannot be read, or is not a FLAC stream the
+     *                     {@link FlacDecoder} supports
+     */
+    public FlacSource(File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Open a file, with the index saved for it if there is one.
+     *
+     * @param indexFile Where the file's seek index is kept, or null not to keep one
+     * @throws IOException If the file cannot be read, or is not a FLAC stream the
+     *                     {@link FlacDecoder} supports
+     */
+    public FlacSource(File file, File indexFile) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            mDecoder = new FlacDecoder(mFile.getChannel());
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mFormat = new PcmFormat(mDecoder.getSampleRate(), mDecoder.getChannels());
+        mShift = mDecoder.getBitsPerSample() - 16;
+        mFrame = new int[mDecoder.getChannels()][mDecoder.getMaxBlockSize()];
+
+        long maxGap = (long) mFormat.sampleRate * MAX_TABLE_GAP_MILLIS / 1000;
+        if (mDecoder.hasSeekTable()
+                && mDecoder.getIndex().getLargestGap(mDecoder.getTotalSamples()) <= maxGap) {
+            return;
+        }
+        SeekIndex index = indexFile != null ? SeekIndex.load(indexFile, file) : null;
+        if (index != null) {
+            mDecoder.setIndex(index);
+        } else {
+            startIndexing(file, indexFile);
+        }
+    }
+
+    private void startIndexing(final File file, final File indexFile) {
+        final long interval = (long) mFormat.sampleRate * INDEX_INTERVAL_MILLIS / 1000;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SeekIndex index;
+                try {
+                    index = mDecoder.buildIndex(interval);
+                } catch (IOException e) {
+                    // Closed before it was done, most likely
+                    return;
+                }
+                synchronized (FlacSource.this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    mDecoder.setIndex(index);
+                }
+                if (indexFile != null) {
+                    try {
+                        indexFile.getParentFile().mkdirs();
+                        index.save(indexFile, file);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Cannot save seek index", e);
+                    }
+                }
+            }
+        }, "SeekIndexBuilder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public PcmFormat getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public long getLengthFrames() {
+        return mDecoder.getTotalSamples();
+    }
+
+    @Override
+    public synchronized long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Move the read position to the frame that holds it, and decode that frame.
+     *
+     * @param position The sample frame to read next
+     */
+    @Override
+    public synchronized void seek(long position) throws IOException {
+        position = Math.max(0, position);
+        mDecoder.seek(position);
+        mFrameLength = 0;
+        mFrameIndex = 0;
+        while (true) {
+            int n = mDecoder.decodeFrame(mFrame);
+            if (n < 0) {
+                mPosition = position;
+                return;
+            }
+            long first = mDecoder.getFrameSample();
+            if (position < first + n) {
+                mFrameLength = n;
+                mFrameIndex = (int) Math.max(0, position - first);
+                mPosition = first + mFrameIndex;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fill the block from as many frames as it takes. Channels the block has no room for
+     * are skipped.
+     */
+    @Override
+    public synchronized int read(AudioBlock block) throws IOException {
+        int capacity = block.capacity();
+        int channels = Math.min(block.channels(), mFrame.length);
+        int frames = 0;
+        while (frames < capacity) {
+            if (mFrameIndex == mFrameLength) {
+                int n = mDecoder.decodeFrame(mFrame);
+                if (n < 0) {
+                    break;
+                }
+                mFrameLength = n;
+                mFrameIndex = 0;
+            }
+            int count = Math.min(capacity - frames, mFrameLength - mFrameIndex);
+            int shift = mShift;
+            for (int c = 0; c < channels; c++) {
+                int[] in = mFrame[c];
+                short[] out = block.samples[c];
+                if (shift >= 0) {
+                    for (int i = 0; i < count; i++) {
+                        out[frames + i] = (short) (in[mFrameIndex + i] >> shift);
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        out[frames + i] = (short) (in[mFrameIndex + i] << -shift);
+                    }
+                }
+            }
+            mFrameIndex += count;
+            frames += count;
+        }
+        if (frames == 0) {
+            return -1;
+        }
+        block.frames = frames;
+        block.position = mPosition;
+        mPosition += frames;
+        return frames;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mClosed = true;
+        mFile.close();
+    }
+}
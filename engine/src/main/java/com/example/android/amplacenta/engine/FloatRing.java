@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * A {@link ShortRing} for float samples, between stages that keep the headroom of a mix
+ * or a filter rather than clip to 16 bits at every hand-off.
+ *
+ * @see SpscRing
+ */
+public class FloatRing extends SpscRing {
+
+    private final float[] mItems;
+
+    /**
+     * @param capacity The least the ring must hold, rounded up to a power of two
+     */
+    public FloatRing(int capacity) {
+        super(capacity);
+        mItems = new float[mCapacity];
+    }
+
+    /**
+     * On the writing thread, copy in as many of {@code count} samples as there is room for.
+     *
+     * @return The samples written
+     */
+    public int write(float[] in, int offset, int count) {
+        int n = writable(count);
+        if (n > 0) {
+            int index = writeIndex();
+            int first = Math.min(n, mCapacity - index);
+            System.arraycopy(in, offset, mItems, index, first);
+            System.arraycopy(in, offset + first, mItems, 0, n - first);
+            commitWrite(n);
+        }
+        return n;
+    }
+
+    /**
+     * On the reading thread, copy out as many of {@code count} samples as are waiting.
+     *
+     * @return The samples read
+     */
+    public int read(float[] out, int offset, int count) {
+        int n = readable(count);
+        if (n > 0) {
+            int index = readIndex();
+            int first = Math.min(n, mCapacity - index);
+            System.arraycopy(mItems, index, out, offset, first);
+            System.arraycopy(mItems, 0, out, offset + first, n - first);
+            commitRead(n);
+        }
+        return n;
+    }
+}
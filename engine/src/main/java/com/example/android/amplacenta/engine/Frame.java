@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * One unit on the wire between a host and a guest. Frames are mutable and meant to be
+ * reused: a {@link FrameReader} fills the same frame over and over, and senders keep one
+ * frame per stream.
+ *
+ * <p>Wire format, big-endian, see {@link FrameWriter}:</p>
+ * <pre>
+ * type (1) | flags (1) | channel (2) | seq (4) | timestamp (8) | length (4) | data (length)
+ * </pre>
+ */
+public class Frame {
+
+    // Frame types
+    public static final int TYPE_TEXT = 1;    // chat message, UTF-8
+    public static final int TYPE_AUDIO = 2;   // one encoded block of one channel
+    public static final int TYPE_CONTROL = 3; // see Control
+
+    // Frame flags
+    public static final int FLAG_RETRANSMIT = 1; // audio sent again on a guest's request
+
+    public static final int HEADER_SIZE = 20;
+
+    // Largest payload a reader accepts
+    public static final int MAX_LENGTH = 64 * 1024;
+
+    public int type;
+    public int flags;
+    public int channel;
+    public int seq;
+
+    // For audio, the time the block should be played at, on the host's clock
+    public long timestamp;
+
+    public byte[] data;
+    public int length;
+
+    public Frame() {
+        this(1024);
+    }
+
+    public Frame(int capacity) {
+        data = new byte[capacity];
+    }
+
+    /**
+     * Set the header fields and clear the payload.
+     */
+    public Frame reset(int type, int channel, int seq, long timestamp) {
+        this.type = type;
+        this.flags = 0;
+        this.channel = channel;
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.length = 0;
+        return this;
+    }
+
+    /**
+     * Make sure the payload can hold at least {@code capacity} bytes. The current payload
+     * is not kept.
+     */
+    public void ensureCapacity(int capacity) {
+        if (data.length < capacity) {
+            data = new byte[Math.max(capacity, data.length * 2)];
+        }
+    }
+
+    /**
+     * Copy another frame, header and payload, into this one.
+     */
+    public void set(Frame other) {
+        reset(other.type, other.channel, other.seq, other.timestamp);
+        flags = other.flags;
+        ensureCapacity(other.length);
+        System.arraycopy(other.data, 0, data, 0, other.length);
+        length = other.length;
+    }
+
+    static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) (v >>> 32));
+        putInt(b, off + 4, (int) v);
+    }
+
+    static int getInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16
+                | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+    static long getLong(byte[] b, int off) {
+        return (long) getInt(b, off) << 32 | (getInt(b, off + 4) & 0xffffffffL);
+    }
+}
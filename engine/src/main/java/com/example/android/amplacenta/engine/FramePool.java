@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * A bounded stack of spare {@link Frame}s, so that code which cannot simply keep one frame
+ * per stream still does not allocate a frame per message. When the pool is empty a new
+ * frame is made, and frames released to a full pool are left to the garbage collector,
+ * so the pool never blocks. Safe to use from several threads.
+ */
+public class FramePool {
+
+    private final Frame[] mFrames;
+    private final int mFrameCapacity;
+    private int mCount;
+
+    /**
+     * @param size          The most spare frames kept
+     * @param frameCapacity The payload capacity of new frames
+     */
+    public FramePool(int size, int frameCapacity) {
+        mFrames = new Frame[size];
+        mFrameCapacity = frameCapacity;
+    }
+
+    /**
+     * Make new frames until the pool is full, so that the first ones acquired are not
+     * made on the spot.
+     */
+    public synchronized void fill() {
+        while (mCount < mFrames.length) {
+            mFrames[mCount++] = new Frame(mFrameCapacity);
+        }
+    }
+
+    /**
+     * Take a frame out of the pool. Its contents are undefined.
+     */
+    public Frame acquire() {
+        synchronized (this) {
+            if (mCount > 0) {
+                Frame frame = mFrames[--mCount];
+                mFrames[mCount] = null;
+                return frame;
+            }
+        }
+        return new Frame(mFrameCapacity);
+    }
+
+    /**
+     * Give a frame back. The caller must not touch it afterwards.
+     */
+    public synchronized void release(Frame frame) {
+        if (mCount < mFrames.length) {
+            mFrames[mCount++] = frame;
+        }
+    }
+
+    /**
+     * Return the number of spare frames currently held.
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads {@link Frame}s written by a {@link FrameWriter} from a stream.
+ */
+public class FrameReader {
+
+    private final InputStream mIn;
+    private final byte[] mHeader = new byte[Frame.HEADER_SIZE];
+
+    public FrameReader(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Read the next frame into {@code frame}, growing its payload if needed. This is a
+     * blocking call.
+     *
+     * @return The number of bytes read, header included
+     * @throws EOFException If the stream ended
+     */
+    public int read(Frame frame) throws IOException {
+        readFully(mHeader, Frame.HEADER_SIZE);
+        int length = readHeader(mHeader, frame);
+        frame.ensureCapacity(length);
+        readFully(frame.data, length);
+        frame.length = length;
+        return Frame.HEADER_SIZE + length;
+    }
+
+    /**
+     * Read a frame written by {@link FrameWriter#encode(Frame, byte[])} out of a datagram,
+     * growing the frame's payload if needed.
+     *
+     * @param buffer The datagram
+     * @param size   The length of the datagram
+     * @throws IOException If the datagram does not hold a whole frame
+     */
+    public static void decode(byte[] buffer, int size, Frame frame) throws IOException {
+        if (size < Frame.HEADER_SIZE) {
+            throw new IOException("Short datagram " + size);
+        }
+        int length = readHeader(buffer, frame);
+        if (Frame.HEADER_SIZE + length != size) {
+            throw new IOException("Bad frame length " + length);
+        }
+        frame.ensureCapacity(length);
+        System.arraycopy(buffer, Frame.HEADER_SIZE, frame.data, 0, length);
+        frame.length = length;
+    }
+
+    /**
+     * Fill in the header fields of a frame.
+     *
+     * @return The length of the payload that follows
+     */
+    private static int readHeader(byte[] b, Frame frame) throws IOException {
+        int length = Frame.getInt(b, 16);
+        if (length < 0 || length > Frame.MAX_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+        frame.type = b[0] & 0xff;
+        frame.flags = b[1] & 0xff;
+        frame.channel = (b[2] & 0xff) << 8 | (b[3] & 0xff);
+        frame.seq = Frame.getInt(b, 4);
+        frame.timestamp = Frame.getLong(b, 8);
+        return length;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int n = mIn.read(buffer, offset, length - offset);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            offset += n;
+        }
+    }
+}
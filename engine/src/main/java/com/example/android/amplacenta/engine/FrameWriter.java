@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes {@link Frame}s to a stream. Header and payload go out in a single write, from a
+ * buffer that is kept between calls, so writing does not allocate once the buffer has
+ * grown to the largest frame. Safe to use from several threads.
+ */
+public class FrameWriter {
+
+    private final OutputStream mOut;
+    private byte[] mBuffer = new byte[Frame.HEADER_SIZE + 1024];
+
+    public FrameWriter(OutputStream out) {
+        mOut = out;
+    }
+
+    /**
+     * Write one frame.
+     *
+     * @return The number of bytes written, header included
+     */
+    public synchronized int write(Frame frame) throws IOException {
+        int size = Frame.HEADER_SIZE + frame.length;
+        if (mBuffer.length < size) {
+            mBuffer = new byte[size];
+        }
+        encode(frame, mBuffer);
+        mOut.write(mBuffer, 0, size);
+        return size;
+    }
+
+    /**
+     * Write one frame, header and payload, to the start of a buffer, as it goes in a
+     * datagram.
+     *
+     * @param buffer At least {@link Frame#HEADER_SIZE} plus the payload long
+     * @return The number of bytes written
+     */
+    public static int encode(Frame frame, byte[] buffer) {
+        byte[] b = buffer;
+        b[0] = (byte) frame.type;
+        b[1] = (byte) frame.flags;
+        b[2] = (byte) (frame.channel >>> 8);
+        b[3] = (byte) frame.channel;
+        Frame.putInt(b, 4, frame.seq);
+        Frame.putLong(b, 8, frame.timestamp);
+        Frame.putInt(b, 16, frame.length);
+        System.arraycopy(frame.data, 0, b, Frame.HEADER_SIZE, frame.length);
+        return Frame.HEADER_SIZE + frame.length;
+    }
+}
@@ -0,0 +1,1275 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import com.example.android.amplacenta.engine.transport.Acceptor;
+import com.example.android.amplacenta.engine.transport.Connection;
+import com.example.android.amplacenta.engine.transport.MulticastGroup;
+import com.example.android.amplacenta.engine.transport.Transport;
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.Trace;
+import com.example.android.common.metrics.Counter;
+import com.example.android.common.metrics.Gauge;
+import com.example.android.common.metrics.Histogram;
+import com.example.android.common.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.net.NetworkInterface;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The guest side of a party: connects to one host over a {@link Transport}, keeps its
+ * clock in step with the host's, and plays the channel it is sent through a
+ * {@link JitterBuffer} into an {@link AudioSink}. Blocks missing from the stream are
+ * asked for again, as ranges in an ACK, while they can still be played. A guest can also
+ * relay the stream to guests of its own, see {@link #enableRelay}, and take its audio
+ * from a multicast group rather than its link when the host offers one, see
+ * {@link #enableMulticast}. It has a thread that listens for an incoming connection, a
+ * thread for connecting with a device, and while connected a pipeline of threads: a
+ * reader, and with multicast a second one reading the group, a decoder and a playout
+ * thread, which renders at the highest priority. The stages hand frames on through
+ * {@link RefRing}s and the jitter buffer and never wait for one another, so that a slow
+ * decode does not stop the connection being read, and the host held back.
+ */
+public class GuestSession {
+    // Debugging
+    private static final String TAG = "GuestSession";
+
+    // How often the clock is re-synced and playback reported to the host
+    private static final long PING_INTERVAL_NANOS = 1000000000L;
+    // ...and how often until the first round trip came back
+    private static final long FIRST_PING_INTERVAL_NANOS = 100000000L;
+
+    // Longest the playout thread sleeps at once, so that it notices format changes
+    private static final long IDLE_NANOS = 5000000L;
+
+    // Blocks the jitter buffer can hold
+    private static final int JITTER_CAPACITY = 64;
+
+    // Frames each reader can have waiting for the decoder
+    private static final int DECODE_QUEUE_FRAMES = 64;
+
+    // How far the credit limit moves before the host is told; a quarter of the buffer
+    private static final int CREDIT_STEP_BLOCKS = JITTER_CAPACITY / 4;
+
+    // Ranges of missing blocks asked for in one ACK
+    private static final int ACK_RANGES = 8;
+    // Least time to wait for a missing block before asking again; at least two round
+    // trips are waited once they are known
+    private static final long ACK_RETRY_NANOS = 30000000L;
+
+    // Names of the metrics kept in getMetrics(). Per-connection metrics are keyed by address.
+    public static final String METRIC_CONNECT_US = "guest.connect_us";
+    public static final String METRIC_CONNECT_FAILURES = "guest.connect_failures";
+    public static final String METRIC_CONNECTIONS = "guest.connections";
+    public static final String METRIC_SEND_US = "guest.send_us";
+    public static final String METRIC_SENT_BYTES = "guest.sent_bytes";
+    public static final String METRIC_SENT_FRAMES = "guest.sent_frames";
+    public static final String METRIC_RECEIVED_BYTES = "guest.received_bytes";
+    public static final String METRIC_RECEIVED_FRAMES = "guest.received_frames";
+    public static final String METRIC_RECEIVE_GAP_US = "guest.receive_gap_us";
+    public static final String METRIC_DECODE_US = "guest.decode_us";
+    // How long audio frames wait for the decoder, and those dropped as it fell behind
+    public static final String METRIC_DECODE_QUEUE_US = "guest.decode_queue_us";
+    public static final String METRIC_DECODE_OVERFLOWS = "guest.decode_overflows";
+    // How long before its play time each audio frame arrived; 0 if it was late
+    public static final String METRIC_LEAD_US = "guest.lead_us";
+    public static final String METRIC_RENDER_US = "guest.render_us";
+    // How long after its play time each block was rendered
+    public static final String METRIC_RENDER_LATE_US = "guest.render_late_us";
+    public static final String METRIC_JITTER_DEPTH_MS = "guest.jitter_depth_ms";
+    public static final String METRIC_DROPPED = "guest.dropped";
+    public static final String METRIC_CONCEALED = "guest.concealed";
+    // Missing blocks asked for again, counting retries, and those that came in time
+    public static final String METRIC_NACKED = "guest.nacked";
+    public static final String METRIC_RECOVERED = "guest.recovered";
+    // How long passing an audio frame on to the guests relayed to takes
+    public static final String METRIC_FORWARD_US = "guest.forward_us";
+
+    // Constants that indicate the current connection state
+    public static final int STATE_NONE = 0;       // we're doing nothing
+    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
+    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+
+    // Member fields
+    private final Transport mTransport;
+    private final Clock mClock;
+    private final AudioCodec mCodec;
+    private final AudioSink mSink;
+    private final SessionListener mListener;
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private volatile ThreadFactory mThreadFactory = Executors.defaultThreadFactory();
+    private final JitterBuffer mJitter = new JitterBuffer(JITTER_CAPACITY);
+    private final AckTracker mAcks = new AckTracker(JITTER_CAPACITY);
+    private final ClockSync mSync = new ClockSync();
+    private final FramePool mTextFrames = new FramePool(4, 1024);
+    private volatile CaptureWriter mCapture;
+    private AcceptThread mAcceptThread;
+    private ConnectThread mConnectThread;
+    private HostLink mHostLink;
+    private PlayoutThread mPlayoutThread;
+    private int mState;
+
+    // Sample rate announced by the host, 0 until it has sent a FORMAT
+    private volatile int mSampleRate;
+
+    // The channel to play and the depth in the relay tree, also from the FORMAT; -1 plays
+    // whatever comes, for a host that does not say
+    private volatile int mChannel = -1;
+    private volatile int mTier;
+
+    // Serves this guest's own guests once it is in sync with the host, see enableRelay()
+    private volatile HostSession mRelay;
+    private String mRelayAddress;
+    private Transport mRelayTransport;
+    private volatile boolean mRelaying;
+
+    // Multicast, see enableMulticast()
+    private boolean mMulticast;
+    private NetworkInterface mMulticastInterface;
+    private GroupReceiver mGroupReceiver;
+
+    public GuestSession(Transport transport, Clock clock, AudioCodec codec, AudioSink sink,
+                        SessionListener listener) {
+        mTransport = transport;
+        mClock = clock;
+        mCodec = codec;
+        mSink = sink;
+        mListener = listener;
+        mState = STATE_NONE;
+    }
+
+    /**
+     * Set the current state of the session
+     *
+     * @param state An integer defining the current connection state
+     */
+    private synchronized void setState(int state) {
+        Log.d(TAG, "setState() {} -> {}", mState, state);
+        mState = state;
+        mListener.onStateChanged(state);
+    }
+
+    /**
+     * Return the current connection state.
+     */
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Return the latency and throughput metrics of this session. Use
+     * {@link MetricsRegistry#snapshot()} to read them.
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Set where the session's threads come from, for instance to run them as virtual
+     * threads. Must be called before {@link #start()}.
+     */
+    public void setThreadFactory(ThreadFactory factory) {
+        mThreadFactory = factory;
+        HostSession relay = mRelay;
+        if (relay != null) {
+            relay.setThreadFactory(factory);
+        }
+    }
+
+    private void startThread(Runnable runnable) {
+        mThreadFactory.newThread(runnable).start();
+    }
+
+    public ClockSync getClockSync() {
+        return mSync;
+    }
+
+    public JitterBuffer getJitterBuffer() {
+        return mJitter;
+    }
+
+    /**
+     * Return how deep this guest is in the relay tree: 1 when connected to the party's
+     * host directly, 2 through one relay, and so on. 0 until the host has said.
+     */
+    public int getTier() {
+        return mTier;
+    }
+
+    /**
+     * Offer to relay the stream to up to {@code maxGuests} guests of this one, which the
+     * host redirects here once it is full. Once connected and in sync, this guest listens
+     * on {@code transport} and serves them with a {@link HostSession} that runs on the
+     * host's clock: frames are passed on with their timestamps untouched, and the guests
+     * below sync to the host through this one. Only the channels they play are asked of
+     * the host. Must be called before connecting.
+     *
+     * @param transport Where this guest's own guests connect
+     * @param address   This guest's address on {@code transport}, as they should dial it,
+     *                  or null for the one {@code transport} listens at, see
+     *                  {@link Transport#getListenAddress()}, or failing that the one the
+     *                  host sees this guest at
+     * @param maxGuests How many guests to serve before passing more on further down
+     */
+    public synchronized void enableRelay(Transport transport, String address, int maxGuests) {
+        HostSession relay = new HostSession(transport, new HostClock(), new RelayListener());
+        relay.setMaxDirectGuests(maxGuests);
+        relay.setThreadFactory(mThreadFactory);
+        mRelayAddress = address;
+        mRelayTransport = transport;
+        mRelay = relay;
+    }
+
+    /**
+     * Take the audio from the multicast group the host sends it to, if it does, instead of
+     * over the connection. Control messages, text and blocks asked for again still go
+     * over the connection. If the group cannot be joined the audio keeps coming over the
+     * connection. Must be called before connecting.
+     *
+     * @param networkInterface The interface to join the group on, or null for the
+     *                         system's default
+     */
+    public synchronized void enableMulticast(NetworkInterface networkInterface) {
+        mMulticast = true;
+        mMulticastInterface = networkInterface;
+    }
+
+    /**
+     * Return the session serving this guest's own guests, or null if it does not relay.
+     */
+    public HostSession getRelay() {
+        return mRelay;
+    }
+
+    /**
+     * Record every frame sent and received from now on, or stop recording if
+     * {@code capture} is null. Closing the capture is up to the caller.
+     */
+    public void setCapture(CaptureWriter capture) {
+        mCapture = capture;
+    }
+
+    /**
+     * Start the session in listening mode, dropping any current connection.
+     */
+    public synchronized void start() {
+        Log.d(TAG, "start");
+
+        // Cancel any thread attempting to make a connection
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+
+        // Cancel any thread currently running a connection
+        disconnect();
+
+        setState(STATE_LISTEN);
+
+        // Start the thread to listen for an incoming connection
+        if (mAcceptThread == null) {
+            mAcceptThread = new AcceptThread();
+            startThread(mAcceptThread);
+        }
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection to a host.
+     *
+     * @param address The transport-specific address of the host
+     */
+    public synchronized void connect(String address) {
+        Log.d(TAG, "connect to: {}", address);
+
+        // Cancel any thread attempting to make a connection
+        if (mState == STATE_CONNECTING) {
+            if (mConnectThread != null) {
+                mConnectThread.cancel();
+                mConnectThread = null;
+            }
+        }
+
+        // Cancel any thread currently running a connection
+        disconnect();
+
+        // Start the thread to connect with the given device
+        mConnectThread = new ConnectThread(address);
+        setState(STATE_CONNECTING);
+        startThread(mConnectThread);
+    }
+
+    /**
+     * Start the reader, decoder and playout threads to begin managing a connection.
+     *
+     * @param connection The connection on which the host was reached
+     */
+    private synchronized void connected(Connection connection) {
+        Log.d(TAG, "connected");
+
+        // Cancel the thread that completed the connection
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+
+        // Cancel any thread currently running a connection
+        disconnect();
+
+        // Cancel the accept thread because we only want to connect to one device
+        if (mAcceptThread != null) {
+            mAcceptThread.cancel();
+            mAcceptThread = null;
+        }
+
+        try {
+            mHostLink = new HostLink(connection);
+        } catch (IOException e) {
+            Log.e(TAG, "streams not created", e);
+            close(connection);
+            return;
+        }
+        mSync.reset();
+        mJitter.clear();
+        mAcks.clear();
+        mPlayoutThread = new PlayoutThread(mHostLink);
+        startThread(mHostLink.mmDecoder);
+        startThread(mHostLink);
+        startThread(mPlayoutThread);
+        mMetrics.counter(METRIC_CONNECTIONS).inc();
+
+        mListener.onConnected(connection.getRemoteName());
+        setState(STATE_CONNECTED);
+    }
+
+    /**
+     * Stop all threads
+     */
+    public synchronized void stop() {
+        Log.d(TAG, "stop");
+
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+
+        disconnect();
+
+        if (mAcceptThread != null) {
+            mAcceptThread.cancel();
+            mAcceptThread = null;
+        }
+
+        setState(STATE_NONE);
+    }
+
+    private void disconnect() {
+        if (mHostLink != null) {
+            mHostLink.cancel();
+            mHostLink = null;
+        }
+        if (mPlayoutThread != null) {
+            mPlayoutThread.cancel();
+            mPlayoutThread = null;
+        }
+        if (mGroupReceiver != null) {
+            mGroupReceiver.cancel();
+            mGroupReceiver = null;
+        }
+        if (mRelaying) {
+            mRelaying = false;
+            mRelay.stop();
+        }
+    }
+
+    /**
+     * Join the multicast group the host announced and tell the host, so that it stops
+     * sending audio over the connection.
+     */
+    private synchronized void joinGroup(HostLink link, String address) {
+        if (!mMulticast || mHostLink != link || mGroupReceiver != null) {
+            return;
+        }
+        MulticastGroup.Receiver receiver;
+        try {
+            receiver = new MulticastGroup(address, mMulticastInterface).join();
+        } catch (IOException e) {
+            Log.e(TAG, "multicast not available", e);
+            return;
+        }
+        Log.i(TAG, "joined {}", address);
+        mGroupReceiver = new GroupReceiver(link, receiver, address);
+        startThread(mGroupReceiver);
+        link.send(Control.multicast(new Frame(64), address));
+    }
+
+    /**
+     * Return the address this guest's own guests should dial, or "" for the host to use
+     * the one it sees this guest at.
+     */
+    private String getRelayAddress() {
+        String address = mRelayAddress;
+        if (address == null) {
+            address = mRelayTransport.getListenAddress();
+        }
+        return address != null ? address : "";
+    }
+
+    /**
+     * Start serving guests of this one, once in sync with the host so that they sync to
+     * the right time.
+     */
+    private synchronized void startRelay(HostLink link) {
+        if (mRelay != null && !mRelaying && mHostLink == link) {
+            mRelay.start();
+            Log.i(TAG, "relaying at {}", getRelayAddress());
+            mRelaying = true;
+        }
+    }
+
+    /**
+     * Send a chat message to the host.
+     *
+     * @param out The bytes to write
+     */
+    public void writeText(byte[] out) {
+        HostLink link;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+            link = mHostLink;
+        }
+        Frame frame = mTextFrames.acquire().reset(Frame.TYPE_TEXT, 0, 0, mClock.nanoTime());
+        frame.ensureCapacity(out.length);
+        System.arraycopy(out, 0, frame.data, 0, out.length);
+        frame.length = out.length;
+        boolean sent = link.send(frame);
+        mTextFrames.release(frame);
+        if (sent) {
+            mListener.onTextSent(out);
+        }
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the listener.
+     */
+    private void connectionFailed() {
+        mListener.onConnectionFailed();
+
+        // Start the session over to restart listening mode
+        start();
+    }
+
+    /**
+     * Indicate that the connection was lost and notify the listener.
+     */
+    private void connectionLost(HostLink lost) {
+        synchronized (this) {
+            if (mHostLink != lost) {
+                // Already replaced or stopped
+                return;
+            }
+        }
+        mListener.onConnectionLost(lost.mmName);
+
+        // Start the session over to restart listening mode
+        start();
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of connection failed", e);
+        }
+    }
+
+    /**
+     * This thread runs while listening for an incoming connection. It runs until a
+     * connection is accepted (or until cancelled).
+     */
+    private class AcceptThread implements Runnable {
+        private volatile Acceptor mmAcceptor;
+        private volatile boolean mmCancelled;
+
+        public void run() {
+            Log.d(TAG, "BEGIN mAcceptThread{}", this);
+            Thread.currentThread().setName("AcceptThread");
+
+            try {
+                mmAcceptor = mTransport.listen();
+            } catch (IOException e) {
+                Log.e(TAG, "listen() failed", e);
+                return;
+            }
+            if (mmCancelled) {
+                cancel();
+            }
+
+            // Listen for the host if we're not connected
+            while (mState != STATE_CONNECTED) {
+                Connection connection;
+                try {
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    connection = mmAcceptor.accept();
+                } catch (IOException e) {
+                    if (!mmCancelled) {
+                        Log.e(TAG, "accept() failed", e);
+                    }
+                    break;
+                }
+
+                synchronized (GuestSession.this) {
+                    switch (mState) {
+                        case STATE_LISTEN:
+                        case STATE_CONNECTING:
+                            // Situation normal. Start the connected threads.
+                            connected(connection);
+                            break;
+                        case STATE_NONE:
+                        case STATE_CONNECTED:
+                            // Either not ready or already connected. Terminate new connection.
+                            close(connection);
+                            break;
+                    }
+                }
+            }
+            Log.i(TAG, "END mAcceptThread");
+        }
+
+        public void cancel() {
+            Log.d(TAG, "cancel {}", this);
+            mmCancelled = true;
+            Acceptor acceptor = mmAcceptor;
+            if (acceptor != null) {
+                try {
+                    acceptor.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of server failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * This thread runs while attempting to make an outgoing connection
+     * with a device. It runs straight through; the connection either
+     * succeeds or fails.
+     */
+    private class ConnectThread implements Runnable {
+        private final String mmAddress;
+        private volatile boolean mmCancelled;
+
+        public ConnectThread(String address) {
+            mmAddress = address;
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mConnectThread");
+            Thread.currentThread().setName("ConnectThread");
+
+            long start = System.nanoTime();
+            Connection connection;
+            try {
+                // This is a blocking call and will only return on a
+                // successful connection or an exception
+                connection = mTransport.connect(mmAddress);
+                mMetrics.histogram(METRIC_CONNECT_US).record((System.nanoTime() - start) / 1000);
+            } catch (IOException e) {
+                mMetrics.counter(METRIC_CONNECT_FAILURES).inc();
+                if (!mmCancelled) {
+                    connectionFailed();
+                }
+                return;
+            }
+
+            synchronized (GuestSession.this) {
+                if (mmCancelled) {
+                    close(connection);
+                    return;
+                }
+                // Reset the ConnectThread because we're done
+                mConnectThread = null;
+                connected(connection);
+            }
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+        }
+    }
+
+    /**
+     * This thread reads everything the host sends: audio is passed on to the guests
+     * relayed to and queued for its {@link DecodeThread}, control messages are handled in
+     * place. Anything sent to the host is written directly from the caller's thread.
+     */
+    private class HostLink implements Runnable {
+        private final Connection mmConnection;
+        private final FrameReader mmReader;
+        private final FrameWriter mmWriter;
+        private final String mmName;
+        final DecodeThread mmDecoder = new DecodeThread();
+        private volatile boolean mmCancelled;
+
+        // This connection's metrics, looked up once
+        private final Histogram mmSendUs;
+        private final Counter mmSentBytes;
+        private final Counter mmSentFrames;
+        private final Counter mmReceivedBytes;
+        private final Counter mmReceivedFrames;
+        private final Histogram mmReceiveGapUs;
+        private final Histogram mmLeadUs;
+        private final Histogram mmForwardUs;
+
+        HostLink(Connection connection) throws IOException {
+            Log.d(TAG, "create HostLink");
+            mmConnection = connection;
+            mmReader = new FrameReader(connection.getInputStream());
+            mmWriter = new FrameWriter(connection.getOutputStream());
+            mmName = connection.getRemoteName();
+
+            String key = connection.getRemoteAddress();
+            mmSendUs = mMetrics.histogram(METRIC_SEND_US, key);
+            mmSentBytes = mMetrics.counter(METRIC_SENT_BYTES, key);
+            mmSentFrames = mMetrics.counter(METRIC_SENT_FRAMES, key);
+            mmReceivedBytes = mMetrics.counter(METRIC_RECEIVED_BYTES, key);
+            mmReceivedFrames = mMetrics.counter(METRIC_RECEIVED_FRAMES, key);
+            mmReceiveGapUs = mMetrics.histogram(METRIC_RECEIVE_GAP_US, key);
+            mmLeadUs = mMetrics.histogram(METRIC_LEAD_US);
+            mmForwardUs = mMetrics.histogram(METRIC_FORWARD_US);
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mHostLink");
+            Thread.currentThread().setName("HostLink");
+            Frame frame = new Frame();
+            long lastRead = 0;
+
+            // Keep reading while connected
+            while (!mmCancelled) {
+                try {
+                    int bytes = mmReader.read(frame);
+                    Trace.record(Trace.RECEIVE, frame.channel, frame.seq, bytes, frame.type);
+                    CaptureWriter capture = mCapture;
+                    if (capture != null) {
+                        capture.record(CaptureWriter.INBOUND, 0, mClock.nanoTime(), frame);
+                    }
+
+                    long now = System.nanoTime();
+                    if (lastRead != 0) {
+                        mmReceiveGapUs.record((now - lastRead) / 1000);
+                    }
+                    lastRead = now;
+                    mmReceivedBytes.add(bytes);
+                    mmReceivedFrames.inc();
+
+                    switch (frame.type) {
+                        case Frame.TYPE_AUDIO:
+                            receiveAudio(frame, mmDecoder.mmLinkInbox);
+                            break;
+                        case Frame.TYPE_CONTROL:
+                            onControl(frame);
+                            break;
+                        case Frame.TYPE_TEXT:
+                            mListener.onTextReceived(frame.data, frame.length);
+                            if (mRelaying) {
+                                mRelay.writeText(Arrays.copyOf(frame.data, frame.length));
+                            }
+                            break;
+                    }
+                } catch (IOException e) {
+                    if (!mmCancelled) {
+                        Log.e(TAG, "disconnected", e);
+                        connectionLost(this);
+                    }
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Take in one audio frame, from the connection or from the multicast group: pass
+         * it on if relaying and queue it to be played if it is this guest's channel.
+         *
+         * @param inbox The reading thread's way to the decoder
+         */
+        synchronized void receiveAudio(Frame frame, Inbox inbox) {
+            if (mRelaying) {
+                forward(frame);
+            }
+            int channel = mChannel;
+            if (channel < 0 || frame.channel == channel) {
+                if (mSync.isSynced()) {
+                    mmLeadUs.record((frame.timestamp - mSync.toHost(mClock.nanoTime())) / 1000);
+                }
+                mmDecoder.offer(frame, inbox);
+            }
+        }
+
+        /**
+         * Pass an audio frame on, as it is, to the guests this one relays to.
+         */
+        private void forward(Frame frame) {
+            long start = System.nanoTime();
+            if (mRelay.sendAudio(frame) > 0) {
+                mmForwardUs.record((System.nanoTime() - start) / 1000);
+            }
+        }
+
+        private void onControl(Frame frame) {
+            switch (Control.typeOf(frame)) {
+                case Control.PONG:
+                    mSync.onPong(Control.longAt(frame, 0), Control.longAt(frame, 1),
+                            mClock.nanoTime());
+                    if (mRelay != null && !mRelaying && mSync.isSynced()) {
+                        startRelay(this);
+                    }
+                    break;
+                case Control.FORMAT:
+                    int sampleRate = Control.intAt(frame, Control.FORMAT_SAMPLE_RATE);
+                    int blockFrames = Control.intAt(frame, Control.FORMAT_BLOCK_FRAMES);
+                    int channels = Control.intAt(frame, Control.FORMAT_CHANNELS, 1);
+                    int tier = Control.intAt(frame, Control.FORMAT_TIER, 1);
+                    if (Log.isLoggable(Log.INFO)) {
+                        Log.i(TAG, "format {}Hz, {} frames per block", sampleRate, blockFrames);
+                    }
+                    // The jitter buffer changes with the frames queued ahead of this one
+                    mmDecoder.offer(frame, mmDecoder.mmLinkInbox);
+                    mChannel = Control.intAt(frame, Control.FORMAT_CHANNEL, -1);
+                    mTier = tier;
+                    HostSession relay = mRelay;
+                    if (relay != null) {
+                        relay.setTier(tier);
+                        relay.setFormat(sampleRate, channels, blockFrames);
+                    }
+                    break;
+                case Control.REDIRECT:
+                    String address = Control.addressOf(frame);
+                    Log.i(TAG, "redirected to {}", address);
+                    connect(address);
+                    break;
+                case Control.MULTICAST:
+                    joinGroup(this, Control.addressOf(frame));
+                    break;
+            }
+        }
+
+        /**
+         * Write one frame to the host.
+         *
+         * @return false if the write failed
+         */
+        boolean send(Frame frame) {
+            try {
+                long start = System.nanoTime();
+                int bytes = mmWriter.write(frame);
+                mmSendUs.record((System.nanoTime() - start) / 1000);
+                mmSentBytes.add(bytes);
+                mmSentFrames.inc();
+                CaptureWriter capture = mCapture;
+                if (capture != null) {
+                    capture.record(CaptureWriter.OUTBOUND, 0, mClock.nanoTime(), frame);
+                }
+                return true;
+            } catch (IOException e) {
+                if (!mmCancelled) {
+                    Log.e(TAG, "Exception during write", e);
+                }
+                return false;
+            }
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            mmDecoder.cancel();
+            close(mmConnection);
+        }
+    }
+
+    /**
+     * This thread decodes the audio the readers queue into the jitter buffer, and changes
+     * the buffer's format between the frames of one format and the next. Each reader has
+     * an {@link Inbox} of its own, its rings taking one writer each; a reader that finds
+     * its inbox full drops the frame, which is then asked for again like any other lost
+     * one, rather than wait.
+     * <p>
+     * The thread parks once both inboxes are empty, saying so first, and a reader wakes
+     * it only if it has: one wake-up for each time the decoder catches up, however many
+     * frames were queued meanwhile, rather than one per frame.
+     */
+    private class DecodeThread implements Runnable {
+        final Inbox mmLinkInbox = new Inbox();
+        final Inbox mmGroupInbox = new Inbox();
+        // Set by the thread before it parks, and cleared by the reader that wakes it
+        private final AtomicBoolean mmWaiting = new AtomicBoolean();
+        private volatile Thread mmThread;
+        private volatile boolean mmCancelled;
+
+        private final Histogram mmQueueUs;
+        private final Histogram mmDecodeUs;
+        private final Counter mmOverflows;
+        private final Counter mmRecovered;
+
+        // Resent blocks that came in time to play, reported to the host
+        volatile int mmRecoveredCount;
+
+        DecodeThread() {
+            mmQueueUs = mMetrics.histogram(METRIC_DECODE_QUEUE_US);
+            mmDecodeUs = mMetrics.histogram(METRIC_DECODE_US);
+            mmOverflows = mMetrics.counter(METRIC_DECODE_OVERFLOWS);
+            mmRecovered = mMetrics.counter(METRIC_RECOVERED);
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mDecodeThread");
+            Thread.currentThread().setName("DecodeThread");
+            mmThread = Thread.currentThread();
+            while (!mmCancelled) {
+                drain(mmLinkInbox);
+                drain(mmGroupInbox);
+                // Said before looking again, so that a frame queued meanwhile either is
+                // seen here or wakes the park
+                mmWaiting.getAndSet(true);
+                if (isIdle()) {
+                    LockSupport.park(this);
+                }
+                mmWaiting.set(false);
+            }
+            Log.i(TAG, "END mDecodeThread");
+        }
+
+        /**
+         * On a reading thread, queue a copy of a frame, and wake the decoder if it is
+         * waiting for one.
+         */
+        void offer(Frame frame, Inbox inbox) {
+            Inbox.Slot slot = inbox.mmFree.poll();
+            if (slot == null) {
+                mmOverflows.inc();
+                return;
+            }
+            slot.mmFrame.set(frame);
+            slot.mmQueued = System.nanoTime();
+            inbox.mmFull.offer(slot);
+            if (frame.type == Frame.TYPE_AUDIO) {
+                Trace.record(Trace.QUEUE_DEPTH, frame.channel, frame.seq, inbox.mmFull.size(),
+                        Trace.QUEUE_DECODE);
+            }
+            if (mmWaiting.getAndSet(false)) {
+                LockSupport.unpark(mmThread);
+            }
+        }
+
+        /**
+         * Return true if no frame is queued.
+         */
+        private boolean isIdle() {
+            return mmLinkInbox.mmFull.isEmpty() && mmGroupInbox.mmFull.isEmpty();
+        }
+
+        /**
+         * Handle every frame waiting in an inbox.
+         */
+        private void drain(Inbox inbox) {
+            Inbox.Slot slot;
+            while ((slot = inbox.mmFull.poll()) != null) {
+                mmQueueUs.record((System.nanoTime() - slot.mmQueued) / 1000);
+                handle(slot.mmFrame);
+                inbox.mmFree.offer(slot);
+            }
+        }
+
+        private void handle(Frame frame) {
+            if (frame.type == Frame.TYPE_AUDIO) {
+                onAudio(frame);
+            } else {
+                onFormat(frame);
+            }
+        }
+
+        private void onAudio(Frame frame) {
+            long start = System.nanoTime();
+            boolean filled = mAcks.onReceived(frame.seq);
+            short[] samples = mJitter.claim(frame.seq, frame.timestamp);
+            if (samples != null) {
+                int count = mCodec.decode(frame.data, 0, frame.length, samples, 0);
+                mJitter.commit(frame.seq, count);
+                mmDecodeUs.record((System.nanoTime() - start) / 1000);
+                if (Trace.isEnabled()) {
+                    Trace.record(Trace.QUEUE_DEPTH, frame.channel, frame.seq,
+                            mJitter.getCapacity() - mJitter.getFreeBlocks(), Trace.QUEUE_JITTER);
+                }
+                if (filled && (frame.flags & Frame.FLAG_RETRANSMIT) != 0) {
+                    mmRecovered.inc();
+                    mmRecoveredCount++;
+                }
+            }
+        }
+
+        private void onFormat(Frame frame) {
+            int sampleRate = Control.intAt(frame, Control.FORMAT_SAMPLE_RATE);
+            mJitter.configure(sampleRate, Control.intAt(frame, Control.FORMAT_BLOCK_FRAMES));
+            mAcks.clear();
+            mSampleRate = sampleRate;
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            LockSupport.unpark(mmThread);
+        }
+    }
+
+    /**
+     * The frames a reader hands the {@link DecodeThread}: a fixed set of slots that go
+     * round between them, filled on one ring and back empty on the other.
+     */
+    private static class Inbox {
+        final RefRing<Slot> mmFull = new RefRing<Slot>(DECODE_QUEUE_FRAMES);
+        final RefRing<Slot> mmFree = new RefRing<Slot>(DECODE_QUEUE_FRAMES);
+
+        Inbox() {
+            for (int i = 0; i < DECODE_QUEUE_FRAMES; i++) {
+                mmFree.offer(new Slot());
+            }
+        }
+
+        /**
+         * A frame, and when it was queued.
+         */
+        static class Slot {
+            final Frame mmFrame = new Frame();
+            long mmQueued;
+        }
+    }
+
+    /**
+     * This thread reads the audio the host sends to the multicast group and hands it to
+     * the link as if it had come over the connection. It runs until the connection ends.
+     */
+    private class GroupReceiver implements Runnable {
+        private final HostLink mmLink;
+        private final MulticastGroup.Receiver mmReceiver;
+        private volatile boolean mmCancelled;
+
+        // The group's metrics, keyed by its address
+        private final Counter mmReceivedBytes;
+        private final Counter mmReceivedFrames;
+        private final Histogram mmReceiveGapUs;
+
+        GroupReceiver(HostLink link, MulticastGroup.Receiver receiver, String address) {
+            mmLink = link;
+            mmReceiver = receiver;
+            mmReceivedBytes = mMetrics.counter(METRIC_RECEIVED_BYTES, address);
+            mmReceivedFrames = mMetrics.counter(METRIC_RECEIVED_FRAMES, address);
+            mmReceiveGapUs = mMetrics.histogram(METRIC_RECEIVE_GAP_US, address);
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mGroupReceiver");
+            Thread.currentThread().setName("GroupReceiver");
+            byte[] buffer = new byte[MulticastGroup.MAX_DATAGRAM];
+            Frame frame = new Frame();
+            long lastRead = 0;
+
+            while (!mmCancelled) {
+                int size;
+                try {
+                    size = mmReceiver.receive(buffer);
+                } catch (IOException e) {
+                    if (!mmCancelled) {
+                        // The connection carries on; have the host send over it again
+                        Log.e(TAG, "multicast receive failed", e);
+                        mmLink.send(Control.multicast(frame, ""));
+                    }
+                    break;
+                }
+                try {
+                    FrameReader.decode(buffer, size, frame);
+                } catch (IOException e) {
+                    Log.w(TAG, "bad datagram", e);
+                    continue;
+                }
+                if (frame.type != Frame.TYPE_AUDIO) {
+                    continue;
+                }
+                Trace.record(Trace.RECEIVE, frame.channel, frame.seq, size, frame.type);
+                CaptureWriter capture = mCapture;
+                if (capture != null) {
+                    capture.record(CaptureWriter.INBOUND, CaptureWriter.STREAM_MULTICAST,
+                            mClock.nanoTime(), frame);
+                }
+
+                long now = System.nanoTime();
+                if (lastRead != 0) {
+                    mmReceiveGapUs.record((now - lastRead) / 1000);
+                }
+                lastRead = now;
+                mmReceivedBytes.add(size);
+                mmReceivedFrames.inc();
+                mmLink.receiveAudio(frame, mmLink.mmDecoder.mmGroupInbox);
+            }
+            mmReceiver.close();
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            mmReceiver.close();
+        }
+    }
+
+    /**
+     * This thread, at the highest priority, plays each block from the jitter buffer when
+     * it is due, grants the host credit for the room left in the buffer, asks for missing
+     * blocks that are not due yet, tells the host what this guest relays, and pings and
+     * reports to the host about once a second.
+     */
+    private class PlayoutThread implements Runnable {
+        private final HostLink mmLink;
+        private volatile boolean mmCancelled;
+
+        private final Histogram mmRenderUs;
+        private final Histogram mmRenderLateUs;
+        private final Gauge mmDepthMs;
+        private final Gauge mmDropped;
+        private final Gauge mmConcealed;
+        private final Counter mmNacked;
+
+        // The credit last sent to the host
+        private boolean mmCreditSent;
+        private boolean mmCreditIdle;
+        private int mmCreditLimit;
+
+        private final int[] mmRanges = new int[2 * ACK_RANGES];
+
+        // What was last said to the host about relaying
+        private int mmRelaySlots = -1;
+        private int mmRelayGuests;
+        private int mmRelayChannels;
+
+        PlayoutThread(HostLink link) {
+            mmLink = link;
+            mmRenderUs = mMetrics.histogram(METRIC_RENDER_US);
+            mmRenderLateUs = mMetrics.histogram(METRIC_RENDER_LATE_US);
+            mmDepthMs = mMetrics.gauge(METRIC_JITTER_DEPTH_MS);
+            mmDropped = mMetrics.gauge(METRIC_DROPPED);
+            mmConcealed = mMetrics.gauge(METRIC_CONCEALED);
+            mmNacked = mMetrics.counter(METRIC_NACKED);
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mPlayoutThread");
+            Thread.currentThread().setName("PlayoutThread");
+            // Sinks may raise it further, to the platform's audio priority, in open()
+            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+            Frame control = new Frame(128);
+            short[] buffer = new short[0];
+            int openRate = 0;
+            long nextPing = mClock.nanoTime();
+
+            try {
+                while (!mmCancelled) {
+                    long now = mClock.nanoTime();
+                    if (now - nextPing >= 0) {
+                        sendPingAndReport(control, now);
+                        nextPing = now + (mSync.isSynced()
+                                ? PING_INTERVAL_NANOS : FIRST_PING_INTERVAL_NANOS);
+                    }
+
+                    updateCredit(control, false);
+                    requestMissing(control, now);
+                    updateRelay(control, false);
+
+                    int sampleRate = mSampleRate;
+                    if (sampleRate != openRate) {
+                        mSink.open(sampleRate);
+                        openRate = sampleRate;
+                    }
+                    if (buffer.length < mJitter.getBlockFrames()) {
+                        buffer = new short[mJitter.getBlockFrames()];
+                    }
+
+                    if (openRate == 0 || !mSync.isSynced() || !mJitter.hasNext()) {
+                        mClock.sleep(IDLE_NANOS);
+                        continue;
+                    }
+                    long due = mJitter.nextPlayTime();
+                    long wait = mSync.toLocal(due) - now;
+                    if (wait > 0) {
+                        mClock.sleep(Math.min(wait, IDLE_NANOS));
+                        continue;
+                    }
+
+                    mmRenderLateUs.record(-wait / 1000);
+                    long start = System.nanoTime();
+                    int seq = mJitter.getNextSeq();
+                    int count = mJitter.poll(mSync.toHost(now), buffer);
+                    if (count > 0) {
+                        mSink.write(buffer, 0, count);
+                        mmRenderUs.record((System.nanoTime() - start) / 1000);
+                        // The play time on the recorder's clock rather than the session's
+                        Trace.record(Trace.PLAY, Math.max(mChannel, 0), seq, start + wait,
+                                count);
+                    }
+                    mmDepthMs.set(mJitter.getDepthMs());
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "playout interrupted");
+            }
+            if (openRate != 0) {
+                mSink.close();
+            }
+        }
+
+        private void sendPingAndReport(Frame control, long now) {
+            if (mSync.isSynced()) {
+                long offsetUs = mSync.getOffsetNanos() / 1000;
+                int dropped = mJitter.getDropped();
+                int concealed = mJitter.getConcealed();
+                mmDropped.set(dropped);
+                mmConcealed.set(concealed);
+                mmLink.send(Control.report(control, mJitter.getDepthMs(),
+                        (int) Math.max(Integer.MIN_VALUE + 1, Math.min(Integer.MAX_VALUE, offsetUs)),
+                        mSync.getDriftPpm(), dropped, concealed, mmLink.mmDecoder.mmRecoveredCount));
+            }
+            mmLink.send(Control.ping(control, now));
+            updateCredit(control, true);
+            updateRelay(control, true);
+        }
+
+        /**
+         * Tell the host how far ahead it may send: when playout starts or stops, when the
+         * limit has moved on by {@link #CREDIT_STEP_BLOCKS}, and whenever forced.
+         */
+        private void updateCredit(Frame control, boolean force) {
+            boolean idle = !mJitter.hasNext();
+            int limit = mJitter.getCreditLimit();
+            if (!force && mmCreditSent && idle == mmCreditIdle
+                    && (idle || limit - mmCreditLimit < CREDIT_STEP_BLOCKS)) {
+                return;
+            }
+            mmLink.send(Control.credit(control, limit, mJitter.getFreeBlocks(),
+                    mJitter.getDepthMs(), idle));
+            mmCreditSent = true;
+            mmCreditIdle = idle;
+            mmCreditLimit = limit;
+        }
+
+        /**
+         * Ask the host again for the blocks missing from the stream that have not been
+         * played past yet, giving each one time to come before asking again.
+         */
+        private void requestMissing(Frame control, long now) {
+            if (!mJitter.hasNext()) {
+                // Nothing is playing, so nothing missing is worth having
+                mAcks.clear();
+                return;
+            }
+            mAcks.expire(mJitter.getNextSeq());
+            if (!mAcks.hasMissing()) {
+                return;
+            }
+            long retry = Math.max(ACK_RETRY_NANOS, 2 * mSync.getRttNanos());
+            int ranges = mAcks.collect(now, retry, mmRanges);
+            if (ranges > 0) {
+                mmLink.send(Control.ack(control, mAcks.getCumulative(), mmRanges, ranges));
+                for (int r = 0; r < ranges; r++) {
+                    mmNacked.add(mmRanges[2 * r + 1]);
+                }
+            }
+        }
+
+        /**
+         * Tell the host how many more guests this one takes, how many it relays to and
+         * which channels they play, whenever that changes and whenever forced.
+         */
+        private void updateRelay(Frame control, boolean force) {
+            HostSession relay = mRelay;
+            if (relay == null || !mRelaying) {
+                return;
+            }
+            int slots = relay.freeSlots();
+            int guests = relay.numGuests();
+            int channels = relay.subtreeChannels();
+            if (!force && slots == mmRelaySlots && guests == mmRelayGuests
+                    && channels == mmRelayChannels) {
+                return;
+            }
+            mmLink.send(Control.relay(control, slots, guests, channels, getRelayAddress()));
+            mmRelaySlots = slots;
+            mmRelayGuests = guests;
+            mmRelayChannels = channels;
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+        }
+    }
+
+    /**
+     * This guest's clock in the host's time, for the session it relays with, so that the
+     * guests below answer to the host's time too.
+     */
+    private class HostClock implements Clock {
+        @Override
+        public long nanoTime() {
+            return mSync.toHost(mClock.nanoTime());
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            mClock.sleep(nanos);
+        }
+    }
+
+    /**
+     * Hears from the session this guest relays with. The relaying goes on out of sight of
+     * the user, so none of it reaches the app's listener.
+     */
+    private static class RelayListener implements SessionListener {
+        @Override
+        public void onStateChanged(int state) {
+        }
+
+        @Override
+        public void onConnected(String name) {
+            Log.i(TAG, "relaying to {}", name);
+        }
+
+        @Override
+        public void onConnectionFailed() {
+        }
+
+        @Override
+        public void onConnectionLost(String name) {
+            Log.i(TAG, "no longer relaying to {}", name);
+        }
+
+        @Override
+        public void onTextReceived(byte[] buffer, int length) {
+        }
+
+        @Override
+        public void onTextSent(byte[] buffer) {
+        }
+    }
+}
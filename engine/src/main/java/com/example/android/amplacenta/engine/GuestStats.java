@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * A point-in-time view of one connected guest, as seen by the {@link HostSession}.
+ * Instances are mutable and meant to be reused: the host copies its live numbers into
+ * them on every snapshot so that polling the stats does not allocate.
+ */
+public class GuestStats {
+
+    // Marks a value the host has not measured (or the guest has not reported) yet
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    public String name;
+    public String address;
+
+    // Speaker role of the guest; the index it was assigned when it joined
+    public int role = UNKNOWN;
+
+    // Relay tree: the guest's depth below the party's host, 1 when connected to it
+    // directly, and the number of guests it relays to, 0 unless it is a relay
+    public int tier = UNKNOWN;
+    public int relayedGuests = UNKNOWN;
+
+    // Whether the guest gets its audio from the multicast group rather than its own link
+    public boolean multicast;
+
+    // Link quality
+    public int rssi = UNKNOWN;                // dBm
+    public int throughput = UNKNOWN;          // bytes per second sent to the guest
+    public int queuedFrames = UNKNOWN;        // frames waiting on the host to be sent
+    public int retransmittedFrames = UNKNOWN; // audio frames sent again on request
+
+    // Playback state reported by the guest
+    public int bufferDepthMs = UNKNOWN;
+    public int clockOffsetUs = UNKNOWN;
+    public int driftPpm = UNKNOWN;
+    public int droppedFrames = UNKNOWN;
+    public int concealedFrames = UNKNOWN;
+    // Frames sent again that arrived in time to play
+    public int recoveredFrames = UNKNOWN;
+
+    /**
+     * Copy every field of another snapshot into this one.
+     *
+     * @param other The snapshot to copy from
+     */
+    public void set(GuestStats other) {
+        name = other.name;
+        address = other.address;
+        role = other.role;
+        tier = other.tier;
+        relayedGuests = other.relayedGuests;
+        multicast = other.multicast;
+        rssi = other.rssi;
+        throughput = other.throughput;
+        queuedFrames = other.queuedFrames;
+        retransmittedFrames = other.retransmittedFrames;
+        bufferDepthMs = other.bufferDepthMs;
+        clockOffsetUs = other.clockOffsetUs;
+        driftPpm = other.driftPpm;
+        droppedFrames = other.droppedFrames;
+        concealedFrames = other.concealedFrames;
+        recoveredFrames = other.recoveredFrames;
+    }
+}
@@ -0,0 +1,1228 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import com.example.android.amplacenta.engine.transport.Acceptor;
+import com.example.android.amplacenta.engine.transport.Connection;
+import com.example.android.amplacenta.engine.transport.MulticastGroup;
+import com.example.android.amplacenta.engine.transport.Transport;
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.Trace;
+import com.example.android.common.metrics.Counter;
+import com.example.android.common.metrics.Histogram;
+import com.example.android.common.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The host side of a party: accepts guests over a {@link Transport}, assigns each one a
+ * speaker role, fans audio out to them and keeps their stats. It has a thread that
+ * listens for incoming connections, a thread for connecting with a device, and a reader
+ * and a sender thread per guest. Audio is queued per guest and sent as far ahead as the
+ * guest has granted credit for, so a slow guest neither holds up the others nor makes
+ * its queue grow. The last audio frames sent to each guest are kept for a while, so that
+ * those the guest reports missing can be sent again ahead of the queue while they can
+ * still be played.
+ * <p>
+ * Past {@link #setMaxDirectGuests(int)} guests, newcomers are redirected to guests that
+ * offered to relay, which pass the stream on to them unchanged, timestamps included (see
+ * {@link GuestSession#enableRelay}). A relay is sent the channels of every guest below it
+ * as well as its own. Relays fill up before anyone is sent further down, so the tree
+ * stays shallow.
+ * <p>
+ * On a shared network the audio can go out once for everyone instead, to a
+ * {@link MulticastGroup} (see {@link #setMulticast(MulticastGroup)}). Each guest is told
+ * the group over its link; once it says it has joined, its link carries only control
+ * messages, text and the blocks it asks for again, which are kept for the whole group.
+ * Guests that cannot join keep getting their audio over their link. Nothing in here
+ * depends on Android, so the whole session can run on a plain JVM.
+ */
+public class HostSession {
+    // Debugging
+    private static final String TAG = "HostSession";
+
+    // Window over which per-guest link throughput is averaged
+    private static final long THROUGHPUT_WINDOW_NANOS = 1000000000L;
+
+    // Frames queued per guest; beyond that the oldest audio is dropped, since it would
+    // arrive too late to play anyway
+    private static final int QUEUE_FRAMES = 32;
+
+    // Audio frames kept per guest after sending, in case it asks for them again; a power
+    // of two
+    private static final int HISTORY_FRAMES = 64;
+
+    // A frame is only sent again if it is due at least this far ahead, time to get there
+    private static final long RETRANSMIT_MARGIN_NANOS = 20000000L;
+
+    // Names of the metrics kept in getMetrics(). Per-guest metrics are keyed by address.
+    public static final String METRIC_CONNECT_US = "host.connect_us";
+    public static final String METRIC_CONNECT_FAILURES = "host.connect_failures";
+    public static final String METRIC_CONNECTIONS = "host.connections";
+    public static final String METRIC_SEND_US = "host.send_us";
+    public static final String METRIC_SENT_BYTES = "host.sent_bytes";
+    public static final String METRIC_SENT_FRAMES = "host.sent_frames";
+    public static final String METRIC_RECEIVED_BYTES = "host.received_bytes";
+    public static final String METRIC_RECEIVED_FRAMES = "host.received_frames";
+    public static final String METRIC_RECEIVE_GAP_US = "host.receive_gap_us";
+    public static final String METRIC_QUEUE_DROPPED = "host.queue_dropped";
+    // Audio frames a guest asked for again, those sent, and those no longer kept or too
+    // close to their play time to be worth it
+    public static final String METRIC_RETRANSMIT_REQUESTED = "host.retransmit_requested";
+    public static final String METRIC_RETRANSMITTED = "host.retransmitted";
+    public static final String METRIC_RETRANSMIT_MISSED = "host.retransmit_missed";
+    // Guests sent on to a relay
+    public static final String METRIC_REDIRECTS = "host.redirects";
+
+    // Constants that indicate the current connection state
+    public static final int STATE_NONE = 0;       // we're doing nothing
+    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
+    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
+
+    // Member fields
+    private final Transport mTransport;
+    private final Clock mClock;
+    private final SessionListener mListener;
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private volatile ThreadFactory mThreadFactory = Executors.defaultThreadFactory();
+    private AcceptThread mAcceptThread;
+    private ConnectThread mConnectThread;
+    private int mState;
+
+    // Connected guests, replaced as a whole whenever one joins or leaves so that
+    // senders can iterate it without locking
+    private volatile GuestLink[] mLinks = new GuestLink[0];
+
+    // Format announced to every guest, see setFormat()
+    private int mSampleRate;
+    private int mChannels = 1;
+    private int mBlockFrames;
+
+    // Relay tree, see setMaxDirectGuests() and setTier()
+    private int mMaxDirect = Integer.MAX_VALUE;
+    private int mTier;
+
+    // Multicast, see setMulticast(); the sender is open while the session runs
+    private MulticastGroup mGroup;
+    private volatile GroupSender mGroupSender;
+
+    private volatile CaptureWriter mCapture;
+
+    private final Frame mTextFrame = new Frame();
+    private int mTextSeq;
+
+    public HostSession(Transport transport, Clock clock, SessionListener listener) {
+        mTransport = transport;
+        mClock = clock;
+        mListener = listener;
+        mState = STATE_NONE;
+    }
+
+    /**
+     * Set the current state of the session
+     *
+     * @param state An integer defining the current connection state
+     */
+    private synchronized void setState(int state) {
+        Log.d(TAG, "setState() {} -> {}", mState, state);
+        mState = state;
+        mListener.onStateChanged(state);
+    }
+
+    /**
+     * Return the current connection state.
+     */
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Return the latency and throughput metrics of this session. Use
+     * {@link MetricsRegistry#snapshot()} to read them.
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Set where the session's threads come from, for instance to run them as virtual
+     * threads. Must be called before {@link #start()}.
+     */
+    public void setThreadFactory(ThreadFactory factory) {
+        mThreadFactory = factory;
+    }
+
+    private void startThread(Runnable runnable) {
+        mThreadFactory.newThread(runnable).start();
+    }
+
+    public Clock getClock() {
+        return mClock;
+    }
+
+    /**
+     * Record every frame sent to and received from any guest from now on, or stop recording if
+     * {@code capture} is null. Closing the capture is up to the caller.
+     */
+    public void setCapture(CaptureWriter capture) {
+        mCapture = capture;
+    }
+
+    /**
+     * Set how many guests this session serves itself. Any more are redirected to a guest
+     * that relays, if there is one. Unlimited by default.
+     */
+    public synchronized void setMaxDirectGuests(int max) {
+        mMaxDirect = max;
+    }
+
+    /**
+     * Set how deep this session is in a relay tree: 0, the default, for the party's host,
+     * and a relay's tier for the session it serves its guests with.
+     */
+    public synchronized void setTier(int tier) {
+        mTier = tier;
+    }
+
+    /**
+     * Send the audio to a multicast group, to the guests that manage to join it, rather
+     * than to each guest over its link. Must be called before {@link #start()}.
+     *
+     * @param group The group, or null to send over the links only, the default
+     */
+    public synchronized void setMulticast(MulticastGroup group) {
+        mGroup = group;
+    }
+
+    /**
+     * Start hosting the party: drop every guest and begin listening for new ones.
+     */
+    public synchronized void start() {
+        Log.d(TAG, "start");
+
+        // Cancel any thread attempting to make a connection
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+
+        // Cancel any thread currently running a connection
+        for (GuestLink link : mLinks) {
+            link.cancel();
+        }
+        mLinks = new GuestLink[0];
+
+        if (mGroup != null && mGroupSender == null) {
+            try {
+                mGroupSender = new GroupSender(mGroup);
+                mGroupSender.setChannels(mChannels);
+            } catch (IOException e) {
+                Log.e(TAG, "multicast not available", e);
+            }
+        }
+
+        setState(STATE_LISTEN);
+
+        // Start the thread to listen for incoming connections
+        if (mAcceptThread == null) {
+            mAcceptThread = new AcceptThread();
+            startThread(mAcceptThread);
+        }
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection to a remote device.
+     *
+     * @param address The transport-specific address of the device
+     * @return false if another connection attempt is still in progress
+     */
+    public synchronized boolean connect(String address) {
+        Log.d(TAG, "connect to: {}", address);
+
+        if (mState == STATE_CONNECTING) {
+            return false;
+        }
+
+        // Start the thread to connect with the given device
+        mConnectThread = new ConnectThread(address);
+        setState(STATE_CONNECTING);
+        startThread(mConnectThread);
+        return true;
+    }
+
+    /**
+     * Start a GuestLink to begin managing a new guest.
+     *
+     * @param connection The connection on which the guest was reached
+     */
+    private synchronized void connected(Connection connection) {
+        Log.d(TAG, "connected");
+
+        GuestLink relay = numDirect() >= mMaxDirect ? pickRelay() : null;
+        GuestLink link;
+        try {
+            link = relay == null ? new GuestLink(connection, nextRole(), null)
+                    : new GuestLink(connection, GuestStats.UNKNOWN, relay.mmRelayAddress);
+        } catch (IOException e) {
+            Log.e(TAG, "streams not created", e);
+            close(connection);
+            return;
+        }
+
+        GuestLink[] links = new GuestLink[mLinks.length + 1];
+        System.arraycopy(mLinks, 0, links, 0, mLinks.length);
+        links[mLinks.length] = link;
+        mLinks = links;
+        mMetrics.counter(METRIC_CONNECTIONS).inc();
+        startThread(link);
+
+        if (relay != null) {
+            // The guest hangs up once it has read this, and the link goes quietly. Count it
+            // against the relay until the relay says otherwise.
+            Log.i(TAG, "redirecting {} to {}", connection.getRemoteName(), link.mmRedirect);
+            mMetrics.counter(METRIC_REDIRECTS).inc();
+            relay.mmRelaySlots = Math.max(0, relay.mmRelaySlots - 1);
+            relay.mmRelayGuests++;
+            link.send(Control.redirect(new Frame(64), link.mmRedirect));
+        } else {
+            startThread(new SendThread(link));
+            // Tell the new guest what it is about to receive
+            if (mSampleRate != 0) {
+                sendFormat(link);
+            }
+            if (mGroupSender != null) {
+                link.enqueue(Control.multicast(new Frame(64), mGroupSender.mmAddress));
+            }
+            mListener.onConnected(connection.getRemoteName());
+        }
+        setState(STATE_LISTEN);
+    }
+
+    /**
+     * Queue a FORMAT for one guest, which names the guest's own channel and tier.
+     */
+    private void sendFormat(GuestLink link) {
+        link.enqueue(Control.format(new Frame(32), mSampleRate, mBlockFrames, mChannels,
+                link.mmStats.role % mChannels, mTier + 1));
+    }
+
+    /**
+     * Return the number of guests served directly, not counting those being redirected.
+     */
+    private int numDirect() {
+        int direct = 0;
+        for (GuestLink link : mLinks) {
+            if (link.mmRedirect == null) {
+                direct++;
+            }
+        }
+        return direct;
+    }
+
+    /**
+     * Return the relay to send a new guest to: the one with the most free slots, or if all
+     * are full the one relaying to the fewest guests, which passes the guest on down the
+     * same way. Null if no guest relays.
+     */
+    private GuestLink pickRelay() {
+        GuestLink best = null;
+        for (GuestLink link : mLinks) {
+            if (link.mmRelayAddress == null || link.mmRedirect != null) {
+                continue;
+            }
+            if (best == null || link.mmRelaySlots > best.mmRelaySlots
+                    || link.mmRelaySlots == best.mmRelaySlots
+                    && link.mmRelayGuests < best.mmRelayGuests) {
+                best = link;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Return the lowest role not taken by a connected guest.
+     */
+    private int nextRole() {
+        int role = 0;
+        for (boolean taken = true; taken; ) {
+            taken = false;
+            for (GuestLink link : mLinks) {
+                if (link.mmStats.role == role) {
+                    taken = true;
+                    role++;
+                    break;
+                }
+            }
+        }
+        return role;
+    }
+
+    /**
+     * Stop all threads
+     */
+    public synchronized void stop() {
+        Log.d(TAG, "stop");
+
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+
+        for (GuestLink link : mLinks) {
+            link.cancel();
+        }
+        mLinks = new GuestLink[0];
+
+        if (mAcceptThread != null) {
+            mAcceptThread.cancel();
+            mAcceptThread = null;
+        }
+
+        if (mGroupSender != null) {
+            mGroupSender.close();
+            mGroupSender = null;
+        }
+
+        setState(STATE_NONE);
+    }
+
+    /**
+     * Send a chat message to every guest.
+     *
+     * @param out The bytes to write
+     */
+    public void writeText(byte[] out) {
+        GuestLink[] links = mLinks;
+        if (links.length == 0) {
+            return;
+        }
+        synchronized (mTextFrame) {
+            Frame frame = mTextFrame.reset(Frame.TYPE_TEXT, 0, mTextSeq++, mClock.nanoTime());
+            frame.ensureCapacity(out.length);
+            System.arraycopy(out, 0, frame.data, 0, out.length);
+            frame.length = out.length;
+            for (GuestLink link : links) {
+                link.send(frame);
+            }
+        }
+        mListener.onTextSent(out);
+    }
+
+    /**
+     * Announce the format of the audio about to be sent, to every guest present and to
+     * those joining later.
+     *
+     * @param sampleRate  Sample rate of every channel
+     * @param channels    Number of channels; guests are assigned channel role % channels
+     * @param blockFrames Sample frames per audio frame
+     */
+    public synchronized void setFormat(int sampleRate, int channels, int blockFrames) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mBlockFrames = blockFrames;
+        if (mGroupSender != null) {
+            mGroupSender.setChannels(channels);
+        }
+        // Queued behind the audio already on its way, so that none of it gets played
+        // in the new format
+        for (GuestLink link : mLinks) {
+            if (link.mmRedirect == null) {
+                sendFormat(link);
+            }
+        }
+    }
+
+    /**
+     * Queue one encoded block of one channel for the guests playing that channel, and the
+     * relays with such guests below them. If any of them joined the multicast group, the
+     * block is also sent to the group, once, from the caller's thread. Does not allocate.
+     *
+     * @param frame An audio frame whose {@link Frame#channel} is set; it is copied
+     * @return The number of guests the frame was queued or sent for
+     */
+    public int sendAudio(Frame frame) {
+        GuestLink[] links = mLinks;
+        int channels = mChannels;
+        int sent = 0;
+        boolean grouped = false;
+        for (GuestLink link : links) {
+            if (link.wants(frame.channel, channels)) {
+                if (link.mmMulticast) {
+                    grouped = true;
+                } else {
+                    link.enqueue(frame);
+                }
+                sent++;
+            }
+        }
+        GroupSender group = mGroupSender;
+        if (grouped && group != null) {
+            group.send(frame);
+        }
+        return sent;
+    }
+
+    public int numConnections() {
+        return mLinks.length;
+    }
+
+    /**
+     * Return the number of guests reached through this session: those it serves and
+     * those its relays pass the stream on to, down the whole tree.
+     */
+    public int numGuests() {
+        int guests = 0;
+        for (GuestLink link : mLinks) {
+            if (link.mmRedirect == null) {
+                guests += 1 + link.mmRelayGuests;
+            }
+        }
+        return guests;
+    }
+
+    /**
+     * Return how many more guests this session serves before redirecting them.
+     */
+    public synchronized int freeSlots() {
+        return Math.max(0, mMaxDirect - numDirect());
+    }
+
+    /**
+     * Return the bit mask of the channels played by the guests reached through this
+     * session, see {@link #numGuests()}.
+     */
+    public int subtreeChannels() {
+        int channels = mChannels;
+        int mask = 0;
+        for (GuestLink link : mLinks) {
+            if (link.mmRedirect == null) {
+                mask |= 1 << (link.mmStats.role % channels) | link.mmRelayChannels;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Copy the current stats of every connected guest into {@code out}. Entries already in
+     * the list are reused and new ones are only added when more guests have joined, so the
+     * UI can poll this repeatedly without allocating.
+     *
+     * @param out The list to fill, grown as needed
+     * @return The number of guests written to the head of {@code out}
+     */
+    public int snapshotGuestStats(List<GuestStats> out) {
+        GuestLink[] links = mLinks;
+        long now = mClock.nanoTime();
+        for (int i = 0; i < links.length; i++) {
+            if (out.size() <= i) {
+                out.add(new GuestStats());
+            }
+            links[i].snapshot(out.get(i), now);
+        }
+        return links.length;
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the listener.
+     */
+    private void connectionFailed() {
+        mListener.onConnectionFailed();
+        setState(STATE_LISTEN);
+    }
+
+    /**
+     * Indicate that a guest's connection was lost: drop that guest only and notify the
+     * listener. The others keep playing.
+     */
+    private void connectionLost(GuestLink lost) {
+        synchronized (this) {
+            int index = -1;
+            for (int i = 0; i < mLinks.length; i++) {
+                if (mLinks[i] == lost) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                // Already dropped by start() or stop()
+                return;
+            }
+            GuestLink[] links = new GuestLink[mLinks.length - 1];
+            System.arraycopy(mLinks, 0, links, 0, index);
+            System.arraycopy(mLinks, index + 1, links, index, links.length - index);
+            mLinks = links;
+            // A guest that reconnected before its old link went shares the old link's
+            // metrics, which are keyed by address; they stay until its last link goes
+            boolean shared = false;
+            for (GuestLink link : links) {
+                shared |= link.mmKey.equals(lost.mmKey);
+            }
+            if (!shared) {
+                mMetrics.remove(lost.mmKey);
+            }
+        }
+        lost.cancel();
+        if (lost.mmRedirect == null) {
+            mListener.onConnectionLost(lost.mmStats.name);
+        }
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of connection failed", e);
+        }
+    }
+
+    /**
+     * This thread runs while listening for incoming connections. It runs until the
+     * session is stopped.
+     */
+    private class AcceptThread implements Runnable {
+        private volatile Acceptor mmAcceptor;
+        private volatile boolean mmCancelled;
+
+        public void run() {
+            Log.d(TAG, "BEGIN mAcceptThread{}", this);
+            Thread.currentThread().setName("AcceptThread");
+
+            try {
+                mmAcceptor = mTransport.listen();
+            } catch (IOException e) {
+                Log.e(TAG, "listen() failed", e);
+                return;
+            }
+            if (mmCancelled) {
+                cancel();
+            }
+
+            while (true) {
+                Connection connection;
+                try {
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    connection = mmAcceptor.accept();
+                } catch (IOException e) {
+                    if (!mmCancelled) {
+                        Log.e(TAG, "accept() failed", e);
+                    }
+                    break;
+                }
+
+                synchronized (HostSession.this) {
+                    if (mState == STATE_NONE) {
+                        close(connection);
+                        break;
+                    }
+                    connected(connection);
+                }
+            }
+            Log.i(TAG, "END mAcceptThread");
+        }
+
+        public void cancel() {
+            Log.d(TAG, "cancel {}", this);
+            mmCancelled = true;
+            Acceptor acceptor = mmAcceptor;
+            if (acceptor != null) {
+                try {
+                    acceptor.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of server failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * This thread runs while attempting to make an outgoing connection
+     * with a device. It runs straight through; the connection either
+     * succeeds or fails.
+     */
+    private class ConnectThread implements Runnable {
+        private final String mmAddress;
+        private volatile boolean mmCancelled;
+
+        public ConnectThread(String address) {
+            mmAddress = address;
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mConnectThread");
+            Thread.currentThread().setName("ConnectThread");
+
+            long start = System.nanoTime();
+            Connection connection;
+            try {
+                // This is a blocking call and will only return on a
+                // successful connection or an exception
+                connection = mTransport.connect(mmAddress);
+                mMetrics.histogram(METRIC_CONNECT_US).record((System.nanoTime() - start) / 1000);
+            } catch (IOException e) {
+                mMetrics.counter(METRIC_CONNECT_FAILURES).inc();
+                if (!mmCancelled) {
+                    connectionFailed();
+                }
+                return;
+            }
+
+            synchronized (HostSession.this) {
+                if (mmCancelled) {
+                    close(connection);
+                    return;
+                }
+                // Reset the ConnectThread because we're done
+                mConnectThread = null;
+                connected(connection);
+            }
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+        }
+    }
+
+    /**
+     * One connected guest. The thread reads what the guest sends. Audio and format changes
+     * go through the queue, drained by the guest's {@link SendThread}; chat and control
+     * replies are written directly from the caller's thread. Audio frames sent go on to
+     * the history ring, from which the guest's ACKs are answered. A guest being redirected
+     * gets no SendThread and nothing but the REDIRECT.
+     */
+    private class GuestLink implements Runnable {
+        private final Connection mmConnection;
+        private final FrameReader mmReader;
+        private final FrameWriter mmWriter;
+        private final String mmKey;
+        private volatile boolean mmCancelled;
+
+        // Where the guest was sent instead of being served here, or null
+        private final String mmRedirect;
+
+        // What the guest last said about relaying, see Control.RELAY; no address unless it
+        // relays
+        private volatile String mmRelayAddress;
+        private volatile int mmRelaySlots;
+        private volatile int mmRelayGuests;
+        private volatile int mmRelayChannels;
+
+        // Whether the guest joined the multicast group and gets its audio from there
+        private volatile boolean mmMulticast;
+
+        // Live numbers for this guest, copied out by snapshot()
+        private final GuestStats mmStats = new GuestStats();
+        private volatile long mmBytesSent;
+        private long mmWindowBytes;
+        private long mmWindowStart;
+
+        // Frames waiting for the SendThread, a ring guarded by itself. Frames come from
+        // mmFrames and go back to it once written, or once out of the history. The pool is
+        // filled up front, with enough frames to fill both the queue and the history.
+        private final Frame[] mmQueue = new Frame[QUEUE_FRAMES];
+        private final FramePool mmFrames = new FramePool(QUEUE_FRAMES + HISTORY_FRAMES + 2, 1024);
+        private int mmHead;
+        private int mmCount;
+
+        // The guest's last credit, guarded by mmQueue; no limit until it has sent one
+        private boolean mmLimited;
+        private int mmCreditLimit;
+
+        // Audio frames already sent, by seq, guarded by itself
+        private final Frame[] mmHistory = new Frame[HISTORY_FRAMES];
+        private volatile int mmRetransmits;
+
+        // This guest's metrics, looked up once
+        private final Histogram mmSendUs;
+        private final Counter mmSentBytes;
+        private final Counter mmSentFrames;
+        private final Counter mmReceivedBytes;
+        private final Counter mmReceivedFrames;
+        private final Histogram mmReceiveGapUs;
+        private final Counter mmQueueDropped;
+        private final Counter mmRetransmitRequested;
+        private final Counter mmRetransmitted;
+        private final Counter mmRetransmitMissed;
+
+        GuestLink(Connection connection, int role, String redirect) throws IOException {
+            Log.d(TAG, "create GuestLink");
+            mmConnection = connection;
+            mmRedirect = redirect;
+            mmReader = new FrameReader(connection.getInputStream());
+            mmWriter = new FrameWriter(connection.getOutputStream());
+            mmStats.name = connection.getRemoteName();
+            mmStats.address = connection.getRemoteAddress();
+            mmStats.role = role;
+            mmStats.tier = mTier + 1;
+            mmStats.relayedGuests = 0;
+            if (redirect == null) {
+                mmFrames.fill();
+            }
+
+            mmKey = connection.getRemoteAddress();
+            mmSendUs = mMetrics.histogram(METRIC_SEND_US, mmKey);
+            mmSentBytes = mMetrics.counter(METRIC_SENT_BYTES, mmKey);
+            mmSentFrames = mMetrics.counter(METRIC_SENT_FRAMES, mmKey);
+            mmReceivedBytes = mMetrics.counter(METRIC_RECEIVED_BYTES, mmKey);
+            mmReceivedFrames = mMetrics.counter(METRIC_RECEIVED_FRAMES, mmKey);
+            mmReceiveGapUs = mMetrics.histogram(METRIC_RECEIVE_GAP_US, mmKey);
+            mmQueueDropped = mMetrics.counter(METRIC_QUEUE_DROPPED, mmKey);
+            mmRetransmitRequested = mMetrics.counter(METRIC_RETRANSMIT_REQUESTED, mmKey);
+            mmRetransmitted = mMetrics.counter(METRIC_RETRANSMITTED, mmKey);
+            mmRetransmitMissed = mMetrics.counter(METRIC_RETRANSMIT_MISSED, mmKey);
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN GuestLink {}", mmStats.address);
+            Thread.currentThread().setName(mmRedirect == null
+                    ? "GuestLink-" + mmStats.role : "GuestRedirect");
+            Frame frame = new Frame();
+            Frame reply = new Frame(32);
+            long lastRead = 0;
+
+            while (!mmCancelled) {
+                try {
+                    int bytes = mmReader.read(frame);
+                    CaptureWriter capture = mCapture;
+                    if (capture != null) {
+                        capture.record(CaptureWriter.INBOUND, mmStats.role, mClock.nanoTime(),
+                                frame);
+                    }
+
+                    long now = System.nanoTime();
+                    if (lastRead != 0) {
+                        mmReceiveGapUs.record((now - lastRead) / 1000);
+                    }
+                    lastRead = now;
+                    mmReceivedBytes.add(bytes);
+                    mmReceivedFrames.inc();
+
+                    switch (frame.type) {
+                        case Frame.TYPE_TEXT:
+                            mListener.onTextReceived(frame.data, frame.length);
+                            break;
+                        case Frame.TYPE_CONTROL:
+                            onControl(frame, reply);
+                            break;
+                    }
+                } catch (IOException e) {
+                    if (!mmCancelled) {
+                        Log.e(TAG, "disconnected", e);
+                        connectionLost(this);
+                    }
+                    break;
+                }
+            }
+        }
+
+        private void onControl(Frame frame, Frame reply) {
+            switch (Control.typeOf(frame)) {
+                case Control.PING:
+                    send(Control.pong(reply, Control.longAt(frame, 0), mClock.nanoTime()));
+                    break;
+                case Control.REPORT:
+                    synchronized (mmStats) {
+                        mmStats.bufferDepthMs = Control.intAt(frame, Control.REPORT_BUFFER_MS);
+                        mmStats.clockOffsetUs = Control.intAt(frame, Control.REPORT_OFFSET_US);
+                        mmStats.driftPpm = Control.intAt(frame, Control.REPORT_DRIFT_PPM);
+                        mmStats.droppedFrames = Control.intAt(frame, Control.REPORT_DROPPED);
+                        mmStats.concealedFrames = Control.intAt(frame, Control.REPORT_CONCEALED);
+                        mmStats.recoveredFrames = Control.intAt(frame, Control.REPORT_RECOVERED);
+                    }
+                    break;
+                case Control.CREDIT:
+                    synchronized (mmQueue) {
+                        mmLimited = Control.intAt(frame, Control.CREDIT_IDLE) == 0;
+                        mmCreditLimit = Control.intAt(frame, Control.CREDIT_LIMIT_SEQ);
+                        mmQueue.notifyAll();
+                    }
+                    synchronized (mmStats) {
+                        mmStats.bufferDepthMs = Control.intAt(frame, Control.CREDIT_BUFFER_MS);
+                    }
+                    break;
+                case Control.ACK:
+                    retransmit(frame);
+                    break;
+                case Control.RELAY:
+                    mmRelaySlots = Control.intAt(frame, Control.RELAY_FREE_SLOTS);
+                    mmRelayGuests = Control.intAt(frame, Control.RELAY_GUESTS);
+                    mmRelayChannels = Control.intAt(frame, Control.RELAY_CHANNELS);
+                    String address = Control.addressOf(frame);
+                    mmRelayAddress = address.isEmpty() ? mmStats.address : address;
+                    synchronized (mmStats) {
+                        mmStats.relayedGuests = mmRelayGuests;
+                    }
+                    break;
+                case Control.MULTICAST:
+                    GroupSender group = mGroupSender;
+                    boolean joined = group != null
+                            && group.mmAddress.equals(Control.addressOf(frame));
+                    Log.i(TAG, joined ? "{} joined the group" : "{} left the group",
+                            mmStats.name);
+                    mmMulticast = joined;
+                    synchronized (mmStats) {
+                        mmStats.multicast = joined;
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Return whether this guest plays the channel, or relays to a guest that does.
+         */
+        boolean wants(int channel, int channels) {
+            return mmRedirect == null && (mmStats.role % channels == channel
+                    || channel < 32 && (mmRelayChannels >>> channel & 1) != 0);
+        }
+
+        /**
+         * Queue again, ahead of everything else, the audio frames an ACK reports missing
+         * that are still in the history and not about to be due. Ranges are walked
+         * backwards so that the frames end up in order at the head of the queue.
+         */
+        private void retransmit(Frame ack) {
+            long deadline = mClock.nanoTime() + RETRANSMIT_MARGIN_NANOS;
+            for (int r = Control.ackRangeCount(ack) - 1; r >= 0; r--) {
+                int first = Control.ackRangeStart(ack, r);
+                int length = Math.min(Control.ackRangeLength(ack, r), HISTORY_FRAMES);
+                for (int seq = first + length - 1; seq - first >= 0; seq--) {
+                    mmRetransmitRequested.inc();
+                    Frame copy = resend(seq, deadline);
+                    if (copy != null && pushFront(copy)) {
+                        mmRetransmitted.inc();
+                        mmRetransmits++;
+                    } else {
+                        mmRetransmitMissed.inc();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Return a copy of an audio frame sent to this guest, marked as sent again, from
+         * the multicast group's history if that is where the guest gets its audio and
+         * from its own otherwise.
+         *
+         * @return The copy, or null if the frame is no longer kept or is due before
+         * {@code deadline}
+         */
+        private Frame resend(int seq, long deadline) {
+            Frame copy = mmFrames.acquire();
+            boolean found;
+            GroupSender group = mGroupSender;
+            if (mmMulticast && group != null) {
+                found = group.copy(seq, mmStats.role % mChannels, deadline, copy);
+            } else {
+                synchronized (mmHistory) {
+                    Frame sent = mmHistory[seq & (HISTORY_FRAMES - 1)];
+                    found = sent != null && sent.seq == seq && sent.timestamp - deadline > 0;
+                    if (found) {
+                        copy.set(sent);
+                    }
+                }
+            }
+            if (!found) {
+                mmFrames.release(copy);
+                return null;
+            }
+            copy.flags |= Frame.FLAG_RETRANSMIT;
+            return copy;
+        }
+
+        /**
+         * Queue a copy of a frame for the SendThread. If the queue is full the oldest
+         * audio frame in it makes room, or failing that this one is dropped.
+         */
+        void enqueue(Frame frame) {
+            Frame copy = mmFrames.acquire();
+            copy.set(frame);
+            Frame dropped = null;
+            int depth;
+            synchronized (mmQueue) {
+                if (mmCount == QUEUE_FRAMES) {
+                    if (mmQueue[mmHead].type == Frame.TYPE_AUDIO) {
+                        dropped = mmQueue[mmHead];
+                        mmQueue[mmHead] = null;
+                        mmHead = (mmHead + 1) % QUEUE_FRAMES;
+                        mmCount--;
+                    } else {
+                        dropped = copy;
+                        copy = null;
+                    }
+                }
+                if (copy != null) {
+                    mmQueue[(mmHead + mmCount) % QUEUE_FRAMES] = copy;
+                    mmCount++;
+                    mmQueue.notifyAll();
+                }
+                depth = mmCount;
+            }
+            if (frame.type == Frame.TYPE_AUDIO) {
+                Trace.record(Trace.QUEUE_DEPTH, frame.channel, frame.seq, depth, Trace.QUEUE_LINK);
+            }
+            if (dropped != null) {
+                mmQueueDropped.inc();
+                mmFrames.release(dropped);
+            }
+        }
+
+        /**
+         * Put a frame at the head of the queue, unless the queue is full.
+         *
+         * @return false if the frame was not queued and went back to the pool
+         */
+        private boolean pushFront(Frame frame) {
+            synchronized (mmQueue) {
+                if (mmCount < QUEUE_FRAMES) {
+                    mmHead = (mmHead + QUEUE_FRAMES - 1) % QUEUE_FRAMES;
+                    mmQueue[mmHead] = frame;
+                    mmCount++;
+                    mmQueue.notifyAll();
+                    return true;
+                }
+            }
+            mmFrames.release(frame);
+            return false;
+        }
+
+        /**
+         * Wait for the next queued frame the guest has credit for and take it out of the
+         * queue. Give it back with {@link #recycle(Frame)} once written.
+         *
+         * @return The frame, or null once the link is cancelled
+         */
+        Frame take() throws InterruptedException {
+            synchronized (mmQueue) {
+                while (!mmCancelled && (mmCount == 0 || !hasCredit(mmQueue[mmHead]))) {
+                    mmQueue.wait();
+                }
+                if (mmCancelled) {
+                    return null;
+                }
+                Frame frame = mmQueue[mmHead];
+                mmQueue[mmHead] = null;
+                mmHead = (mmHead + 1) % QUEUE_FRAMES;
+                mmCount--;
+                return frame;
+            }
+        }
+
+        private boolean hasCredit(Frame frame) {
+            return !mmLimited || frame.type != Frame.TYPE_AUDIO || frame.seq - mmCreditLimit <= 0;
+        }
+
+        /**
+         * Take back a frame returned by {@link #take()} once it is written. Audio goes on to
+         * the history, and the frame it replaces back to the pool.
+         */
+        void recycle(Frame frame) {
+            if (frame.type == Frame.TYPE_AUDIO && (frame.flags & Frame.FLAG_RETRANSMIT) == 0) {
+                synchronized (mmHistory) {
+                    int i = frame.seq & (HISTORY_FRAMES - 1);
+                    Frame replaced = mmHistory[i];
+                    mmHistory[i] = frame;
+                    frame = replaced;
+                }
+            }
+            if (frame != null) {
+                mmFrames.release(frame);
+            }
+        }
+
+        /**
+         * Write one frame to the guest.
+         */
+        void send(Frame frame) {
+            try {
+                long start = System.nanoTime();
+                int bytes = mmWriter.write(frame);
+                mmSendUs.record((System.nanoTime() - start) / 1000);
+                mmSentBytes.add(bytes);
+                mmSentFrames.inc();
+                mmBytesSent += bytes;
+                Trace.record(Trace.SEND, frame.channel, frame.seq, bytes, frame.type);
+                CaptureWriter capture = mCapture;
+                if (capture != null) {
+                    capture.record(CaptureWriter.OUTBOUND, mmStats.role, mClock.nanoTime(),
+                            frame);
+                }
+            } catch (IOException e) {
+                // The reader notices the broken connection and drops the guest
+                if (!mmCancelled) {
+                    Log.e(TAG, "Exception during write", e);
+                }
+            }
+        }
+
+        /**
+         * Copy this guest's stats into {@code out}, refreshing the throughput figure once
+         * per {@link #THROUGHPUT_WINDOW_NANOS}.
+         */
+        void snapshot(GuestStats out, long now) {
+            synchronized (mmStats) {
+                long sent = mmBytesSent;
+                if (mmWindowStart == 0) {
+                    mmWindowStart = now;
+                    mmWindowBytes = sent;
+                } else if (now - mmWindowStart >= THROUGHPUT_WINDOW_NANOS) {
+                    mmStats.throughput = (int) ((sent - mmWindowBytes) * 1000000000L
+                            / (now - mmWindowStart));
+                    mmWindowStart = now;
+                    mmWindowBytes = sent;
+                }
+                out.set(mmStats);
+            }
+            out.retransmittedFrames = mmRetransmits;
+            synchronized (mmQueue) {
+                out.queuedFrames = mmCount;
+            }
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            synchronized (mmQueue) {
+                mmQueue.notifyAll();
+            }
+            close(mmConnection);
+        }
+    }
+
+    /**
+     * This thread writes a guest's queued frames as the guest's credit allows. It runs
+     * until the guest's link is cancelled.
+     */
+    private class SendThread implements Runnable {
+        private final GuestLink mmLink;
+
+        SendThread(GuestLink link) {
+            mmLink = link;
+        }
+
+        public void run() {
+            Thread.currentThread().setName("GuestSender-" + mmLink.mmStats.role);
+            try {
+                Frame frame;
+                while ((frame = mmLink.take()) != null) {
+                    mmLink.send(frame);
+                    mmLink.recycle(frame);
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "sending interrupted");
+            }
+        }
+    }
+
+    /**
+     * Sends audio to the multicast group, once for every guest that joined it, and keeps
+     * the last blocks of each channel so that any of them can be sent again to a guest
+     * that missed them.
+     */
+    private class GroupSender {
+        private final String mmAddress;
+        private final MulticastGroup.Sender mmSender;
+        private byte[] mmBuffer = new byte[Frame.HEADER_SIZE + 1024];
+
+        // HISTORY_FRAMES blocks per channel, indexed by seq then channel
+        private Frame[] mmHistory = new Frame[0];
+        private int mmChannels;
+
+        // The group's metrics, keyed by its address
+        private final Histogram mmSendUs;
+        private final Counter mmSentBytes;
+        private final Counter mmSentFrames;
+
+        GroupSender(MulticastGroup group) throws IOException {
+            mmAddress = group.getAddress();
+            mmSender = group.openSender();
+            mmSendUs = mMetrics.histogram(METRIC_SEND_US, mmAddress);
+            mmSentBytes = mMetrics.counter(METRIC_SENT_BYTES, mmAddress);
+            mmSentFrames = mMetrics.counter(METRIC_SENT_FRAMES, mmAddress);
+        }
+
+        /**
+         * Make room in the history for every channel of a new format.
+         */
+        synchronized void setChannels(int channels) {
+            if (channels != mmChannels) {
+                Frame[] history = new Frame[HISTORY_FRAMES * channels];
+                for (int i = 0; i < history.length; i++) {
+                    history[i] = new Frame();
+                    history[i].seq = -1;
+                }
+                mmHistory = history;
+                mmChannels = channels;
+            }
+        }
+
+        /**
+         * Send one audio frame to the group and keep it.
+         */
+        void send(Frame frame) {
+            synchronized (this) {
+                int i = (frame.seq & (HISTORY_FRAMES - 1)) * mmChannels + frame.channel;
+                if (frame.channel < mmChannels) {
+                    mmHistory[i].set(frame);
+                }
+                if (mmBuffer.length < Frame.HEADER_SIZE + frame.length) {
+                    mmBuffer = new byte[Frame.HEADER_SIZE + frame.length];
+                }
+                int bytes = FrameWriter.encode(frame, mmBuffer);
+                try {
+                    long start = System.nanoTime();
+                    mmSender.send(mmBuffer, bytes);
+                    mmSendUs.record((System.nanoTime() - start) / 1000);
+                    mmSentBytes.add(bytes);
+                    mmSentFrames.inc();
+                } catch (IOException e) {
+                    // Guests ask for what they miss; keep going
+                    Log.e(TAG, "Exception during multicast", e);
+                }
+            }
+            Trace.record(Trace.SEND, frame.channel, frame.seq, Frame.HEADER_SIZE + frame.length,
+                    frame.type);
+            CaptureWriter capture = mCapture;
+            if (capture != null) {
+                capture.record(CaptureWriter.OUTBOUND, CaptureWriter.STREAM_MULTICAST,
+                        mClock.nanoTime(), frame);
+            }
+        }
+
+        /**
+         * Copy a frame sent to the group, if it is still kept and not due before
+         * {@code deadline}.
+         *
+         * @return false if there is no such frame
+         */
+        synchronized boolean copy(int seq, int channel, long deadline, Frame out) {
+            if (channel >= mmChannels) {
+                return false;
+            }
+            Frame sent = mmHistory[(seq & (HISTORY_FRAMES - 1)) * mmChannels + channel];
+            if (sent.seq != seq || sent.timestamp - deadline <= 0) {
+                return false;
+            }
+            out.set(sent);
+            return true;
+        }
+
+        void close() {
+            mmSender.close();
+        }
+    }
+}
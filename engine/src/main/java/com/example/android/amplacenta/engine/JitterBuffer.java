@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * Holds decoded blocks of a guest's channel between the moment they arrive and the moment
+ * they are due, so that uneven delivery over the link does not reach the speaker.
+ * <p>
+ * Slots are allocated once by {@link #configure(int, int)} and picked by sequence number,
+ * so nothing is allocated per block. The reader thread {@link #claim(int, long)}s a slot,
+ * decodes straight into it and {@link #commit(int, int)}s it; the playout thread takes
+ * blocks out in sequence order with {@link #poll(long, short[])}. Blocks that arrive after
+ * their turn are dropped and blocks that are missing when due are concealed by repeating
+ * the last one, fading out.
+ * <p>
+ * Sequence numbers and times are compared by difference, so both may wrap.
+ */
+public class JitterBuffer {
+
+    // Slot states
+    private static final int EMPTY = 0;
+    private static final int CLAIMED = 1; // being decoded into
+    private static final int READY = 2;
+
+    // Gain applied to each successive concealed block, in 1/256
+    private static final int FADE = 160;
+
+    private final int mCapacity;
+    private final int mMask;
+
+    private short[][] mSamples;
+    private int[] mLengths;
+    private int[] mSeqs;
+    private long[] mPlayTimes;
+    private int[] mStates;
+
+    private int mSampleRate;
+    private int mBlockFrames;
+    private long mBlockNanos;
+
+    private boolean mStarted;
+    private int mNextSeq;
+    private long mNextPlayTime;
+    private int mReady;
+
+    // Last block played, repeated to conceal a missing one
+    private short[] mLast;
+    private int mLastLength;
+    private int mGain;
+
+    private int mDropped;
+    private int mConcealed;
+
+    /**
+     * @param capacity The number of blocks that can be held, rounded up to a power of two
+     */
+    public JitterBuffer(int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mCapacity = n;
+        mMask = n - 1;
+        mLengths = new int[n];
+        mSeqs = new int[n];
+        mPlayTimes = new long[n];
+        mStates = new int[n];
+    }
+
+    /**
+     * Allocate the slots for a stream format and empty the buffer. Must be called before
+     * the first block is claimed and again when the format changes.
+     *
+     * @param sampleRate  Sample rate of the stream
+     * @param blockFrames The most samples in one block; blocks may be shorter
+     */
+    public synchronized void configure(int sampleRate, int blockFrames) {
+        if (mSamples == null || mBlockFrames != blockFrames) {
+            mSamples = new short[mCapacity][blockFrames];
+            mLast = new short[blockFrames];
+        }
+        mSampleRate = sampleRate;
+        mBlockFrames = blockFrames;
+        mBlockNanos = blockFrames * 1000000000L / sampleRate;
+        clear();
+    }
+
+    /**
+     * Empty the buffer. The next block claimed restarts playout.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mCapacity; i++) {
+            mStates[i] = EMPTY;
+        }
+        mReady = 0;
+        mStarted = false;
+        mLastLength = 0;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public synchronized int getBlockFrames() {
+        return mBlockFrames;
+    }
+
+    /**
+     * Reserve the slot of an incoming block.
+     *
+     * @param seq      Sequence number of the block
+     * @param playTime When the block is due, on the host's clock
+     * @return The array to decode the block into, or null if the block is late, a
+     * duplicate, or the buffer is not configured yet
+     */
+    public synchronized short[] claim(int seq, long playTime) {
+        if (mSamples == null) {
+            return null;
+        }
+        if (mStarted) {
+            int ahead = seq - mNextSeq;
+            if (ahead < 0) {
+                mDropped++;
+                return null;
+            }
+            if (ahead >= mCapacity) {
+                // Playout has fallen a whole buffer behind; start over from this block
+                clear();
+            }
+        }
+        if (!mStarted) {
+            mStarted = true;
+            mNextSeq = seq;
+            mNextPlayTime = playTime;
+            mGain = 256;
+        }
+
+        int i = seq & mMask;
+        if (mStates[i] != EMPTY) {
+            return null;
+        }
+        mStates[i] = CLAIMED;
+        mSeqs[i] = seq;
+        mPlayTimes[i] = playTime;
+        return mSamples[i];
+    }
+
+    /**
+     * Mark a claimed block as decoded and ready to play.
+     *
+     * @param seq    Sequence number passed to {@link #claim(int, long)}
+     * @param length Number of samples decoded
+     */
+    public synchronized void commit(int seq, int length) {
+        int i = seq & mMask;
+        // The slot may have been given up on while the block was being decoded
+        if (mStates[i] == CLAIMED && mSeqs[i] == seq) {
+            mStates[i] = READY;
+            mLengths[i] = length;
+            mReady++;
+        }
+    }
+
+    /**
+     * Return whether playout has started, that is whether {@link #nextPlayTime()} is valid.
+     */
+    public synchronized boolean hasNext() {
+        return mStarted;
+    }
+
+    /**
+     * Return when the next block is due, on the host's clock.
+     */
+    public synchronized long nextPlayTime() {
+        return mNextPlayTime;
+    }
+
+    /**
+     * Take the next block if it is due.
+     *
+     * @param now The current time on the host's clock
+     * @param out Receives the samples, at least one block long
+     * @return The number of samples written to {@code out}, or 0 if nothing is due
+     */
+    public synchronized int poll(long now, short[] out) {
+        while (mStarted && now - mNextPlayTime >= 0) {
+            int i = mNextSeq & mMask;
+            boolean ready = mStates[i] == READY && mSeqs[i] == mNextSeq;
+            long late = now - mNextPlayTime;
+            mNextSeq++;
+
+            if (ready) {
+                mStates[i] = EMPTY;
+                mReady--;
+                mNextPlayTime = mPlayTimes[i] + mLengths[i] * 1000000000L / mSampleRate;
+                if (late > mBlockNanos) {
+                    // Too late to be worth playing; skip ahead to catch up
+                    mDropped++;
+                    continue;
+                }
+                int length = mLengths[i];
+                System.arraycopy(mSamples[i], 0, out, 0, length);
+                System.arraycopy(mSamples[i], 0, mLast, 0, length);
+                mLastLength = length;
+                mGain = 256;
+                return length;
+            }
+
+            // Missing: give up on the slot in case it is still being decoded
+            if (mSeqs[i] == mNextSeq - 1) {
+                mStates[i] = EMPTY;
+            }
+            mNextPlayTime += mBlockNanos;
+            if (late > mBlockNanos) {
+                // Too late to be worth concealing either; skip ahead to catch up
+                continue;
+            }
+            mGain = mGain * FADE >> 8;
+            if (mGain == 0 && mReady == 0) {
+                // Nothing left to fade out and nothing coming; the stream has stopped
+                mStarted = false;
+                return 0;
+            }
+            int length = mLastLength > 0 ? mLastLength : mBlockFrames;
+            for (int s = 0; s < length; s++) {
+                out[s] = (short) (mLastLength > 0 ? mLast[s] * mGain >> 8 : 0);
+            }
+            mConcealed++;
+            return length;
+        }
+        return 0;
+    }
+
+    /**
+     * Return the sequence number of the next block to play. Only meaningful while
+     * {@link #hasNext()}.
+     */
+    public synchronized int getNextSeq() {
+        return mNextSeq;
+    }
+
+    /**
+     * Return the sequence number of the last block there is room for, the most a host
+     * should send ahead. Only meaningful while {@link #hasNext()}.
+     */
+    public synchronized int getCreditLimit() {
+        return mNextSeq + mCapacity - 1;
+    }
+
+    /**
+     * Return the number of slots not holding a decoded block.
+     */
+    public synchronized int getFreeBlocks() {
+        return mCapacity - mReady;
+    }
+
+    /**
+     * Return how much audio is buffered ahead of playout, in milliseconds.
+     */
+    public synchronized int getDepthMs() {
+        return mSampleRate == 0 ? 0 : (int) ((long) mReady * mBlockFrames * 1000 / mSampleRate);
+    }
+
+    /**
+     * Return the number of blocks dropped for arriving too late.
+     */
+    public synchronized int getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Return the number of missing blocks that were concealed.
+     */
+    public synchronized int getConcealed() {
+        return mConcealed;
+    }
+}
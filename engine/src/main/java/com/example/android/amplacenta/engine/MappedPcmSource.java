@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link SeekablePcmSource} over a 16-bit WAV file, or a raw file of interleaved little-endian
+ * 16-bit PCM, that is memory-mapped rather than read. The header is parsed once when the
+ * source is opened; after that opening, {@link #seek(long)} and {@link #slice(long, int)}
+ * cost the same whatever the size of the file, and the samples are only ever copied out
+ * of the mapping into the caller's {@link AudioBlock}, never into a buffer of their own.
+ * <p>
+ * The pages of a mapped file are read from storage the first time they are touched, which
+ * would stall the streaming thread whenever the disk is busy. A prefetch thread touches
+ * them {@link #READ_AHEAD_MILLIS} ahead of the read position instead, so that reads find
+ * them in memory.
+ */
+public class MappedPcmSource implements SeekablePcmSource {
+
+    // How far ahead of the read position the pages are brought in
+    public static final int READ_AHEAD_MILLIS = 2000;
+
+    // Touching one byte per page is enough to bring the page in
+    private static final int PAGE_SIZE = 4096;
+
+    // WAVE_FORMAT_PCM and WAVE_FORMAT_EXTENSIBLE, whose sub-format must then be PCM
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xfffe;
+
+    private final PcmFormat mFormat;
+    private final MappedByteBuffer mMap;
+    private final ShortBuffer mSamples;
+    private final long mLengthFrames;
+    private final int mReadAheadBytes;
+    private final Thread mPrefetchThread;
+
+    private long mPosition;
+    private boolean mClosed;
+
+    // Written by the prefetch thread so that its reads cannot be optimized away
+    private volatile int mTouched;
+
+    /**
+     * Open a WAV file.
+     *
+     * @throws IOException If the file cannot be mapped, or is not 16-bit PCM
+     */
+    public MappedPcmSource(File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Open a raw PCM file, the whole of which is interleaved little-endian 16-bit samples.
+     *
+     * @param format Rate and channel count of the samples, or null to read them from the
+     *               header of a WAV file
+     * @throws IOException If the file cannot be mapped, or is not 16-bit PCM
+     */
+    public MappedPcmSource(File file, PcmFormat format) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long offset = 0;
+            long length = channel.size();
+            if (format == null) {
+                // Walk the chunks for the format and the extent of the samples
+                ByteBuffer header = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+                readAt(channel, header, 0, 12);
+                if (header.getInt(0) != fourCc("RIFF") || header.getInt(8) != fourCc("WAVE")) {
+                    throw new IOException("Not a WAV file: " + file);
+                }
+                long chunk = 12;
+                while (true) {
+                    readAt(channel, header, chunk, 8);
+                    int id = header.getInt(0);
+                    long size = header.getInt(4) & 0xffffffffL;
+                    long body = chunk + 8;
+                    if (id == fourCc("fmt ")) {
+                        format = parseFormat(channel, header, body, size, file);
+                    } else if (id == fourCc("data")) {
+                        if (format == null) {
+                            throw new IOException("No format ahead of the samples: " + file);
+                        }
+                        // Writers that stream may leave the size unset
+                        offset = body;
+                        length = Math.min(size, channel.size() - body);
+                        break;
+                    }
+                    chunk = body + size + (size & 1);
+                }
+            }
+            if (format.sampleRate <= 0 || format.channels <= 0) {
+                throw new IOException("Bad format " + format + ": " + file);
+            }
+            int frameBytes = 2 * format.channels;
+            length -= length % frameBytes;
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Too large to map: " + file);
+            }
+            mMap = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } finally {
+            // The mapping outlives the file
+            raf.close();
+        }
+        mFormat = format;
+        mSamples = mMap.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        mLengthFrames = mSamples.capacity() / format.channels;
+        mReadAheadBytes = (int) Math.min(Integer.MAX_VALUE,
+                (long) format.sampleRate * READ_AHEAD_MILLIS / 1000 * 2 * format.channels);
+
+        mPrefetchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prefetchLoop();
+            }
+        }, "PcmPrefetch");
+        mPrefetchThread.setDaemon(true);
+        mPrefetchThread.start();
+    }
+
+    private static PcmFormat parseFormat(FileChannel channel, ByteBuffer header, long body,
+                                         long size, File file) throws IOException {
+        if (size < 16) {
+            throw new IOException("Truncated WAV format: " + file);
+        }
+        readAt(channel, header, body, (int) Math.min(size, header.capacity()));
+        int tag = header.getShort(0) & 0xffff;
+        int channels = header.getShort(2) & 0xffff;
+        int sampleRate = header.getInt(4);
+        int bits = header.getShort(14) & 0xffff;
+        if (tag == FORMAT_EXTENSIBLE && size >= 26) {
+            // The first two bytes of the sub-format GUID are the format tag
+            tag = header.getShort(24) & 0xffff;
+        }
+        if (tag != FORMAT_PCM || bits != 16) {
+            throw new IOException("Not 16-bit PCM (format " + tag + ", " + bits + " bits): "
+                    + file);
+        }
+        return new PcmFormat(sampleRate, channels);
+    }
+
+    private static void readAt(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated WAV header");
+            }
+        }
+    }
+
+    private static int fourCc(String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+
+    @Override
+    public PcmFormat getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public long getLengthFrames() {
+        return mLengthFrames;
+    }
+
+    @Override
+    public synchronized long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Move the read position, and the read-ahead with it.
+     *
+     * @param position The sample frame to read next, clamped to the source
+     */
+    @Override
+    public synchronized void seek(long position) {
+        mPosition = Math.max(0, Math.min(position, mLengthFrames));
+        notifyAll();
+    }
+
+    /**
+     * Return a read-only view of {@code frames} sample frames from {@code position} on,
+     * interleaved, straight onto the mapping: nothing is copied, and the view stays valid
+     * after the source is closed.
+     */
+    public ShortBuffer slice(long position, int frames) {
+        int channels = mFormat.channels;
+        long first = Math.max(0, Math.min(position, mLengthFrames));
+        long last = Math.min(first + Math.max(0, frames), mLengthFrames);
+        ShortBuffer view = mSamples.duplicate();
+        view.limit((int) (last * channels));
+        view.position((int) (first * channels));
+        return view.slice();
+    }
+
+    /**
+     * Read the next block, one channel at a time out of the mapping. Channels the block
+     * has no room for are skipped. Does not allocate.
+     */
+    @Override
+    public synchronized int read(AudioBlock block) {
+        long position = mPosition;
+        if (mClosed || position >= mLengthFrames) {
+            return -1;
+        }
+        int frames = (int) Math.min(block.capacity(), mLengthFrames - position);
+        int stride = mFormat.channels;
+        int channels = Math.min(block.channels(), stride);
+        ShortBuffer samples = mSamples;
+        for (int c = 0; c < channels; c++) {
+            short[] out = block.samples[c];
+            int index = (int) position * stride + c;
+            for (int i = 0; i < frames; i++) {
+                out[i] = samples.get(index);
+                index += stride;
+            }
+        }
+        block.frames = frames;
+        block.position = position;
+        mPosition = position + frames;
+        notifyAll();
+        return frames;
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Keep the pages from the read position to {@link #mReadAheadBytes} past it in memory,
+     * touching those not touched yet whenever the position moves. Runs until closed.
+     */
+    private void prefetchLoop() {
+        int frameBytes = 2 * mFormat.channels;
+        long limit = (long) mMap.capacity();
+        long touched = 0;
+        int sum = 0;
+        while (true) {
+            long end;
+            synchronized (this) {
+                long start = mPosition * frameBytes;
+                end = Math.min(start + mReadAheadBytes, limit);
+                // Touching goes a page at a time, so it may stop up to a page past the end
+                while (!mClosed && touched >= end && touched < end + PAGE_SIZE) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    start = mPosition * frameBytes;
+                    end = Math.min(start + mReadAheadBytes, limit);
+                }
+                if (mClosed) {
+                    return;
+                }
+                if (touched < start || touched >= end + PAGE_SIZE) {
+                    // Seeked away from what was brought in
+                    touched = start - start % PAGE_SIZE;
+                }
+            }
+            for (; touched < end; touched += PAGE_SIZE) {
+                sum += mMap.get((int) touched);
+            }
+            mTouched = sum;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sums several {@link PcmSource}s into one, each at a gain that can ramp from one level to
+ * another: a track fading out under the next one fading in, or an announcement over the
+ * music. While an input added with {@link #addDucking} plays, the others ramp down to its
+ * duck gain, and back up once it ends. Inputs are converted to the mixer's format as a
+ * {@link PlaybackQueue} converts tracks, and removed and closed when they end or have faded
+ * out; the mix ends when the last one has.
+ * <p>
+ * Each block is mixed a channel at a time into floats, in plain loops over arrays that the
+ * compiler can turn into vector instructions: a multiply-add by one gain, or by a ramp of
+ * gains computed once per input, then a clip back to 16 bits. Does not allocate once a
+ * block size has been seen, other than for inputs added.
+ */
+public class Mixer implements PcmSource {
+    // Debugging
+    private static final String TAG = "Mixer";
+
+    // How long the other inputs take to duck under a ducking one, and to come back up
+    public static final int DUCK_RAMP_MILLIS = 250;
+
+    private final PcmFormat mFormat;
+
+    // The inputs playing, in the order they were added
+    private final List<Input> mInputs = new ArrayList<Input>();
+
+    // Where each block is summed, an input's samples, and its ramp of gains
+    private float[][] mMix;
+    private short[][] mSamples;
+    private float[] mRamp;
+
+    // The level that inputs which do not duck are ducked to, and its change per frame
+    private final float mDuckStep;
+    private float mDuck = 1;
+
+    private long mPosition;
+    private boolean mClosed;
+
+    /**
+     * @param format The format of the mix, which every input is converted to
+     */
+    public Mixer(PcmFormat format) {
+        mFormat = format;
+        mDuckStep = 1000f / DUCK_RAMP_MILLIS / format.sampleRate;
+    }
+
+    @Override
+    public PcmFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Start mixing in a source.
+     *
+     * @param gain The gain to start at, 1 for the source as it is
+     */
+    public synchronized Input add(PcmSource source, float gain) {
+        Input input = new Input(source, gain, -1);
+        mInputs.add(input);
+        return input;
+    }
+
+    /**
+     * Start mixing in a source over the others, which duck to {@code duckGain} while it
+     * plays.
+     *
+     * @param gain     The gain of the source
+     * @param duckGain The gain of the other inputs meanwhile
+     */
+    public synchronized Input addDucking(PcmSource source, float gain, float duckGain) {
+        Input input = new Input(source, gain, duckGain);
+        mInputs.add(input);
+        return input;
+    }
+
+    /**
+     * Return how many inputs are playing.
+     */
+    public synchronized int size() {
+        return mInputs.size();
+    }
+
+    /**
+     * Mix a block from every input. Inputs that end within it leave silence after their
+     * last sample.
+     */
+    @Override
+    public synchronized int read(AudioBlock block) throws IOException {
+        if (mClosed || mInputs.isEmpty()) {
+            return -1;
+        }
+        int frames = block.capacity();
+        int channels = Math.min(block.channels(), mFormat.channels);
+        if (mMix == null || mRamp.length < frames) {
+            mMix = new float[mFormat.channels][frames];
+            mSamples = new short[mFormat.channels][frames];
+            mRamp = new float[frames];
+        }
+        for (int c = 0; c < channels; c++) {
+            float[] mix = mMix[c];
+            for (int i = 0; i < frames; i++) {
+                mix[i] = 0;
+            }
+        }
+
+        float duckTarget = 1;
+        for (int k = 0; k < mInputs.size(); k++) {
+            Input input = mInputs.get(k);
+            if (input.mmDuckGain >= 0) {
+                duckTarget = Math.min(duckTarget, input.mmDuckGain);
+            }
+        }
+        float duckStart = mDuck;
+        mDuck = ramp(mDuck, duckTarget, mDuckStep, frames);
+
+        int mixed = 0;
+        for (int k = 0; k < mInputs.size(); k++) {
+            Input input = mInputs.get(k);
+            int n = input.mmReader.fill(mSamples, 0, frames);
+            float start = input.mmGain;
+            input.mmGain = ramp(input.mmGain, input.mmTarget, input.mmStep, frames);
+            float end = input.mmGain;
+            if (input.mmDuckGain < 0) {
+                start *= duckStart;
+                end *= mDuck;
+            }
+            if (start == end) {
+                for (int c = 0; c < channels; c++) {
+                    mixConstant(mSamples[c], mMix[c], start, n);
+                }
+            } else {
+                float step = (end - start) / frames;
+                float[] ramp = mRamp;
+                for (int i = 0; i < n; i++) {
+                    ramp[i] = start + step * i;
+                }
+                for (int c = 0; c < channels; c++) {
+                    mixRamp(mSamples[c], mMix[c], ramp, n);
+                }
+            }
+            mixed = Math.max(mixed, n);
+
+            if (n < frames || (input.mmRemoveAtTarget && input.mmGain == input.mmTarget)) {
+                mInputs.remove(k--);
+                input.mmReader.close();
+                if (Log.isLoggable(Log.INFO)) {
+                    Log.i(TAG, "input done, {} left", mInputs.size());
+                }
+            }
+        }
+        if (mixed == 0) {
+            return -1;
+        }
+        if (mixed < frames && !mInputs.isEmpty()) {
+            // The others go on, so the block is whole
+            mixed = frames;
+        }
+
+        for (int c = 0; c < channels; c++) {
+            clip(mMix[c], block.samples[c], mixed);
+        }
+        block.frames = mixed;
+        block.position = mPosition;
+        mPosition += mixed;
+        return mixed;
+    }
+
+    /**
+     * Move a gain toward its target by {@code step} a frame for {@code frames} frames.
+     */
+    private static float ramp(float gain, float target, float step, int frames) {
+        if (gain < target) {
+            return Math.min(target, gain + step * frames);
+        }
+        return Math.max(target, gain - step * frames);
+    }
+
+    private static void mixConstant(short[] in, float[] mix, float gain, int n) {
+        if (gain == 0) {
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            mix[i] += in[i] * gain;
+        }
+    }
+
+    private static void mixRamp(short[] in, float[] mix, float[] ramp, int n) {
+        for (int i = 0; i < n; i++) {
+            mix[i] += in[i] * ramp[i];
+        }
+    }
+
+    private static void clip(float[] mix, short[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            out[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+        }
+    }
+
+    /**
+     * Close every input.
+     */
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        for (int k = 0; k < mInputs.size(); k++) {
+            mInputs.get(k).mmReader.close();
+        }
+        mInputs.clear();
+    }
+
+    /**
+     * A source being mixed, and its gain.
+     */
+    public class Input {
+        final SourceReader mmReader;
+
+        // Ducks the others to this while it plays, or -1 if it does not
+        final float mmDuckGain;
+
+        // The gain now, the one it ramps to and by how much a frame
+        float mmGain;
+        float mmTarget;
+        float mmStep;
+        boolean mmRemoveAtTarget;
+
+        Input(PcmSource source, float gain, float duckGain) {
+            mmReader = new SourceReader(source, mFormat, 0);
+            mmDuckGain = duckGain;
+            mmGain = gain;
+            mmTarget = gain;
+        }
+
+        public PcmSource getSource() {
+            return mmReader.getSource();
+        }
+
+        /**
+         * Ramp to a gain, linearly over {@code rampMillis}, or at once for 0.
+         */
+        public void setGain(float gain, int rampMillis) {
+            synchronized (Mixer.this) {
+                mmTarget = gain;
+                mmRemoveAtTarget = false;
+                if (rampMillis <= 0) {
+                    mmGain = gain;
+                    mmStep = 0;
+                } else {
+                    mmStep = Math.abs(gain - mmGain) * 1000 / rampMillis / mFormat.sampleRate;
+                }
+            }
+        }
+
+        /**
+         * Ramp to silence over {@code millis}, then stop mixing the source and close it.
+         */
+        public void fadeOut(int millis) {
+            synchronized (Mixer.this) {
+                setGain(0, millis);
+                mmRemoveAtTarget = true;
+            }
+        }
+
+        /**
+         * Stop mixing the source at once, and close it.
+         */
+        public void remove() {
+            synchronized (Mixer.this) {
+                if (mInputs.remove(this)) {
+                    mmReader.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Encodes the channels of a block on several threads at once: the caller's and a fixed
+ * set of workers, each with a fixed share of the channels, channel {@code c} going to
+ * thread {@code c % threads}. {@link #encode} returns once every channel of the block is
+ * encoded, so the frames leave in channel order, block after block, as they would from
+ * one thread. With one thread the caller encodes everything and no worker is started.
+ * <p>
+ * A block is handed out by bumping a generation number the workers wait on, and the last
+ * one done wakes the caller; nothing is allocated or locked per block. Workers are parked
+ * between blocks, so a block costs a wake-up per worker, which pays off once the codec
+ * spends more on a block's channels than waking takes.
+ * <p>
+ * Whatever a thread's share throws is held until every share of the block is done, and
+ * then thrown from {@link #encode}, so a failing codec fails the stream rather than
+ * leaving it waiting on a worker that died.
+ */
+public class ParallelEncoder {
+
+    private final AudioCodec mCodec;
+    private final int mChannels;
+    private final int mThreads;
+    private final Thread[] mWorkers;
+    private final Thread mCaller;
+
+    // The block being encoded, published by mGeneration
+    private short[][] mSamples;
+    private int mCount;
+    private Frame[] mFrames;
+    private volatile int mGeneration;
+    private volatile boolean mClosed;
+
+    // Workers still encoding the block, and what one of them threw
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile Throwable mFailure;
+
+    /**
+     * @param threads How many threads to encode on, the caller's included; at most one per
+     *                channel is used
+     * @param factory Where the workers come from
+     */
+    public ParallelEncoder(AudioCodec codec, int channels, int threads, ThreadFactory factory) {
+        mCodec = codec;
+        mChannels = channels;
+        mThreads = Math.max(1, Math.min(threads, channels));
+        mCaller = Thread.currentThread();
+        mWorkers = new Thread[mThreads - 1];
+        for (int w = 0; w < mWorkers.length; w++) {
+            final int share = w + 1;
+            mWorkers[w] = factory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    workLoop(share);
+                }
+            });
+            mWorkers[w].setName("EncodeWorker-" + share);
+            mWorkers[w].setDaemon(true);
+            mWorkers[w].start();
+        }
+    }
+
+    /**
+     * Return how many threads encode, the caller's included.
+     */
+    public int getThreads() {
+        return mThreads;
+    }
+
+    /**
+     * Encode {@code count} samples of every channel into the frame of that channel, whose
+     * header the caller has set. Must be called from the thread that made the encoder.
+     *
+     * @throws RuntimeException Or Error, whatever the codec threw on any thread
+     */
+    public void encode(short[][] samples, int count, Frame[] frames) {
+        if (mWorkers.length == 0) {
+            encodeShare(0, samples, count, frames);
+            return;
+        }
+        mSamples = samples;
+        mCount = count;
+        mFrames = frames;
+        mPending.set(mWorkers.length);
+        mGeneration++;
+        for (Thread worker : mWorkers) {
+            LockSupport.unpark(worker);
+        }
+        Throwable failure = null;
+        try {
+            encodeShare(0, samples, count, frames);
+        } catch (Throwable t) {
+            // Not thrown until the workers are done with the frames
+            failure = t;
+        }
+        while (mPending.get() != 0) {
+            LockSupport.park(this);
+        }
+        if (failure == null) {
+            failure = mFailure;
+        }
+        if (failure != null) {
+            mFailure = null;
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private void encodeShare(int share, short[][] samples, int count, Frame[] frames) {
+        for (int c = share; c < mChannels; c += mThreads) {
+            Frame frame = frames[c];
+            frame.length = mCodec.encode(samples[c], 0, count, frame.data, 0);
+        }
+    }
+
+    /**
+     * Encode this worker's share of each block handed out, until closed.
+     */
+    private void workLoop(int share) {
+        int seen = 0;
+        while (true) {
+            int generation = mGeneration;
+            while (generation == seen && !mClosed) {
+                LockSupport.park(this);
+                generation = mGeneration;
+            }
+            if (mClosed) {
+                return;
+            }
+            seen = generation;
+            try {
+                encodeShare(share, mSamples, mCount, mFrames);
+            } catch (Throwable t) {
+                // For the caller to throw, once the others are done too
+                mFailure = t;
+            }
+            if (mPending.decrementAndGet() == 0) {
+                LockSupport.unpark(mCaller);
+            }
+        }
+    }
+
+    /**
+     * Stop the workers.
+     */
+    public void close() {
+        mClosed = true;
+        for (Thread worker : mWorkers) {
+            LockSupport.unpark(worker);
+        }
+    }
+}
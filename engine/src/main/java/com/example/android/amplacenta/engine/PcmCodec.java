@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * Uncompressed 16-bit little-endian PCM.
+ */
+public class PcmCodec implements AudioCodec {
+
+    @Override
+    public int maxEncodedSize(int samples) {
+        return samples * 2;
+    }
+
+    @Override
+    public int encode(short[] in, int offset, int count, byte[] out, int outOffset) {
+        int o = outOffset;
+        for (int i = offset, end = offset + count; i < end; i++) {
+            short s = in[i];
+            out[o] = (byte) s;
+            out[o + 1] = (byte) (s >> 8);
+            o += 2;
+        }
+        return count * 2;
+    }
+
+    @Override
+    public int decode(byte[] in, int offset, int length, short[] out, int outOffset) {
+        int count = length / 2;
+        int b = offset;
+        for (int i = outOffset, end = outOffset + count; i < end; i++) {
+            out[i] = (short) ((in[b] & 0xff) | in[b + 1] << 8);
+            b += 2;
+        }
+        return count;
+    }
+}
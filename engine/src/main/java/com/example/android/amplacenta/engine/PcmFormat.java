@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * Sample rate and channel count of a stream of 16-bit PCM audio.
+ */
+public class PcmFormat {
+
+    public final int sampleRate;
+    public final int channels;
+
+    public PcmFormat(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    /**
+     * Return the duration of {@code frames} sample frames, in nanoseconds.
+     */
+    public long framesToNanos(long frames) {
+        return frames * 1000000000L / sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return sampleRate + "Hz/" + channels + "ch";
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Audio the host streams to its guests, such as a decoded file.
+ */
+public interface PcmSource extends Closeable {
+
+    public PcmFormat getFormat();
+
+    /**
+     * Fill {@code block} with up to its capacity of sample frames and set its
+     * {@link AudioBlock#frames} and {@link AudioBlock#position}.
+     *
+     * @return The number of sample frames read, or -1 at the end of the source
+     */
+    public int read(AudioBlock block) throws IOException;
+}
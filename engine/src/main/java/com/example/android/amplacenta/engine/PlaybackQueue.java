@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Plays files one after another as a single {@link PcmSource}, with no gap between them:
+ * the last sample of one track is followed by the first sample of the next within the
+ * same block. Since the stream never stops, its timestamps run on across tracks and
+ * guests play through the change as through any other block.
+ * <p>
+ * Opening a file and decoding its first frames takes longer than a block may, so a
+ * loader thread opens the next track as soon as the current one starts and decodes
+ * {@link #HEAD_MILLIS} of it ahead. At the change the queue only copies samples. Tracks
+ * are converted to the format of the first one: resampled if their rate differs, and
+ * their channels mapped, a mono track to every channel.
+ */
+public class PlaybackQueue implements PcmSource {
+    // Debugging
+    private static final String TAG = "PlaybackQueue";
+
+    // How much of the next track is decoded ahead
+    public static final int HEAD_MILLIS = 500;
+
+    /**
+     * Opens the files of a queue.
+     */
+    public interface Opener {
+        public PcmSource open(File file) throws IOException;
+    }
+
+    /**
+     * Opens FLAC files as {@link FlacSource}s and anything else as a 16-bit WAV
+     * {@link MappedPcmSource}.
+     */
+    public static class FileOpener implements Opener {
+        private final File mIndexDir;
+
+        /**
+         * @param indexDir Where to keep the seek indexes of FLAC files, or null to keep none
+         */
+        public FileOpener(File indexDir) {
+            mIndexDir = indexDir;
+        }
+
+        @Override
+        public PcmSource open(File file) throws IOException {
+            if (file.getName().toLowerCase(Locale.US).endsWith(".flac")) {
+                File index = mIndexDir == null ? null : new File(mIndexDir,
+                        Integer.toHexString(file.getAbsolutePath().hashCode()) + ".idx");
+                return new FlacSource(file, index);
+            }
+            return new MappedPcmSource(file);
+        }
+    }
+
+    private final Opener mOpener;
+    private final PcmFormat mFormat;
+    private final int mHeadFrames;
+
+    // Files queued after the current one; the first of them is the one loaded ahead
+    private final List<File> mPending = new ArrayList<File>();
+    private Track mCurrent;
+    private Track mNext;
+    private boolean mSkip;
+    private boolean mClosed;
+
+    // Sample frames read so far, and where the current track began among them
+    private long mPosition;
+    private long mTrackStart;
+
+    /**
+     * Open the first track, whose format the queue takes.
+     *
+     * @throws IOException If the first track cannot be opened
+     */
+    public PlaybackQueue(File first, Opener opener) throws IOException {
+        mOpener = opener;
+        PcmSource source = opener.open(first);
+        mFormat = source.getFormat();
+        mHeadFrames = mFormat.sampleRate * HEAD_MILLIS / 1000;
+        mCurrent = new Track(first, source, mFormat, mHeadFrames);
+
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loadLoop();
+            }
+        }, "QueueLoader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    @Override
+    public PcmFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Queue a file to play after the others.
+     */
+    public synchronized void add(File file) {
+        mPending.add(file);
+        notifyAll();
+    }
+
+    /**
+     * Remove the files queued after the current one.
+     */
+    public synchronized void clear() {
+        mPending.clear();
+        discardNext();
+    }
+
+    /**
+     * Return the files queued after the current one.
+     */
+    public synchronized List<File> getPending() {
+        return new ArrayList<File>(mPending);
+    }
+
+    /**
+     * End the current track with the next block, and go on to the next one.
+     */
+    public synchronized void skip() {
+        mSkip = true;
+    }
+
+    /**
+     * Return the file playing, or null once the queue has run out.
+     */
+    public synchronized File getCurrentTrack() {
+        return mCurrent != null ? mCurrent.mmFile : null;
+    }
+
+    /**
+     * Return the sample frame of the queue's stream that the current track began at.
+     */
+    public synchronized long getTrackStart() {
+        return mTrackStart;
+    }
+
+    /**
+     * Move within the current track, if its source can seek. The queue's own stream runs
+     * on unbroken.
+     *
+     * @param millis Where in the track to play next
+     * @return false if the current track cannot seek
+     */
+    public synchronized boolean seekCurrentTrack(long millis) throws IOException {
+        if (mCurrent == null || !(mCurrent.getSource() instanceof SeekablePcmSource)) {
+            return false;
+        }
+        SeekablePcmSource source = (SeekablePcmSource) mCurrent.getSource();
+        source.seek(millis * source.getFormat().sampleRate / 1000);
+        mCurrent.flush();
+        return true;
+    }
+
+    /**
+     * Fill the block from the current track, and from the next ones when it ends. Waits
+     * for the next track only when it was queued too late to be loaded ahead.
+     */
+    @Override
+    public synchronized int read(AudioBlock block) throws IOException {
+        int capacity = block.capacity();
+        int frames = 0;
+        while (frames < capacity && !mClosed) {
+            if (mCurrent == null || mSkip) {
+                if (!advance(frames)) {
+                    break;
+                }
+                continue;
+            }
+            int n = mCurrent.fill(block.samples, frames, capacity - frames);
+            frames += n;
+            if (frames < capacity) {
+                // The track ended within the block; the next one starts straight after
+                mSkip = true;
+            }
+        }
+        if (frames == 0) {
+            return -1;
+        }
+        block.frames = frames;
+        block.position = mPosition;
+        mPosition += frames;
+        return frames;
+    }
+
+    /**
+     * Close the current track and make the next one current.
+     *
+     * @param offset Where in the block being read the next track starts
+     * @return false if there is none
+     */
+    private boolean advance(int offset) throws IOException {
+        mSkip = false;
+        if (mCurrent != null) {
+            mCurrent.close();
+            mCurrent = null;
+        }
+        while (mNext == null && !mPending.isEmpty() && !mClosed) {
+            // Queued just now; the loader is on it
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting for the next track");
+            }
+        }
+        if (mNext == null) {
+            return false;
+        }
+        mCurrent = mNext;
+        mNext = null;
+        mPending.remove(0);
+        mTrackStart = mPosition + offset;
+        notifyAll();
+        if (Log.isLoggable(Log.INFO)) {
+            Log.i(TAG, "next track {} at frame {}", mCurrent.mmFile.getName(), mTrackStart);
+        }
+        return true;
+    }
+
+    private void discardNext() {
+        if (mNext != null) {
+            mNext.close();
+            mNext = null;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        if (mCurrent != null) {
+            mCurrent.close();
+            mCurrent = null;
+        }
+        discardNext();
+    }
+
+    /**
+     * Open the first pending track and decode its head whenever none is loaded ahead.
+     * Runs until closed.
+     */
+    private void loadLoop() {
+        while (true) {
+            File file;
+            synchronized (this) {
+                while (!mClosed && (mNext != null || mPending.isEmpty())) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+                file = mPending.get(0);
+            }
+
+            Track track = null;
+            try {
+                track = new Track(file, mOpener.open(file), mFormat, mHeadFrames);
+                track.prime();
+            } catch (IOException e) {
+                Log.w(TAG, "cannot open " + file, e);
+                if (track != null) {
+                    track.close();
+                    track = null;
+                }
+            }
+
+            synchronized (this) {
+                boolean wanted = !mClosed && !mPending.isEmpty() && mPending.get(0) == file;
+                if (wanted && track != null) {
+                    mNext = track;
+                    track = null;
+                } else if (wanted) {
+                    // Cannot be played; go on to the one after
+                    mPending.remove(0);
+                }
+                notifyAll();
+            }
+            if (track != null) {
+                // Removed from the queue while loading
+                track.close();
+            }
+        }
+    }
+
+    /**
+     * A track's source, and the file it came from.
+     */
+    private static class Track extends SourceReader {
+        final File mmFile;
+
+        Track(File file, PcmSource source, PcmFormat format, int headFrames) {
+            super(source, format, headFrames);
+            mmFile = file;
+        }
+    }
+}
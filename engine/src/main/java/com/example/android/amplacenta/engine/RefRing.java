@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * A ring of references, to {@link AudioBlock}s or {@link Frame}s, that one thread writes
+ * and another reads. Two of them pass a fixed set of blocks round between a pair of
+ * threads without allocating: one carries them filled, the other carries them back empty.
+ * A slot is cleared as it is read, so the ring holds on to nothing it has handed over.
+ *
+ * @see SpscRing
+ */
+public class RefRing<T> extends SpscRing {
+
+    private final Object[] mItems;
+
+    /**
+     * @param capacity The least the ring must hold, rounded up to a power of two
+     */
+    public RefRing(int capacity) {
+        super(capacity);
+        mItems = new Object[mCapacity];
+    }
+
+    /**
+     * On the writing thread, add an item.
+     *
+     * @return false if the ring is full
+     */
+    public boolean offer(T item) {
+        if (writable(1) == 0) {
+            return false;
+        }
+        mItems[writeIndex()] = item;
+        commitWrite(1);
+        return true;
+    }
+
+    /**
+     * On the reading thread, take the oldest item.
+     *
+     * @return The item, or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        if (readable(1) == 0) {
+            return null;
+        }
+        int index = readIndex();
+        T item = (T) mItems[index];
+        mItems[index] = null;
+        commitRead(1);
+        return item;
+    }
+
+    /**
+     * On the writing thread, add as many of {@code count} items as there is room for, and
+     * hand them over together.
+     *
+     * @return The items added
+     */
+    public int offer(T[] items, int offset, int count) {
+        int n = writable(count);
+        int index = writeIndex();
+        for (int i = 0; i < n; i++) {
+            mItems[(index + i) & mMask] = items[offset + i];
+        }
+        if (n > 0) {
+            commitWrite(n);
+        }
+        return n;
+    }
+
+    /**
+     * On the reading thread, take up to {@code count} items, oldest first.
+     *
+     * @return The items taken
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(T[] out, int offset, int count) {
+        int n = readable(count);
+        int index = readIndex();
+        for (int i = 0; i < n; i++) {
+            int slot = (index + i) & mMask;
+            out[offset + i] = (T) mItems[slot];
+            mItems[slot] = null;
+        }
+        if (n > 0) {
+            commitRead(n);
+        }
+        return n;
+    }
+}
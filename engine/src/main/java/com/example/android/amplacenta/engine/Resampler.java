@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * Converts one channel of 16-bit audio from one sample rate to another by linear
+ * interpolation. Blocks are processed one after the other with the position carried
+ * across, so a stream can be fed in pieces of any size. Linear interpolation is cheap
+ * rather than pristine, which suits the small rate differences it is used for, such as
+ * 44.1 kHz files in a 48 kHz party. Does not allocate.
+ */
+public class Resampler {
+
+    // Fractional bits of the fixed-point read position
+    private static final int FRACTION_BITS = 16;
+    private static final long FRACTION_MASK = (1L << FRACTION_BITS) - 1;
+
+    private final int mInRate;
+    private final int mOutRate;
+    private final long mStep;
+
+    // Read position relative to the start of the next input block; -1 means between the
+    // last sample of the previous block and the first one of the next
+    private long mPosition;
+    private int mLast;
+
+    public Resampler(int inRate, int outRate) {
+        mInRate = inRate;
+        mOutRate = outRate;
+        mStep = ((long) inRate << FRACTION_BITS) / outRate;
+    }
+
+    public int getInRate() {
+        return mInRate;
+    }
+
+    public int getOutRate() {
+        return mOutRate;
+    }
+
+    /**
+     * Return the most samples {@link #process} can produce from {@code inCount} samples.
+     */
+    public int maxOutput(int inCount) {
+        return (int) (((long) inCount << FRACTION_BITS) / mStep) + 2;
+    }
+
+    /**
+     * Resample the next {@code inCount} samples of the stream.
+     *
+     * @return The number of samples written to {@code out}
+     */
+    public int process(short[] in, int inOffset, int inCount, short[] out, int outOffset) {
+        if (inCount == 0) {
+            return 0;
+        }
+        long position = mPosition;
+        int last = mLast;
+        int o = outOffset;
+        while (true) {
+            int i = (int) (position >> FRACTION_BITS);
+            if (i + 1 >= inCount) {
+                break;
+            }
+            int a = i < 0 ? last : in[inOffset + i];
+            int b = in[inOffset + i + 1];
+            int fraction = (int) (position & FRACTION_MASK);
+            out[o++] = (short) (a + ((b - a) * fraction >> FRACTION_BITS));
+            position += mStep;
+        }
+        mLast = in[inOffset + inCount - 1];
+        mPosition = position - ((long) inCount << FRACTION_BITS);
+        return o - outOffset;
+    }
+
+    /**
+     * Forget the stream so far, for instance before the next track.
+     */
+    public void reset() {
+        mPosition = 0;
+        mLast = 0;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Where in a compressed stream each of a series of samples starts: pairs of a sample and
+ * the byte offset of the frame that starts with it, in increasing order. A seek goes to
+ * the last point at or before the sample wanted and reads on from there.
+ * <p>
+ * An index can be saved next to, or on behalf of, the file it indexes, as the differences
+ * between points in variable-length bytes: a few bytes a point. It records the length and
+ * modification time of the file, and is not loaded once they change.
+ */
+public class SeekIndex {
+
+    // "AMSI", and the version of the format
+    private static final int MAGIC = 0x414d5349;
+    private static final int VERSION = 1;
+
+    private final long[] mSamples;
+    private final long[] mOffsets;
+
+    /**
+     * @param samples The first sample of each point, increasing
+     * @param offsets The byte offset of each point
+     * @param count   The number of points to take from the arrays
+     */
+    public SeekIndex(long[] samples, long[] offsets, int count) {
+        mSamples = Arrays.copyOf(samples, count);
+        mOffsets = Arrays.copyOf(offsets, count);
+    }
+
+    public int size() {
+        return mSamples.length;
+    }
+
+    public long getSample(int point) {
+        return mSamples[point];
+    }
+
+    public long getOffset(int point) {
+        return mOffsets[point];
+    }
+
+    /**
+     * Return the last point at or before a sample, or -1 if there is none.
+     */
+    public int find(long sample) {
+        int i = Arrays.binarySearch(mSamples, sample);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Return the most samples between two points, or from the start of the stream to the
+     * first point, or from the last point to {@code totalSamples}.
+     */
+    public long getLargestGap(long totalSamples) {
+        long previous = 0;
+        long gap = 0;
+        for (long sample : mSamples) {
+            gap = Math.max(gap, sample - previous);
+            previous = sample;
+        }
+        return Math.max(gap, totalSamples - previous);
+    }
+
+    /**
+     * Write the index to a file, replacing it whole or not at all.
+     *
+     * @param source The file indexed
+     */
+    public void save(File file, File source) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(mSamples.length);
+            long sample = 0;
+            long offset = 0;
+            for (int i = 0; i < mSamples.length; i++) {
+                writeVarint(out, mSamples[i] - sample);
+                writeVarint(out, mOffsets[i] - offset);
+                sample = mSamples[i];
+                offset = mOffsets[i];
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    /**
+     * Read an index written by {@link #save(File, File)}.
+     *
+     * @param source The file indexed
+     * @return The index, or null if there is none, or the file has changed since
+     */
+    public static SeekIndex load(File file, File source) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                        || in.readLong() != source.length()
+                        || in.readLong() != source.lastModified()) {
+                    return null;
+                }
+                int count = in.readInt();
+                if (count < 0) {
+                    return null;
+                }
+                long[] samples = new long[count];
+                long[] offsets = new long[count];
+                long sample = 0;
+                long offset = 0;
+                for (int i = 0; i < count; i++) {
+                    sample += readVarint(in);
+                    offset += readVarint(in);
+                    samples[i] = sample;
+                    offsets[i] = offset;
+                }
+                return new SeekIndex(samples, offsets, count);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Truncated or unreadable; it will be built again
+            return null;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Bad varint");
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.io.IOException;
+
+/**
+ * A {@link PcmSource} of known length that can be moved around in, such as a file. Safe to
+ * seek from another thread while it is being read.
+ */
+public interface SeekablePcmSource extends PcmSource {
+
+    /**
+     * Return the length of the source, in sample frames, or 0 if unknown.
+     */
+    public long getLengthFrames();
+
+    /**
+     * Return the sample frame the next {@link #read(AudioBlock)} starts at.
+     */
+    public long getPosition();
+
+    /**
+     * Move the read position.
+     *
+     * @param position The sample frame to read next
+     */
+    public void seek(long position) throws IOException;
+}
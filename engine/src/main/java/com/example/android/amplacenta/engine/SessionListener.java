@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * Callbacks from a {@link HostSession} or {@link GuestSession}, made on the session's own
+ * threads.
+ */
+public interface SessionListener {
+
+    public void onStateChanged(int state);
+
+    /**
+     * A remote device joined: a guest for the host, the host for a guest.
+     */
+    public void onConnected(String name);
+
+    public void onConnectionFailed();
+
+    public void onConnectionLost(String name);
+
+    /**
+     * A chat message arrived. {@code buffer} is reused once this returns.
+     */
+    public void onTextReceived(byte[] buffer, int length);
+
+    public void onTextSent(byte[] buffer);
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * A ring of 16-bit samples, one channel's, that one thread writes and another reads in
+ * batches. A batch is at most two {@link System#arraycopy} calls: up to the end of the
+ * array, and on from its start.
+ *
+ * @see SpscRing
+ */
+public class ShortRing extends SpscRing {
+
+    private final short[] mItems;
+
+    /**
+     * @param capacity The least the ring must hold, rounded up to a power of two
+     */
+    public ShortRing(int capacity) {
+        super(capacity);
+        mItems = new short[mCapacity];
+    }
+
+    /**
+     * On the writing thread, copy in as many of {@code count} samples as there is room for.
+     *
+     * @return The samples written
+     */
+    public int write(short[] in, int offset, int count) {
+        int n = writable(count);
+        if (n > 0) {
+            int index = writeIndex();
+            int first = Math.min(n, mCapacity - index);
+            System.arraycopy(in, offset, mItems, index, first);
+            System.arraycopy(in, offset + first, mItems, 0, n - first);
+            commitWrite(n);
+        }
+        return n;
+    }
+
+    /**
+     * On the reading thread, copy out as many of {@code count} samples as are waiting.
+     *
+     * @return The samples read
+     */
+    public int read(short[] out, int offset, int count) {
+        int n = readable(count);
+        if (n > 0) {
+            int index = readIndex();
+            int first = Math.min(n, mCapacity - index);
+            System.arraycopy(mItems, index, out, offset, first);
+            System.arraycopy(mItems, 0, out, offset + first, n - first);
+            commitRead(n);
+        }
+        return n;
+    }
+}
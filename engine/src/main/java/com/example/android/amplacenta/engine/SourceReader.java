@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+
+/**
+ * Reads a {@link PcmSource} in another format than its own, and in pieces of any size:
+ * resampled if its rate differs, and its channels mapped, a mono source to every channel.
+ * Converted samples wait in a buffer, which can be filled ahead with {@link #prime()}.
+ * Does not allocate once created.
+ */
+class SourceReader {
+    // Debugging
+    private static final String TAG = "SourceReader";
+
+    // Sample frames read from the source at a time
+    private static final int READ_FRAMES = 1024;
+
+    private final PcmSource mSource;
+    private final AudioBlock mIn;
+    private final Resampler[] mResamplers;
+    private final int[] mChannelMap;
+
+    // Converted sample frames not yet read, from mStart to mEnd
+    private final short[][] mBuffer;
+    private int mStart;
+    private int mEnd;
+    private boolean mEnded;
+
+    /**
+     * @param format     The format to read in
+     * @param headFrames How many sample frames {@link #prime()} converts ahead
+     */
+    SourceReader(PcmSource source, PcmFormat format, int headFrames) {
+        mSource = source;
+        PcmFormat in = source.getFormat();
+        mIn = new AudioBlock(in.channels, READ_FRAMES);
+        int converted = READ_FRAMES;
+        if (in.sampleRate != format.sampleRate) {
+            mResamplers = new Resampler[format.channels];
+            for (int c = 0; c < format.channels; c++) {
+                mResamplers[c] = new Resampler(in.sampleRate, format.sampleRate);
+            }
+            converted = mResamplers[0].maxOutput(READ_FRAMES);
+        } else {
+            mResamplers = null;
+        }
+        mChannelMap = new int[format.channels];
+        for (int c = 0; c < format.channels; c++) {
+            mChannelMap[c] = Math.min(c, in.channels - 1);
+        }
+        mBuffer = new short[format.channels][headFrames + converted];
+    }
+
+    PcmSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * Convert the head of the source into the buffer.
+     */
+    void prime() throws IOException {
+        while (!mEnded && mEnd < mBuffer[0].length - maxConverted()) {
+            readMore();
+        }
+    }
+
+    /**
+     * Copy up to {@code count} sample frames into {@code out} at {@code offset}.
+     *
+     * @return The frames copied, fewer than asked for only at the end of the source
+     */
+    int fill(short[][] out, int offset, int count) throws IOException {
+        int channels = Math.min(out.length, mBuffer.length);
+        int copied = 0;
+        while (copied < count) {
+            if (mStart == mEnd) {
+                if (mEnded) {
+                    break;
+                }
+                mStart = 0;
+                mEnd = 0;
+                readMore();
+                continue;
+            }
+            int n = Math.min(count - copied, mEnd - mStart);
+            for (int c = 0; c < channels; c++) {
+                System.arraycopy(mBuffer[c], mStart, out[c], offset + copied, n);
+            }
+            mStart += n;
+            copied += n;
+        }
+        return copied;
+    }
+
+    /**
+     * Forget what was converted ahead, after the source has moved.
+     */
+    void flush() {
+        mStart = 0;
+        mEnd = 0;
+        mEnded = false;
+        if (mResamplers != null) {
+            for (Resampler resampler : mResamplers) {
+                resampler.reset();
+            }
+        }
+    }
+
+    private int maxConverted() {
+        return mResamplers != null ? mResamplers[0].maxOutput(READ_FRAMES) : READ_FRAMES;
+    }
+
+    /**
+     * Read one block from the source and append it, converted, to the buffer.
+     */
+    private void readMore() throws IOException {
+        int n = mSource.read(mIn);
+        if (n < 0) {
+            mEnded = true;
+            return;
+        }
+        int written = n;
+        for (int c = 0; c < mBuffer.length; c++) {
+            short[] in = mIn.samples[mChannelMap[c]];
+            if (mResamplers != null) {
+                written = mResamplers[c].process(in, 0, n, mBuffer[c], mEnd);
+            } else {
+                System.arraycopy(in, 0, mBuffer[c], mEnd, n);
+            }
+        }
+        mEnd += written;
+    }
+
+    void close() {
+        try {
+            mSource.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of source failed", e);
+        }
+    }
+}
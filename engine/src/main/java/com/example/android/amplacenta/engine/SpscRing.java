@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * The indexes of a ring buffer that one thread writes and another reads, without locks:
+ * {@link ShortRing} and {@link FloatRing} for samples, {@link RefRing} for blocks or
+ * frames. Each thread owns one index and only reads the other's, so a hand-off is a plain
+ * copy into the array and an ordered store of the index, where a
+ * {@link java.util.concurrent.BlockingQueue} takes a lock and may wake a thread. Neither
+ * side ever waits; a full ring writes less than it was given and an empty one reads
+ * nothing, and the caller decides how to wait.
+ * <p>
+ * The two indexes sit on cache lines of their own, padded apart by the classes below,
+ * since the JVM lays out a class's fields after its superclass's but in any order within
+ * one class. Each side also keeps the last value it saw of the other's index, and only
+ * reads the shared one again once that runs out, so that the lines move between cores
+ * once per batch rather than once per item.
+ */
+public abstract class SpscRing extends RingPad2 {
+
+    private static final AtomicLongFieldUpdater<RingWriteIndex> WRITE =
+            AtomicLongFieldUpdater.newUpdater(RingWriteIndex.class, "mWrite");
+    private static final AtomicLongFieldUpdater<RingReadIndex> READ =
+            AtomicLongFieldUpdater.newUpdater(RingReadIndex.class, "mRead");
+
+    protected final int mCapacity;
+    protected final int mMask;
+
+    /**
+     * @param capacity The least the ring must hold, rounded up to a power of two
+     */
+    protected SpscRing(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Bad capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        mCapacity = size == capacity ? size : size << 1;
+        mMask = mCapacity - 1;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Return how many items are waiting to be read. Exact only on the reading thread, and
+     * there only a lower bound.
+     */
+    public int size() {
+        return (int) (mWrite - mRead);
+    }
+
+    public boolean isEmpty() {
+        return mWrite == mRead;
+    }
+
+    /**
+     * On the writing thread, return how many of {@code count} items there is room for now.
+     */
+    protected final int writable(int count) {
+        long free = mCapacity - (mWrite - mCachedRead);
+        if (free < count) {
+            mCachedRead = mRead;
+            free = mCapacity - (mWrite - mCachedRead);
+        }
+        return (int) Math.min(free, count);
+    }
+
+    /**
+     * On the reading thread, return how many of {@code count} items can be read now.
+     */
+    protected final int readable(int count) {
+        long available = mCachedWrite - mRead;
+        if (available < count) {
+            mCachedWrite = mWrite;
+            available = mCachedWrite - mRead;
+        }
+        return (int) Math.min(available, count);
+    }
+
+    /**
+     * On the writing thread, where in the array the next item goes.
+     */
+    protected final int writeIndex() {
+        return (int) mWrite & mMask;
+    }
+
+    /**
+     * On the reading thread, where in the array the next item is.
+     */
+    protected final int readIndex() {
+        return (int) mRead & mMask;
+    }
+
+    /**
+     * On the writing thread, hand over the {@code count} items written to the array. The
+     * reader sees them once it sees the new index.
+     */
+    protected final void commitWrite(int count) {
+        WRITE.lazySet(this, mWrite + count);
+    }
+
+    /**
+     * On the reading thread, give back the room of the {@code count} items read.
+     */
+    protected final void commitRead(int count) {
+        READ.lazySet(this, mRead + count);
+    }
+}
+
+/**
+ * Keeps the write index off the cache line of whatever comes before the ring.
+ */
+abstract class RingPad0 {
+    long mPad00, mPad01, mPad02, mPad03, mPad04, mPad05, mPad06, mPad07;
+    long mPad08, mPad09, mPad0a, mPad0b, mPad0c, mPad0d, mPad0e;
+}
+
+/**
+ * The writer's index, and what it last saw of the reader's.
+ */
+abstract class RingWriteIndex extends RingPad0 {
+    volatile long mWrite;
+    long mCachedRead;
+}
+
+abstract class RingPad1 extends RingWriteIndex {
+    long mPad10, mPad11, mPad12, mPad13, mPad14, mPad15, mPad16, mPad17;
+    long mPad18, mPad19, mPad1a, mPad1b, mPad1c, mPad1d, mPad1e;
+}
+
+/**
+ * The reader's index, and what it last saw of the writer's.
+ */
+abstract class RingReadIndex extends RingPad1 {
+    volatile long mRead;
+    long mCachedWrite;
+}
+
+abstract class RingPad2 extends RingReadIndex {
+    long mPad20, mPad21, mPad22, mPad23, mPad24, mPad25, mPad26, mPad27;
+    long mPad28, mPad29, mPad2a, mPad2b, mPad2c, mPad2d, mPad2e;
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine;
+
+/**
+ * A {@link PcmSource} of sine tones, one pitch per channel, so that a listener (or a
+ * test) can tell the channels apart. Computed with a rotating phasor rather than
+ * {@link Math#sin(double)} per sample, and never allocates.
+ */
+public class ToneSource implements PcmSource {
+
+    // Pitch of the first channel; each further channel is a fifth above the previous one
+    public static final double BASE_FREQUENCY = 440.0;
+
+    private static final double AMPLITUDE = 0.25 * Short.MAX_VALUE;
+
+    private final PcmFormat mFormat;
+    private final long mLengthFrames;
+    private final double[] mCos;
+    private final double[] mSin;
+    private final double[] mRe;
+    private final double[] mIm;
+    private long mPosition;
+
+    /**
+     * @param format       Rate and channel count of the tone
+     * @param lengthFrames Sample frames before the end of the source, or -1 for endless
+     */
+    public ToneSource(PcmFormat format, long lengthFrames) {
+        mFormat = format;
+        mLengthFrames = lengthFrames;
+        int channels = format.channels;
+        mCos = new double[channels];
+        mSin = new double[channels];
+        mRe = new double[channels];
+        mIm = new double[channels];
+        double frequency = BASE_FREQUENCY;
+        for (int c = 0; c < channels; c++) {
+            double step = 2 * Math.PI * frequency / format.sampleRate;
+            mCos[c] = Math.cos(step);
+            mSin[c] = Math.sin(step);
+            mRe[c] = 1;
+            frequency *= 1.5;
+        }
+    }
+
+    @Override
+    public PcmFormat getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public int read(AudioBlock block) {
+        int frames = block.capacity();
+        if (mLengthFrames >= 0) {
+            if (mPosition >= mLengthFrames) {
+                return -1;
+            }
+            frames = (int) Math.min(frames, mLengthFrames - mPosition);
+        }
+        for (int c = 0; c < block.channels(); c++) {
+            short[] out = block.samples[c];
+            double re = mRe[c];
+            double im = mIm[c];
+            double cos = mCos[c];
+            double sin = mSin[c];
+            for (int i = 0; i < frames; i++) {
+                out[i] = (short) (im * AMPLITUDE);
+                double r = re * cos - im * sin;
+                im = re * sin + im * cos;
+                re = r;
+            }
+            // Keep rounding errors from growing the amplitude
+            double norm = 1 / Math.sqrt(re * re + im * im);
+            mRe[c] = re * norm;
+            mIm[c] = im * norm;
+        }
+        block.frames = frames;
+        block.position = mPosition;
+        mPosition += frames;
+        return frames;
+    }
+
+    @Override
+    public void close() {
+    }
+}
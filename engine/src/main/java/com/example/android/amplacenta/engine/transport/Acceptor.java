@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The listening end of a {@link Transport}.
+ */
+public interface Acceptor extends Closeable {
+
+    /**
+     * Wait for the next incoming connection. This is a blocking call and will only
+     * return on a successful connection or an exception, including the acceptor being
+     * closed from another thread.
+     */
+    public Connection accept() throws IOException;
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps another {@link Transport} and makes its connections behave like a Bluetooth link
+ * described by a {@link LinkProfile}. Both directions of every connection are shaped:
+ * bytes are held back for their transmission time at the profile's bandwidth, retransmit
+ * and stall delays, then delivered after the latency plus jitter, in order. Writers block
+ * once the send buffer is full, and the connection is dropped at random if the profile
+ * says so.
+ * <p>
+ * All random decisions come from a seed, so the same seed gives the same stalls, losses
+ * and disconnects for the same traffic. Connection {@code n} (counting from 0, in the
+ * order they are made) draws from {@code seed + n}.
+ */
+public class EmulatedTransport implements Transport {
+
+    // Largest chunk the inbound pump moves at once
+    private static final int PUMP_BUFFER_SIZE = 4096;
+
+    private final Transport mTransport;
+    private final LinkProfile mProfile;
+    private final long mSeed;
+    private final AtomicInteger mConnections = new AtomicInteger();
+
+    public EmulatedTransport(Transport transport, LinkProfile profile, long seed) {
+        mTransport = transport;
+        mProfile = profile;
+        mSeed = seed;
+    }
+
+    public LinkProfile getProfile() {
+        return mProfile;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        final Acceptor acceptor = mTransport.listen();
+        return new Acceptor() {
+            @Override
+            public Connection accept() throws IOException {
+                return wrap(acceptor.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                acceptor.close();
+            }
+        };
+    }
+
+    @Override
+    public String getListenAddress() {
+        return mTransport.getListenAddress();
+    }
+
+    @Override
+    public Connection connect(String address) throws IOException {
+        return wrap(mTransport.connect(address));
+    }
+
+    private Connection wrap(Connection connection) throws IOException {
+        Random random = new Random(mSeed + mConnections.getAndIncrement());
+        return new EmulatedConnection(connection, mProfile, random);
+    }
+
+    /**
+     * A connection with a {@link Shaper} in each direction. Outgoing bytes go through one
+     * shaper to the real connection; incoming bytes are pumped from the real connection
+     * through the other into a pipe the caller reads from.
+     */
+    private static class EmulatedConnection implements Connection {
+        private final Connection mConnection;
+        private final Shaper mOut;
+        private final Shaper mIn;
+        private final Pipe mInPipe;
+
+        private final OutputStream mOutStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                mOut.send(b, off, len);
+            }
+        };
+
+        EmulatedConnection(Connection connection, LinkProfile profile, Random random)
+                throws IOException {
+            mConnection = connection;
+            long disconnectAt = Long.MAX_VALUE;
+            if (profile.meanSecondsBetweenDisconnects > 0) {
+                disconnectAt = System.nanoTime()
+                        + exponential(random, profile.meanSecondsBetweenDisconnects * 1e9);
+            }
+            mInPipe = new Pipe(profile.sendBufferBytes * 4);
+            mOut = new Shaper("LinkOut", connection.getOutputStream(), profile,
+                    new Random(random.nextLong()), disconnectAt, this);
+            mIn = new Shaper("LinkIn", mInPipe.getOutputStream(), profile,
+                    new Random(random.nextLong()), Long.MAX_VALUE, null);
+            mOut.start();
+            mIn.start();
+
+            final InputStream in = connection.getInputStream();
+            Thread pump = new Thread("LinkPump") {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[PUMP_BUFFER_SIZE];
+                    try {
+                        int n;
+                        while ((n = in.read(buffer)) >= 0) {
+                            mIn.send(buffer, 0, n);
+                        }
+                    } catch (IOException e) {
+                        // Same as the end of the stream for the reader
+                    }
+                    mIn.finish();
+                }
+            };
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mInPipe.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutStream;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mConnection.getRemoteName();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mConnection.getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.shutdown();
+            mIn.shutdown();
+            mInPipe.close();
+            mConnection.close();
+        }
+    }
+
+    /**
+     * Draw from an exponential distribution with the given mean.
+     */
+    static long exponential(Random random, double mean) {
+        return (long) (-Math.log(1 - random.nextDouble()) * mean);
+    }
+
+    /**
+     * One direction of a link. Writers queue chunks stamped with the time they are due on
+     * the far side; the thread delivers each one to the target when it is due.
+     */
+    private static class Shaper extends Thread {
+        // A retransmitted chunk can be lost again, but not forever
+        private static final int MAX_RETRANSMITS = 8;
+
+        private static class Chunk {
+            byte[] data = new byte[0];
+            int length;
+            long deliverAt;
+        }
+
+        private final OutputStream mTarget;
+        private final LinkProfile mProfile;
+        private final Random mRandom;
+        private final long mDisconnectAt;
+        private final Closeable mOnDisconnect;
+
+        private final ArrayDeque<Chunk> mQueue = new ArrayDeque<>();
+        private final ArrayDeque<Chunk> mFree = new ArrayDeque<>();
+        private int mQueuedBytes;
+        private long mLinkFreeAt;
+        private long mLastDeliverAt;
+        private long mNextStallAt;
+        private boolean mShutdown;
+        private boolean mFinishing;
+        private IOException mFailure;
+
+        Shaper(String name, OutputStream target, LinkProfile profile, Random random,
+               long disconnectAt, Closeable onDisconnect) {
+            super(name);
+            setDaemon(true);
+            mTarget = target;
+            mProfile = profile;
+            mRandom = random;
+            mDisconnectAt = disconnectAt;
+            mOnDisconnect = onDisconnect;
+            if (profile.stallsPerSecond > 0) {
+                mNextStallAt = System.nanoTime() + exponential(random, 1e9 / profile.stallsPerSecond);
+            }
+        }
+
+        /**
+         * Queue bytes for delivery, blocking while the send buffer is full.
+         */
+        synchronized void send(byte[] b, int off, int len) throws IOException {
+            try {
+                while (mFailure == null && !mShutdown && mQueuedBytes > 0
+                        && mQueuedBytes + len > mProfile.sendBufferBytes) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            if (mShutdown || mFinishing) {
+                throw new IOException("Link closed");
+            }
+
+            Chunk chunk = mFree.isEmpty() ? new Chunk() : mFree.poll();
+            if (chunk.data.length < len) {
+                chunk.data = new byte[len];
+            }
+            System.arraycopy(b, off, chunk.data, 0, len);
+            chunk.length = len;
+            chunk.deliverAt = schedule(len, System.nanoTime());
+            mQueue.add(chunk);
+            mQueuedBytes += len;
+            notifyAll();
+        }
+
+        /**
+         * Work out when a chunk queued now arrives on the far side.
+         */
+        private long schedule(int length, long now) {
+            LinkProfile p = mProfile;
+            long start = Math.max(now, mLinkFreeAt);
+
+            // The link is blocked for the duration of any stall that overlaps the chunk
+            while (p.stallsPerSecond > 0 && start >= mNextStallAt) {
+                long stall = p.stallMinNanos
+                        + (long) (mRandom.nextDouble() * (p.stallMaxNanos - p.stallMinNanos));
+                start = Math.max(start, mNextStallAt + stall);
+                mNextStallAt += stall + exponential(mRandom, 1e9 / p.stallsPerSecond);
+            }
+
+            long transmit = p.bitsPerSecond > 0 ? length * 8000000000L / p.bitsPerSecond : 0;
+            for (int i = 0; i < MAX_RETRANSMITS && p.lossRate > 0
+                    && mRandom.nextDouble() < p.lossRate; i++) {
+                transmit += p.retransmitNanos;
+            }
+            mLinkFreeAt = start + transmit;
+
+            long deliverAt = mLinkFreeAt + p.latencyNanos;
+            if (p.jitterNanos > 0) {
+                deliverAt += (long) (Math.abs(mRandom.nextGaussian()) * p.jitterNanos);
+            }
+            // Jitter must not reorder a stream
+            deliverAt = Math.max(deliverAt, mLastDeliverAt);
+            mLastDeliverAt = deliverAt;
+            return deliverAt;
+        }
+
+        /**
+         * Deliver what is queued, then close the target.
+         */
+        synchronized void finish() {
+            mFinishing = true;
+            notifyAll();
+        }
+
+        /**
+         * Stop at once, dropping anything queued.
+         */
+        synchronized void shutdown() {
+            mShutdown = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Chunk chunk;
+                synchronized (this) {
+                    try {
+                        chunk = next();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                if (chunk == null) {
+                    break;
+                }
+                try {
+                    mTarget.write(chunk.data, 0, chunk.length);
+                    mTarget.flush();
+                } catch (IOException e) {
+                    synchronized (this) {
+                        mFailure = e;
+                        notifyAll();
+                    }
+                    break;
+                }
+                synchronized (this) {
+                    mQueuedBytes -= chunk.length;
+                    mFree.add(chunk);
+                    notifyAll();
+                }
+            }
+
+            synchronized (this) {
+                if (mFailure == null) {
+                    mFailure = new IOException("Link closed");
+                }
+                notifyAll();
+            }
+            if (mFinishing || System.nanoTime() >= mDisconnectAt) {
+                close(mOnDisconnect != null ? mOnDisconnect : mTarget);
+            }
+        }
+
+        /**
+         * Wait for the head chunk to fall due and take it. Must hold the lock.
+         *
+         * @return The chunk, or null if the thread should stop
+         */
+        private Chunk next() throws InterruptedException {
+            while (true) {
+                long now = System.nanoTime();
+                if (mShutdown || now >= mDisconnectAt) {
+                    return null;
+                }
+                Chunk head = mQueue.peek();
+                if (head == null && mFinishing) {
+                    return null;
+                }
+                long until = head != null ? Math.min(head.deliverAt, mDisconnectAt) : mDisconnectAt;
+                if (head != null && now >= head.deliverAt) {
+                    return mQueue.poll();
+                }
+                long wait = until - now;
+                if (wait >= Long.MAX_VALUE / 2) {
+                    wait();
+                } else {
+                    wait(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+        }
+
+        private static void close(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing more to deliver either way
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine.transport;
+
+/**
+ * The conditions an {@link EmulatedTransport} reproduces: bandwidth, latency and jitter,
+ * bursty stalls, loss and disconnects. Profiles are immutable; build custom ones with
+ * {@link Builder}.
+ * <p>
+ * RFCOMM is a reliable stream, so nothing is ever dropped from the stream: a lost chunk
+ * is retransmitted, and costs time instead.
+ */
+public class LinkProfile {
+
+    /**
+     * No shaping at all.
+     */
+    public static final LinkProfile IDEAL = new Builder("ideal").build();
+
+    /**
+     * A guest in the same room with little else on the air.
+     */
+    public static final LinkProfile GOOD = new Builder("good")
+            .bitsPerSecond(1500000)
+            .latencyMs(5).jitterMs(2)
+            .stalls(0.05, 10, 40)
+            .lossRate(0.005)
+            .build();
+
+    /**
+     * A busy 2.4 GHz band: Wi-Fi, other headsets, a few guests sharing the host's radio.
+     */
+    public static final LinkProfile CROWDED = new Builder("crowded")
+            .bitsPerSecond(600000)
+            .latencyMs(15).jitterMs(8)
+            .stalls(0.5, 10, 100)
+            .lossRate(0.03)
+            .meanSecondsBetweenDisconnects(600)
+            .build();
+
+    /**
+     * A guest at the edge of range, or behind a wall.
+     */
+    public static final LinkProfile EDGE = new Builder("edge")
+            .bitsPerSecond(250000)
+            .latencyMs(30).jitterMs(20)
+            .stalls(2, 20, 100)
+            .lossRate(0.08)
+            .meanSecondsBetweenDisconnects(120)
+            .build();
+
+    private static final LinkProfile[] PRESETS = {IDEAL, GOOD, CROWDED, EDGE};
+
+    public final String name;
+
+    // 0 for unlimited
+    public final long bitsPerSecond;
+
+    public final long latencyNanos;
+    public final long jitterNanos;
+
+    // Stalls arrive at random at this mean rate, each lasting between min and max
+    public final double stallsPerSecond;
+    public final long stallMinNanos;
+    public final long stallMaxNanos;
+
+    // Chance of each chunk needing another transmission, and what one costs
+    public final double lossRate;
+    public final long retransmitNanos;
+
+    // 0 for never
+    public final double meanSecondsBetweenDisconnects;
+
+    // Bytes a writer can queue before it blocks, like a socket's send buffer
+    public final int sendBufferBytes;
+
+    private LinkProfile(Builder b) {
+        name = b.mName;
+        bitsPerSecond = b.mBitsPerSecond;
+        latencyNanos = b.mLatencyNanos;
+        jitterNanos = b.mJitterNanos;
+        stallsPerSecond = b.mStallsPerSecond;
+        stallMinNanos = b.mStallMinNanos;
+        stallMaxNanos = b.mStallMaxNanos;
+        lossRate = b.mLossRate;
+        retransmitNanos = b.mRetransmitNanos;
+        meanSecondsBetweenDisconnects = b.mMeanSecondsBetweenDisconnects;
+        sendBufferBytes = b.mSendBufferBytes;
+    }
+
+    /**
+     * Return the preset with the given name, or null if there is none.
+     */
+    public static LinkProfile forName(String name) {
+        for (LinkProfile profile : PRESETS) {
+            if (profile.name.equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + (bitsPerSecond == 0 ? "unlimited" : bitsPerSecond / 1000 + "kbit/s")
+                + ", " + latencyNanos / 1000000 + "+-" + jitterNanos / 1000000 + "ms"
+                + ", " + stallsPerSecond + " stalls/s, loss " + lossRate + ")";
+    }
+
+    /**
+     * Builds a {@link LinkProfile}. Everything not set is ideal.
+     */
+    public static class Builder {
+        private final String mName;
+        private long mBitsPerSecond;
+        private long mLatencyNanos;
+        private long mJitterNanos;
+        private double mStallsPerSecond;
+        private long mStallMinNanos;
+        private long mStallMaxNanos;
+        private double mLossRate;
+        private long mRetransmitNanos = 5000000L;
+        private double mMeanSecondsBetweenDisconnects;
+        private int mSendBufferBytes = 16 * 1024;
+
+        public Builder(String name) {
+            mName = name;
+        }
+
+        public Builder(LinkProfile base, String name) {
+            mName = name;
+            mBitsPerSecond = base.bitsPerSecond;
+            mLatencyNanos = base.latencyNanos;
+            mJitterNanos = base.jitterNanos;
+            mStallsPerSecond = base.stallsPerSecond;
+            mStallMinNanos = base.stallMinNanos;
+            mStallMaxNanos = base.stallMaxNanos;
+            mLossRate = base.lossRate;
+            mRetransmitNanos = base.retransmitNanos;
+            mMeanSecondsBetweenDisconnects = base.meanSecondsBetweenDisconnects;
+            mSendBufferBytes = base.sendBufferBytes;
+        }
+
+        public Builder bitsPerSecond(long bitsPerSecond) {
+            mBitsPerSecond = bitsPerSecond;
+            return this;
+        }
+
+        public Builder latencyMs(int latencyMs) {
+            mLatencyNanos = latencyMs * 1000000L;
+            return this;
+        }
+
+        public Builder jitterMs(int jitterMs) {
+            mJitterNanos = jitterMs * 1000000L;
+            return this;
+        }
+
+        public Builder stalls(double perSecond, int minMs, int maxMs) {
+            mStallsPerSecond = perSecond;
+            mStallMinNanos = minMs * 1000000L;
+            mStallMaxNanos = Math.max(minMs, maxMs) * 1000000L;
+            return this;
+        }
+
+        public Builder lossRate(double lossRate) {
+            mLossRate = lossRate;
+            return this;
+        }
+
+        public Builder retransmitMs(int retransmitMs) {
+            mRetransmitNanos = retransmitMs * 1000000L;
+            return this;
+        }
+
+        public Builder meanSecondsBetweenDisconnects(double seconds) {
+            mMeanSecondsBetweenDisconnects = seconds;
+            return this;
+        }
+
+        public Builder sendBufferBytes(int bytes) {
+            mSendBufferBytes = bytes;
+            return this;
+        }
+
+        public LinkProfile build() {
+            return new LinkProfile(this);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link Transport} between sessions in the same process, over in-memory pipes. Every
+ * endpoint of a {@link Network} has a name, which is also its address:
+ * <pre>
+ * LoopbackTransport.Network network = new LoopbackTransport.Network();
+ * HostSession host = new HostSession(network.endpoint("host"), ...);
+ * GuestSession guest = new GuestSession(network.endpoint("guest-1"), ...);
+ * guest.start();
+ * host.connect("guest-1");
+ * </pre>
+ */
+public class LoopbackTransport implements Transport {
+
+    // Bytes buffered in each direction of a connection
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    /**
+     * The endpoints that can reach each other.
+     */
+    public static class Network {
+        private final Map<String, LoopbackAcceptor> mListeners = new HashMap<>();
+        private final int mPipeCapacity;
+
+        public Network() {
+            this(DEFAULT_PIPE_CAPACITY);
+        }
+
+        public Network(int pipeCapacity) {
+            mPipeCapacity = pipeCapacity;
+        }
+
+        /**
+         * Return the transport of the endpoint with the given address.
+         */
+        public LoopbackTransport endpoint(String address) {
+            return new LoopbackTransport(this, address);
+        }
+
+        synchronized void register(String address, LoopbackAcceptor acceptor) throws IOException {
+            if (mListeners.containsKey(address)) {
+                throw new IOException(address + " is already listening");
+            }
+            mListeners.put(address, acceptor);
+        }
+
+        synchronized void unregister(String address, LoopbackAcceptor acceptor) {
+            if (mListeners.get(address) == acceptor) {
+                mListeners.remove(address);
+            }
+        }
+
+        synchronized LoopbackAcceptor lookup(String address) {
+            return mListeners.get(address);
+        }
+    }
+
+    private final Network mNetwork;
+    private final String mAddress;
+
+    private LoopbackTransport(Network network, String address) {
+        mNetwork = network;
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        LoopbackAcceptor acceptor = new LoopbackAcceptor();
+        mNetwork.register(mAddress, acceptor);
+        return acceptor;
+    }
+
+    @Override
+    public String getListenAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public Connection connect(String address) throws IOException {
+        LoopbackAcceptor acceptor = mNetwork.lookup(address);
+        if (acceptor == null) {
+            throw new IOException("Nobody listening at " + address);
+        }
+        Pipe up = new Pipe(mNetwork.mPipeCapacity);
+        Pipe down = new Pipe(mNetwork.mPipeCapacity);
+        acceptor.offer(new LoopbackConnection(up, down, mAddress));
+        return new LoopbackConnection(down, up, address);
+    }
+
+    /**
+     * Queue of connections waiting to be accepted.
+     */
+    private class LoopbackAcceptor implements Acceptor {
+        private final ArrayDeque<Connection> mPending = new ArrayDeque<>();
+        private boolean mClosed;
+
+        synchronized void offer(Connection connection) throws IOException {
+            if (mClosed) {
+                throw new IOException("Connection refused");
+            }
+            mPending.add(connection);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized Connection accept() throws IOException {
+            try {
+                while (mPending.isEmpty()) {
+                    if (mClosed) {
+                        throw new IOException("Acceptor closed");
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return mPending.poll();
+        }
+
+        @Override
+        public void close() {
+            mNetwork.unregister(mAddress, this);
+            synchronized (this) {
+                mClosed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * One end of a connection: reads from one pipe and writes to the other.
+     */
+    private static class LoopbackConnection implements Connection {
+        private final Pipe mIn;
+        private final Pipe mOut;
+        private final String mRemoteAddress;
+
+        LoopbackConnection(Pipe in, Pipe out, String remoteAddress) {
+            mIn = in;
+            mOut = out;
+            mRemoteAddress = remoteAddress;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mIn.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOut.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public void close() {
+            mIn.close();
+            mOut.close();
+        }
+    }
+}
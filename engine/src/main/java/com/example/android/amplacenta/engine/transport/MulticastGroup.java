@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+
+/**
+ * A UDP multicast group, for sending the same datagrams to every device on the local
+ * network at once. Unlike a {@link Transport} there are no connections: the host opens a
+ * {@link Sender} and each guest {@link #join()}s, and datagrams may be lost, duplicated
+ * or reordered on the way. Addresses are {@code group:port}, for instance
+ * {@code 239.255.42.99:5004}.
+ * <p>
+ * Datagrams are sent with a TTL of one, so they never leave the local network, and are
+ * looped back to the sending device, so a host and its guests can all run on one machine
+ * over the loopback interface.
+ */
+public class MulticastGroup {
+
+    // Largest datagram a receiver accepts
+    public static final int MAX_DATAGRAM = 65507;
+
+    private final InetAddress mGroup;
+    private final int mPort;
+    private final NetworkInterface mInterface;
+
+    /**
+     * @param address          The group, as {@code group:port}
+     * @param networkInterface The interface to send and receive on, or null for the
+     *                         system's default
+     */
+    public MulticastGroup(String address, NetworkInterface networkInterface) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Bad address " + address);
+        }
+        try {
+            mPort = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad address " + address);
+        }
+        mGroup = InetAddress.getByName(address.substring(0, colon));
+        if (!mGroup.isMulticastAddress()) {
+            throw new IOException("Not a multicast address " + address);
+        }
+        mInterface = networkInterface;
+    }
+
+    /**
+     * Return the address of the group, as given to the constructor.
+     */
+    public String getAddress() {
+        return mGroup.getHostAddress() + ":" + mPort;
+    }
+
+    /**
+     * Open a socket to send to the group from.
+     */
+    public Sender openSender() throws IOException {
+        MulticastSocket socket = new MulticastSocket();
+        try {
+            socket.setTimeToLive(1);
+            if (mInterface != null) {
+                socket.setNetworkInterface(mInterface);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new Sender(socket, mGroup, mPort);
+    }
+
+    /**
+     * Join the group and open a socket to receive from it.
+     */
+    public Receiver join() throws IOException {
+        MulticastSocket socket = new MulticastSocket(mPort);
+        try {
+            socket.joinGroup(new InetSocketAddress(mGroup, mPort), mInterface);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new Receiver(socket);
+    }
+
+    /**
+     * The sending end. Safe to use from several threads; does not allocate.
+     */
+    public static class Sender implements Closeable {
+        private final MulticastSocket mSocket;
+        private final DatagramPacket mPacket;
+
+        Sender(MulticastSocket socket, InetAddress group, int port) {
+            mSocket = socket;
+            mPacket = new DatagramPacket(new byte[0], 0, group, port);
+        }
+
+        /**
+         * Send one datagram to the whole group.
+         */
+        public synchronized void send(byte[] data, int length) throws IOException {
+            mPacket.setData(data, 0, length);
+            mSocket.send(mPacket);
+        }
+
+        @Override
+        public void close() {
+            mSocket.close();
+        }
+    }
+
+    /**
+     * The receiving end of one member. Does not allocate.
+     */
+    public static class Receiver implements Closeable {
+        private final MulticastSocket mSocket;
+        private final DatagramPacket mPacket = new DatagramPacket(new byte[0], 0);
+
+        Receiver(MulticastSocket socket) {
+            mSocket = socket;
+        }
+
+        /**
+         * Wait for the next datagram. This is a blocking call and will only return on a
+         * datagram or an exception, including the receiver being closed from another
+         * thread.
+         *
+         * @param buffer Receives the datagram; anything longer is cut short
+         * @return The length of the datagram
+         */
+        public int receive(byte[] buffer) throws IOException {
+            mPacket.setData(buffer);
+            mSocket.receive(mPacket);
+            return mPacket.getLength();
+        }
+
+        @Override
+        public void close() {
+            mSocket.close();
+        }
+    }
+}
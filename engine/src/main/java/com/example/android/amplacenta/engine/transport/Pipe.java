@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded in-memory byte pipe between two threads, one direction of a
+ * {@link LoopbackTransport} connection. Unlike {@link java.io.PipedInputStream} it does not
+ * care which threads use it and wakes readers as soon as data arrives. Closing either end
+ * unblocks both.
+ */
+class Pipe {
+
+    private final byte[] mBuffer;
+    private int mReadPos;
+    private int mCount;
+    private boolean mClosed;
+
+    private final InputStream mIn = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return Pipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (Pipe.this) {
+                return mCount;
+            }
+        }
+
+        @Override
+        public void close() {
+            Pipe.this.close();
+        }
+    };
+
+    private final OutputStream mOut = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Pipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            Pipe.this.close();
+        }
+    };
+
+    Pipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return mIn;
+    }
+
+    OutputStream getOutputStream() {
+        return mOut;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            while (mCount == 0) {
+                if (mClosed) {
+                    return -1;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        int n = Math.min(len, mCount);
+        int first = Math.min(n, mBuffer.length - mReadPos);
+        System.arraycopy(mBuffer, mReadPos, b, off, first);
+        System.arraycopy(mBuffer, 0, b, off + first, n - first);
+        mReadPos = (mReadPos + n) % mBuffer.length;
+        mCount -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        try {
+            while (len > 0) {
+                if (mClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (mCount == mBuffer.length) {
+                    wait();
+                    continue;
+                }
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+                System.arraycopy(b, off, mBuffer, writePos, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+}
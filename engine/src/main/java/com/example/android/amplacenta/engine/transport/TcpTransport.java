@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+/**
+ * {@link Transport} over TCP sockets, meant for running hosts and guests as separate
+ * processes on one machine. Addresses are {@code host:port}, or just {@code port} for
+ * the loopback interface. Nagle's algorithm is turned off so small control frames are not
+ * held back.
+ */
+public class TcpTransport implements Transport {
+
+    private final InetAddress mBindAddress;
+    private final int mPort;
+    private volatile int mLocalPort;
+
+    /**
+     * Listen on the loopback interface.
+     *
+     * @param port The port to listen on, or 0 to pick a free one, see {@link #getLocalPort()}
+     */
+    public TcpTransport(int port) {
+        this(InetAddress.getLoopbackAddress(), port);
+    }
+
+    public TcpTransport(InetAddress bindAddress, int port) {
+        mBindAddress = bindAddress;
+        mPort = port;
+    }
+
+    /**
+     * Return the port actually listened on, or 0 before {@link #listen()}.
+     */
+    public int getLocalPort() {
+        return mLocalPort;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(mBindAddress, mPort));
+        mLocalPort = serverSocket.getLocalPort();
+        return new Acceptor() {
+            @Override
+            public Connection accept() throws IOException {
+                return new TcpConnection(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    /**
+     * Return {@code host:port}, the host being the address listened on, or this machine's
+     * when listening on every interface; null before {@link #listen()}.
+     */
+    @Override
+    public String getListenAddress() {
+        int port = mLocalPort;
+        if (port == 0) {
+            return null;
+        }
+        InetAddress host = mBindAddress;
+        if (host == null || host.isAnyLocalAddress()) {
+            try {
+                host = InetAddress.getLocalHost();
+            } catch (UnknownHostException e) {
+                host = InetAddress.getLoopbackAddress();
+            }
+        }
+        return host.getHostAddress() + ":" + port;
+    }
+
+    @Override
+    public Connection connect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        String host = colon < 0 ? null : address.substring(0, colon);
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad address " + address);
+        }
+        InetAddress inet = host == null
+                ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+        return new TcpConnection(new Socket(inet, port));
+    }
+
+    /**
+     * A connected socket.
+     */
+    private static class TcpConnection implements Connection {
+        private final Socket mSocket;
+
+        TcpConnection(Socket socket) throws IOException {
+            mSocket = socket;
+            socket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mSocket.getInetAddress().getHostAddress() + ":" + mSocket.getPort();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return getRemoteName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
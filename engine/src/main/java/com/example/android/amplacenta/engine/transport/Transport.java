@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.engine.transport;
+
+import java.io.IOException;
+
+/**
+ * A way for a host and its guests to reach each other. The sessions only ever talk to a
+ * transport through this interface, so the same session code runs over Bluetooth RFCOMM
+ * on a device, over {@link TcpTransport} between processes, or over
+ * {@link LoopbackTransport} within one process.
+ */
+public interface Transport {
+
+    /**
+     * Start listening for incoming connections.
+     *
+     * @return An acceptor that hands out each connection as it comes in
+     */
+    public Acceptor listen() throws IOException;
+
+    /**
+     * Return the address others dial to reach this transport once it listens, or null if
+     * it cannot tell, in which case the address a connection arrives from is the one to
+     * dial back, as with Bluetooth.
+     */
+    public String getListenAddress();
+
+    /**
+     * Open a connection to a remote device. This is a blocking call and will only
+     * return on a successful connection or an exception.
+     *
+     * @param address The transport-specific address of the remote device
+     */
+    public Connection connect(String address) throws IOException;
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link LogNode} that decouples the caller from the rest of the chain. Log data is copied
+ * into a preallocated ring of records and handed to a background drainer thread, which
+ * formats any parameterized messages and passes them on to the next node.
+ *
+ * <p>The calling thread never waits on the nodes further down, never takes a lock and never
+ * allocates. Callers claim a slot by advancing the head with a compare-and-set, and each slot
+ * carries a sequence number that tells whether it is free, written or still being written, so
+ * that several threads can log at once and the drainer reads only finished records. If the
+ * ring is full the record is dropped rather than blocking; the drainer reports how many
+ * records were lost once it catches up.</p>
+ */
+public class AsyncLogNode implements LogNode {
+
+    private static final String TAG = "AsyncLogNode";
+
+    // Default number of records the ring can hold, must be a power of two.
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final Record[] mRing;
+    private final int mMask;
+
+    // Sequence number of the next record to claim; the drainer keeps its own tail.
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private volatile boolean mDrainerWaiting;
+    private final Thread mDrainer;
+
+    // For piping:  The next node to receive Log data after this one has done its work.
+    private volatile LogNode mNext;
+
+    /**
+     * Creates the node with the default capacity and starts its drainer thread.
+     *
+     * @param next The next LogNode in the pipeline.
+     */
+    public AsyncLogNode(LogNode next) {
+        this(next, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates the node and starts its drainer thread.
+     *
+     * @param next The next LogNode in the pipeline.
+     * @param capacity Number of records that can be queued, rounded up to a power of two.
+     */
+    public AsyncLogNode(LogNode next, int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mRing = new Record[size];
+        for (int i = 0; i < size; i++) {
+            mRing[i] = new Record();
+            mRing[i].sequence = i;
+        }
+        mMask = size - 1;
+        mNext = next;
+
+        mDrainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "LogDrainer");
+        mDrainer.setDaemon(true);
+        mDrainer.setPriority(Thread.MIN_PRIORITY);
+        mDrainer.start();
+    }
+
+    /**
+     * Returns the next LogNode in the chain.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to..
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    /**
+     * Queues the log data for the drainer thread.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param msg The actual message to be logged. The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        println(priority, tag, msg, 0, null, null, tr);
+    }
+
+    /**
+     * Queues a parameterized message; the arguments are only turned into text on the
+     * drainer thread, so they should not be mutated after being logged.
+     */
+    void println(int priority, String tag, String format, int argc,
+                 Object arg1, Object arg2, Throwable tr) {
+        Record record;
+        long head;
+        while (true) {
+            head = mHead.get();
+            record = mRing[(int) (head & mMask)];
+            long sequence = record.sequence;
+            if (sequence == head) {
+                if (mHead.compareAndSet(head, head + 1)) {
+                    break;
+                }
+            } else if (sequence < head) {
+                // The drainer has not released this slot since the last time round
+                mDropped.incrementAndGet();
+                return;
+            }
+            // Another caller claimed the slot first; try again at the new head
+        }
+        record.priority = priority;
+        record.tag = tag;
+        record.format = format;
+        record.argc = argc;
+        record.arg1 = arg1;
+        record.arg2 = arg2;
+        record.tr = tr;
+        record.sequence = head + 1;
+        if (mDrainerWaiting) {
+            LockSupport.unpark(mDrainer);
+        }
+    }
+
+    /**
+     * Body of the drainer thread. Forwards each record once its writer has finished with it,
+     * then hands the slot back to the callers for the next time round the ring.
+     */
+    private void drain() {
+        long tail = 0;
+        while (!Thread.interrupted()) {
+            Record record = mRing[(int) (tail & mMask)];
+            if (record.sequence != tail + 1) {
+                // Say we are about to wait before looking again, so a record published in
+                // between either is seen here or unparks us
+                mDrainerWaiting = true;
+                if (record.sequence != tail + 1) {
+                    LockSupport.park(this);
+                }
+                mDrainerWaiting = false;
+                continue;
+            }
+
+            LogNode next = mNext;
+            if (next != null) {
+                next.println(record.priority, record.tag,
+                        Log.format(record.format, record.argc, record.arg1, record.arg2),
+                        record.tr);
+            }
+            record.clear();
+            record.sequence = tail + mMask + 1;
+            tail++;
+
+            // Once caught up, report what was lost meanwhile
+            int dropped = mDropped.get();
+            if (dropped > 0 && mRing[(int) (tail & mMask)].sequence != tail + 1) {
+                mDropped.addAndGet(-dropped);
+                if (next != null) {
+                    next.println(Log.WARN, TAG, dropped + " log records dropped", null);
+                }
+            }
+        }
+    }
+
+    /**
+     * One slot of the ring.
+     */
+    private static class Record {
+        // The sequence number a caller may claim this slot at, or one past the sequence number
+        // of the record in it once written
+        volatile long sequence;
+        int priority;
+        String tag;
+        String format;
+        int argc;
+        Object arg1;
+        Object arg2;
+        Throwable tr;
+
+        void clear() {
+            tag = null;
+            format = null;
+            arg1 = null;
+            arg2 = null;
+            tr = null;
+        }
+    }
+}
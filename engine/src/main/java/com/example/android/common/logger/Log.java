@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+/**
+ * Helper class for a list (or tree) of LoggerNodes.
+ *
+ * <p>When this is set as the head of the list,
+ * an instance of it can function as a drop-in replacement for {@code android.util.Log}.
+ * Most of the methods in this class server only to map a method call in Log to its equivalent
+ * in LogNode.</p>
+ */
+public class Log {
+    // Same values as Android's native logging facilities (android.util.Log),
+    // to make for easy migration and interop. They are spelled out so that
+    // this class also runs on a plain JVM.
+    public static final int NONE = -1;
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    // Stores the beginning of the LogNode topology.
+    private static volatile LogNode mLogNode;
+
+    // Messages below this priority are discarded before they are formatted.
+    private static volatile int sLevel = VERBOSE;
+
+    /**
+     * Returns the next LogNode in the linked list.
+     */
+    public static LogNode getLogNode() {
+        return mLogNode;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to.
+     */
+    public static void setLogNode(LogNode node) {
+        mLogNode = node;
+    }
+
+    /**
+     * Returns the lowest priority that is currently passed on to the LogNode.
+     */
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * Sets the lowest priority that is passed on to the LogNode. Anything below it is
+     * dropped before its message is built, so verbose logging left in hot paths is free.
+     *
+     * @param level One of {@link #VERBOSE} through {@link #ASSERT}.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /**
+     * Checks whether a message at the given priority would reach a LogNode. Callers that
+     * have to do real work to build a message should test this first, and so should the
+     * audio threads before passing numbers to the {@code {}} overloads, which box them at
+     * the call whether or not the message is logged.
+     *
+     * @param priority Log level of the data being logged. Verbose, Error, etc.
+     */
+    public static boolean isLoggable(int priority) {
+        return priority >= sLevel && mLogNode != null;
+    }
+
+    /**
+     * Instructs the LogNode to print the log data provided. Other LogNodes can
+     * be chained to the end of the LogNode as desired.
+     *
+     * @param priority Log level of the data being logged. Verbose, Error, etc.
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void println(int priority, String tag, String msg, Throwable tr) {
+        LogNode node = mLogNode;
+        if (node != null && priority >= sLevel) {
+            node.println(priority, tag, msg, tr);
+        }
+    }
+
+    /**
+     * Instructs the LogNode to print a parameterized message. Each {@code {}} in the format
+     * is replaced by the next argument, but only once the priority has passed the level check,
+     * and when the head of the chain is an {@link AsyncLogNode} only on its drainer thread.
+     *
+     * @param priority Log level of the data being logged. Verbose, Error, etc.
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for each argument.
+     * @param argc The number of arguments that are in use.
+     * @param arg1 The first argument.
+     * @param arg2 The second argument.
+     */
+    private static void println(int priority, String tag, String format, int argc,
+                                Object arg1, Object arg2) {
+        LogNode node = mLogNode;
+        if (node == null || priority < sLevel) {
+            return;
+        }
+        if (node instanceof AsyncLogNode) {
+            ((AsyncLogNode) node).println(priority, tag, format, argc, arg1, arg2, null);
+        } else {
+            node.println(priority, tag, format(format, argc, arg1, arg2), null);
+        }
+    }
+
+    /**
+     * Substitutes the arguments into the {@code {}} placeholders of a format.
+     *
+     * @param format The message, with a {@code {}} placeholder for each argument.
+     * @param argc The number of arguments that are in use.
+     * @param arg1 The first argument.
+     * @param arg2 The second argument.
+     * @return The formatted message.
+     */
+    static String format(String format, int argc, Object arg1, Object arg2) {
+        if (format == null || argc == 0) {
+            return format;
+        }
+        StringBuilder builder = new StringBuilder(format.length() + 16 * argc);
+        int start = 0;
+        for (int arg = 0; arg < argc; arg++) {
+            int index = format.indexOf("{}", start);
+            if (index < 0) {
+                break;
+            }
+            builder.append(format, start, index).append(arg == 0 ? arg1 : arg2);
+            start = index + 2;
+        }
+        return builder.append(format, start, format.length()).toString();
+    }
+
+    /**
+     * Instructs the LogNode to print the log data provided. Other LogNodes can
+     * be chained to the end of the LogNode as desired.
+     *
+     * @param priority Log level of the data being logged. Verbose, Error, etc.
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged. The actual message to be logged.
+     */
+    public static void println(int priority, String tag, String msg) {
+        println(priority, tag, msg, null);
+    }
+
+   /**
+     * Prints a message at VERBOSE priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void v(String tag, String msg, Throwable tr) {
+        println(VERBOSE, tag, msg, tr);
+    }
+
+    /**
+     * Prints a message at VERBOSE priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     */
+    public static void v(String tag, String msg) {
+        v(tag, msg, null);
+    }
+
+    /**
+     * Prints a parameterized message at VERBOSE priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for the argument.
+     * @param arg The argument, only converted to a String if the message is logged.
+     */
+    public static void v(String tag, String format, Object arg) {
+        println(VERBOSE, tag, format, 1, arg, null);
+    }
+
+    /**
+     * Prints a parameterized message at VERBOSE priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for each argument.
+     * @param arg1 The first argument, only converted to a String if the message is logged.
+     * @param arg2 The second argument, only converted to a String if the message is logged.
+     */
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        println(VERBOSE, tag, format, 2, arg1, arg2);
+    }
+
+
+    /**
+     * Prints a message at DEBUG priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void d(String tag, String msg, Throwable tr) {
+        println(DEBUG, tag, msg, tr);
+    }
+
+    /**
+     * Prints a message at DEBUG priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     */
+    public static void d(String tag, String msg) {
+        d(tag, msg, null);
+    }
+
+    /**
+     * Prints a parameterized message at DEBUG priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for the argument.
+     * @param arg The argument, only converted to a String if the message is logged.
+     */
+    public static void d(String tag, String format, Object arg) {
+        println(DEBUG, tag, format, 1, arg, null);
+    }
+
+    /**
+     * Prints a parameterized message at DEBUG priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for each argument.
+     * @param arg1 The first argument, only converted to a String if the message is logged.
+     * @param arg2 The second argument, only converted to a String if the message is logged.
+     */
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        println(DEBUG, tag, format, 2, arg1, arg2);
+    }
+
+    /**
+     * Prints a message at INFO priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void i(String tag, String msg, Throwable tr) {
+        println(INFO, tag, msg, tr);
+    }
+
+    /**
+     * Prints a message at INFO priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     */
+    public static void i(String tag, String msg) {
+        i(tag, msg, null);
+    }
+
+    /**
+     * Prints a parameterized message at INFO priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for the argument.
+     * @param arg The argument, only converted to a String if the message is logged.
+     */
+    public static void i(String tag, String format, Object arg) {
+        println(INFO, tag, format, 1, arg, null);
+    }
+
+    /**
+     * Prints a parameterized message at INFO priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for each argument.
+     * @param arg1 The first argument, only converted to a String if the message is logged.
+     * @param arg2 The second argument, only converted to a String if the message is logged.
+     */
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        println(INFO, tag, format, 2, arg1, arg2);
+    }
+
+    /**
+     * Prints a message at WARN priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void w(String tag, String msg, Throwable tr) {
+        println(WARN, tag, msg, tr);
+    }
+
+    /**
+     * Prints a message at WARN priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     */
+    public static void w(String tag, String msg) {
+        w(tag, msg, null);
+    }
+
+    /**
+     * Prints a parameterized message at WARN priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for the argument.
+     * @param arg The argument, only converted to a String if the message is logged.
+     */
+    public static void w(String tag, String format, Object arg) {
+        println(WARN, tag, format, 1, arg, null);
+    }
+
+    /**
+     * Prints a parameterized message at WARN priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for each argument.
+     * @param arg1 The first argument, only converted to a String if the message is logged.
+     * @param arg2 The second argument, only converted to a String if the message is logged.
+     */
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        println(WARN, tag, format, 2, arg1, arg2);
+    }
+
+    /**
+     * Prints a message at WARN priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void w(String tag, Throwable tr) {
+        w(tag, null, tr);
+    }
+
+    /**
+     * Prints a message at ERROR priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void e(String tag, String msg, Throwable tr) {
+        println(ERROR, tag, msg, tr);
+    }
+
+    /**
+     * Prints a message at ERROR priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     */
+    public static void e(String tag, String msg) {
+        e(tag, msg, null);
+    }
+
+    /**
+     * Prints a parameterized message at ERROR priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for the argument.
+     * @param arg The argument, only converted to a String if the message is logged.
+     */
+    public static void e(String tag, String format, Object arg) {
+        println(ERROR, tag, format, 1, arg, null);
+    }
+
+    /**
+     * Prints a parameterized message at ERROR priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with a {@code {}} placeholder for each argument.
+     * @param arg1 The first argument, only converted to a String if the message is logged.
+     * @param arg2 The second argument, only converted to a String if the message is logged.
+     */
+    public static void e(String tag, String format, Object arg1, Object arg2) {
+        println(ERROR, tag, format, 2, arg1, arg2);
+    }
+
+    /**
+     * Prints a message at ASSERT priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void wtf(String tag, String msg, Throwable tr) {
+        println(ASSERT, tag, msg, tr);
+    }
+
+    /**
+     * Prints a message at ASSERT priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg The actual message to be logged.
+     */
+    public static void wtf(String tag, String msg) {
+        wtf(tag, msg, null);
+    }
+
+    /**
+     * Prints a message at ASSERT priority.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void wtf(String tag, Throwable tr) {
+        wtf(tag, null, tr);
+    }
+}
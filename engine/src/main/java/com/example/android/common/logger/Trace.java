@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Static front-end to a {@link TraceRecorder}, the binary counterpart of {@link Log}.
+ * When no recorder is set, recording an event costs a single field read.
+ */
+public class Trace {
+
+    private static final String TAG = "Trace";
+
+    // Events a trace file holds unless told otherwise, a few minutes of a party of eight
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    public static final int SEND = TraceRecorder.EVENT_SEND;
+    public static final int RECEIVE = TraceRecorder.EVENT_RECEIVE;
+    public static final int SCHEDULE = TraceRecorder.EVENT_SCHEDULE;
+    public static final int PLAY = TraceRecorder.EVENT_PLAY;
+    public static final int QUEUE_DEPTH = TraceRecorder.EVENT_QUEUE_DEPTH;
+
+    public static final int QUEUE_LINK = TraceRecorder.QUEUE_LINK;
+    public static final int QUEUE_DECODE = TraceRecorder.QUEUE_DECODE;
+    public static final int QUEUE_JITTER = TraceRecorder.QUEUE_JITTER;
+
+    // The recorder events are written to, or null when tracing is off.
+    private static volatile TraceRecorder sRecorder;
+
+    /**
+     * Returns the recorder events are currently written to.
+     */
+    public static TraceRecorder getRecorder() {
+        return sRecorder;
+    }
+
+    /**
+     * Sets the recorder events are written to. Pass null to turn tracing off.
+     */
+    public static void setRecorder(TraceRecorder recorder) {
+        sRecorder = recorder;
+    }
+
+    /**
+     * Starts recording to a new trace file, replacing and closing any current recorder.
+     *
+     * @param file Where to write the trace.
+     * @param capacity Number of events the file holds before the oldest are overwritten.
+     */
+    public static synchronized void start(File file, int capacity) throws IOException {
+        TraceRecorder recorder = new TraceRecorder(file, capacity);
+        stop();
+        sRecorder = recorder;
+    }
+
+    /**
+     * Stops recording, and flushes and closes the trace file if there was one.
+     */
+    public static synchronized void stop() {
+        TraceRecorder recorder = sRecorder;
+        sRecorder = null;
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                Log.w(TAG, "closing the trace failed", e);
+            }
+        }
+    }
+
+    /**
+     * Returns whether events are currently being recorded.
+     */
+    public static boolean isEnabled() {
+        return sRecorder != null;
+    }
+
+    /**
+     * Records one event if tracing is on.
+     *
+     * @param event One of the event constants, SEND, RECEIVE, etc.
+     * @param stream The audio channel the event belongs to.
+     * @param seq Frame sequence number.
+     * @param value1 First event-specific value.
+     * @param value2 Second event-specific value.
+     */
+    public static void record(int event, int stream, int seq, long value1, long value2) {
+        TraceRecorder recorder = sRecorder;
+        if (recorder != null) {
+            recorder.record(event, stream, seq, value1, value2);
+        }
+    }
+}
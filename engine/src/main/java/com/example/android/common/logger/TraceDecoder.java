@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Offline decoder for files written by {@link TraceRecorder}. Runs on a desktop JVM:
+ *
+ * <pre>
+ * java com.example.android.common.logger.TraceDecoder [--csv | --summary] trace...
+ * </pre>
+ *
+ * Each trace's times are moved onto the wall clock with the start time recorded in its
+ * header, so that several traces, for instance a host's and its guests', can be given at
+ * once and merged in time order. Across devices this is only as good as their wall clocks
+ * agree. {@code --csv} prints one line per event, {@code --summary} (the default) prints
+ * per-stream counts, send-to-receive latency, playout error and the depth of each queue.
+ */
+public class TraceDecoder {
+
+    // The frame type of audio, in value2 of SEND and RECEIVE; see the engine's Frame
+    private static final int FRAME_TYPE_AUDIO = 2;
+
+    /**
+     * One decoded event. Times, including those in value1 of SCHEDULE and PLAY, are in
+     * nanoseconds since the epoch.
+     */
+    public static class Event {
+        public long time;
+        public int event;
+        public int stream;
+        public int seq;
+        public long value1;
+        public long value2;
+    }
+
+    /**
+     * Reads every event still held in a trace file, oldest first.
+     *
+     * @param file A file written by {@link TraceRecorder}.
+     */
+    public static List<Event> read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getLong(TraceRecorder.OFFSET_MAGIC) != TraceRecorder.MAGIC) {
+                throw new IOException(file + " is not a trace file");
+            }
+            if (buffer.getInt(TraceRecorder.OFFSET_VERSION) != TraceRecorder.VERSION) {
+                throw new IOException(file + ": unsupported trace version");
+            }
+            int recordSize = buffer.getInt(TraceRecorder.OFFSET_RECORD_SIZE);
+            int capacity = buffer.getInt(TraceRecorder.OFFSET_CAPACITY);
+            long written = buffer.getLong(TraceRecorder.OFFSET_WRITTEN);
+            // From the device's nanoTime to the wall clock
+            long offset = buffer.getLong(TraceRecorder.OFFSET_START_MILLIS) * 1000000L
+                    - buffer.getLong(TraceRecorder.OFFSET_START_NANOS);
+
+            int count = (int) Math.min(written, capacity);
+            int first = written > capacity ? (int) (written % capacity) : 0;
+            List<Event> events = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int position = TraceRecorder.HEADER_SIZE + ((first + i) % capacity) * recordSize;
+                Event e = new Event();
+                e.time = buffer.getLong(position) + offset;
+                e.event = buffer.getShort(position + 8);
+                e.stream = buffer.getShort(position + 10);
+                e.seq = buffer.getInt(position + 12);
+                e.value1 = buffer.getLong(position + 16);
+                e.value2 = buffer.getLong(position + 24);
+                if (e.event == TraceRecorder.EVENT_SCHEDULE
+                        || e.event == TraceRecorder.EVENT_PLAY) {
+                    e.value1 += offset;
+                }
+                if (e.event != 0) {
+                    events.add(e);
+                }
+            }
+            // Concurrent writers may finish slightly out of order
+            sortByTime(events);
+            return events;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void sortByTime(List<Event> events) {
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+                return a.time < b.time ? -1 : (a.time == b.time ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Returns the name of an event type.
+     */
+    public static String eventName(int event) {
+        switch (event) {
+            case TraceRecorder.EVENT_SEND:
+                return "SEND";
+            case TraceRecorder.EVENT_RECEIVE:
+                return "RECEIVE";
+            case TraceRecorder.EVENT_SCHEDULE:
+                return "SCHEDULE";
+            case TraceRecorder.EVENT_PLAY:
+                return "PLAY";
+            case TraceRecorder.EVENT_QUEUE_DEPTH:
+                return "QUEUE_DEPTH";
+            default:
+                return Integer.toString(event);
+        }
+    }
+
+    /**
+     * Returns the name of a queue whose depth is recorded.
+     */
+    public static String queueName(int queue) {
+        switch (queue) {
+            case TraceRecorder.QUEUE_LINK:
+                return "link";
+            case TraceRecorder.QUEUE_DECODE:
+                return "decode";
+            case TraceRecorder.QUEUE_JITTER:
+                return "jitter";
+            default:
+                return Integer.toString(queue);
+        }
+    }
+
+    /**
+     * Prints one CSV line per event, with times relative to the first event.
+     */
+    public static void printCsv(List<Event> events, PrintStream out) {
+        out.println("time_ns,event,stream,seq,value1,value2");
+        long start = events.isEmpty() ? 0 : events.get(0).time;
+        for (Event e : events) {
+            out.println((e.time - start) + "," + eventName(e.event) + "," + e.stream + ","
+                    + e.seq + "," + e.value1 + "," + e.value2);
+        }
+    }
+
+    /**
+     * Prints a per-stream timeline summary.
+     */
+    public static void printSummary(List<Event> events, PrintStream out) {
+        if (events.isEmpty()) {
+            out.println("no events");
+            return;
+        }
+        long duration = events.get(events.size() - 1).time - events.get(0).time;
+        out.println(events.size() + " events over " + duration / 1000000 + " ms");
+
+        Map<Integer, StreamSummary> streams = new TreeMap<>();
+        Map<Long, Long> sendTimes = new HashMap<>();
+        for (Event e : events) {
+            StreamSummary s = streams.get(e.stream);
+            if (s == null) {
+                s = new StreamSummary();
+                streams.put(e.stream, s);
+            }
+            // An audio frame is sent to each guest, and maybe again when lost; a receive is
+            // timed from the latest send before it. Control frames reuse their numbers.
+            boolean audio = (e.event == TraceRecorder.EVENT_SEND
+                    || e.event == TraceRecorder.EVENT_RECEIVE) && e.value2 == FRAME_TYPE_AUDIO;
+            long key = ((long) (e.stream & 0xffff) << 32) | (e.seq & 0xffffffffL);
+            switch (e.event) {
+                case TraceRecorder.EVENT_SEND:
+                    s.sent++;
+                    s.sentBytes += e.value1;
+                    if (audio) {
+                        sendTimes.put(key, e.time);
+                    }
+                    break;
+                case TraceRecorder.EVENT_RECEIVE:
+                    s.received++;
+                    s.receivedBytes += e.value1;
+                    if (s.lastReceive != 0) {
+                        s.maxReceiveGap = Math.max(s.maxReceiveGap, e.time - s.lastReceive);
+                    }
+                    s.lastReceive = e.time;
+                    Long sent = audio ? sendTimes.get(key) : null;
+                    if (sent != null) {
+                        s.transit.add(e.time - sent);
+                    }
+                    break;
+                case TraceRecorder.EVENT_SCHEDULE:
+                    s.scheduled++;
+                    break;
+                case TraceRecorder.EVENT_PLAY:
+                    s.played++;
+                    s.playError.add(e.time - e.value1);
+                    break;
+                case TraceRecorder.EVENT_QUEUE_DEPTH:
+                    List<Long> depth = s.depth.get((int) e.value2);
+                    if (depth == null) {
+                        depth = new ArrayList<>();
+                        s.depth.put((int) e.value2, depth);
+                    }
+                    depth.add(e.value1);
+                    break;
+            }
+        }
+
+        for (Map.Entry<Integer, StreamSummary> entry : streams.entrySet()) {
+            StreamSummary s = entry.getValue();
+            out.println("stream " + entry.getKey() + ":");
+            out.println("  sent " + s.sent + " (" + s.sentBytes + " bytes), received "
+                    + s.received + " (" + s.receivedBytes + " bytes), max receive gap "
+                    + s.maxReceiveGap / 1000 + " us");
+            printDistribution(out, "  transit (us)", s.transit, 1000);
+            out.println("  scheduled " + s.scheduled + ", played " + s.played);
+            printDistribution(out, "  play error (us)", s.playError, 1000);
+            for (Map.Entry<Integer, List<Long>> depth : s.depth.entrySet()) {
+                printDistribution(out, "  " + queueName(depth.getKey()) + " queue (frames)",
+                        depth.getValue(), 1);
+            }
+        }
+    }
+
+    private static void printDistribution(PrintStream out, String label, List<Long> values,
+                                          long scale) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long[] sorted = new long[values.size()];
+        long sum = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+            sum += sorted[i];
+        }
+        Arrays.sort(sorted);
+        out.println(label + ": min " + sorted[0] / scale
+                + " avg " + sum / sorted.length / scale
+                + " p50 " + sorted[sorted.length / 2] / scale
+                + " p99 " + sorted[(int) (sorted.length * 0.99)] / scale
+                + " max " + sorted[sorted.length - 1] / scale);
+    }
+
+    private static class StreamSummary {
+        int sent;
+        int received;
+        int scheduled;
+        int played;
+        long sentBytes;
+        long receivedBytes;
+        long lastReceive;
+        long maxReceiveGap;
+        final List<Long> transit = new ArrayList<>();
+        final List<Long> playError = new ArrayList<>();
+        final Map<Integer, List<Long>> depth = new TreeMap<>();
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean csv = false;
+        List<Event> events = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--csv")) {
+                csv = true;
+            } else if (arg.equals("--summary")) {
+                csv = false;
+            } else {
+                events.addAll(read(new File(arg)));
+            }
+        }
+        if (args.length == 0) {
+            System.err.println("usage: TraceDecoder [--csv | --summary] trace...");
+            System.exit(2);
+        }
+        sortByTime(events);
+        if (csv) {
+            printCsv(events, System.out);
+        } else {
+            printSummary(events, System.out);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records fixed-size binary trace events into a memory-mapped ring file.
+ *
+ * <p>Where {@link Log} is meant for human-readable text, this is meant for per-frame
+ * timelines: every event is 32 bytes written with absolute puts straight into the mapped
+ * file, with no formatting, locking or allocation on the calling thread. Once the ring is
+ * full the oldest events are overwritten. {@link TraceDecoder} turns a trace file back into
+ * CSV or a summary.</p>
+ *
+ * <p>File layout, little-endian:</p>
+ * <pre>
+ * header  (64 bytes)  magic, version, record size, capacity, records written,
+ *                     start time (nanoTime) and start time (wall clock, ms)
+ * records (32 bytes)  time (nanoTime), event, stream, seq, value1, value2
+ * </pre>
+ */
+public class TraceRecorder implements Closeable {
+
+    // Event types. The stream is the audio channel and seq the frame's sequence number on
+    // both host and guest, so that the events of one frame join up across trace files;
+    // value1 and value2 depend on the event. Times are nanoTime on the recording device.
+    public static final int EVENT_SEND = 1;        // value1: bytes, value2: frame type
+    public static final int EVENT_RECEIVE = 2;     // value1: bytes, value2: frame type
+    public static final int EVENT_SCHEDULE = 3;    // value1: play time, stream 0 for all
+    public static final int EVENT_PLAY = 4;        // value1: scheduled play time
+    public static final int EVENT_QUEUE_DEPTH = 5; // value1: queued frames, value2: QUEUE_*
+
+    // Queues whose depth is recorded, as value2 of EVENT_QUEUE_DEPTH
+    public static final int QUEUE_LINK = 1;        // host, frames waiting to go to a guest
+    public static final int QUEUE_DECODE = 2;      // guest, frames waiting to be decoded
+    public static final int QUEUE_JITTER = 3;      // guest, blocks waiting to be played
+
+    static final long MAGIC = 0x45434152_54504d41L; // "AMPTRACE" read little-endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 32;
+
+    // Header field offsets
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 8;
+    static final int OFFSET_RECORD_SIZE = 12;
+    static final int OFFSET_CAPACITY = 16;
+    static final int OFFSET_WRITTEN = 24;
+    static final int OFFSET_START_NANOS = 32;
+    static final int OFFSET_START_MILLIS = 40;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final AtomicLong mNext = new AtomicLong();
+
+    /**
+     * Creates (or truncates) a trace file and maps it into memory.
+     *
+     * @param file Where to write the trace.
+     * @param capacity Number of events the ring holds before the oldest are overwritten.
+     */
+    public TraceRecorder(File file, int capacity) throws IOException {
+        mCapacity = capacity;
+        mFile = new RandomAccessFile(file, "rw");
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        mFile.setLength(0);
+        mFile.setLength(size);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        mBuffer.putLong(OFFSET_MAGIC, MAGIC);
+        mBuffer.putInt(OFFSET_VERSION, VERSION);
+        mBuffer.putInt(OFFSET_RECORD_SIZE, RECORD_SIZE);
+        mBuffer.putInt(OFFSET_CAPACITY, capacity);
+        mBuffer.putLong(OFFSET_WRITTEN, 0);
+        mBuffer.putLong(OFFSET_START_NANOS, System.nanoTime());
+        mBuffer.putLong(OFFSET_START_MILLIS, System.currentTimeMillis());
+    }
+
+    /**
+     * Records one event, timestamped now. Safe to call from any thread.
+     *
+     * @param event One of the EVENT_ constants.
+     * @param stream The audio channel the event belongs to.
+     * @param seq Frame sequence number.
+     * @param value1 First event-specific value.
+     * @param value2 Second event-specific value.
+     */
+    public void record(int event, int stream, int seq, long value1, long value2) {
+        long time = System.nanoTime();
+        long index = mNext.getAndIncrement();
+        int position = HEADER_SIZE + (int) (index % mCapacity) * RECORD_SIZE;
+        mBuffer.putLong(position, time);
+        mBuffer.putShort(position + 8, (short) event);
+        mBuffer.putShort(position + 10, (short) stream);
+        mBuffer.putInt(position + 12, seq);
+        mBuffer.putLong(position + 16, value1);
+        mBuffer.putLong(position + 24, value2);
+        mBuffer.putLong(OFFSET_WRITTEN, index + 1);
+    }
+
+    /**
+     * Returns the number of events recorded so far, including overwritten ones.
+     */
+    public long getRecordCount() {
+        return mNext.get();
+    }
+
+    /**
+     * Flushes the mapped ring to disk and closes the file. Detach the recorder from
+     * {@link Trace} before closing it.
+     */
+    @Override
+    public void close() throws IOException {
+        mBuffer.putLong(OFFSET_WRITTEN, mNext.get());
+        mBuffer.force();
+        mFile.close();
+    }
+}
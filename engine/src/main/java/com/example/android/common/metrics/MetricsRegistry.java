@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.metrics;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A set of named {@link Counter}s, {@link Gauge}s and {@link Histogram}s.
+ *
+ * <p>Metrics are created on first use. Looking one up costs a map access, so code on a hot
+ * path should look its metrics up once and keep them. Metrics that belong to one guest are
+ * named with a key, {@code name{key}}, see {@link #name(String, String)}, and can all be
+ * dropped together with {@link #remove(String)} once the guest leaves.</p>
+ */
+public class MetricsRegistry {
+
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> mGauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+    /**
+     * Builds the name of a metric that belongs to one guest, or other keyed entity.
+     */
+    public static String name(String name, String key) {
+        return name + "{" + key + "}";
+    }
+
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public Counter counter(String name, String key) {
+        return counter(name(name, key));
+    }
+
+    public Gauge gauge(String name) {
+        Gauge gauge = mGauges.get(name);
+        if (gauge == null) {
+            Gauge created = new Gauge();
+            gauge = mGauges.putIfAbsent(name, created);
+            if (gauge == null) {
+                gauge = created;
+            }
+        }
+        return gauge;
+    }
+
+    public Gauge gauge(String name, String key) {
+        return gauge(name(name, key));
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public Histogram histogram(String name, String key) {
+        return histogram(name(name, key));
+    }
+
+    /**
+     * Copies every metric.
+     */
+    public MetricsSnapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * Copies every metric and starts counters and histograms over from zero. Gauges keep
+     * their value. Useful for per-interval rates, or between runs of a test.
+     */
+    public MetricsSnapshot snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    /**
+     * Starts counters and histograms over from zero.
+     */
+    public void reset() {
+        snapshot(true);
+    }
+
+    /**
+     * Drops every metric that was created with the given key.
+     */
+    public void remove(String key) {
+        String suffix = "{" + key + "}";
+        removeSuffix(mCounters, suffix);
+        removeSuffix(mGauges, suffix);
+        removeSuffix(mHistograms, suffix);
+    }
+
+    private static void removeSuffix(Map<String, ?> map, String suffix) {
+        for (Iterator<String> it = map.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().endsWith(suffix)) {
+                it.remove();
+            }
+        }
+    }
+
+    private MetricsSnapshot snapshot(boolean reset) {
+        TreeMap<String, Long> counters = new TreeMap<>();
+        for (Map.Entry<String, Counter> e : mCounters.entrySet()) {
+            Counter counter = e.getValue();
+            counters.put(e.getKey(), reset ? counter.getAndReset() : counter.get());
+        }
+        TreeMap<String, Long> gauges = new TreeMap<>();
+        for (Map.Entry<String, Gauge> e : mGauges.entrySet()) {
+            gauges.put(e.getKey(), e.getValue().get());
+        }
+        TreeMap<String, Histogram.Snapshot> histograms = new TreeMap<>();
+        for (Map.Entry<String, Histogram> e : mHistograms.entrySet()) {
+            histograms.put(e.getKey(), e.getValue().snapshot(reset));
+        }
+        return new MetricsSnapshot(counters, gauges, histograms);
+    }
+}
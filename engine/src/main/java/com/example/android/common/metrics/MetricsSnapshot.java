@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable copy of every metric in a {@link MetricsRegistry}, sorted by name.
+ */
+public class MetricsSnapshot {
+
+    public final Map<String, Long> counters;
+    public final Map<String, Long> gauges;
+    public final Map<String, Histogram.Snapshot> histograms;
+
+    MetricsSnapshot(TreeMap<String, Long> counters, TreeMap<String, Long> gauges,
+                    TreeMap<String, Histogram.Snapshot> histograms) {
+        this.counters = Collections.unmodifiableMap(counters);
+        this.gauges = Collections.unmodifiableMap(gauges);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * Returns the value of a counter, or 0 if there is no such counter.
+     */
+    public long counter(String name) {
+        Long value = counters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Returns the value of a gauge, or 0 if there is no such gauge.
+     */
+    public long gauge(String name) {
+        Long value = gauges.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Returns a histogram, or null if there is no such histogram.
+     */
+    public Histogram.Snapshot histogram(String name) {
+        return histograms.get(name);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            builder.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> e : gauges.entrySet()) {
+            builder.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Histogram.Snapshot> e : histograms.entrySet()) {
+            builder.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.tools;
+
+import com.example.android.amplacenta.engine.AudioStreamer;
+import com.example.android.amplacenta.engine.Clock;
+import com.example.android.amplacenta.engine.GuestSession;
+import com.example.android.amplacenta.engine.HostSession;
+import com.example.android.amplacenta.engine.PcmCodec;
+import com.example.android.amplacenta.engine.PcmFormat;
+import com.example.android.amplacenta.engine.ToneSource;
+import com.example.android.amplacenta.engine.transport.LoopbackTransport;
+import com.example.android.common.metrics.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Checks that the audio path allocates nothing in steady state, so that guests can play
+ * for hours without a GC pause. Streams a tone from a {@link HostSession} to two
+ * {@link GuestSession}s over a {@link LoopbackTransport} (send: encode, fan-out and write;
+ * receive: read, decode, jitter buffer and render), lets it settle, then counts the bytes
+ * each session thread allocates per audio frame delivered. Exits with 1 if any thread
+ * allocated anything.
+ * <p>
+ * Run it interpreted, with {@code -Xint}. Compiled code both hides allocations, through
+ * escape analysis that a phone's runtime may not do, and adds a few of its own whenever it
+ * deoptimizes; the interpreter allocates exactly what the code asks for. On a JVM with
+ * Flight Recorder (Java 11 and later) the allocations are also recorded with their stack
+ * traces, and the report names the allocation sites in the engine. Add
+ * {@code -XX:-UseTLAB} so that every allocation is recorded, not just samples. The Gradle
+ * task does both:
+ * <pre>
+ * ./gradlew :tools:allocationCheck -Pargs="--seconds 30"
+ * </pre>
+ */
+public class AllocationCheck {
+
+    private static final String HOST_ADDRESS = "host";
+    private static final int GUESTS = 2;
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+
+    // The most allocation sites printed per thread
+    private static final int MAX_SITES = 10;
+
+    private static final String[] ALLOCATION_EVENTS = {
+            "jdk.ObjectAllocationInNewTLAB", "jdk.ObjectAllocationOutsideTLAB"
+    };
+
+    private static final String ENGINE_PACKAGE = "com.example.android.";
+
+    private int mWarmupSeconds = 5;
+    private int mSeconds = 10;
+
+    private final QuietListener mListener = new QuietListener();
+
+    public static void main(String[] args) throws Exception {
+        AllocationCheck check = new AllocationCheck();
+        if (!check.parse(args)) {
+            System.err.println("usage: AllocationCheck [--seconds S] [--warmup S]");
+            System.exit(2);
+        }
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    private boolean parse(String[] args) {
+        try {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                if (args[i].equals("--seconds")) {
+                    mSeconds = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("--warmup")) {
+                    mWarmupSeconds = Integer.parseInt(args[i + 1]);
+                } else {
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return args.length % 2 == 0 && mSeconds > 0 && mWarmupSeconds >= 0;
+    }
+
+    /**
+     * Run the pipelines and print the report.
+     *
+     * @return true if no session thread allocated while measuring
+     */
+    private boolean run() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            System.out.println("This JVM does not count allocations per thread");
+            return false;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!System.getProperty("java.vm.info", "").contains("interpreted")) {
+            System.out.println("Not running with -Xint; the JIT may hide or add allocations");
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        // One factory per session, so that threads can be told apart in the report
+        Map<String, RecordingThreadFactory> sessions = new LinkedHashMap<>();
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingThreadFactory hostThreads = new RecordingThreadFactory();
+        sessions.put(HOST_ADDRESS, hostThreads);
+        HostSession host = new HostSession(network.endpoint(HOST_ADDRESS), Clock.SYSTEM,
+                mListener);
+        host.setThreadFactory(hostThreads);
+        host.start();
+
+        List<GuestSession> guests = new ArrayList<>();
+        for (int i = 0; i < GUESTS; i++) {
+            String name = "guest-" + i;
+            RecordingThreadFactory threads = new RecordingThreadFactory();
+            sessions.put(name, threads);
+            GuestSession guest = new GuestSession(network.endpoint(name), Clock.SYSTEM,
+                    new PcmCodec(), new CountingSink(), mListener);
+            guest.setThreadFactory(threads);
+            guest.connect(HOST_ADDRESS);
+            guests.add(guest);
+        }
+        long deadline = System.nanoTime() + 10000000000L;
+        while (host.numConnections() < GUESTS && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        if (host.numConnections() < GUESTS) {
+            System.out.println("Only " + host.numConnections() + " of " + GUESTS
+                    + " guests connected");
+            mListener.setStopping();
+            stop(host, null, guests);
+            return false;
+        }
+
+        AudioStreamer streamer = new AudioStreamer(host, new PcmCodec());
+        streamer.setThreadFactory(hostThreads);
+        streamer.play(new ToneSource(new PcmFormat(SAMPLE_RATE, CHANNELS), -1));
+        Thread.sleep(mWarmupSeconds * 1000L);
+
+        // Every thread of every session, and what it had allocated before measuring
+        Map<Thread, String> names = new LinkedHashMap<>();
+        Map<Thread, Long> before = new HashMap<>();
+        for (Map.Entry<String, RecordingThreadFactory> e : sessions.entrySet()) {
+            for (Thread thread : e.getValue().threads()) {
+                if (thread.isAlive()) {
+                    names.put(thread, e.getKey() + "/" + thread.getName());
+                    before.put(thread, threadBean.getThreadAllocatedBytes(thread.getId()));
+                }
+            }
+        }
+        long frames = receivedFrames(guests);
+        Object recording = startRecording();
+
+        Thread.sleep(mSeconds * 1000L);
+
+        Map<Thread, Long> allocated = new LinkedHashMap<>();
+        for (Thread thread : names.keySet()) {
+            allocated.put(thread,
+                    threadBean.getThreadAllocatedBytes(thread.getId()) - before.get(thread));
+        }
+        frames = receivedFrames(guests) - frames;
+        Map<String, Map<String, Site>> sites = stopRecording(recording);
+        mListener.setStopping();
+        stop(host, streamer, guests);
+
+        return report(names, allocated, frames, recording != null, sites);
+    }
+
+    private static long receivedFrames(List<GuestSession> guests) {
+        long frames = 0;
+        for (GuestSession guest : guests) {
+            frames += guest.getMetrics().snapshot().counter(
+                    MetricsRegistry.name(GuestSession.METRIC_RECEIVED_FRAMES, HOST_ADDRESS));
+        }
+        return frames;
+    }
+
+    private boolean report(Map<Thread, String> names, Map<Thread, Long> allocated, long frames,
+                           boolean recorded, Map<String, Map<String, Site>> sites) {
+        boolean passed = frames > 0;
+        System.out.println(String.format(Locale.US, "%d frames delivered in %ds", frames,
+                mSeconds));
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-24s %12s %12s", "thread", "bytes",
+                "bytes/frame"));
+        for (Map.Entry<Thread, Long> e : allocated.entrySet()) {
+            long bytes = e.getValue();
+            String name = names.get(e.getKey());
+            System.out.println(String.format(Locale.US, "%-24s %12d %12.2f  %s", name, bytes,
+                    (double) bytes / Math.max(frames, 1), bytes == 0 ? "ok" : "ALLOCATES"));
+            if (bytes == 0) {
+                continue;
+            }
+            passed = false;
+
+            // Flight Recorder knows threads by their current name only
+            Map<String, Site> threadSites = sites.get(e.getKey().getName());
+            if (threadSites == null || threadSites.isEmpty()) {
+                System.out.println(recorded ? "    no allocation sites recorded; run with"
+                        + " -XX:-UseTLAB to record them all" : "    (no Flight Recorder on this"
+                        + " JVM to find allocation sites)");
+                continue;
+            }
+            List<Site> sorted = new ArrayList<>(threadSites.values());
+            java.util.Collections.sort(sorted);
+            for (int i = 0; i < sorted.size() && i < MAX_SITES; i++) {
+                System.out.println("    " + sorted.get(i));
+            }
+        }
+        System.out.println();
+        System.out.println(passed ? "No allocations in steady state"
+                : frames == 0 ? "Nothing was delivered" : "Steady-state allocations found");
+        return passed;
+    }
+
+    private static void stop(HostSession host, AudioStreamer streamer, List<GuestSession> guests) {
+        if (streamer != null) {
+            streamer.stop();
+        }
+        for (GuestSession guest : guests) {
+            guest.stop();
+        }
+        host.stop();
+    }
+
+    /**
+     * Start recording allocations with Flight Recorder. Looked up reflectively so that the
+     * tool still builds for, and runs on, JVMs without it.
+     *
+     * @return The recording, or null if there is no Flight Recorder
+     */
+    private static Object startRecording() {
+        try {
+            Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+            Method withStackTrace = Class.forName("jdk.jfr.EventSettings")
+                    .getMethod("withStackTrace");
+            Object recording = recordingClass.getConstructor().newInstance();
+            for (String event : ALLOCATION_EVENTS) {
+                withStackTrace.invoke(recordingClass.getMethod("enable", String.class)
+                        .invoke(recording, event));
+            }
+            recordingClass.getMethod("start").invoke(recording);
+            return recording;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stop a recording and add up what it saw.
+     *
+     * @return Allocation sites by thread name, then by class and location
+     */
+    private static Map<String, Map<String, Site>> stopRecording(Object recording)
+            throws IOException {
+        Map<String, Map<String, Site>> sites = new HashMap<>();
+        if (recording == null) {
+            return sites;
+        }
+        File file = File.createTempFile("allocations", ".jfr");
+        try {
+            Class<?> recordingClass = recording.getClass();
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", Path.class).invoke(recording, file.toPath());
+            recordingClass.getMethod("close").invoke(recording);
+
+            Class<?> eventClass = Class.forName("jdk.jfr.consumer.RecordedEvent");
+            Class<?> objectClass = Class.forName("jdk.jfr.consumer.RecordedObject");
+            Class<?> threadClass = Class.forName("jdk.jfr.consumer.RecordedThread");
+            Class<?> classClass = Class.forName("jdk.jfr.consumer.RecordedClass");
+            Method getThread = eventClass.getMethod("getThread");
+            Method getStackTrace = eventClass.getMethod("getStackTrace");
+            Method getClass = objectClass.getMethod("getClass", String.class);
+            Method getLong = objectClass.getMethod("getLong", String.class);
+            Method getJavaName = threadClass.getMethod("getJavaName");
+            Method getClassName = classClass.getMethod("getName");
+
+            List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                    .getMethod("readAllEvents", Path.class).invoke(null, file.toPath());
+            for (Object event : events) {
+                Object thread = getThread.invoke(event);
+                if (thread == null) {
+                    continue;
+                }
+                String threadName = (String) getJavaName.invoke(thread);
+                String type = (String) getClassName.invoke(getClass.invoke(event, "objectClass"));
+                long bytes = (Long) getLong.invoke(event, "allocationSize");
+                String location = location(getStackTrace.invoke(event));
+
+                Map<String, Site> threadSites = sites.get(threadName);
+                if (threadSites == null) {
+                    threadSites = new HashMap<>();
+                    sites.put(threadName, threadSites);
+                }
+                String key = type + " " + location;
+                Site site = threadSites.get(key);
+                if (site == null) {
+                    site = new Site(type, location);
+                    threadSites.put(key, site);
+                }
+                site.mCount++;
+                site.mBytes += bytes;
+            }
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Could not read the allocation recording: " + e);
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+        return sites;
+    }
+
+    /**
+     * Return where an allocation happened: the innermost frame in the app's code, followed
+     * by the innermost frame overall if that is somewhere else.
+     */
+    private static String location(Object stackTrace) throws ReflectiveOperationException {
+        if (stackTrace == null) {
+            return "(no stack trace)";
+        }
+        Class<?> frameClass = Class.forName("jdk.jfr.consumer.RecordedFrame");
+        Class<?> methodClass = Class.forName("jdk.jfr.consumer.RecordedMethod");
+        Method getFrames = stackTrace.getClass().getMethod("getFrames");
+        Method getMethod = frameClass.getMethod("getMethod");
+        Method getLineNumber = frameClass.getMethod("getLineNumber");
+        Method getType = methodClass.getMethod("getType");
+        Method getName = methodClass.getMethod("getName");
+        Method getClassName = Class.forName("jdk.jfr.consumer.RecordedClass").getMethod("getName");
+
+        String innermost = null;
+        for (Object frame : (List<?>) getFrames.invoke(stackTrace)) {
+            Object method = getMethod.invoke(frame);
+            String className = (String) getClassName.invoke(getType.invoke(method));
+            String where = className + "." + getName.invoke(method) + ":"
+                    + getLineNumber.invoke(frame);
+            if (innermost == null) {
+                innermost = where;
+            }
+            // Skip the accessors javac generates for inner classes
+            if (className.startsWith(ENGINE_PACKAGE)
+                    && !((String) getName.invoke(method)).startsWith("access$")) {
+                return where.equals(innermost) ? where : where + " via " + innermost;
+            }
+        }
+        return innermost == null ? "(empty stack trace)" : innermost;
+    }
+
+    /**
+     * Allocations of one type at one place.
+     */
+    private static class Site implements Comparable<Site> {
+        final String mType;
+        final String mLocation;
+        long mCount;
+        long mBytes;
+
+        Site(String type, String location) {
+            mType = type;
+            mLocation = location;
+        }
+
+        @Override
+        public int compareTo(Site other) {
+            return other.mBytes < mBytes ? -1 : other.mBytes == mBytes ? 0 : 1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%8d B in %5d x %s at %s", mBytes, mCount, mType,
+                    mLocation);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.tools;
+
+import com.example.android.amplacenta.engine.AudioSink;
+import com.example.android.amplacenta.engine.CaptureReader;
+import com.example.android.amplacenta.engine.CaptureWriter;
+import com.example.android.amplacenta.engine.Clock;
+import com.example.android.amplacenta.engine.Control;
+import com.example.android.amplacenta.engine.Frame;
+import com.example.android.amplacenta.engine.FrameWriter;
+import com.example.android.amplacenta.engine.GuestSession;
+import com.example.android.amplacenta.engine.JitterBuffer;
+import com.example.android.amplacenta.engine.PcmCodec;
+import com.example.android.amplacenta.engine.transport.Acceptor;
+import com.example.android.amplacenta.engine.transport.Connection;
+import com.example.android.amplacenta.engine.transport.Transport;
+import com.example.android.common.logger.Trace;
+import com.example.android.common.logger.TraceDecoder;
+import com.example.android.common.metrics.Histogram;
+import com.example.android.common.metrics.MetricsRegistry;
+import com.example.android.common.metrics.MetricsSnapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Feeds a capture made with {@link CaptureWriter} back into a {@link GuestSession}, with
+ * the original timing or faster, to reproduce a glitch or to measure jitter buffer and
+ * concealment changes against real traffic. The capture can come from either side: a
+ * guest's capture replays what it received, a host's what it sent to one guest.
+ * <p>
+ * The guest runs on a clock that follows the capture's, sped up as asked, so clock sync
+ * and playout behave as they did at the party, only faster. {@code --trace} records the
+ * replayed guest's events to a trace file, to be read with {@link TraceDecoder}.
+ * <pre>
+ * ./gradlew :tools:captureReplay -Pargs="--speed 4 --wav out.wav party.cap"
+ * </pre>
+ */
+public class CaptureReplay {
+
+    private static final String HOST_ADDRESS = "replay";
+
+    // Played after the capture ends, so the last blocks still in the buffer come out
+    private static final long TAIL_NANOS = 1000000000L;
+
+    private double mSpeed = 1;
+    private int mStream = -1;
+    private File mWav;
+    private File mTrace;
+    private File mCapture;
+
+    public static void main(String[] args) throws Exception {
+        CaptureReplay replay = new CaptureReplay();
+        if (!replay.parse(args)) {
+            System.err.println("usage: CaptureReplay [--speed X] [--stream N] [--wav FILE]"
+                    + " [--trace FILE] CAPTURE");
+            System.exit(2);
+        }
+        System.exit(replay.run() ? 0 : 1);
+    }
+
+    private boolean parse(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.startsWith("--") && i + 1 < args.length) {
+                    String value = args[++i];
+                    if (arg.equals("--speed")) {
+                        mSpeed = Double.parseDouble(value);
+                    } else if (arg.equals("--stream")) {
+                        mStream = Integer.parseInt(value);
+                    } else if (arg.equals("--wav")) {
+                        mWav = new File(value);
+                    } else if (arg.equals("--trace")) {
+                        mTrace = new File(value);
+                    } else {
+                        return false;
+                    }
+                } else if (mCapture == null && !arg.startsWith("--")) {
+                    mCapture = new File(arg);
+                } else {
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return mCapture != null && mSpeed > 0;
+    }
+
+    private boolean run() throws IOException, InterruptedException {
+        // Audio goes from host to guest; whichever direction carries it in this capture
+        // is the one to replay
+        Frame frame = new Frame();
+        int direction = -1;
+        long firstTime = 0;
+        long lastTime = 0;
+        boolean first = true;
+        CaptureReader reader = new CaptureReader(new FileInputStream(mCapture));
+        try {
+            while (reader.next(frame)) {
+                if (direction < 0 && frame.type == Frame.TYPE_AUDIO
+                        && (mStream < 0 || reader.getStream() == mStream)) {
+                    direction = reader.getDirection();
+                    mStream = reader.getStream();
+                }
+                if (first) {
+                    firstTime = reader.getTime();
+                    first = false;
+                }
+                lastTime = reader.getTime();
+            }
+        } finally {
+            reader.close();
+        }
+        if (direction < 0) {
+            System.out.println("No audio in " + mCapture
+                    + (mStream >= 0 ? " on stream " + mStream : ""));
+            return false;
+        }
+        boolean hostCapture = direction == CaptureWriter.OUTBOUND;
+        System.out.println(String.format(Locale.US,
+                "Replaying %.1fs of %s capture, stream %d, at %.1fx",
+                (lastTime - firstTime) / 1e9, hostCapture ? "host" : "guest", mStream, mSpeed));
+
+        ReplayClock clock = new ReplayClock(firstTime, mSpeed);
+        ReplayTransport transport = new ReplayTransport(clock, direction, hostCapture);
+        CountingSink counter = new CountingSink();
+        WavSink wav = mWav != null ? new WavSink(mWav) : null;
+        AudioSink sink = wav == null ? counter : new TeeSink(counter, wav);
+        QuietListener listener = new QuietListener();
+        GuestSession guest = new GuestSession(transport, clock, new PcmCodec(), sink, listener);
+        if (mTrace != null) {
+            Trace.start(mTrace, Trace.DEFAULT_CAPACITY);
+        }
+        long start = System.nanoTime();
+        try {
+            guest.connect(HOST_ADDRESS);
+
+            // The replayed connection ends with the capture
+            while (!transport.isDone()) {
+                Thread.sleep(10);
+            }
+            clock.sleep(TAIL_NANOS);
+            listener.setStopping();
+            guest.stop();
+        } finally {
+            Trace.stop();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        report(guest, transport, counter, elapsed);
+        return true;
+    }
+
+    private void report(GuestSession guest, ReplayTransport transport, CountingSink counter,
+                        long elapsed) {
+        JitterBuffer jitter = guest.getJitterBuffer();
+        MetricsSnapshot metrics = guest.getMetrics().snapshot();
+        Histogram.Snapshot lead = metrics.histogram(GuestSession.METRIC_LEAD_US);
+        Histogram.Snapshot gap = metrics.histogram(
+                MetricsRegistry.name(GuestSession.METRIC_RECEIVE_GAP_US, HOST_ADDRESS));
+        int sampleRate = counter.mSampleRate;
+
+        System.out.println();
+        System.out.println(String.format(Locale.US, "replayed   %d frames in %.1fs",
+                transport.getReplayed(), elapsed / 1e9));
+        System.out.println(String.format(Locale.US, "played     %.1fs of audio",
+                sampleRate == 0 ? 0.0 : (double) counter.mSamples.get() / sampleRate));
+        System.out.println("dropped    " + jitter.getDropped() + " blocks");
+        System.out.println("concealed  " + jitter.getConcealed() + " blocks");
+        System.out.println("lead       " + (lead == null ? "-" : lead + " us"));
+        System.out.println("gap        " + (gap == null ? "-" : gap + " us"));
+    }
+
+    /**
+     * Runs from the capture's first record at {@code speed} times real time.
+     */
+    private static class ReplayClock implements Clock {
+        private final long mOrigin;
+        private final double mSpeed;
+        private final long mStart = System.nanoTime();
+
+        ReplayClock(long origin, double speed) {
+            mOrigin = origin;
+            mSpeed = speed;
+        }
+
+        @Override
+        public long nanoTime() {
+            return mOrigin + (long) ((System.nanoTime() - mStart) * mSpeed);
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            Clock.SYSTEM.sleep((long) (nanos / mSpeed));
+        }
+    }
+
+    /**
+     * Connects to the capture: the connection delivers the recorded host-to-guest frames
+     * when the replay clock reaches their time, and ignores what the guest sends.
+     */
+    private class ReplayTransport implements Transport {
+        private final ReplayClock mClock;
+        private final int mDirection;
+        private final boolean mHostCapture;
+        private volatile boolean mDone;
+        private volatile int mReplayed;
+
+        ReplayTransport(ReplayClock clock, int direction, boolean hostCapture) {
+            mClock = clock;
+            mDirection = direction;
+            mHostCapture = hostCapture;
+        }
+
+        boolean isDone() {
+            return mDone;
+        }
+
+        int getReplayed() {
+            return mReplayed;
+        }
+
+        @Override
+        public Acceptor listen() throws IOException {
+            throw new IOException("A replay can only be connected to");
+        }
+
+        @Override
+        public String getListenAddress() {
+            return null;
+        }
+
+        @Override
+        public Connection connect(String address) throws IOException {
+            final InputStream in = new ReplayInputStream(
+                    new CaptureReader(new FileInputStream(mCapture)));
+            final OutputStream out = new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+            return new Connection() {
+                @Override
+                public InputStream getInputStream() {
+                    return in;
+                }
+
+                @Override
+                public OutputStream getOutputStream() {
+                    return out;
+                }
+
+                @Override
+                public String getRemoteName() {
+                    return mCapture.getName();
+                }
+
+                @Override
+                public String getRemoteAddress() {
+                    return HOST_ADDRESS;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+
+        /**
+         * The replayed frames, back in wire format.
+         */
+        private class ReplayInputStream extends InputStream {
+            private final CaptureReader mmReader;
+            private final Frame mmFrame = new Frame();
+            private final WireBuffer mmWire = new WireBuffer();
+            private final FrameWriter mmWriter = new FrameWriter(mmWire);
+            private int mmPosition;
+            private boolean mmClosed;
+
+            ReplayInputStream(CaptureReader reader) {
+                mmReader = reader;
+            }
+
+            /**
+             * Wait for the next frame to be due and put it in the wire buffer.
+             *
+             * @return false at the end of the capture
+             */
+            private boolean fill() throws IOException {
+                while (!mmClosed && mmReader.next(mmFrame)) {
+                    if (mmReader.getStream() != mStream || mmReader.getDirection() != mDirection) {
+                        continue;
+                    }
+                    long time = mmReader.getTime();
+                    if (mHostCapture && mmFrame.type == Frame.TYPE_CONTROL
+                            && Control.typeOf(mmFrame) == Control.PONG) {
+                        // The ping was sent on the original guest's clock; the replay runs
+                        // on the host's, so make it look like an instant round trip
+                        Control.pong(mmFrame, time, Control.longAt(mmFrame, 1));
+                    }
+                    try {
+                        mClock.sleep(time - mClock.nanoTime());
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    mmWire.reset();
+                    mmPosition = 0;
+                    mmWriter.write(mmFrame);
+                    mReplayed++;
+                    return true;
+                }
+                mDone = true;
+                return false;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (mmPosition == mmWire.size() && !fill()) {
+                    return -1;
+                }
+                int n = Math.min(len, mmWire.size() - mmPosition);
+                System.arraycopy(mmWire.bytes(), mmPosition, b, off, n);
+                mmPosition += n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                mmClosed = true;
+                mDone = true;
+                mmReader.close();
+            }
+        }
+    }
+
+    /**
+     * A byte array stream whose contents can be read in place.
+     */
+    private static class WireBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /**
+     * Plays into two sinks.
+     */
+    private static class TeeSink implements AudioSink {
+        private final AudioSink mFirst;
+        private final AudioSink mSecond;
+
+        TeeSink(AudioSink first, AudioSink second) {
+            mFirst = first;
+            mSecond = second;
+        }
+
+        @Override
+        public void open(int sampleRate) {
+            mFirst.open(sampleRate);
+            mSecond.open(sampleRate);
+        }
+
+        @Override
+        public void write(short[] samples, int offset, int count) {
+            mFirst.write(samples, offset, count);
+            mSecond.write(samples, offset, count);
+        }
+
+        @Override
+        public void close() {
+            mFirst.close();
+            mSecond.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.tools;
+
+import com.example.android.amplacenta.engine.AudioSink;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the speaker: counts what is played.
+ */
+class CountingSink implements AudioSink {
+
+    final AtomicLong mSamples = new AtomicLong();
+    volatile int mSampleRate;
+
+    @Override
+    public void open(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int count) {
+        mSamples.addAndGet(count);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A small FLAC encoder, for making test streams for the engine's decoder where there is
+ * no reference encoder. Frames are a fixed 4096 samples; each subframe is the smallest of
+ * constant, fixed predictors of order 0 to 4, an order 8 linear predictor and verbatim,
+ * and stereo is decorrelated whichever way is smallest. The frame CRCs are real; the
+ * stream info carries no MD5. Far slower than a real encoder, and compresses a little
+ * worse, but the streams it writes are every bit as valid.
+ */
+public class FlacWriter {
+
+    static final int BLOCK_SIZE = 4096;
+
+    private static final int LPC_ORDER = 8;
+    private static final int LPC_PRECISION = 12;
+    private static final int MAX_PARTITION_ORDER = 4;
+
+    private static final int[] CRC8 = new int[256];
+    private static final int[] CRC16 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int b = 0; b < 8; b++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8[i] = crc8 & 0xff;
+            CRC16[i] = crc16 & 0xffff;
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mBits;
+    private int mSeekInterval = 1;
+
+    // Scratch for the subframe candidates, and the best one so far
+    private final BitWriter mCandidate = new BitWriter();
+    private final BitWriter[] mBest;
+    private final int[] mResidual = new int[BLOCK_SIZE];
+    private final int[][] mStereo = new int[4][BLOCK_SIZE];
+
+    /**
+     * @param bits 8 to 24 bits per sample
+     */
+    public FlacWriter(int sampleRate, int channels, int bits) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mBits = bits;
+        mBest = new BitWriter[4];
+        for (int i = 0; i < mBest.length; i++) {
+            mBest[i] = new BitWriter();
+        }
+    }
+
+    /**
+     * Put a seek point in the stream every so many seconds, or none with 0. One a second
+     * by default.
+     */
+    public void setSeekInterval(int seconds) {
+        mSeekInterval = seconds;
+    }
+
+    /**
+     * Encode a whole stream.
+     *
+     * @param samples One array of samples per channel, each in range for the sample size
+     * @param length  The number of samples per channel
+     */
+    public void write(int[][] samples, int length, OutputStream out) throws IOException {
+        int frames = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int framesPerPoint = mSeekInterval == 0 ? 0
+                : Math.max(1, (int) ((long) mSeekInterval * mSampleRate / BLOCK_SIZE));
+        int points = framesPerPoint == 0 ? 0 : (frames + framesPerPoint - 1) / framesPerPoint;
+        long[] pointSamples = new long[points];
+        long[] pointOffsets = new long[points];
+        int[] pointFrames = new int[points];
+
+        BitWriter audio = new BitWriter();
+        int[][] block = new int[mChannels][BLOCK_SIZE];
+        for (int f = 0; f < frames; f++) {
+            int first = f * BLOCK_SIZE;
+            int n = Math.min(BLOCK_SIZE, length - first);
+            for (int c = 0; c < mChannels; c++) {
+                System.arraycopy(samples[c], first, block[c], 0, n);
+            }
+            if (framesPerPoint > 0 && f % framesPerPoint == 0) {
+                int p = f / framesPerPoint;
+                pointSamples[p] = first;
+                pointOffsets[p] = audio.length();
+                pointFrames[p] = n;
+            }
+            writeFrame(audio, block, n, f);
+        }
+
+        BitWriter header = new BitWriter();
+        header.write(0x664c6143, 32);
+
+        // STREAMINFO; the smallest block does not count the last one
+        header.write(0, 1);
+        header.write(0, 7);
+        header.write(34, 24);
+        header.write(BLOCK_SIZE, 16);
+        header.write(BLOCK_SIZE, 16);
+        header.write(0, 24);
+        header.write(0, 24);
+        header.write(mSampleRate, 20);
+        header.write(mChannels - 1, 3);
+        header.write(mBits - 1, 5);
+        // Total samples, 36 bits, of which an int length fills the low 32
+        header.write(0, 4);
+        header.write(length, 32);
+        for (int i = 0; i < 4; i++) {
+            header.write(0, 32);
+        }
+
+        // Padding, as taggers leave, which the decoder must skip
+        header.write(points == 0 ? 1 : 0, 1);
+        header.write(1, 7);
+        header.write(64, 24);
+        for (int i = 0; i < 16; i++) {
+            header.write(0, 32);
+        }
+
+        if (points > 0) {
+            // SEEKTABLE, with a placeholder at the end, as encoders reserve
+            header.write(1, 1);
+            header.write(3, 7);
+            header.write(18 * (points + 1), 24);
+            for (int p = 0; p < points; p++) {
+                header.writeLong(pointSamples[p]);
+                header.writeLong(pointOffsets[p]);
+                header.write(pointFrames[p], 16);
+            }
+            header.writeLong(-1L);
+            header.writeLong(0);
+            header.write(0, 16);
+        }
+
+        out.write(header.bytes(), 0, header.length());
+        out.write(audio.bytes(), 0, audio.length());
+    }
+
+    private void writeFrame(BitWriter out, int[][] block, int n, long number) {
+        int start = out.length();
+
+        // Pick the channel assignment first, from the subframe sizes
+        int assignment = mChannels - 1;
+        if (mChannels == 2) {
+            int[] left = block[0];
+            int[] right = block[1];
+            int[] side = mStereo[2];
+            int[] mid = mStereo[3];
+            for (int i = 0; i < n; i++) {
+                side[i] = left[i] - right[i];
+                mid[i] = (left[i] + right[i]) >> 1;
+            }
+            int l = encodeSubframe(mBest[0], left, n, mBits);
+            int r = encodeSubframe(mBest[1], right, n, mBits);
+            int s = encodeSubframe(mBest[2], side, n, mBits + 1);
+            int m = encodeSubframe(mBest[3], mid, n, mBits);
+            int best = l + r;
+            if (l + s < best) {
+                best = l + s;
+                assignment = 8;
+            }
+            if (s + r < best) {
+                best = s + r;
+                assignment = 9;
+            }
+            if (m + s < best) {
+                assignment = 10;
+            }
+        }
+
+        int sizeCode = n == BLOCK_SIZE ? 12 : 7;
+        int rateCode = rateCode(mSampleRate);
+        out.write(0xfff8, 16);
+        out.write(sizeCode, 4);
+        out.write(rateCode, 4);
+        out.write(assignment, 4);
+        out.write(sampleSizeCode(mBits), 3);
+        out.write(0, 1);
+        writeUtf8(out, number);
+        if (sizeCode == 7) {
+            out.write(n - 1, 16);
+        }
+        if (rateCode == 12) {
+            out.write(mSampleRate / 1000, 8);
+        } else if (rateCode == 13) {
+            out.write(mSampleRate, 16);
+        }
+        int crc = 0;
+        byte[] bytes = out.bytes();
+        for (int i = start; i < out.length(); i++) {
+            crc = CRC8[crc ^ (bytes[i] & 0xff)];
+        }
+        out.write(crc, 8);
+
+        if (mChannels == 2) {
+            int first = assignment == 9 ? 2 : assignment == 10 ? 3 : 0;
+            int second = assignment == 1 ? 1 : assignment == 9 ? 1 : 2;
+            out.append(mBest[first]);
+            out.append(mBest[second]);
+        } else {
+            for (int c = 0; c < mChannels; c++) {
+                encodeSubframe(mBest[0], block[c], n, mBits);
+                out.append(mBest[0]);
+            }
+        }
+        out.alignToByte();
+
+        crc = 0;
+        bytes = out.bytes();
+        for (int i = start; i < out.length(); i++) {
+            crc = ((crc << 8) ^ CRC16[(crc >>> 8) ^ (bytes[i] & 0xff)]) & 0xffff;
+        }
+        out.write(crc, 16);
+    }
+
+    /**
+     * Encode the smallest subframe for the samples into {@code best}.
+     *
+     * @return Its size in bits
+     */
+    private int encodeSubframe(BitWriter best, int[] x, int n, int bits) {
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        best.reset();
+        if (constant) {
+            best.write(0, 8);
+            best.write(x[0] & mask(bits), bits);
+            return best.bitLength();
+        }
+
+        // Verbatim bounds the rest
+        best.write(1 << 1, 8);
+        for (int i = 0; i < n; i++) {
+            best.write(x[i] & mask(bits), bits);
+        }
+
+        BitWriter candidate = mCandidate;
+        for (int order = 0; order <= 4 && order < n; order++) {
+            candidate.reset();
+            candidate.write((8 + order) << 1, 8);
+            for (int i = 0; i < order; i++) {
+                candidate.write(x[i] & mask(bits), bits);
+            }
+            fixedResidual(x, n, order, mResidual);
+            if (writeResidual(candidate, mResidual, n, order)
+                    && candidate.bitLength() < best.bitLength()) {
+                best.copyFrom(candidate);
+            }
+        }
+
+        int[] coefs = new int[LPC_ORDER];
+        int shift = lpc(x, n, coefs);
+        if (shift >= 0 && n > LPC_ORDER) {
+            candidate.reset();
+            candidate.write((32 + LPC_ORDER - 1) << 1, 8);
+            for (int i = 0; i < LPC_ORDER; i++) {
+                candidate.write(x[i] & mask(bits), bits);
+            }
+            candidate.write(LPC_PRECISION - 1, 4);
+            candidate.write(shift, 5);
+            for (int j = 0; j < LPC_ORDER; j++) {
+                candidate.write(coefs[j] & mask(LPC_PRECISION), LPC_PRECISION);
+            }
+            boolean fits = true;
+            for (int i = LPC_ORDER; i < n; i++) {
+                long sum = 0;
+                for (int j = 0; j < LPC_ORDER; j++) {
+                    sum += (long) coefs[j] * x[i - 1 - j];
+                }
+                long r = x[i] - (sum >> shift);
+                fits &= r == (int) r;
+                mResidual[i] = (int) r;
+            }
+            if (fits && writeResidual(candidate, mResidual, n, LPC_ORDER)
+                    && candidate.bitLength() < best.bitLength()) {
+                best.copyFrom(candidate);
+            }
+        }
+        return best.bitLength();
+    }
+
+    private static void fixedResidual(int[] x, int n, int order, int[] out) {
+        for (int i = order; i < n; i++) {
+            switch (order) {
+                case 0:
+                    out[i] = x[i];
+                    break;
+                case 1:
+                    out[i] = x[i] - x[i - 1];
+                    break;
+                case 2:
+                    out[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                    break;
+                case 3:
+                    out[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                    break;
+                default:
+                    out[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Quantized linear prediction coefficients for the samples, by Levinson-Durbin over
+     * the Welch-windowed autocorrelation.
+     *
+     * @return The shift to apply to the sums, or -1 if there is no usable predictor
+     */
+    private static int lpc(int[] x, int n, int[] out) {
+        if (n <= LPC_ORDER) {
+            return -1;
+        }
+        double[] w = new double[n];
+        for (int i = 0; i < n; i++) {
+            double t = 2.0 * i / (n - 1) - 1;
+            w[i] = x[i] * (1 - t * t);
+        }
+        double[] r = new double[LPC_ORDER + 1];
+        for (int lag = 0; lag <= LPC_ORDER; lag++) {
+            double sum = 0;
+            for (int i = lag; i < n; i++) {
+                sum += w[i] * w[i - lag];
+            }
+            r[lag] = sum;
+        }
+        if (r[0] == 0) {
+            return -1;
+        }
+        r[0] *= 1 + 1e-9;
+
+        double[] a = new double[LPC_ORDER];
+        double[] tmp = new double[LPC_ORDER];
+        double error = r[0];
+        for (int i = 0; i < LPC_ORDER; i++) {
+            double k = r[i + 1];
+            for (int j = 0; j < i; j++) {
+                k -= a[j] * r[i - j];
+            }
+            k /= error;
+            System.arraycopy(a, 0, tmp, 0, i);
+            a[i] = k;
+            for (int j = 0; j < i; j++) {
+                a[j] = tmp[j] - k * tmp[i - 1 - j];
+            }
+            error *= 1 - k * k;
+            if (error <= 0) {
+                return -1;
+            }
+        }
+
+        double max = 0;
+        for (double c : a) {
+            max = Math.max(max, Math.abs(c));
+        }
+        int limit = (1 << (LPC_PRECISION - 1)) - 1;
+        int shift = 15;
+        while (shift > 0 && Math.round(max * (1 << shift)) > limit) {
+            shift--;
+        }
+        if (Math.round(max * (1 << shift)) > limit) {
+            return -1;
+        }
+        double carry = 0;
+        for (int j = 0; j < LPC_ORDER; j++) {
+            double v = a[j] * (1 << shift) + carry;
+            long q = Math.max(-limit - 1, Math.min(limit, Math.round(v)));
+            carry = v - q;
+            out[j] = (int) q;
+        }
+        return shift;
+    }
+
+    /**
+     * Rice-code the residual after the warm-up samples, with the best partition order and
+     * parameters.
+     *
+     * @return false if the residual is too large to code
+     */
+    private static boolean writeResidual(BitWriter out, int[] residual, int n, int order) {
+        int bestOrder = -1;
+        long bestBits = Long.MAX_VALUE;
+        int[] bestParams = new int[1 << MAX_PARTITION_ORDER];
+        int[] params = new int[1 << MAX_PARTITION_ORDER];
+        for (int po = 0; po <= MAX_PARTITION_ORDER; po++) {
+            int size = n >> po;
+            if (size << po != n || size < order) {
+                break;
+            }
+            long total = 0;
+            int start = order;
+            for (int p = 0; p < 1 << po; p++) {
+                int end = (p + 1) * size;
+                long sum = 0;
+                for (int i = start; i < end; i++) {
+                    sum += zigzag(residual[i]);
+                }
+                int count = Math.max(1, end - start);
+                int k = 0;
+                while (k < 30 && (long) count << (k + 1) <= sum) {
+                    k++;
+                }
+                long bits = 0;
+                for (int i = start; i < end; i++) {
+                    bits += (zigzag(residual[i]) >>> k) + 1 + k;
+                }
+                params[p] = k;
+                total += bits;
+                start = end;
+            }
+            if (total < bestBits) {
+                bestBits = total;
+                bestOrder = po;
+                System.arraycopy(params, 0, bestParams, 0, 1 << po);
+            }
+        }
+        if (bestOrder < 0 || bestBits > 32L * n) {
+            return false;
+        }
+
+        int maxParam = 0;
+        for (int p = 0; p < 1 << bestOrder; p++) {
+            maxParam = Math.max(maxParam, bestParams[p]);
+        }
+        int method = maxParam > 14 ? 1 : 0;
+        out.write(method, 2);
+        out.write(bestOrder, 4);
+        int size = n >> bestOrder;
+        int start = order;
+        for (int p = 0; p < 1 << bestOrder; p++) {
+            int k = bestParams[p];
+            out.write(k, method == 0 ? 4 : 5);
+            int end = (p + 1) * size;
+            for (int i = start; i < end; i++) {
+                long u = zigzag(residual[i]);
+                long q = u >>> k;
+                while (q >= 32) {
+                    out.write(0, 32);
+                    q -= 32;
+                }
+                out.write(1, (int) q + 1);
+                if (k > 0) {
+                    out.write((int) (u & ((1L << k) - 1)), k);
+                }
+            }
+            start = end;
+        }
+        return true;
+    }
+
+    private static long zigzag(int v) {
+        return ((long) v << 1 ^ (long) (v >> 31)) & 0xffffffffL;
+    }
+
+    private static int mask(int bits) {
+        return bits == 32 ? -1 : (1 << bits) - 1;
+    }
+
+    private static int rateCode(int rate) {
+        int[] rates = {0, 88200, 176400, 192000, 8000, 16000, 22050, 24000, 32000, 44100,
+                48000, 96000};
+        for (int i = 1; i < rates.length; i++) {
+            if (rates[i] == rate) {
+                return i;
+            }
+        }
+        if (rate % 1000 == 0 && rate / 1000 < 256) {
+            return 12;
+        }
+        return rate < 65536 ? 13 : 0;
+    }
+
+    private static int sampleSizeCode(int bits) {
+        switch (bits) {
+            case 8:
+                return 1;
+            case 12:
+                return 2;
+            case 16:
+                return 4;
+            case 20:
+                return 5;
+            case 24:
+                return 6;
+            default:
+                return 0;
+        }
+    }
+
+    private static void writeUtf8(BitWriter out, long v) {
+        if (v < 0x80) {
+            out.write((int) v, 8);
+            return;
+        }
+        int extra = v < 0x800 ? 1 : v < 0x10000 ? 2 : v < 0x200000 ? 3 : v < 0x4000000 ? 4
+                : v < 0x80000000L ? 5 : 6;
+        int lead = (0xff00 >> (extra + 1)) & 0xff;
+        out.write(lead | (int) (v >>> (6 * extra)), 8);
+        for (int i = extra - 1; i >= 0; i--) {
+            out.write(0x80 | (int) (v >>> (6 * i)) & 0x3f, 8);
+        }
+    }
+
+    /**
+     * Bits written most significant first into a growing array.
+     */
+    private static class BitWriter {
+        private byte[] mBytes = new byte[4096];
+        private int mLength;
+        private long mBits;
+        private int mBitCount;
+
+        void reset() {
+            mLength = 0;
+            mBits = 0;
+            mBitCount = 0;
+        }
+
+        /**
+         * Write the low {@code n} bits of {@code v}, up to 32.
+         */
+        void write(int v, int n) {
+            if (n == 0) {
+                return;
+            }
+            mBits = mBits << n | (v & 0xffffffffL) & ((1L << n) - 1);
+            mBitCount += n;
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                if (mLength == mBytes.length) {
+                    mBytes = Arrays.copyOf(mBytes, 2 * mBytes.length);
+                }
+                mBytes[mLength++] = (byte) (mBits >>> mBitCount);
+            }
+        }
+
+        void writeLong(long v) {
+            write((int) (v >>> 32), 32);
+            write((int) v, 32);
+        }
+
+        void alignToByte() {
+            if (mBitCount > 0) {
+                write(0, 8 - mBitCount);
+            }
+        }
+
+        void append(BitWriter other) {
+            for (int i = 0; i < other.mLength; i++) {
+                write(other.mBytes[i], 8);
+            }
+            write((int) other.mBits, other.mBitCount);
+        }
+
+        void copyFrom(BitWriter other) {
+            if (mBytes.length < other.mBytes.length) {
+                mBytes = new byte[other.mBytes.length];
+            }
+            System.arraycopy(other.mBytes, 0, mBytes, 0, other.mLength);
+            mLength = other.mLength;
+            mBits = other.mBits;
+            mBitCount = other.mBitCount;
+        }
+
+        /**
+         * Return the number of whole bytes written.
+         */
+        int length() {
+            return mLength;
+        }
+
+        int bitLength() {
+            return 8 * mLength + mBitCount;
+        }
+
+        byte[] bytes() {
+            return mBytes;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.tools;
+
+import com.example.android.amplacenta.engine.AudioBlock;
+import com.example.android.amplacenta.engine.AudioStreamer;
+import com.example.android.amplacenta.engine.PlaybackQueue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks that a {@link PlaybackQueue} splices tracks without a gap. Cuts one continuous
+ * signal into tracks of uneven lengths, never a whole number of blocks, alternately FLAC
+ * and WAV, queues them and reads the queue in blocks the way {@link AudioStreamer} does,
+ * paced at a multiple of real time. The blocks must run on without a break in their
+ * positions and match the signal sample for sample across every change of track, and a
+ * read across a change should take no longer than any other, since the next track was
+ * decoded ahead. Exits with 1 if anything differs.
+ * <pre>
+ * ./gradlew :tools:gaplessCheck -Pargs="--tracks 8 --speed 20"
+ * </pre>
+ */
+public class GaplessCheck {
+
+    private static final int CHANNELS = 2;
+
+    private int mTracks = 5;
+    private int mSeconds = 3;
+    private int mSampleRate = 44100;
+    private int mSpeed = 10;
+
+    public static void main(String[] args) throws Exception {
+        GaplessCheck check = new GaplessCheck();
+        if (!check.parse(args)) {
+            System.err.println("usage: GaplessCheck [--tracks N] [--seconds S] [--rate HZ]"
+                    + " [--speed X]");
+            System.exit(2);
+        }
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    private boolean parse(String[] args) {
+        try {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                if (args[i].equals("--tracks")) {
+                    mTracks = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("--seconds")) {
+                    mSeconds = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("--rate")) {
+                    mSampleRate = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("--speed")) {
+                    mSpeed = Integer.parseInt(args[i + 1]);
+                } else {
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return args.length % 2 == 0 && mTracks >= 2 && mSeconds > 0 && mSampleRate > 0
+                && mSpeed > 0;
+    }
+
+    /**
+     * @return true if the queue played the signal back unbroken
+     */
+    private boolean run() throws IOException {
+        Random random = new Random(5);
+
+        // A sweep with a little noise, so that a dropped or repeated sample shows
+        int length = mTracks * mSeconds * mSampleRate;
+        int[][] signal = new int[CHANNELS][length];
+        double phase = 0;
+        for (int i = 0; i < length; i++) {
+            phase += 2 * Math.PI * (200 + 1800.0 * i / length) / mSampleRate;
+            for (int c = 0; c < CHANNELS; c++) {
+                signal[c][i] = (int) (12000 * Math.sin(phase * (1 + c * 0.5)))
+                        + random.nextInt(64) - 32;
+            }
+        }
+
+        // Cut points anywhere within a third of a track of even
+        int[] starts = new int[mTracks + 1];
+        int even = length / mTracks;
+        for (int t = 1; t < mTracks; t++) {
+            starts[t] = t * even + random.nextInt(2 * even / 3) - even / 3;
+        }
+        starts[mTracks] = length;
+
+        File dir = File.createTempFile("gapless", "");
+        dir.delete();
+        dir.mkdirs();
+        File[] files = new File[mTracks];
+        for (int t = 0; t < mTracks; t++) {
+            files[t] = new File(dir, "track" + t + (t % 2 == 0 ? ".flac" : ".wav"));
+            writeTrack(files[t], signal, starts[t], starts[t + 1] - starts[t]);
+            files[t].deleteOnExit();
+        }
+        dir.deleteOnExit();
+
+        PlaybackQueue queue = new PlaybackQueue(files[0], new PlaybackQueue.FileOpener(null));
+        for (int t = 1; t < mTracks; t++) {
+            queue.add(files[t]);
+        }
+
+        int blockFrames = mSampleRate * AudioStreamer.BLOCK_MILLIS / 1000;
+        long blockNanos = AudioStreamer.BLOCK_MILLIS * 1000000L / mSpeed;
+        AudioBlock block = new AudioBlock(CHANNELS, blockFrames);
+        boolean ok = true;
+        long position = 0;
+        long steadyWorst = 0;
+        long steadyTotal = 0;
+        long spliceWorst = 0;
+        long spliceTotal = 0;
+        int splices = 0;
+        int blocks = 0;
+        int track = 0;
+        long next = System.nanoTime();
+        try {
+            while (ok) {
+                long start = System.nanoTime();
+                int n = queue.read(block);
+                long elapsed = System.nanoTime() - start;
+                if (n < 0) {
+                    break;
+                }
+                boolean splice = track + 1 < mTracks && position + n > starts[track + 1];
+                if (splice) {
+                    track++;
+                    splices++;
+                    spliceWorst = Math.max(spliceWorst, elapsed);
+                    spliceTotal += elapsed;
+                } else {
+                    blocks++;
+                    steadyWorst = Math.max(steadyWorst, elapsed);
+                    steadyTotal += elapsed;
+                }
+                if (block.position != position) {
+                    System.out.println("Block at " + block.position + ", expected " + position);
+                    ok = false;
+                }
+                for (int c = 0; c < CHANNELS && ok; c++) {
+                    for (int i = 0; i < n; i++) {
+                        if (block.samples[c][i] != signal[c][(int) position + i]) {
+                            System.out.println("Sample " + (position + i) + " of channel " + c
+                                    + " is " + block.samples[c][i] + ", expected "
+                                    + signal[c][(int) position + i]);
+                            ok = false;
+                            break;
+                        }
+                    }
+                }
+                position += n;
+
+                next += blockNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            queue.close();
+        }
+        if (ok && position != length) {
+            System.out.println("Played " + position + " sample frames, expected " + length);
+            ok = false;
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%d tracks, %d splices, %d sample frames at %d Hz, read at %dx real time",
+                mTracks, splices, position, mSampleRate, mSpeed));
+        System.out.println(String.format(Locale.US,
+                "Reads across a splice: %.3f ms mean, %.3f ms worst; otherwise %.3f ms mean,"
+                        + " %.3f ms worst",
+                spliceTotal / 1e6 / Math.max(1, splices), spliceWorst / 1e6,
+                steadyTotal / 1e6 / Math.max(1, blocks), steadyWorst / 1e6));
+        System.out.println(ok ? "OK: gapless and sample-accurate" : "FAILED");
+        return ok;
+    }
+
+    private void writeTrack(File file, int[][] signal, int start, int length)
+            throws IOException {
+        int[][] samples = new int[CHANNELS][length];
+        for (int c = 0; c < CHANNELS; c++) {
+            System.arraycopy(signal[c], start, samples[c], 0, length);
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            if (file.getName().endsWith(".flac")) {
+                new FlacWriter(mSampleRate, CHANNELS, 16).write(samples, length, out);
+            } else {
+                writeWav(new DataOutputStream(out), samples, length);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeWav(DataOutputStream out, int[][] samples, int length)
+            throws IOException {
+        int dataBytes = 2 * CHANNELS * length;
+        out.writeBytes("RIFF");
+        out.writeInt(Integer.reverseBytes(36 + dataBytes));
+        out.writeBytes("WAVEfmt ");
+        out.writeInt(Integer.reverseBytes(16));
+        out.writeShort(Short.reverseBytes((short) 1));
+        out.writeShort(Short.reverseBytes((short) CHANNELS));
+        out.writeInt(Integer.reverseBytes(mSampleRate));
+        out.writeInt(Integer.reverseBytes(mSampleRate * 2 * CHANNELS));
+        out.writeShort(Short.reverseBytes((short) (2 * CHANNELS)));
+        out.writeShort(Short.reverseBytes((short) 16));
+        out.writeBytes("data");
+        out.writeInt(Integer.reverseBytes(dataBytes));
+        for (int i = 0; i < length; i++) {
+            for (int c = 0; c < CHANNELS; c++) {
+                out.writeShort(Short.reverseBytes((short) samples[c][i]));
+            }
+        }
+    }
+}
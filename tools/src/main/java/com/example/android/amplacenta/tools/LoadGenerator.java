@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.tools;
+
+import com.example.android.amplacenta.engine.AudioStreamer;
+import com.example.android.amplacenta.engine.Clock;
+import com.example.android.amplacenta.engine.GuestSession;
+import com.example.android.amplacenta.engine.GuestStats;
+import com.example.android.amplacenta.engine.HostSession;
+import com.example.android.amplacenta.engine.PcmCodec;
+import com.example.android.amplacenta.engine.PcmFormat;
+import com.example.android.amplacenta.engine.PcmSource;
+import com.example.android.amplacenta.engine.PlaybackQueue;
+import com.example.android.amplacenta.engine.ToneSource;
+import com.example.android.amplacenta.engine.transport.EmulatedTransport;
+import com.example.android.amplacenta.engine.transport.LinkProfile;
+import com.example.android.amplacenta.engine.transport.LoopbackTransport;
+import com.example.android.amplacenta.engine.transport.MulticastGroup;
+import com.example.android.amplacenta.engine.transport.Transport;
+import com.example.android.common.logger.Trace;
+import com.example.android.common.logger.TraceDecoder;
+import com.example.android.common.metrics.Histogram;
+import com.example.android.common.metrics.MetricsRegistry;
+import com.example.android.common.metrics.MetricsSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Finds out how many guests one host can feed. Starts a {@link HostSession} and N
+ * {@link GuestSession}s in this process over a {@link LoopbackTransport}, optionally
+ * shaped by a {@link LinkProfile}, streams a tone to all of them for a fixed time and
+ * reports what each guest got: throughput, delivery latency percentiles, dropped and
+ * concealed blocks. Host CPU is measured on the host's own threads.
+ * <p>
+ * With {@code --max-direct} and {@code --relay-slots} the host serves only so many guests
+ * itself and every guest offers to relay, so the party becomes a relay tree; guests then
+ * join one at a time so that the relays are up before anyone is sent to them, and
+ * latency is also reported per tier of the tree along with the hop to reach it.
+ * <p>
+ * With {@code --multicast} the host also sends the audio to a UDP multicast group on the
+ * loopback interface, which every guest joins, and the links carry only control traffic
+ * and repairs; the report then shows how much of the host's egress went to the group.
+ * <p>
+ * The guests are sent a tone unless {@code --file} names FLAC or 16-bit WAV files to
+ * stream, separated by commas and played without gaps; the first sets the rate and
+ * channels. Together they should last the whole run.
+ * <p>
+ * {@code --trace} records the host's and every guest's events to one trace file, to be
+ * read with {@link TraceDecoder}.
+ * <p>
+ * The guests run on virtual threads when the JVM has them (Java 21 and later), so a
+ * desktop JVM can simulate hundreds of them; the host keeps platform threads so its CPU
+ * time can be measured per thread.
+ * <pre>
+ * ./gradlew :tools:loadGenerator -Pargs="--guests 200 --seconds 30"
+ * ./gradlew :tools:loadGenerator -Pargs="--guests 40 --max-direct 7 --relay-slots 5"
+ * ./gradlew :tools:loadGenerator -Pargs="--guests 100 --multicast 239.255.42.99:5004"
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final String HOST_ADDRESS = "host";
+
+    // Options
+    private int mGuests = 8;
+    private int mSeconds = 10;
+    private int mSampleRate = 48000;
+    private int mChannels = 2;
+    private int mLatencyMs = (int) (AudioStreamer.DEFAULT_LATENCY_NANOS / 1000000);
+    private LinkProfile mProfile = LinkProfile.IDEAL;
+    private long mSeed = 1;
+    private boolean mVirtualThreads = true;
+    private int mMaxDirect = Integer.MAX_VALUE;
+    private int mRelaySlots;
+    private String mMulticast;
+    private String[] mFiles;
+    private File mTrace;
+
+    private final QuietListener mListener = new QuietListener();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        if (!generator.parse(args)) {
+            System.err.println("usage: LoadGenerator [--guests N] [--seconds S] [--rate HZ]"
+                    + " [--channels N] [--latency-ms MS] [--profile ideal|good|crowded|edge]"
+                    + " [--seed N] [--max-direct N] [--relay-slots N] [--multicast GROUP:PORT]"
+                    + " [--file FILE[,FILE...]] [--trace FILE] [--platform-threads]");
+            System.exit(2);
+        }
+        System.exit(generator.run() ? 0 : 1);
+    }
+
+    private boolean parse(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--platform-threads")) {
+                    mVirtualThreads = false;
+                } else if (i + 1 < args.length) {
+                    String value = args[++i];
+                    if (arg.equals("--guests")) {
+                        mGuests = Integer.parseInt(value);
+                    } else if (arg.equals("--seconds")) {
+                        mSeconds = Integer.parseInt(value);
+                    } else if (arg.equals("--rate")) {
+                        mSampleRate = Integer.parseInt(value);
+                    } else if (arg.equals("--channels")) {
+                        mChannels = Integer.parseInt(value);
+                    } else if (arg.equals("--latency-ms")) {
+                        mLatencyMs = Integer.parseInt(value);
+                    } else if (arg.equals("--seed")) {
+                        mSeed = Long.parseLong(value);
+                    } else if (arg.equals("--max-direct")) {
+                        mMaxDirect = Integer.parseInt(value);
+                    } else if (arg.equals("--relay-slots")) {
+                        mRelaySlots = Integer.parseInt(value);
+                    } else if (arg.equals("--multicast")) {
+                        mMulticast = value;
+                    } else if (arg.equals("--file")) {
+                        mFiles = value.split(",");
+                    } else if (arg.equals("--trace")) {
+                        mTrace = new File(value);
+                    } else if (arg.equals("--profile")) {
+                        mProfile = LinkProfile.forName(value);
+                        if (mProfile == null) {
+                            return false;
+                        }
+                    } else {
+                        return false;
+                    }
+                } else {
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return mGuests > 0 && mSeconds > 0 && mChannels > 0 && mMaxDirect > 0
+                && mRelaySlots >= 0;
+    }
+
+    /**
+     * Run the load and print the report.
+     *
+     * @return false if not every guest managed to connect
+     */
+    private boolean run() throws InterruptedException, IOException {
+        if (mTrace != null) {
+            Trace.start(mTrace, Trace.DEFAULT_CAPACITY);
+        }
+        try {
+            return runSessions();
+        } finally {
+            Trace.stop();
+        }
+    }
+
+    private boolean runSessions() throws InterruptedException, IOException {
+        ThreadFactory guestThreads = mVirtualThreads ? virtualThreadFactory() : null;
+        boolean virtual = guestThreads != null;
+        if (!virtual) {
+            guestThreads = Executors.defaultThreadFactory();
+        }
+        RecordingThreadFactory hostThreads = new RecordingThreadFactory();
+        PcmSource source;
+        if (mFiles != null) {
+            PlaybackQueue queue = new PlaybackQueue(new File(mFiles[0]),
+                    new PlaybackQueue.FileOpener(null));
+            for (int i = 1; i < mFiles.length; i++) {
+                queue.add(new File(mFiles[i]));
+            }
+            source = queue;
+            mSampleRate = source.getFormat().sampleRate;
+            mChannels = source.getFormat().channels;
+        } else {
+            source = new ToneSource(new PcmFormat(mSampleRate, mChannels), -1);
+        }
+        System.out.println(String.format(Locale.US,
+                "%d guests, %ds, %dHz/%dch, latency %dms, link %s, seed %d, %s guest threads",
+                mGuests, mSeconds, mSampleRate, mChannels, mLatencyMs, mProfile, mSeed,
+                virtual ? "virtual" : "platform"));
+
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        Transport hostTransport = network.endpoint(HOST_ADDRESS);
+        if (mProfile != LinkProfile.IDEAL) {
+            hostTransport = new EmulatedTransport(hostTransport, mProfile, mSeed);
+        }
+        HostSession host = new HostSession(hostTransport, Clock.SYSTEM, mListener);
+        host.setThreadFactory(hostThreads);
+        host.setMaxDirectGuests(mMaxDirect);
+        NetworkInterface loopback = null;
+        MulticastGroup group = null;
+        if (mMulticast != null) {
+            loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+            group = new MulticastGroup(mMulticast, loopback);
+            host.setMulticast(group);
+        }
+        host.start();
+
+        List<GuestSession> guests = new ArrayList<>();
+        List<CountingSink> sinks = new ArrayList<>();
+        long deadline = System.nanoTime() + 10000000000L + mGuests * 50000000L;
+        for (int i = 0; i < mGuests; i++) {
+            String address = "guest-" + i;
+            CountingSink sink = new CountingSink();
+            GuestSession guest = new GuestSession(network.endpoint(address), Clock.SYSTEM,
+                    new PcmCodec(), sink, mListener);
+            if (mRelaySlots > 0) {
+                Transport relayTransport = network.endpoint(address);
+                if (mProfile != LinkProfile.IDEAL) {
+                    relayTransport = new EmulatedTransport(relayTransport, mProfile,
+                            mSeed + 1000 * (i + 1));
+                }
+                guest.enableRelay(relayTransport, null, mRelaySlots);
+            }
+            if (mMulticast != null) {
+                guest.enableMulticast(loopback);
+            }
+            guest.setThreadFactory(guestThreads);
+            guest.connect(HOST_ADDRESS);
+            guests.add(guest);
+            sinks.add(sink);
+            if (mRelaySlots > 0) {
+                // Wait for the guest to land and start relaying before sending the next
+                while ((host.numGuests() <= i
+                        || guest.getRelay().getState() == HostSession.STATE_NONE)
+                        && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+
+        while (host.numGuests() < mGuests && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        if (host.numGuests() < mGuests) {
+            System.out.println("Only " + host.numGuests() + " of " + mGuests
+                    + " guests connected");
+            mListener.setStopping();
+            stop(host, null, guests);
+            source.close();
+            return false;
+        }
+
+        AudioStreamer streamer = new AudioStreamer(host, new PcmCodec());
+        streamer.setThreadFactory(hostThreads);
+        streamer.setLatencyNanos(mLatencyMs * 1000000L);
+        streamer.play(source);
+
+        // Give the guests time to sync their clocks before measuring
+        Thread.sleep(1000 + mLatencyMs);
+        host.getMetrics().reset();
+        for (GuestSession guest : guests) {
+            guest.getMetrics().reset();
+        }
+        for (CountingSink sink : sinks) {
+            sink.mSamples.set(0);
+        }
+        int[] dropped = new int[mGuests];
+        int[] concealed = new int[mGuests];
+        for (int i = 0; i < mGuests; i++) {
+            dropped[i] = guests.get(i).getJitterBuffer().getDropped();
+            concealed[i] = guests.get(i).getJitterBuffer().getConcealed();
+        }
+        long hostCpu = hostThreads.cpuNanos();
+        long processCpu = processCpuNanos();
+        long start = System.nanoTime();
+
+        Thread.sleep(mSeconds * 1000L);
+
+        long elapsed = System.nanoTime() - start;
+        hostCpu = hostThreads.cpuNanos() - hostCpu;
+        processCpu = processCpuNanos() - processCpu;
+        long[] played = new long[mGuests];
+        for (int i = 0; i < mGuests; i++) {
+            played[i] = sinks.get(i).mSamples.get();
+            dropped[i] = guests.get(i).getJitterBuffer().getDropped() - dropped[i];
+            concealed[i] = guests.get(i).getJitterBuffer().getConcealed() - concealed[i];
+        }
+        List<GuestStats> stats = new ArrayList<>();
+        int members = 0;
+        for (int i = host.snapshotGuestStats(stats) - 1; i >= 0; i--) {
+            members += stats.get(i).multicast ? 1 : 0;
+        }
+        // Taken before stopping, which drops each guest's metrics as it leaves
+        MetricsSnapshot hostMetrics = host.getMetrics().snapshot();
+        mListener.setStopping();
+        stop(host, streamer, guests);
+        report(hostMetrics, guests, played, dropped, concealed, elapsed, hostCpu, processCpu,
+                group == null ? null : group.getAddress(), members);
+        return true;
+    }
+
+    private void report(MetricsSnapshot hostMetrics, List<GuestSession> guests, long[] played,
+                        int[] dropped, int[] concealed, long elapsed, long hostCpu,
+                        long processCpu, String group, int groupMembers) {
+        double seconds = elapsed / 1e9;
+        Histogram all = new Histogram();
+        long totalBytes = 0;
+        int totalDropped = 0;
+        int totalConcealed = 0;
+        long requested = 0;
+        long retransmitted = 0;
+        long recovered = 0;
+
+        System.out.println();
+        List<Histogram> tierP50 = new ArrayList<>();
+        List<Histogram> tierP99 = new ArrayList<>();
+
+        System.out.println(String.format(Locale.US, "%-10s %4s %10s %10s %10s %10s %8s %9s",
+                "guest", "tier", "kbit/s", "played %", "lat p50", "lat p99", "dropped",
+                "concealed"));
+        for (int i = 0; i < guests.size(); i++) {
+            GuestSession guest = guests.get(i);
+            MetricsSnapshot metrics = guest.getMetrics().snapshot();
+            long bytes = sumKeyed(metrics, GuestSession.METRIC_RECEIVED_BYTES);
+            Histogram.Snapshot lead = metrics.histogram(GuestSession.METRIC_LEAD_US);
+            long latencyUs = mLatencyMs * 1000L;
+            long p50 = lead == null ? -1 : latencyUs - lead.percentile(0.5);
+            long p99 = lead == null ? -1 : latencyUs - lead.percentile(0.01);
+            int d = dropped[i];
+            int c = concealed[i];
+
+            int tier = guest.getTier();
+            System.out.println(String.format(Locale.US,
+                    "%-10s %4d %10.1f %10.1f %8.1fms %8.1fms %8d %9d", "guest-" + i, tier,
+                    bytes * 8 / seconds / 1000,
+                    100.0 * played[i] / (mSampleRate * seconds), p50 / 1000.0, p99 / 1000.0, d, c));
+            totalBytes += bytes;
+            totalDropped += d;
+            totalConcealed += c;
+            String address = "guest-" + i;
+            requested += hostMetrics.counter(
+                    MetricsRegistry.name(HostSession.METRIC_RETRANSMIT_REQUESTED, address));
+            retransmitted += hostMetrics.counter(
+                    MetricsRegistry.name(HostSession.METRIC_RETRANSMITTED, address));
+            recovered += metrics.counter(GuestSession.METRIC_RECOVERED);
+            if (p99 >= 0) {
+                all.record(p99);
+                while (tierP50.size() <= tier) {
+                    tierP50.add(new Histogram());
+                    tierP99.add(new Histogram());
+                }
+                tierP50.get(tier).record(Math.max(0, p50));
+                tierP99.get(tier).record(p99);
+            }
+        }
+
+        Histogram.Snapshot worst = all.snapshot(false);
+        System.out.println();
+        System.out.println(String.format(Locale.US,
+                "total %.1f kbit/s, %d dropped, %d concealed, worst guest p99 latency %.1fms",
+                totalBytes * 8 / seconds / 1000, totalDropped, totalConcealed, worst.max / 1000.0));
+        long hostBytes = sumKeyed(hostMetrics, HostSession.METRIC_SENT_BYTES);
+        String egress = String.format(Locale.US, "host egress %.1f kbit/s",
+                hostBytes * 8 / seconds / 1000);
+        if (group != null) {
+            long groupBytes = hostMetrics.counter(
+                    MetricsRegistry.name(HostSession.METRIC_SENT_BYTES, group));
+            egress += String.format(Locale.US, ", %.1f kbit/s of it multicast to %d guests",
+                    groupBytes * 8 / seconds / 1000, groupMembers);
+        }
+        System.out.println(egress);
+        System.out.println(String.format(Locale.US,
+                "host CPU %.1f%% of one core (%.1fus per guest-second), process CPU %.1f%%",
+                100.0 * hostCpu / elapsed, hostCpu / 1000.0 / seconds / guests.size(),
+                processCpu < 0 ? -1 : 100.0 * processCpu / elapsed));
+        if (tierP50.size() > 2) {
+            // Each tier's median latency against the one above it is the cost of the hop
+            System.out.println();
+            System.out.println(String.format(Locale.US, "%-6s %6s %10s %10s %10s",
+                    "tier", "guests", "lat p50", "lat p99", "hop p50"));
+            long above = 0;
+            for (int tier = 1; tier < tierP50.size(); tier++) {
+                Histogram.Snapshot p50 = tierP50.get(tier).snapshot(false);
+                Histogram.Snapshot p99 = tierP99.get(tier).snapshot(false);
+                if (p50.count == 0) {
+                    continue;
+                }
+                long median = p50.percentile(0.5);
+                System.out.println(String.format(Locale.US, "%-6d %6d %8.1fms %8.1fms %8.1fms",
+                        tier, p50.count, median / 1000.0, p99.max / 1000.0,
+                        (median - above) / 1000.0));
+                above = median;
+            }
+            System.out.println();
+        }
+        System.out.println(String.format(Locale.US,
+                "retransmit %d requested, %d sent, %d recovered (%.1f%%)", requested,
+                retransmitted, recovered, requested == 0 ? 100.0 : 100.0 * recovered / requested));
+        System.out.println("host encode " + hostMetrics
+                .histogram(AudioStreamer.METRIC_ENCODE_US) + " us per block");
+    }
+
+    /**
+     * Return the sum of a keyed counter over every key, since in a relay tree a guest is
+     * sent the stream by a relay rather than by the host.
+     */
+    private static long sumKeyed(MetricsSnapshot metrics, String name) {
+        String prefix = MetricsRegistry.name(name, "");
+        prefix = prefix.substring(0, prefix.length() - 1);
+        long sum = 0;
+        for (Map.Entry<String, Long> counter : metrics.counters.entrySet()) {
+            if (counter.getKey().startsWith(prefix)) {
+                sum += counter.getValue();
+            }
+        }
+        return sum;
+    }
+
+    private static void stop(HostSession host, AudioStreamer streamer, List<GuestSession> guests) {
+        if (streamer != null) {
+            streamer.stop();
+        }
+        for (GuestSession guest : guests) {
+            guest.stop();
+        }
+        host.stop();
+    }
+
+    /**
+     * Return a factory of virtual threads, or null if this JVM has none. Looked up
+     * reflectively so that the tool still builds and runs on older JVMs.
+     */
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the CPU time of the whole process, or -1 if the JVM does not say.
+     */
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
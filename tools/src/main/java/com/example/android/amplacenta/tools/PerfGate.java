@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.tools;
+
+import com.example.android.amplacenta.engine.AudioStreamer;
+import com.example.android.amplacenta.engine.Clock;
+import com.example.android.amplacenta.engine.GuestSession;
+import com.example.android.amplacenta.engine.HostSession;
+import com.example.android.amplacenta.engine.PcmCodec;
+import com.example.android.amplacenta.engine.PcmFormat;
+import com.example.android.amplacenta.engine.ToneSource;
+import com.example.android.amplacenta.engine.transport.EmulatedTransport;
+import com.example.android.amplacenta.engine.transport.LinkProfile;
+import com.example.android.amplacenta.engine.transport.LoopbackTransport;
+import com.example.android.common.metrics.Histogram;
+import com.example.android.common.metrics.MetricsRegistry;
+import com.example.android.common.metrics.MetricsSnapshot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Performance regression gate. Runs a short, fixed end-to-end session, one host and a few
+ * guests in this process over a {@link LoopbackTransport} shaped by a fixed
+ * {@link LinkProfile}, and compares what it measured against a baseline file:
+ * <ul>
+ * <li>delivery latency p50 and p99, the worst over the guests</li>
+ * <li>throughput, over all guests</li>
+ * <li>bytes allocated per audio frame delivered, on every session thread</li>
+ * <li>CPU time per audio frame delivered, on every session thread</li>
+ * </ul>
+ * Exits with 1 if any of them is worse than the baseline by more than its tolerance. The
+ * baseline is a properties file; a metric's limit is its baseline value scaled by
+ * {@code tolerance}, plus {@code <metric>.slack} which absorbs noise around small values.
+ * The times only compare on the machine that recorded them, so the gate is not part of
+ * {@code check}; record a baseline before gating on a new machine.
+ * <pre>
+ * ./gradlew :tools:perfGate                    # fails on a regression
+ * ./gradlew :tools:perfGate -PupdateBaseline   # records the current numbers instead
+ * </pre>
+ */
+public class PerfGate {
+
+    private static final String HOST_ADDRESS = "host";
+
+    // The session measured. Changing any of these invalidates the baseline.
+    private static final int GUESTS = 4;
+    private static final int WARMUP_SECONDS = 3;
+    private static final int SECONDS = 10;
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    // Latency is measured as this lead minus what is left of it when a block arrives, and
+    // a short lead leaves little, which the histograms resolve finely
+    private static final int LATENCY_MS = 40;
+    private static final long SEED = 1;
+
+    // Shaped but free of random stalls, loss and disconnects, so the numbers only move
+    // when the code does
+    private static final LinkProfile PROFILE = new LinkProfile.Builder("gate")
+            .bitsPerSecond(1500000)
+            .latencyMs(5).jitterMs(2)
+            .build();
+
+    // Names of the metrics, as used in the baseline file
+    static final String LATENCY_P50_MS = "latency_p50_ms";
+    static final String LATENCY_P99_MS = "latency_p99_ms";
+    static final String THROUGHPUT_KBPS = "throughput_kbps";
+    static final String ALLOC_BYTES_PER_FRAME = "alloc_bytes_per_frame";
+    static final String CPU_US_PER_FRAME = "cpu_us_per_frame";
+
+    private static final String TOLERANCE = "tolerance";
+    private static final String SLACK_SUFFIX = ".slack";
+    private static final double DEFAULT_TOLERANCE = 0.25;
+
+    public static void main(String[] args) throws Exception {
+        boolean update = false;
+        File baseline = null;
+        for (String arg : args) {
+            if (arg.equals("--update")) {
+                update = true;
+            } else if (baseline == null && !arg.startsWith("--")) {
+                baseline = new File(arg);
+            } else {
+                baseline = null;
+                break;
+            }
+        }
+        if (baseline == null) {
+            System.err.println("usage: PerfGate [--update] BASELINE");
+            System.exit(2);
+        }
+
+        Map<String, Double> measured = new PerfGate().measure();
+        if (measured == null) {
+            System.exit(1);
+        }
+        if (update) {
+            writeBaseline(baseline, measured);
+            System.out.println("Baseline written to " + baseline);
+            System.exit(0);
+        }
+        System.exit(compare(readBaseline(baseline), measured) ? 0 : 1);
+    }
+
+    private final QuietListener mListener = new QuietListener();
+
+    /**
+     * Run the session.
+     *
+     * @return The measurements by name, or null if the session could not be set up
+     */
+    private Map<String, Double> measure() throws InterruptedException {
+        System.out.println(String.format(Locale.US,
+                "%d guests, %ds, %dHz/%dch, latency %dms, link %s",
+                GUESTS, SECONDS, SAMPLE_RATE, CHANNELS, LATENCY_MS, PROFILE));
+
+        // Platform threads throughout, so that every session thread can be measured
+        RecordingThreadFactory threads = new RecordingThreadFactory();
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        HostSession host = new HostSession(
+                new EmulatedTransport(network.endpoint(HOST_ADDRESS), PROFILE, SEED),
+                Clock.SYSTEM, mListener);
+        host.setThreadFactory(threads);
+        host.start();
+
+        List<GuestSession> guests = new ArrayList<>();
+        for (int i = 0; i < GUESTS; i++) {
+            GuestSession guest = new GuestSession(network.endpoint("guest-" + i), Clock.SYSTEM,
+                    new PcmCodec(), new CountingSink(), mListener);
+            guest.setThreadFactory(threads);
+            guest.connect(HOST_ADDRESS);
+            guests.add(guest);
+        }
+        long deadline = System.nanoTime() + 10000000000L;
+        while (host.numConnections() < GUESTS && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        if (host.numConnections() < GUESTS) {
+            System.out.println("Only " + host.numConnections() + " of " + GUESTS
+                    + " guests connected");
+            mListener.setStopping();
+            stop(host, null, guests);
+            return null;
+        }
+
+        AudioStreamer streamer = new AudioStreamer(host, new PcmCodec());
+        streamer.setThreadFactory(threads);
+        streamer.setLatencyNanos(LATENCY_MS * 1000000L);
+        streamer.play(new ToneSource(new PcmFormat(SAMPLE_RATE, CHANNELS), -1));
+
+        // Let clocks sync and the JIT settle before measuring
+        Thread.sleep(WARMUP_SECONDS * 1000L);
+        for (GuestSession guest : guests) {
+            guest.getMetrics().reset();
+        }
+        long cpu = threads.cpuNanos();
+        long allocated = threads.allocatedBytes();
+        long start = System.nanoTime();
+
+        Thread.sleep(SECONDS * 1000L);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        cpu = threads.cpuNanos() - cpu;
+        allocated = allocated < 0 ? -1 : threads.allocatedBytes() - allocated;
+        long p50 = 0;
+        long p99 = 0;
+        long bytes = 0;
+        long frames = 0;
+        for (GuestSession guest : guests) {
+            MetricsSnapshot metrics = guest.getMetrics().snapshot();
+            bytes += metrics.counter(
+                    MetricsRegistry.name(GuestSession.METRIC_RECEIVED_BYTES, HOST_ADDRESS));
+            frames += metrics.counter(
+                    MetricsRegistry.name(GuestSession.METRIC_RECEIVED_FRAMES, HOST_ADDRESS));
+            Histogram.Snapshot lead = metrics.histogram(GuestSession.METRIC_LEAD_US);
+            if (lead == null || lead.count == 0) {
+                System.out.println("A guest played nothing");
+                mListener.setStopping();
+                stop(host, streamer, guests);
+                return null;
+            }
+            p50 = Math.max(p50, LATENCY_MS * 1000L - lead.percentile(0.5));
+            p99 = Math.max(p99, LATENCY_MS * 1000L - lead.percentile(0.01));
+        }
+        mListener.setStopping();
+        stop(host, streamer, guests);
+
+        Map<String, Double> measured = new LinkedHashMap<>();
+        measured.put(LATENCY_P50_MS, p50 / 1000.0);
+        measured.put(LATENCY_P99_MS, p99 / 1000.0);
+        measured.put(THROUGHPUT_KBPS, bytes * 8 / seconds / 1000);
+        if (allocated >= 0) {
+            measured.put(ALLOC_BYTES_PER_FRAME, (double) allocated / Math.max(frames, 1));
+        }
+        measured.put(CPU_US_PER_FRAME, cpu / 1000.0 / Math.max(frames, 1));
+        return measured;
+    }
+
+    private static void stop(HostSession host, AudioStreamer streamer, List<GuestSession> guests) {
+        if (streamer != null) {
+            streamer.stop();
+        }
+        for (GuestSession guest : guests) {
+            guest.stop();
+        }
+        host.stop();
+    }
+
+    /**
+     * Whether a higher value of the metric is an improvement.
+     */
+    private static boolean higherIsBetter(String metric) {
+        return metric.equals(THROUGHPUT_KBPS);
+    }
+
+    /**
+     * Print each measurement next to its baseline and limit.
+     *
+     * @return false if any of them regressed, or has no baseline
+     */
+    private static boolean compare(Properties baseline, Map<String, Double> measured) {
+        double tolerance = Double.parseDouble(
+                baseline.getProperty(TOLERANCE, String.valueOf(DEFAULT_TOLERANCE)));
+        boolean passed = true;
+
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-22s %12s %12s %12s",
+                "metric", "baseline", "limit", "measured"));
+        for (Map.Entry<String, Double> e : measured.entrySet()) {
+            String metric = e.getKey();
+            double value = e.getValue();
+            String base = baseline.getProperty(metric);
+            if (base == null) {
+                System.out.println(String.format(Locale.US, "%-22s %12s %12s %12.2f  NO BASELINE",
+                        metric, "-", "-", value));
+                passed = false;
+                continue;
+            }
+            double expected = Double.parseDouble(base);
+            double slack = Double.parseDouble(baseline.getProperty(metric + SLACK_SUFFIX, "0"));
+            double limit;
+            boolean ok;
+            if (higherIsBetter(metric)) {
+                limit = expected * (1 - tolerance) - slack;
+                ok = value >= limit;
+            } else {
+                limit = expected * (1 + tolerance) + slack;
+                ok = value <= limit;
+            }
+            System.out.println(String.format(Locale.US, "%-22s %12.2f %12.2f %12.2f  %s",
+                    metric, expected, limit, value, ok ? "ok" : "REGRESSED"));
+            passed &= ok;
+        }
+        System.out.println();
+        System.out.println(passed ? "Performance gate passed"
+                : "Performance gate FAILED; if the change is intended, update the"
+                + " baseline with -PupdateBaseline");
+        return passed;
+    }
+
+    private static Properties readBaseline(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    /**
+     * Replace the measurements in the baseline file, keeping its tolerances.
+     */
+    private static void writeBaseline(File file, Map<String, Double> measured)
+            throws IOException {
+        Properties properties = file.exists() ? readBaseline(file) : new Properties();
+        for (Map.Entry<String, Double> e : measured.entrySet()) {
+            properties.setProperty(e.getKey(), String.format(Locale.US, "%.2f", e.getValue()));
+        }
+        if (properties.getProperty(TOLERANCE) == null) {
+            properties.setProperty(TOLERANCE, String.valueOf(DEFAULT_TOLERANCE));
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Baseline of PerfGate, rewrite with ./gradlew :tools:perfGate"
+                    + " -PupdateBaseline");
+        } finally {
+            out.close();
+        }
+    }
+}
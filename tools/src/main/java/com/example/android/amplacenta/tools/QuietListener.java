@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.tools;
+
+import com.example.android.amplacenta.engine.SessionListener;
+
+/**
+ * Only reports what goes wrong while measuring. Guests leaving once the measurement is
+ * over are expected, so call {@link #setStopping()} first.
+ */
+class QuietListener implements SessionListener {
+
+    private volatile boolean mStopping;
+
+    void setStopping() {
+        mStopping = true;
+    }
+
+    @Override
+    public void onStateChanged(int state) {
+    }
+
+    @Override
+    public void onConnected(String name) {
+    }
+
+    @Override
+    public void onConnectionFailed() {
+        System.out.println("connection failed");
+    }
+
+    @Override
+    public void onConnectionLost(String name) {
+        if (!mStopping) {
+            System.out.println("connection lost: " + name);
+        }
+    }
+
+    @Override
+    public void onTextReceived(byte[] buffer, int length) {
+    }
+
+    @Override
+    public void onTextSent(byte[] buffer) {
+    }
+}
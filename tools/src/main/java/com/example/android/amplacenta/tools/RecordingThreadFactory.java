@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Platform threads whose CPU time and allocations can be added up.
+ */
+class RecordingThreadFactory implements ThreadFactory {
+
+    private final ThreadFactory mFactory = Executors.defaultThreadFactory();
+    private final List<Thread> mThreads = new ArrayList<>();
+
+    @Override
+    public synchronized Thread newThread(Runnable runnable) {
+        Thread thread = mFactory.newThread(runnable);
+        mThreads.add(thread);
+        return thread;
+    }
+
+    /**
+     * Return the threads made so far, dead or alive.
+     */
+    synchronized List<Thread> threads() {
+        return new ArrayList<>(mThreads);
+    }
+
+    /**
+     * Return the CPU time used so far by the threads still alive.
+     */
+    synchronized long cpuNanos() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : mThreads) {
+            long cpu = bean.getThreadCpuTime(thread.getId());
+            if (cpu > 0) {
+                total += cpu;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Return the bytes allocated so far by the threads still alive, or -1 if the JVM
+     * does not count them.
+     */
+    synchronized long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+        if (!sun.isThreadAllocatedMemorySupported()) {
+            return -1;
+        }
+        sun.setThreadAllocatedMemoryEnabled(true);
+        long total = 0;
+        for (Thread thread : mThreads) {
+            long bytes = sun.getThreadAllocatedBytes(thread.getId());
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
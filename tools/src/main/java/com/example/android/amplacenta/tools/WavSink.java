@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.amplacenta.tools;
+
+import com.example.android.amplacenta.engine.AudioSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes what is played to a 16-bit mono WAV file, for listening to after a run. The
+ * header is filled in when the sink is closed.
+ */
+class WavSink implements AudioSink {
+
+    private static final int HEADER_SIZE = 44;
+
+    private final File mFile;
+    private RandomAccessFile mOut;
+    private byte[] mBuffer = new byte[0];
+    private int mSampleRate;
+    private long mDataBytes;
+
+    WavSink(File file) {
+        mFile = file;
+    }
+
+    @Override
+    public synchronized void open(int sampleRate) {
+        if (mOut != null) {
+            // One rate per file; keep the first
+            return;
+        }
+        try {
+            mOut = new RandomAccessFile(mFile, "rw");
+            mOut.setLength(0);
+            mOut.write(new byte[HEADER_SIZE]);
+            mSampleRate = sampleRate;
+        } catch (IOException e) {
+            System.out.println("Cannot write " + mFile + ": " + e.getMessage());
+            mOut = null;
+        }
+    }
+
+    @Override
+    public synchronized void write(short[] samples, int offset, int count) {
+        if (mOut == null) {
+            return;
+        }
+        if (mBuffer.length < 2 * count) {
+            mBuffer = new byte[2 * count];
+        }
+        for (int i = 0; i < count; i++) {
+            short s = samples[offset + i];
+            mBuffer[2 * i] = (byte) s;
+            mBuffer[2 * i + 1] = (byte) (s >> 8);
+        }
+        try {
+            mOut.write(mBuffer, 0, 2 * count);
+            mDataBytes += 2 * count;
+        } catch (IOException e) {
+            System.out.println("Cannot write " + mFile + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.seek(0);
+            mOut.writeBytes("RIFF");
+            mOut.writeInt(Integer.reverseBytes((int) (36 + mDataBytes)));
+            mOut.writeBytes("WAVEfmt ");
+            mOut.writeInt(Integer.reverseBytes(16));
+            mOut.writeShort(Short.reverseBytes((short) 1));     // PCM
+            mOut.writeShort(Short.reverseBytes((short) 1));     // mono
+            mOut.writeInt(Integer.reverseBytes(mSampleRate));
+            mOut.writeInt(Integer.reverseBytes(mSampleRate * 2));
+            mOut.writeShort(Short.reverseBytes((short) 2));     // bytes per frame
+            mOut.writeShort(Short.reverseBytes((short) 16));    // bits per sample
+            mOut.writeBytes("data");
+            mOut.writeInt(Integer.reverseBytes((int) mDataBytes));
+            mOut.close();
+        } catch (IOException e) {
+            System.out.println("Cannot write " + mFile + ": " + e.getMessage());
+        }
+        mOut = null;
+    }
+}